@@ -0,0 +1,476 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import org.json.JSONObject;
+
+/**
+ * A local stand-in for the registration authority. It implements the
+ * endpoints used by AsyncVVService with the same envelopes, moves processes
+ * through the same states and rejects requests in the wrong state with 409.
+ * A second, plain HTTP server plays the openecard application: it answers
+ * the eID client request with a redirect which contains an auth key.
+ * <p>
+ * Each request can be delayed by a random latency, and a share of the
+ * requests can fail with 503. Certificates are issued a fixed time after
+ * the upload has been finished; the "certificate" is the uploaded CSR.
+ */
+public final class FakeRAServer implements AutoCloseable {
+    static {
+        // otherwise small replies wait for delayed ACKs (about 40 ms per request)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpsServer server;
+    private final HttpServer eidClient;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Process> processes = new ConcurrentHashMap<>();
+    /** the process of each EID session */
+    private final ConcurrentMap<String, String> eidSessions = new ConcurrentHashMap<>();
+
+    private volatile long minLatency = 0;
+    private volatile long maxLatency = 0;
+    private volatile double errorRate = 0;
+    private volatile long issueDelay = 0;
+
+    /** the state of one process; guarded by its own lock */
+    private static final class Process {
+        ProcessStatus status = ProcessStatus.AUTH_PENDING;
+        String authKey;
+        long issueTime;
+        final Map<String, byte[]> csrs = new HashMap<>();
+    }
+
+    /** a request which is answered with an error envelope */
+    private static final class Rejected extends Exception {
+        final int code;
+        final String errorCode;
+        final ProcessStatus status;
+
+        private static final long serialVersionUID = 1L;
+
+        Rejected(int code, String errorCode, ProcessStatus status) {
+            super(errorCode, null, false, false);
+            this.code = code;
+            this.errorCode = errorCode;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Start the servers on free ports of the loopback interface.
+     * @throws IOException
+     */
+    public FakeRAServer() throws IOException {
+        executor = DaemonThreads.newCachedPool("fake-ra");
+        InetSocketAddress any = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+        server = HttpsServer.create(any, 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(StubServer.createServerContext()));
+        server.createContext("/", exchange -> handle(exchange, false));
+        server.setExecutor(executor);
+
+        eidClient = HttpServer.create(any, 0);
+        eidClient.createContext("/eID-Client", exchange -> handle(exchange, true));
+        eidClient.setExecutor(executor);
+
+        server.start();
+        eidClient.start();
+    }
+
+    /**
+     * Delay each request by a random time between min and max.
+     * @param min  in milliseconds
+     * @param max  in milliseconds
+     */
+    public void setLatency(long min, long max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("invalid latency");
+        }
+        this.minLatency = min;
+        this.maxLatency = max;
+    }
+
+    /**
+     * Let a share of the requests fail with 503 before they are processed.
+     * @param errorRate  between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Set how long a process stays in CERT_IN_PROGRESS.
+     * @param issueDelay  in milliseconds
+     */
+    public void setIssueDelay(long issueDelay) {
+        this.issueDelay = issueDelay;
+    }
+
+    /**
+     * Get the base URL of the service, to be used instead of VVService.VVSERVER.
+     * @return
+     */
+    public String getUrl() {
+        return "https://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Get the URL of the fake eID client, to be used instead of
+     * AsyncVVService.DEFAULT_EID_CLIENT.
+     * @return
+     */
+    public String getEidClientUrl() {
+        return "http://127.0.0.1:" + eidClient.getAddress().getPort() + "/eID-Client";
+    }
+
+    /**
+     * Get the number of processes which have not been finalized.
+     * @return
+     */
+    public int getProcessCount() {
+        return processes.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        eidClient.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange, final boolean eid) throws IOException {
+        try {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            delay();
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                send(exchange, 503, error("SERVICE_UNAVAILABLE", null));
+                return;
+            }
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            try {
+                if (eid) {
+                    redirect(exchange, eidAuthenticate(query));
+                } else {
+                    send(exchange, 200, dispatch(exchange.getRequestMethod(),
+                            exchange.getRequestURI().getPath(), query, body));
+                }
+            } catch (Rejected ex) {
+                send(exchange, ex.code, error(ex.errorCode, ex.status));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String dispatch(final String method, final String path, final Map<String, String> query,
+            final byte[] body) throws Rejected {
+        switch (method + " " + path) {
+            case "GET /status/":
+                return reply(null, new JSONObject().put("ServiceStatus", "OK"));
+            case "POST /process/":
+                return createProcess();
+            case "GET /process/":
+                return reply(status(process(query)), null);
+            case "DELETE /process/":
+                return finalizeProcess(query);
+            case "POST /auth/":
+                if (!"eid".equals(query.get("auth_type"))) {
+                    throw new Rejected(400, "AUTH_TYPE_NOT_SUPPORTED", null);
+                }
+                return reply(advance(process(query), ProcessStatus.AUTH_PENDING, ProcessStatus.AUTH_EID_READY), null);
+            case "POST /auth/eid/":
+                return initEidSession(query);
+            case "PUT /auth/eid/":
+                return confirmEidSession(query);
+            case "POST /email/":
+                return reply(advance(process(query), ProcessStatus.EMAIL_PENDING,
+                        ProcessStatus.EMAIL_NOT_VALIDATED), null);
+            case "PUT /email/":
+                if (query.getOrDefault("validation_code", "").isEmpty()) {
+                    throw new Rejected(400, "VALIDATION_CODE_INVALID", null);
+                }
+                return reply(advance(process(query), ProcessStatus.EMAIL_NOT_VALIDATED,
+                        ProcessStatus.AUTH_COMPLETED), null);
+            case "GET /users/":
+                return personalData(query);
+            case "POST /certificates/":
+                return uploadCSR(query, body);
+            case "PUT /certificates/":
+                return uploadFinished(query);
+            case "GET /certificates/":
+                return downloadCert(query);
+            default:
+                throw new Rejected(404, "NOT_FOUND", null);
+        }
+    }
+
+    private String createProcess() {
+        String processId = randomId();
+        processes.put(processId, new Process());
+        return reply(ProcessStatus.AUTH_PENDING, new JSONObject().put("ProcessId", processId));
+    }
+
+    private String finalizeProcess(final Map<String, String> query) throws Rejected {
+        Process process = process(query);
+        processes.remove(query.get("process_id"));
+        return reply(status(process), null);
+    }
+
+    private String initEidSession(final Map<String, String> query) throws Rejected {
+        Process process = process(query);
+        synchronized (process) {
+            require(process, ProcessStatus.AUTH_EID_READY);
+            String eidSession = randomId();
+            process.authKey = randomId();
+            eidSessions.put(eidSession, query.get("process_id"));
+            return reply(process.status, new JSONObject().put("EIdSession", eidSession));
+        }
+    }
+
+    /** the fake openecard application: authenticates without asking anyone */
+    private String eidAuthenticate(final Map<String, String> query) throws Rejected {
+        String tokenUrl = query.get("tcTokenURL");
+        if (tokenUrl == null) {
+            throw new Rejected(400, "TC_TOKEN_URL_MISSING", null);
+        }
+        String eidSession = parseQuery(URI.create(tokenUrl).getRawQuery()).getOrDefault("eid_session", "");
+        Process process = processes.get(eidSessions.getOrDefault(eidSession, ""));
+        if (process == null) {
+            throw new Rejected(404, "EID_SESSION_NOT_FOUND", null);
+        }
+        synchronized (process) {
+            return getUrl() + "/auth/eid/?eid_session=" + encode(eidSession) +
+                    "&auth_key=" + encode(process.authKey);
+        }
+    }
+
+    private String confirmEidSession(final Map<String, String> query) throws Rejected {
+        String processId = eidSessions.remove(query.getOrDefault("eid_session", ""));
+        Process process = (processId == null) ? null : processes.get(processId);
+        if (process == null) {
+            throw new Rejected(404, "EID_SESSION_NOT_FOUND", null);
+        }
+        synchronized (process) {
+            if (!"true".equals(query.get("success")) || !query.getOrDefault("eid_authkey", "").equals(process.authKey)) {
+                throw new Rejected(409, "EID_AUTHENTICATION_FAILED", process.status);
+            }
+            return reply(advance(process, ProcessStatus.AUTH_EID_READY, ProcessStatus.EMAIL_PENDING), null);
+        }
+    }
+
+    private String personalData(final Map<String, String> query) throws Rejected {
+        Process process = process(query);
+        synchronized (process) {
+            if (process.status == ProcessStatus.AUTH_COMPLETED) {
+                process.status = ProcessStatus.CERT_AWAIT_REQUEST;
+            }
+            require(process, ProcessStatus.CERT_AWAIT_REQUEST);
+            JSONObject identity = new JSONObject()
+                    .put("GivenNames", "Firstname")
+                    .put("FamilyNames", "Familyname")
+                    .put("AcademicTitle", JSONObject.NULL);
+            return reply(process.status, new JSONObject()
+                    .put("UserIdentity", identity)
+                    .put("EmailAddress", "mail@example.com"));
+        }
+    }
+
+    private String uploadCSR(final Map<String, String> query, final byte[] body) throws Rejected {
+        String certType = query.get("cert_type");
+        if (!VVService.CERT_TYPES.contains(certType)) {
+            throw new Rejected(400, "CERT_TYPE_INVALID", null);
+        }
+        byte[] csr = multipartContent(body);
+        Process process = process(query);
+        synchronized (process) {
+            require(process, ProcessStatus.CERT_AWAIT_REQUEST);
+            process.csrs.put(certType, csr);
+            return reply(process.status, null);
+        }
+    }
+
+    private String uploadFinished(final Map<String, String> query) throws Rejected {
+        Process process = process(query);
+        synchronized (process) {
+            require(process, ProcessStatus.CERT_AWAIT_REQUEST);
+            if (process.csrs.isEmpty()) {
+                throw new Rejected(409, "NO_CERTIFICATION_REQUEST", process.status);
+            }
+            process.status = ProcessStatus.CERT_IN_PROGRESS;
+            process.issueTime = System.currentTimeMillis() + issueDelay;
+            return reply(process.status, null);
+        }
+    }
+
+    private String downloadCert(final Map<String, String> query) throws Rejected {
+        Process process = process(query);
+        synchronized (process) {
+            require(process, ProcessStatus.CERT_AVAILABLE);
+            byte[] cert = process.csrs.get(query.get("cert_type"));
+            if (cert == null) {
+                throw new Rejected(404, "CERTIFICATE_NOT_FOUND", process.status);
+            }
+            return reply(process.status, new JSONObject()
+                    .put("CertificateData", Base64.getEncoder().encodeToString(cert)));
+        }
+    }
+
+    private Process process(final Map<String, String> query) throws Rejected {
+        Process process = processes.get(query.getOrDefault("process_id", ""));
+        if (process == null) {
+            throw new Rejected(404, "PROCESS_NOT_FOUND", null);
+        }
+        return process;
+    }
+
+    private static ProcessStatus status(final Process process) {
+        synchronized (process) {
+            if (process.status == ProcessStatus.CERT_IN_PROGRESS &&
+                    System.currentTimeMillis() >= process.issueTime) {
+                process.status = ProcessStatus.CERT_AVAILABLE;
+            }
+            return process.status;
+        }
+    }
+
+    private static void require(final Process process, final ProcessStatus expected) throws Rejected {
+        ProcessStatus status = status(process);
+        if (status != expected) {
+            throw new Rejected(409, "PROCESS_STATUS_INVALID", status);
+        }
+    }
+
+    private static ProcessStatus advance(final Process process, final ProcessStatus from,
+            final ProcessStatus to) throws Rejected {
+        synchronized (process) {
+            require(process, from);
+            process.status = to;
+            return to;
+        }
+    }
+
+    private static String reply(final ProcessStatus status, final JSONObject data) {
+        JSONObject result = new JSONObject().put("ErrorCode", "GENERIC_SUCCESS");
+        if (status != null) {
+            result.put("ProcessStatus", status.name());
+        }
+        return new JSONObject().put("Result", result).put("Data", (data == null) ? JSONObject.NULL : data)
+                .toString();
+    }
+
+    private static String error(final String errorCode, final ProcessStatus status) {
+        JSONObject result = new JSONObject().put("ErrorCode", errorCode);
+        if (status != null) {
+            result.put("ProcessStatus", status.name());
+        }
+        return new JSONObject().put("Result", result).put("Data", JSONObject.NULL).toString();
+    }
+
+    /** the content of the single file in a multipart body */
+    private static byte[] multipartContent(final byte[] body) throws Rejected {
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        int start = text.indexOf("\r\n\r\n");
+        int end = text.lastIndexOf("\r\n--");
+        if (start < 0 || end < start + 4) {
+            throw new Rejected(400, "MULTIPART_INVALID", null);
+        }
+        return text.substring(start + 4, end).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void delay() throws InterruptedIOException {
+        long min = minLatency;
+        long max = maxLatency;
+        if (max == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(min, max + 1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void send(final HttpExchange exchange, final int code, final String json)
+            throws IOException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    private static void redirect(final HttpExchange exchange, final String location) throws IOException {
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.sendResponseHeaders(303, -1);
+    }
+
+    private static Map<String, String> parseQuery(final String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static String randomId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return String.format("%016x%016x%016x%016x",
+                random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+    }
+
+    private static String encode(final String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+}
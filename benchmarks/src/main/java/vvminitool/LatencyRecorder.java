@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the latencies of requests per endpoint and reports percentiles.
+ * All samples are kept, so the percentiles are exact; a load test of some
+ * hundred thousand requests needs a few megabytes.
+ */
+public final class LatencyRecorder {
+    private final Map<String, Samples> endpoints = new TreeMap<>();
+
+    /** the samples of one endpoint; guarded by the recorder */
+    private static final class Samples {
+        long[] nanos = new long[1024];
+        int count;
+        int errors;
+    }
+
+    /**
+     * Record a request.
+     * @param endpoint  e.g. "GET /process/"
+     * @param nanos  the latency
+     * @param failed  whether the request failed
+     */
+    public synchronized void record(final String endpoint, final long nanos, final boolean failed) {
+        Samples samples = endpoints.computeIfAbsent(endpoint, e -> new Samples());
+        if (samples.count == samples.nanos.length) {
+            samples.nanos = Arrays.copyOf(samples.nanos, samples.count * 2);
+        }
+        samples.nanos[samples.count++] = nanos;
+        if (failed) {
+            samples.errors++;
+        }
+    }
+
+    /**
+     * Get the number of recorded requests.
+     * @return
+     */
+    public synchronized long getCount() {
+        long count = 0;
+        for (Samples samples : endpoints.values()) {
+            count += samples.count;
+        }
+        return count;
+    }
+
+    /**
+     * Print a table with the request count, errors and latency percentiles
+     * of each endpoint.
+     * @param out
+     */
+    public synchronized void report(final PrintStream out) {
+        out.printf("%-24s %8s %7s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Map.Entry<String, Samples> entry : endpoints.entrySet()) {
+            Samples samples = entry.getValue();
+            long[] sorted = Arrays.copyOf(samples.nanos, samples.count);
+            Arrays.sort(sorted);
+            out.printf("%-24s %8d %7d %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(),
+                    samples.count, samples.errors,
+                    millis(percentile(sorted, 0.5)), millis(percentile(sorted, 0.99)),
+                    millis(percentile(sorted, 0.999)), millis(sorted[sorted.length - 1]));
+        }
+    }
+
+    private static long percentile(final long[] sorted, final double q) {
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives simulated processes through the whole enrollment against a
+ * FakeRAServer: authentication with the fake eID client, email validation,
+ * upload of three CSRs, polling until the certificates are issued, download
+ * and finalization. Reports the throughput and the latency percentiles of
+ * each endpoint.
+ * <p>
+ * Options: --processes=N (default 200), --concurrency=N (default 16),
+ * --warmup=N processes run before measuring (default 50), --latency=MIN-MAX
+ * of the server in milliseconds, --errors=RATE of failed requests (0 to 1),
+ * --issue-delay=MS until certificates are available (default 100),
+ * --poll=MS between status requests (default 50), --transport=urlconnection
+ * to use HttpsHelper instead of HttpClientTransport.
+ */
+public final class LoadGenerator {
+    private final AsyncVVService service;
+    private final StatusWatcher watcher;
+    private final LatencyRecorder recorder;
+    private final byte[] csr = Replies.randomBytes(1200);
+
+    private LoadGenerator(final AsyncVVService service, final StatusWatcher watcher,
+            final LatencyRecorder recorder) {
+        this.service = service;
+        this.watcher = watcher;
+        this.recorder = recorder;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        VVMinitool.parseOptions(args, options);
+        int processes = Integer.parseInt(options.getOrDefault("processes", "200"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "50"));
+        String[] latency = options.getOrDefault("latency", "0-0").split("-");
+        long poll = Long.parseLong(options.getOrDefault("poll", "50"));
+
+        ExecutorService executor = DaemonThreads.newCachedPool("load-generator");
+        try (FakeRAServer ra = new FakeRAServer()) {
+            ra.setLatency(Long.parseLong(latency[0]), Long.parseLong(latency[latency.length - 1]));
+            ra.setErrorRate(Double.parseDouble(options.getOrDefault("errors", "0")));
+            ra.setIssueDelay(Long.parseLong(options.getOrDefault("issue-delay", "100")));
+
+            HttpsHelper helper = StubServer.createHelper();
+            HttpsTransport transport = "urlconnection".equals(options.get("transport")) ?
+                    helper : new HttpClientTransport(helper.getSSLContext(), executor);
+
+            if (warmup > 0) {
+                System.out.println("Warming up with " + warmup + " processes...");
+                run(ra, transport, executor, poll, warmup, concurrency, new LatencyRecorder());
+            }
+            System.out.println("Running " + processes + " processes, " + concurrency + " at a time...");
+            LatencyRecorder recorder = new LatencyRecorder();
+            Map<String, Integer> failures = new TreeMap<>();
+            long start = System.nanoTime();
+            int completed = run(ra, transport, executor, poll, processes, concurrency, recorder, failures);
+            double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+
+            System.out.printf("%d processes completed, %d failed in %.2f s: %.1f processes/s, %.1f requests/s%n",
+                    completed, processes - completed, seconds, completed / seconds,
+                    recorder.getCount() / seconds);
+            recorder.report(System.out);
+            for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+                System.out.println(failure.getValue() + "x " + failure.getKey());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int run(final FakeRAServer ra, final HttpsTransport transport, final ExecutorService executor,
+            final long poll, final int processes, final int concurrency, final LatencyRecorder recorder)
+            throws InterruptedException {
+        return run(ra, transport, executor, poll, processes, concurrency, recorder, new HashMap<>());
+    }
+
+    /**
+     * Enroll processes with at most concurrency of them in flight.
+     * @return  the number of processes which completed
+     */
+    private static int run(final FakeRAServer ra, final HttpsTransport transport, final ExecutorService executor,
+            final long poll, final int processes, final int concurrency, final LatencyRecorder recorder,
+            final Map<String, Integer> failures) throws InterruptedException {
+        // without the status cache, every poll reaches the server
+        AsyncVVService service = new AsyncVVService(new TimingTransport(transport, recorder), executor, 0,
+                ra.getUrl(), ra.getEidClientUrl());
+        final ConcurrentMap<String, AtomicInteger> failed = new ConcurrentHashMap<>();
+        final AtomicInteger completed = new AtomicInteger();
+        final Semaphore permits = new Semaphore(concurrency);
+
+        try (StatusWatcher watcher = new StatusWatcher(service, poll, poll * 4)) {
+            LoadGenerator generator = new LoadGenerator(service, watcher, recorder);
+            for (int i = 0; i < processes; i++) {
+                permits.acquire();
+                generator.enroll().whenComplete((r, ex) -> {
+                    if (ex == null) {
+                        completed.incrementAndGet();
+                    } else {
+                        // drop the query, so failures are counted per endpoint
+                        String reason = AsyncVVService.unwrap(ex).toString().replaceAll("\\?\\S*", "");
+                        failed.computeIfAbsent(reason, k -> new AtomicInteger()).incrementAndGet();
+                    }
+                    permits.release();
+                });
+            }
+            permits.acquire(concurrency);
+        }
+        for (Map.Entry<String, AtomicInteger> entry : failed.entrySet()) {
+            failures.put(entry.getKey(), entry.getValue().get());
+        }
+        return completed.get();
+    }
+
+    /** takes one process from init to finalize */
+    private CompletableFuture<Void> enroll() {
+        return service.initProcess().thenCompose(processId -> service.selectAuthMethod(processId, "eid")
+                .thenCompose(v -> service.initEidSession(processId))
+                .thenCompose(eidSession -> eid(eidSession)
+                        .thenCompose(authKey -> service.confirmEidSession(eidSession, authKey)))
+                .thenCompose(reply -> service.submitEmailAddress(processId, "load@example.com"))
+                .thenCompose(v -> service.validateEmailAddress(processId, "AB123"))
+                .thenCompose(v -> service.requestPersonalData(processId))
+                .thenCompose(reply -> {
+                    List<CompletableFuture<Void>> uploads = new ArrayList<>();
+                    for (String certType : VVService.CERT_TYPES) {
+                        uploads.add(service.uploadCSR(processId, certType, csr));
+                    }
+                    return CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0]));
+                })
+                .thenCompose(v -> service.uploadFinished(processId))
+                .thenCompose(v -> watcher.watch(processId, null, ProcessStatus.CERT_AVAILABLE.name()))
+                .thenCompose(status -> {
+                    List<CompletableFuture<byte[]>> downloads = new ArrayList<>();
+                    for (String certType : VVService.CERT_TYPES) {
+                        downloads.add(service.downloadCert(processId, certType));
+                    }
+                    return CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0]));
+                })
+                .thenCompose(v -> service.finalizeProcess(processId)));
+    }
+
+    /** the eID client is not called through the transport, so it is timed here */
+    private CompletableFuture<String> eid(final String eidSession) {
+        final long start = System.nanoTime();
+        return service.performEidAuthentication(eidSession).whenComplete((authKey, ex) ->
+                recorder.record("GET /eID-Client", System.nanoTime() - start, ex != null));
+    }
+}
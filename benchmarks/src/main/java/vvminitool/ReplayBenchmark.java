@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replays a recorded batch of enrollments (authentication, e-mail
+ * validation and status) from an ExchangeLog as fast as possible. The batch
+ * is recorded once against the FakeRAServer, so the numbers show the CPU
+ * and allocation costs of the client for a whole batch, without the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+    @Param({"50"})
+    public int processes;
+
+    private List<ExchangeLog.Exchange> exchanges;
+    private String server;
+    private String eidClient;
+
+    @Setup
+    public void setup() throws IOException {
+        Path file = Files.createTempFile("replay", ".log");
+        try {
+            try (FakeRAServer ra = new FakeRAServer(); ExchangeLog log = ExchangeLog.create(file)) {
+                server = ra.getUrl();
+                eidClient = ra.getEidClientUrl();
+                AsyncVVService service = new AsyncVVService(
+                        new RecordingTransport(StubServer.createHelper(), log), null, 0, server, eidClient);
+                enroll(service, processes);
+            }
+            exchanges = ExchangeLog.read(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<String> enroll(final AsyncVVService service, final int processes) throws IOException {
+        List<CompletableFuture<String>> enrollments = new ArrayList<>();
+        for (int i = 0; i < processes; i++) {
+            enrollments.add(service.initProcess().thenCompose(processId -> service.selectAuthMethod(processId, "eid")
+                    .thenCompose(status -> service.initEidSession(processId))
+                    .thenCompose(eidSession -> service.performEidAuthentication(eidSession)
+                            .thenCompose(authCode -> service.confirmEidSession(eidSession, authCode)))
+                    .thenCompose(reply -> service.submitEmailAddress(processId, "bench@example.com"))
+                    .thenCompose(reply -> service.validateEmailAddress(processId, "0123456789"))
+                    .thenCompose(reply -> service.processStatus(processId))));
+        }
+        List<String> statuses = new ArrayList<>();
+        for (CompletableFuture<String> enrollment : enrollments) {
+            statuses.add(AsyncVVService.await(enrollment));
+        }
+        return statuses;
+    }
+
+    @Benchmark
+    public List<String> replayBatch() throws IOException {
+        AsyncVVService service = new AsyncVVService(
+                new ReplayTransport(exchanges, false), null, 0, server, eidClient);
+        return enroll(service, processes);
+    }
+}
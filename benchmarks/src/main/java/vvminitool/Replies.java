@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Replies shaped like those of the VV server, for benchmarks and stubs.
+ */
+final class Replies {
+    private static final Random RANDOM = new Random(42);
+
+    private Replies() {}
+
+    /**
+     * Create a reply which only carries a process status.
+     * @param status
+     * @return
+     */
+    static String status(final String status) {
+        return "{\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\",\"ProcessStatus\":\"" + status + "\"}," +
+                "\"Data\":{\"UserIdentity\":{\"GivenNames\":\"Firstname\",\"FamilyNames\":\"Familyname\"," +
+                "\"AcademicTitle\":null},\"EmailAddress\":\"mail@example.com\"}}";
+    }
+
+    /**
+     * Create a certificate download reply. Like the server, it escapes
+     * the slashes in the Base64 data.
+     * @param der
+     * @return
+     */
+    static String certificate(final byte[] der) {
+        String base64 = Base64.getEncoder().encodeToString(der).replace("/", "\\/");
+        return "{\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\",\"ProcessStatus\":\"CERT_AVAILABLE\"}," +
+                "\"Data\":{\"CertificateData\":\"" + base64 + "\"}}";
+    }
+
+    /**
+     * Create a random process id like those returned by the server.
+     * @return
+     */
+    static String processId() {
+        StringBuilder id = new StringBuilder();
+        for (byte b : randomBytes(32)) {
+            id.append(String.format("%02x", b));
+        }
+        return id.toString();
+    }
+
+    static byte[] randomBytes(final int size) {
+        byte[] data = new byte[size];
+        synchronized (RANDOM) {
+            RANDOM.nextBytes(data);
+        }
+        return data;
+    }
+}
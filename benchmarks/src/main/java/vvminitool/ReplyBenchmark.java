@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Processing of replies without any network: parsing the JSON envelope,
+ * decoding a downloaded certificate in memory and while streaming, and
+ * hashing a process id.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyBenchmark {
+    /** size of the DER certificate in the download reply */
+    @Param({"1500", "65536"})
+    public int certSize;
+
+    private String statusReply;
+    private String certReply;
+    private byte[] certReplyBytes;
+    private String processId;
+
+    @Setup
+    public void setup() {
+        statusReply = Replies.status("CERT_IN_PROGRESS");
+        certReply = Replies.certificate(Replies.randomBytes(certSize));
+        certReplyBytes = certReply.getBytes(StandardCharsets.UTF_8);
+        processId = Replies.processId();
+    }
+
+    @Benchmark
+    public JSONObject parseEnvelope() {
+        return new JSONObject(statusReply);
+    }
+
+    @Benchmark
+    public String statusOf() {
+        return AsyncVVService.statusOf(statusReply);
+    }
+
+    @Benchmark
+    public byte[] decodeCertInMemory() {
+        String cert64 = new JSONObject(certReply).getJSONObject("Data").getString("CertificateData");
+        return Base64.getDecoder().decode(cert64);
+    }
+
+    @Benchmark
+    public long decodeCertStreaming() throws IOException {
+        return CertificateDataReader.transfer(new ByteArrayInputStream(certReplyBytes),
+                OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public String hexHash() throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        return VVService.hexHash(processId);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Passes all requests to another transport and records their latency per
+ * endpoint (method and path, without the query). For streamed replies, the
+ * time until the reply starts is recorded.
+ */
+public final class TimingTransport implements HttpsTransport {
+    private final HttpsTransport transport;
+    private final LatencyRecorder recorder;
+
+    public TimingTransport(final HttpsTransport transport, final LatencyRecorder recorder) {
+        this.transport = transport;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public String request(final String method, final String url, final MultipartBody body)
+            throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String reply = transport.request(method, url, body);
+            failed = false;
+            return reply;
+        } finally {
+            recorder.record(endpoint(method, url), System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            InputStream reply = transport.open(method, url);
+            failed = false;
+            return reply;
+        } finally {
+            recorder.record(endpoint(method, url), System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        return timed(method, url, () -> transport.requestAsync(method, url, body));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        return timed(method, url, () -> transport.openAsync(method, url));
+    }
+
+    private <T> CompletableFuture<T> timed(final String method, final String url,
+            final Supplier<CompletableFuture<T>> request) {
+        final String endpoint = endpoint(method, url);
+        final long start = System.nanoTime();
+        return request.get().whenComplete((r, ex) -> recorder.record(endpoint, System.nanoTime() - start, ex != null));
+    }
+
+    private static String endpoint(final String method, final String url) {
+        return method + " " + URI.create(url).getPath();
+    }
+}
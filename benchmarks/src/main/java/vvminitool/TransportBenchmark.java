@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round-trips through both transports against a local HTTPS stub. The stub
+ * answers with a status envelope, so the numbers show the cost of the client
+ * side (connection setup, TLS, reading the reply) rather than of a server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+    private StubServer server;
+    private HttpsHelper helper;
+    private HttpClientTransport client;
+    private MultipartBody csr;
+    private String url;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StubServer(Replies.status("CERT_AWAIT_REQUEST"));
+        helper = StubServer.createHelper();
+        client = new HttpClientTransport(helper.getSSLContext());
+        csr = MultipartBody.of("csr", Replies.randomBytes(1200));
+        url = server.getUrl() + "/status/?process_id=0123456789abcdef";
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public String httpsHelperGet() throws IOException {
+        return helper.request("GET", url);
+    }
+
+    @Benchmark
+    public String httpsHelperUpload() throws IOException {
+        return helper.request("POST", url, csr);
+    }
+
+    @Benchmark
+    public String httpClientGet() throws IOException {
+        return client.request("GET", url);
+    }
+
+    @Benchmark
+    public String httpClientUpload() throws IOException {
+        return client.request("POST", url, csr);
+    }
+}
@@ -0,0 +1,786 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Non-blocking interface to the Volksverschluesselung web service. Unlike
+ * VVService, this class has no state: the process id is passed to every
+ * method. Instances are immutable and can be shared by any number of threads
+ * and processes.
+ * <p>
+ * With HttpClientTransport, requests in flight do not occupy a thread. The
+ * executor is only used for blocking steps (the eID authentication); pass a
+ * bounded pool or, on Java 21, Executors.newVirtualThreadPerTaskExecutor().
+ */
+public final class AsyncVVService {
+    /** the local openecard application */
+    public static final String DEFAULT_EID_CLIENT = "http://127.0.0.1:24727/eID-Client";
+    /** EID sessions are forgotten after this time; they expire at the server long before */
+    private static final long EID_SESSION_TTL = TimeUnit.HOURS.toNanos(1);
+
+    private final HttpsTransport transport;
+    /** the transport, bound to the deadline if there is one */
+    private final HttpsTransport https;
+    private final Deadline deadline;
+    private final String server;
+    private final String eidClient;
+    private final Executor executor;
+    private final StatusCache statusCache;
+    private volatile ResponseCache responseCache;
+    /** the process of each EID session which has not been confirmed or discarded yet */
+    private final ConcurrentMap<String, EidSession> eidSessions;
+
+    /**
+     * Create a service with the default transport, see VVService.createDefaultTransport.
+     */
+    public AsyncVVService() {
+        this(VVService.createDefaultTransport());
+    }
+
+    /**
+     * Create a service which runs blocking steps on a shared pool of daemon threads.
+     * @param transport
+     */
+    public AsyncVVService(final HttpsTransport transport) {
+        this(transport, null);
+    }
+
+    /**
+     * Create a service.
+     * @param transport  sends all requests
+     * @param executor  runs blocking steps; null for a shared pool of daemon threads
+     */
+    public AsyncVVService(final HttpsTransport transport, final Executor executor) {
+        this(transport, executor, StatusCache.DEFAULT_TTL);
+    }
+
+    /**
+     * Create a service.
+     * @param transport  sends all requests
+     * @param executor  runs blocking steps; null for a shared pool of daemon threads
+     * @param statusTtl  how long a process status received from the server is
+     *                   reused, in milliseconds; 0 disables the status cache
+     */
+    public AsyncVVService(final HttpsTransport transport, final Executor executor, final long statusTtl) {
+        this(transport, executor, statusTtl, VVService.VVSERVER, DEFAULT_EID_CLIENT);
+    }
+
+    /**
+     * Create a service which talks to other endpoints than the public ones,
+     * e.g. to a local test server.
+     * @param transport  sends all requests
+     * @param executor  runs blocking steps; null for a shared pool of daemon threads
+     * @param statusTtl  how long a process status received from the server is
+     *                   reused, in milliseconds; 0 disables the status cache
+     * @param server  the base URL of the service, see VVService.VVSERVER
+     * @param eidClient  the URL of the eID client, see DEFAULT_EID_CLIENT
+     */
+    public AsyncVVService(final HttpsTransport transport, final Executor executor, final long statusTtl,
+            final String server, final String eidClient) {
+        this.transport = transport;
+        this.https = transport;
+        this.deadline = null;
+        this.server = server;
+        this.eidClient = eidClient;
+        this.executor = (executor == null) ? SharedPool.EXECUTOR : executor;
+        this.statusCache = new StatusCache(statusTtl);
+        this.eidSessions = new ConcurrentHashMap<>();
+    }
+
+    /** a view of a service with a deadline */
+    private AsyncVVService(final AsyncVVService service, final Deadline deadline) {
+        this.transport = service.transport;
+        this.https = new DeadlineTransport(service.transport, deadline);
+        this.deadline = deadline;
+        this.server = service.server;
+        this.eidClient = service.eidClient;
+        this.executor = service.executor;
+        this.statusCache = service.statusCache;
+        this.responseCache = service.responseCache;
+        this.eidSessions = service.eidSessions;
+    }
+
+    /**
+     * Get a view of this service whose requests share a deadline: they time
+     * out when it expires, and cancelling it aborts the requests in flight.
+     * The view shares the caches and eID sessions with this service; its
+     * response cache is the one set at the time of the call.
+     * @param deadline  replaces the deadline of this service, if any
+     * @return
+     */
+    public AsyncVVService withDeadline(final Deadline deadline) {
+        return new AsyncVVService(this, deadline);
+    }
+
+    /**
+     * Get a view of this service with a time budget for its requests. The
+     * budget ends with the deadline of this service at the latest.
+     * @param millis
+     * @return
+     */
+    public AsyncVVService withTimeout(final long millis) {
+        return withDeadline((deadline == null) ? Deadline.after(millis) : deadline.limit(millis));
+    }
+
+    /**
+     * Get the deadline of the requests of this service.
+     * @return  the deadline, or null if there is none
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Keep issued certificates and the confirmed personal data in a cache,
+     * so they are downloaded only once.
+     * @param responseCache  null to disable the cache
+     */
+    public void setResponseCache(final ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Get the response cache, e.g. to read its statistics.
+     * @return  the cache, or null if there is none
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Get the transport which sends all requests.
+     * @return
+     */
+    public HttpsTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Get the cache for process states, e.g. to read its statistics.
+     * @return
+     */
+    public StatusCache getStatusCache() {
+        return statusCache;
+    }
+
+    /** an EID session which has been initialized */
+    private static final class EidSession {
+        final String processId;
+        final long created;
+
+        EidSession(String processId, long created) {
+            this.processId = processId;
+            this.created = created;
+        }
+    }
+
+    /** lazily created pool for blocking steps */
+    private static final class SharedPool {
+        static final Executor EXECUTOR = DaemonThreads.newCachedPool("vvminitool-service");
+    }
+
+    /**
+     * Get the status of the Volksverschluesselung service.
+     * @return the reply of the service
+     */
+    public CompletableFuture<String> serviceStatus() {
+        return send("GET", server + "/status/").thenApply(Reply::getJson);
+    }
+
+    /**
+     * Start a new process.
+     * @return the new process id
+     */
+    public CompletableFuture<String> initProcess() {
+        final long ticket = statusCache.ticket();
+        return send("POST", server + "/process/", "ProcessId")
+                .thenApply(reply -> {
+                    String processId = require(reply, "ProcessId");
+                    statusCache.put(processId, reply.getProcessStatus(), ticket);
+                    return processId;
+                });
+    }
+
+    /**
+     * Get the status of a process. A status received within the TTL of the
+     * status cache is returned without asking the server.
+     * @param processId
+     * @return the current status of the process
+     */
+    public CompletableFuture<String> processStatus(final String processId) {
+        return statusCache.get(processId, deadline, ticket -> request(processId, ticket, "GET",
+                server + "/process/" + "?process_id=" + encode(processId), null)
+                .thenApply(reply -> {
+                    String status = reply.getProcessStatus();
+                    if (status == null) {
+                        throw new CompletionException(new IOException("Reply does not contain Result.ProcessStatus."));
+                    }
+                    return status;
+                }));
+    }
+
+    /**
+     * Select an authentication method. Possible choices: eid, telekom, f2f,
+     * micropy, postid
+     * @param processId
+     * @param method
+     * @return
+     */
+    public CompletableFuture<Void> selectAuthMethod(final String processId, final String method) {
+        return discard(request(processId, "POST", server + "/auth/" +
+                "?process_id=" + encode(processId) +
+                "&auth_type=" + encode(method), null));
+    }
+
+    /**
+     * Initialize an EID session.
+     * @param processId
+     * @return the EID session code
+     */
+    public CompletableFuture<String> initEidSession(final String processId) {
+        return request(processId, "POST", server + "/auth/eid/" +
+                "?process_id=" + encode(processId), null, "EIdSession")
+                .thenApply(reply -> {
+                    String eidSession = require(reply, "EIdSession");
+                    long now = System.nanoTime();
+                    // sessions which were neither confirmed nor discarded
+                    eidSessions.values().removeIf(session -> now - session.created > EID_SESSION_TTL);
+                    eidSessions.put(eidSession, new EidSession(processId, now));
+                    return eidSession;
+                });
+    }
+
+    /**
+     * Perform the EID authentication. The openecard application must be running
+     * and listening on 127.0.0.1:24727 (or the eID client URL of this service). The call to openecard blocks a thread
+     * of the executor until the user has finished the authentication.
+     * @param eidSession
+     * @return the authentication code (if authentication is successful)
+     */
+    public CompletableFuture<String> performEidAuthentication(final String eidSession) {
+        final Deadline limit = (deadline != null) ? deadline : Deadline.current();
+        return CompletableFuture.supplyAsync(() -> Deadline.with(limit, () -> {
+            String tokenURL = server + "/auth/eid/?eid_session=" + encode(eidSession);
+            String url = eidClient + "?tcTokenURL=" + encode(tokenURL);
+
+            String redirectTo;
+            try {
+                redirectTo = https.requestRedirect("GET", url);
+            } catch (IOException ex) {
+                if (limit != null && limit.exception() != null) {
+                    throw new CompletionException(limit.exception());
+                }
+                throw new CompletionException(
+                        new IOException("Could not connect to local openecard application.", ex));
+            }
+            Matcher matcher = Pattern.compile("auth_key=([^&]+)").matcher(redirectTo);
+            if (!matcher.find()) {
+                throw new IllegalStateException("auth_key not found in redirection target");
+            }
+            return URLDecoder.decode(matcher.group(1), StandardCharsets.UTF_8);
+        }), executor).whenComplete((authCode, ex) -> {
+            if (ex != null) {
+                discardEidSession(eidSession);
+            }
+        });
+    }
+
+    /**
+     * Forget an EID session which will not be confirmed, e.g. because its
+     * authentication has been cancelled. Sessions are forgotten anyway when
+     * they are confirmed, when their authentication fails or after an hour.
+     * @param eidSession
+     */
+    public void discardEidSession(final String eidSession) {
+        eidSessions.remove(eidSession);
+    }
+
+    /**
+     * Confirm an EID session with an authentication code.
+     * @param eidSession
+     * @param authCode
+     * @return the reply of the service
+     */
+    public CompletableFuture<String> confirmEidSession(final String eidSession, final String authCode) {
+        EidSession session = eidSessions.remove(eidSession);
+        final String processId = (session == null) ? null : session.processId;
+        final String url = server + "/auth/eid/" +
+                "?eid_session=" + encode(eidSession) +
+                "&eid_authkey=" + encode(authCode) +
+                "&success=true";
+        CompletableFuture<Reply> reply = (processId == null) ? send("PUT", url) :
+                request(processId, "PUT", url, null);
+        return reply.thenApply(Reply::getJson);
+    }
+
+    /**
+     * Submit the email address.
+     * @param processId
+     * @param email
+     * @return
+     */
+    public CompletableFuture<Void> submitEmailAddress(final String processId, final String email) {
+        return discard(request(processId, "POST", server + "/email/" +
+                "?process_id=" + encode(processId) +
+                "&email_addr=" + encode(email) +
+                "&force_flag=false", null));
+    }
+
+    /**
+     * Validate the email address.
+     * @param processId
+     * @param validationCode
+     * @return
+     */
+    public CompletableFuture<Void> validateEmailAddress(final String processId, final String validationCode) {
+        return discard(request(processId, "PUT", server + "/email/" +
+                "?process_id=" + encode(processId) +
+                "&validation_code=" + encode(validationCode), null));
+    }
+
+    /**
+     * Request the personal data that will be used within the certificates.
+     * @param processId
+     * @return the reply of the service
+     */
+    public CompletableFuture<String> requestPersonalData(final String processId) {
+        final ResponseCache cache = responseCache;
+        final String key = (cache == null) ? null : cacheKey(processId, "users");
+        if (cache != null) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(new String(cached, StandardCharsets.UTF_8));
+            }
+        }
+        return request(processId, "GET", server + "/users/" +
+                "?process_id=" + encode(processId), null)
+                .thenApply(reply -> {
+                    // the data is final once the authentication is completed
+                    ProcessStatus status = ProcessStatus.of(reply.getProcessStatus());
+                    if (cache != null && status != ProcessStatus.UNKNOWN &&
+                            status.compareTo(ProcessStatus.AUTH_COMPLETED) >= 0) {
+                        cache.put(key, reply.getJson().getBytes(StandardCharsets.UTF_8));
+                    }
+                    return reply.getJson();
+                });
+    }
+
+    /**
+     * Upload a certificate signing request.
+     * @param processId
+     * @param certType either "sign", "auth", or "encr"
+     * @param csrData
+     * @return
+     */
+    public CompletableFuture<Void> uploadCSR(final String processId, final String certType,
+            final byte[] csrData) {
+        return uploadCSR(processId, certType, MultipartBody.of("certification_request", csrData));
+    }
+
+    /**
+     * Upload a certificate signing request from a file. The file is streamed
+     * to the server and not read into memory.
+     * @param processId
+     * @param certType either "sign", "auth", or "encr"
+     * @param csrFile
+     * @return
+     */
+    public CompletableFuture<Void> uploadCSR(final String processId, final String certType,
+            final Path csrFile) {
+        MultipartBody body;
+        try {
+            body = MultipartBody.of("certification_request", csrFile);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return uploadCSR(processId, certType, body);
+    }
+
+    /**
+     * Upload a certificate signing request from a channel. The data is
+     * streamed to the server and not read into memory.
+     * @param processId
+     * @param certType either "sign", "auth", or "encr"
+     * @param csrChannel  provides exactly size bytes; it is closed after sending
+     * @param size
+     * @return
+     */
+    public CompletableFuture<Void> uploadCSR(final String processId, final String certType,
+            final ReadableByteChannel csrChannel, final long size) {
+        return uploadCSR(processId, certType, MultipartBody.of("certification_request", csrChannel, size));
+    }
+
+    private CompletableFuture<Void> uploadCSR(final String processId, final String certType,
+            final MultipartBody body) {
+        return discard(request(processId, "POST", server + "/certificates/" +
+                "?process_id=" + encode(processId) +
+                "&cert_type=" + encode(certType), body));
+    }
+
+    /**
+     * Upload several certificate signing requests at the same time.
+     * @param processId
+     * @param csrFiles  the CSR files, by certificate type
+     * @return  a future which fails with a BatchException if some uploads failed
+     */
+    public CompletableFuture<Void> uploadCSRs(final String processId, final Map<String, Path> csrFiles) {
+        Map<String, CompletableFuture<Void>> uploads = new TreeMap<>();
+        for (Map.Entry<String, Path> csr : csrFiles.entrySet()) {
+            uploads.put(csr.getKey(), uploadCSR(processId, csr.getKey(), csr.getValue()));
+        }
+        return BatchException.allOf(uploads);
+    }
+
+    /**
+     * Tell the server all CSRs have been uploaded.
+     * @param processId
+     * @return
+     */
+    public CompletableFuture<Void> uploadFinished(final String processId) {
+        return discard(request(processId, "PUT", server + "/certificates/" +
+                "?process_id=" + encode(processId) +
+                "&publish=false", null));
+    }
+
+    /**
+     * Download a signed certificate.
+     * @param processId
+     * @param certType
+     * @return the certificate in DER format
+     */
+    public CompletableFuture<byte[]> downloadCert(final String processId, final String certType) {
+        final ResponseCache cache = responseCache;
+        final String key = (cache == null) ? null : cacheKey(processId, "certificates/" + certType);
+        if (cache != null) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return request(processId, "GET", server + "/certificates/" +
+                "?process_id=" + encode(processId) +
+                "&cert_type=" + encode(certType), null, "CertificateData")
+                .thenApply(reply -> {
+                    String cert64 = require(reply, "CertificateData");
+                    byte[] cert = Base64.getDecoder().decode(cert64);
+                    if (cache != null) {
+                        cache.put(key, cert);
+                    }
+                    return cert;
+                });
+    }
+
+    /**
+     * Download a signed certificate and write it to a stream. The reply of
+     * the server is decoded while it is received; reading it blocks a thread
+     * of the executor.
+     * @param processId
+     * @param certType
+     * @param out  receives the certificate in DER format; it is not closed
+     * @return  the number of bytes written
+     */
+    public CompletableFuture<Long> downloadCert(final String processId, final String certType,
+            final OutputStream out) {
+        if (responseCache != null) {
+            // certificates are small; the cache needs them in memory anyway
+            return downloadCert(processId, certType).thenApply(cert -> {
+                try {
+                    out.write(cert);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+                return (long) cert.length;
+            });
+        }
+        final String url = server + "/certificates/" +
+                "?process_id=" + encode(processId) +
+                "&cert_type=" + encode(certType);
+        final long ticket = statusCache.ticket();
+        return https.openAsync("GET", url)
+                .whenComplete((reply, ex) -> {
+                    if (ex != null) {
+                        statusCache.put(processId, statusOf(unwrap(ex)), ticket);
+                    }
+                })
+                .thenApplyAsync(reply -> {
+                    CertificateDataReader.Envelope envelope = new CertificateDataReader.Envelope();
+                    long size = -1;
+                    IOException failure = null;
+                    try (InputStream in = reply) {
+                        size = CertificateDataReader.transfer(in, out, envelope);
+                    } catch (IOException ex) {
+                        failure = ex;
+                    }
+                    Reply result = envelope.toReply();
+                    statusCache.put(processId, result.getProcessStatus(), ticket);
+                    // an error in the envelope explains a missing certificate best
+                    checked(url, result);
+                    if (failure != null) {
+                        throw new CompletionException(failure);
+                    }
+                    return size;
+                }, executor);
+    }
+
+    /**
+     * Download a signed certificate and save it to a new file. If the
+     * download fails, the file is removed.
+     * @param processId
+     * @param certType
+     * @param file  must not exist yet
+     * @return  the number of bytes written
+     */
+    public CompletableFuture<Long> downloadCert(final String processId, final String certType,
+            final Path file) {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return downloadCert(processId, certType, Channels.newOutputStream(channel))
+                .handle((size, ex) -> {
+                    try {
+                        channel.close();
+                        if (ex == null) {
+                            return size;
+                        }
+                        Files.deleteIfExists(file);
+                    } catch (IOException closeEx) {
+                        if (ex == null) {
+                            ex = closeEx;
+                        } else {
+                            ex.addSuppressed(closeEx);
+                        }
+                    }
+                    throw (ex instanceof CompletionException) ? (CompletionException) ex : new CompletionException(ex);
+                });
+    }
+
+    /**
+     * Download several signed certificates at the same time.
+     * @param processId
+     * @param certTypes
+     * @return  the certificates in DER format, by certificate type; the
+     *          future fails with a BatchException if some downloads failed
+     */
+    public CompletableFuture<Map<String, byte[]>> downloadCerts(final String processId,
+            final Set<String> certTypes) {
+        final Map<String, CompletableFuture<byte[]>> downloads = new TreeMap<>();
+        for (String certType : certTypes) {
+            downloads.put(certType, downloadCert(processId, certType));
+        }
+        return BatchException.allOf(downloads).thenApply(v -> {
+            Map<String, byte[]> certs = new TreeMap<>();
+            for (Map.Entry<String, CompletableFuture<byte[]>> download : downloads.entrySet()) {
+                certs.put(download.getKey(), download.getValue().join());
+            }
+            return certs;
+        });
+    }
+
+    /**
+     * Download several signed certificates at the same time and save them
+     * into a directory as cert_[type].der. Certificates which fail to
+     * download are not saved; the others are kept.
+     * @param processId
+     * @param certTypes
+     * @param dir  must not contain the certificate files yet
+     * @return  a future which fails with a BatchException if some downloads failed
+     */
+    public CompletableFuture<Void> downloadCerts(final String processId, final Set<String> certTypes,
+            final Path dir) {
+        Map<String, CompletableFuture<Long>> downloads = new TreeMap<>();
+        for (String certType : certTypes) {
+            downloads.put(certType, downloadCert(processId, certType,
+                    dir.resolve("cert_" + certType + ".der")));
+        }
+        return BatchException.allOf(downloads);
+    }
+
+    /**
+     * End a process.
+     * @param processId
+     * @return
+     */
+    public CompletableFuture<Void> finalizeProcess(final String processId) {
+        final long ticket = statusCache.change(processId);
+        return discard(request(processId, ticket, "DELETE", server + "/process/" +
+                "?process_id=" + encode(processId) +
+                "&success=true", null))
+                .whenComplete((r, ex) -> statusCache.put(processId, null, ticket));
+    }
+
+    /**
+     * Wait for a future and unwrap the exception it failed with, so that
+     * blocking callers see the same exceptions as before.
+     * @param <T>
+     * @param future
+     * @return the result of the future
+     * @throws IOException
+     */
+    static <T> T await(final CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Remove the CompletionException wrapper from an exception passed to a
+     * completion stage.
+     * @param ex
+     * @return the cause of ex if ex is a CompletionException, otherwise ex
+     */
+    static Throwable unwrap(final Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            return ex.getCause();
+        }
+        return ex;
+    }
+
+    /**
+     * Send a request which concerns a process, record the process status
+     * contained in the reply and fail if the reply reports an error. The
+     * reply is parsed once, with the fields of the Data object the caller
+     * needs.
+     */
+    private CompletableFuture<Reply> request(final String processId, final String method,
+            final String url, final MultipartBody body, final String... dataFields) {
+        long ticket = method.equals("GET") ? statusCache.ticket() : statusCache.change(processId);
+        return request(processId, ticket, method, url, body, dataFields);
+    }
+
+    /** send a request with a ticket of the status cache */
+    private CompletableFuture<Reply> request(final String processId, final long ticket, final String method,
+            final String url, final MultipartBody body, final String... dataFields) {
+        return https.requestAsync(method, url, body).handle((json, ex) -> {
+            if (ex != null) {
+                statusCache.put(processId, statusOf(unwrap(ex)), ticket);
+                throw (ex instanceof CompletionException) ? (CompletionException) ex : new CompletionException(ex);
+            }
+            Reply reply = Reply.parseLenient(json, dataFields);
+            statusCache.put(processId, reply.getProcessStatus(), ticket);
+            return checked(url, reply);
+        });
+    }
+
+    /** send a request which does not concern a known process, see request */
+    private CompletableFuture<Reply> send(final String method, final String url, final String... dataFields) {
+        return https.requestAsync(method, url, null)
+                .thenApply(json -> checked(url, Reply.parseLenient(json, dataFields)));
+    }
+
+    /** fail a request whose reply reports an error, whatever the HTTP status code */
+    private static Reply checked(final String url, final Reply reply) {
+        try {
+            HttpStatusException.checkResult(url, reply);
+        } catch (HttpStatusException ex) {
+            throw new CompletionException(ex);
+        }
+        return reply;
+    }
+
+    /**
+     * Get the process status from the Result envelope of a reply.
+     * @param reply
+     * @return the status, or null if the reply does not contain it
+     */
+    static String statusOf(final String reply) {
+        return Reply.statusOf(reply);
+    }
+
+    private static String require(final Reply reply, final String field) {
+        try {
+            return reply.requireData(field);
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /** the status reported with an error reply, if any */
+    private static String statusOf(final Throwable ex) {
+        if (ex instanceof ProcessStateException) {
+            return ((ProcessStateException) ex).getProcessStatus();
+        } else if (ex instanceof HttpStatusException) {
+            return ((HttpStatusException) ex).getProcessStatus();
+        }
+        return null;
+    }
+
+    /** the cache key of a resource: the process hash, which is public, instead of the id */
+    private static String cacheKey(final String processId, final String resource) {
+        try {
+            return VVService.hexHash(processId) + "/" + resource;
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String encode(final String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    private static CompletableFuture<Void> discard(final CompletableFuture<Reply> reply) {
+        return reply.thenApply(r -> null);
+    }
+}
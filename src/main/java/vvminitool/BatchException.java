@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Thrown when some requests of a batch failed. The other requests of the
+ * batch have completed; only the failed ones need to be repeated.
+ */
+public class BatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Throwable> errors;
+    private final Set<String> succeeded;
+
+    /**
+     * Create an exception.
+     * @param errors  the errors, by certificate type
+     * @param succeeded  the certificate types whose requests completed
+     */
+    public BatchException(final Map<String, Throwable> errors, final Set<String> succeeded) {
+        super(message(errors, succeeded));
+        this.errors = Collections.unmodifiableMap(new TreeMap<>(errors));
+        this.succeeded = Collections.unmodifiableSet(new TreeSet<>(succeeded));
+        for (Throwable error : this.errors.values()) {
+            addSuppressed(error);
+        }
+    }
+
+    /**
+     * Get the errors, by certificate type.
+     * @return
+     */
+    public Map<String, Throwable> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Get the certificate types whose requests completed.
+     * @return
+     */
+    public Set<String> getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Wait for all requests of a batch, even if some of them fail.
+     * @param requests  the requests, by certificate type
+     * @return  a future which fails with a BatchException if any request failed
+     */
+    static CompletableFuture<Void> allOf(final Map<String, ? extends CompletableFuture<?>> requests) {
+        return CompletableFuture.allOf(requests.values().toArray(new CompletableFuture<?>[0]))
+                .handle((v, ex) -> {
+                    if (ex == null) {
+                        return null;
+                    }
+                    Map<String, Throwable> errors = new TreeMap<>();
+                    Set<String> succeeded = new TreeSet<>();
+                    for (Map.Entry<String, ? extends CompletableFuture<?>> request : requests.entrySet()) {
+                        Throwable error = request.getValue().handle((r, e) -> e).join();
+                        if (error == null) {
+                            succeeded.add(request.getKey());
+                        } else {
+                            errors.put(request.getKey(), AsyncVVService.unwrap(error));
+                        }
+                    }
+                    throw new CompletionException(new BatchException(errors, succeeded));
+                });
+    }
+
+    private static String message(final Map<String, Throwable> errors, final Set<String> succeeded) {
+        StringBuilder message = new StringBuilder();
+        message.append(errors.size()).append(" of ").append(errors.size() + succeeded.size())
+                .append(" requests failed");
+        String separator = ": ";
+        for (Map.Entry<String, Throwable> error : new TreeMap<>(errors).entrySet()) {
+            message.append(separator).append(error.getKey()).append(" (")
+                    .append(error.getValue().getMessage()).append(')');
+            separator = ", ";
+        }
+        return message.toString();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Extracts the certificate from the reply of a certificate download without
+ * reading the whole reply into memory. The reply is scanned for the
+ * CertificateData field, and its Base64 value is decoded while it is read.
+ * Memory use does not depend on the size of the certificate. On the way,
+ * the ErrorCode and ProcessStatus fields of the Result envelope are read,
+ * before or after the certificate.
+ */
+final class CertificateDataReader {
+    private static final byte[][] KEYS = {
+        "CertificateData".getBytes(StandardCharsets.US_ASCII),
+        "ErrorCode".getBytes(StandardCharsets.US_ASCII),
+        "ProcessStatus".getBytes(StandardCharsets.US_ASCII),
+    };
+    private static final int CERTIFICATE_DATA = 0;
+    private static final int ERROR_CODE = 1;
+    private static final int PROCESS_STATUS = 2;
+    /** longer values of the envelope fields are cut */
+    private static final int MAX_FIELD = 256;
+    private static final int BUFFER_SIZE = 8192;
+
+    private CertificateDataReader() {}
+
+    /**
+     * The Result envelope of a reply, as far as it has been read.
+     */
+    static final class Envelope {
+        private String errorCode;
+        private String processStatus;
+
+        /**
+         * Get the envelope as a reply without data.
+         * @return
+         */
+        Reply toReply() {
+            return Reply.envelope(errorCode, processStatus);
+        }
+    }
+
+    /**
+     * Decode the certificate in a reply and write it to a stream.
+     * @param reply  the JSON reply of the server; it is not closed
+     * @param out  receives the certificate in DER format; it is not closed
+     * @return  the number of bytes written
+     * @throws IOException  also if the reply does not contain a certificate
+     */
+    static long transfer(final InputStream reply, final OutputStream out) throws IOException {
+        return transfer(reply, out, new Envelope());
+    }
+
+    /**
+     * Decode the certificate in a reply and write it to a stream, and read
+     * its Result envelope. The reply is read to its end.
+     * @param reply  the JSON reply of the server; it is not closed
+     * @param out  receives the certificate in DER format; it is not closed
+     * @param envelope  receives the fields of the envelope, also if the
+     *                  transfer fails
+     * @return  the number of bytes written
+     * @throws IOException  also if the reply does not contain a certificate
+     */
+    static long transfer(final InputStream reply, final OutputStream out, final Envelope envelope)
+            throws IOException {
+        InputStream in = new BufferedInputStream(reply, BUFFER_SIZE);
+        if (!seekValue(in, envelope)) {
+            throw new IOException("Reply does not contain CertificateData.");
+        }
+
+        StringValueStream value = new StringValueStream(in);
+        InputStream decoded = Base64.getDecoder().wrap(value);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        try {
+            while ((n = decoded.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+                total += n;
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid Base64 data in certificate.", ex);
+        }
+
+        // the decoder stops at the padding, before the closing quote
+        if (value.read() >= 0) {
+            throw new IOException("Invalid Base64 data in certificate.");
+        }
+
+        // the envelope may follow the data
+        while (seekValue(in, envelope)) {
+            readKey(in);
+        }
+        return total;
+    }
+
+    /**
+     * Skip everything up to and including the opening quote of the value
+     * of the CertificateData field, and read the fields of the envelope on
+     * the way.
+     * @return  false if the reply ends before
+     */
+    private static boolean seekValue(final InputStream in, final Envelope envelope) throws IOException {
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            if (b != '"') {
+                continue;
+            }
+            int key = readKey(in);
+            if (key < 0) {
+                continue;
+            }
+            // the string is a key only if it is followed by a colon
+            b = skipWhitespace(in);
+            if (b != ':') {
+                continue;
+            }
+            b = skipWhitespace(in);
+            if (key == CERTIFICATE_DATA) {
+                if (b != '"') {
+                    throw new IOException("Reply does not contain CertificateData.");
+                }
+                return true;
+            } else if (b == '"') {
+                String value = readString(in);
+                if (key == ERROR_CODE) {
+                    envelope.errorCode = value;
+                } else {
+                    envelope.processStatus = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a JSON string up to and including its closing quote and compare
+     * it with the keys.
+     * @return  the index of the key it equals, or -1
+     */
+    private static int readKey(final InputStream in) throws IOException {
+        int candidates = (1 << KEYS.length) - 1;
+        int pos = 0;
+        int b;
+        while ((b = in.read()) != '"') {
+            if (b < 0) {
+                throw new IOException("Reply ends within a string.");
+            }
+            if (b == '\\') {
+                in.read();
+                candidates = 0;
+                continue;
+            }
+            for (int i = 0; i < KEYS.length; i++) {
+                if (pos >= KEYS[i].length || KEYS[i][pos] != b) {
+                    candidates &= ~(1 << i);
+                }
+            }
+            pos++;
+        }
+        for (int i = 0; i < KEYS.length; i++) {
+            if ((candidates & (1 << i)) != 0 && KEYS[i].length == pos) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the value of a JSON string up to and including its closing quote;
+     * only the escape sequences of quotes, backslashes and slashes are
+     * resolved.
+     */
+    private static String readString(final InputStream in) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '"') {
+            if (b < 0) {
+                throw new IOException("Reply ends within a string.");
+            }
+            if (b == '\\') {
+                b = in.read();
+                if (b < 0) {
+                    throw new IOException("Reply ends within a string.");
+                }
+            }
+            if (value.size() < MAX_FIELD) {
+                value.write(b);
+            }
+        }
+        return new String(value.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int skipWhitespace(final InputStream in) throws IOException {
+        int b;
+        do {
+            b = in.read();
+        } while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+        return b;
+    }
+
+    /**
+     * The characters of a JSON string value up to the closing quote, with
+     * escaped slashes and line breaks resolved.
+     */
+    private static final class StringValueStream extends InputStream {
+        private final InputStream in;
+        private boolean end = false;
+
+        StringValueStream(final InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (!end) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Reply ends within CertificateData.");
+                }
+                if (b == '"') {
+                    end = true;
+                    break;
+                }
+                if (b == '\\') {
+                    b = in.read();
+                    if (b == 'n' || b == 'r') {
+                        continue;
+                    } else if (b != '/' && b != '\\') {
+                        throw new IOException("Unexpected escape sequence in CertificateData.");
+                    }
+                }
+                return b;
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            while (n < len) {
+                int c = read();
+                if (c < 0) {
+                    break;
+                }
+                b[off + n++] = (byte) c;
+            }
+            return (n == 0) ? -1 : n;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * An index of the downloaded certificates below some directories. For each
+ * certificate file, the index holds the hash of the subject, the type, the
+ * serial number and the end of validity, so expiries can be queried without
+ * parsing the certificates. The index is kept in a file; update() only parses
+ * files which are new or have changed since the last update (by size and
+ * modification time), in parallel.
+ * <p>
+ * Files named *.der, *.cer or *.crt are indexed. Files which are not
+ * certificates, e.g. CSRs, are recorded as well, so they are not parsed again.
+ */
+public final class CertificateInventory {
+    private static final int MAGIC = 0x56564349;
+    private static final int VERSION = 1;
+    private static final Pattern CERT_FILE = Pattern.compile("cert_([a-z]+)\\.der");
+    private static final ThreadLocal<CertificateFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private final Path file;
+    // all guarded by this
+    private final Set<Path> roots = new TreeSet<>();
+    private final Map<Path, Entry> entries = new HashMap<>();
+    /** the certificates ordered by the end of validity; null after changes */
+    private Entry[] byExpiry;
+    private boolean changed = false;
+
+    /**
+     * A file in the index. Entries are immutable.
+     */
+    public static final class Entry {
+        private final Path path;
+        private final long size;
+        private final long modified;
+        private final String subjectHash;
+        private final String subject;
+        private final String certType;
+        private final String serial;
+        private final long notAfter;
+
+        Entry(Path path, long size, long modified, String subjectHash, String subject, String certType,
+                String serial, long notAfter) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.subjectHash = subjectHash;
+            this.subject = subject;
+            this.certType = certType;
+            this.serial = serial;
+            this.notAfter = notAfter;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Get the SHA-256 hash of the encoded subject. The certificates of all
+         * types of one process share the subject.
+         * @return  lower-case hex, empty if the file is no certificate
+         */
+        public String getSubjectHash() {
+            return subjectHash;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        /**
+         * Get the type of the certificate, from the file name (cert_[type].der)
+         * or else from the key usage.
+         * @return  sign, encr, auth or empty if unknown
+         */
+        public String getCertType() {
+            return certType;
+        }
+
+        /** @return  the serial number in hex */
+        public String getSerial() {
+            return serial;
+        }
+
+        /** @return  the end of validity in milliseconds since the epoch */
+        public long getNotAfter() {
+            return notAfter;
+        }
+
+        public boolean isCertificate() {
+            return !subjectHash.isEmpty();
+        }
+
+        /**
+         * Get the name of the identity, i.e. of the directory which holds
+         * the certificate; in a fleet directory, this is the process name.
+         * @return
+         */
+        public String getName() {
+            Path dir = path.getParent();
+            return (dir == null || dir.getFileName() == null) ? "" : dir.getFileName().toString();
+        }
+    }
+
+    private CertificateInventory(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the default location of the index, ~/.vvminitool.certs.
+     * @return
+     */
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("user.home"), ".vvminitool.certs");
+    }
+
+    /**
+     * Load an index. A missing or unreadable index file gives an empty index,
+     * which the next update builds again.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static CertificateInventory open(final Path file) throws IOException {
+        CertificateInventory inventory = new CertificateInventory(file);
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                inventory.read(in);
+            } catch (EOFException ex) {
+                Logger.getLogger(CertificateInventory.class.getName()).log(Level.WARNING,
+                        "Certificate index " + file + " is truncated; it is built again", ex);
+                inventory.roots.clear();
+                inventory.entries.clear();
+            }
+        }
+        return inventory;
+    }
+
+    private void read(final DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            Logger.getLogger(CertificateInventory.class.getName()).log(Level.WARNING,
+                    "Unknown format of certificate index {0}; it is built again", file);
+            return;
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            roots.add(Paths.get(in.readUTF()));
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            Entry entry = new Entry(Paths.get(in.readUTF()), in.readLong(), in.readLong(), in.readUTF(),
+                    in.readUTF(), in.readUTF(), in.readUTF(), in.readLong());
+            entries.put(entry.path, entry);
+        }
+    }
+
+    /**
+     * Write the index to its file if it has changed.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!changed) {
+            return;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, ".certs", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(roots.size());
+                for (Path root : roots) {
+                    out.writeUTF(root.toString());
+                }
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.path.toString());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeUTF(entry.subjectHash);
+                    out.writeUTF(entry.subject);
+                    out.writeUTF(entry.certType);
+                    out.writeUTF(entry.serial);
+                    out.writeLong(entry.notAfter);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        changed = false;
+    }
+
+    /**
+     * Add a directory whose certificates are indexed by the next update.
+     * @param dir
+     */
+    public synchronized void addRoot(final Path dir) {
+        if (roots.add(dir.toAbsolutePath().normalize())) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Get the indexed directories.
+     * @return
+     */
+    public synchronized Set<Path> getRoots() {
+        return new TreeSet<>(roots);
+    }
+
+    /**
+     * Bring the index up to date with the files below the directories. Only
+     * new and changed files are parsed, in parallel; files which have been
+     * removed are dropped.
+     * @return  the number of files which have been parsed
+     * @throws IOException  if a directory cannot be read
+     */
+    public int update() throws IOException {
+        final Map<Path, Entry> known;
+        Set<Path> dirs;
+        synchronized (this) {
+            known = new HashMap<>(entries);
+            dirs = new TreeSet<>(roots);
+        }
+
+        final Map<Path, BasicFileAttributes> modified = new HashMap<>();
+        final Set<Path> present = new HashSet<>();
+        for (Path root : dirs) {
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && isCandidate(path)) {
+                        present.add(path);
+                        Entry entry = known.get(path);
+                        if (entry == null || entry.size != attrs.size() ||
+                                entry.modified != attrs.lastModifiedTime().toMillis()) {
+                            modified.put(path, attrs);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException ex) {
+                    // e.g. removed during the walk
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        List<Entry> parsed = modified.entrySet().parallelStream()
+                .map(file -> parse(file.getKey(), file.getValue()))
+                .filter(entry -> entry != null)
+                .collect(Collectors.toList());
+
+        synchronized (this) {
+            boolean removed = entries.keySet().retainAll(present);
+            for (Entry entry : parsed) {
+                entries.put(entry.path, entry);
+            }
+            if (removed || !parsed.isEmpty()) {
+                changed = true;
+                byExpiry = null;
+            }
+        }
+        return parsed.size();
+    }
+
+    private static boolean isCandidate(final Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".der") || name.endsWith(".cer") || name.endsWith(".crt");
+    }
+
+    /** @return null if the file has disappeared */
+    private static Entry parse(final Path path, final BasicFileAttributes attrs) {
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        X509Certificate cert;
+        try (InputStream in = Files.newInputStream(path)) {
+            cert = (X509Certificate) FACTORY.get().generateCertificate(in);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | GeneralSecurityException | ClassCastException ex) {
+            return new Entry(path, size, modified, "", "", "", "", 0);
+        }
+        String subjectHash;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(cert.getSubjectX500Principal().getEncoded());
+            subjectHash = String.format("%064x", new java.math.BigInteger(1, hash));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return new Entry(path, size, modified, subjectHash, cert.getSubjectX500Principal().getName(),
+                certType(path, cert), cert.getSerialNumber().toString(16), cert.getNotAfter().getTime());
+    }
+
+    private static String certType(final Path path, final X509Certificate cert) {
+        Matcher matcher = CERT_FILE.matcher(path.getFileName().toString());
+        if (matcher.matches() && VVService.CERT_TYPES.contains(matcher.group(1))) {
+            return matcher.group(1);
+        }
+        boolean[] usage = cert.getKeyUsage();
+        if (usage == null) {
+            return "";
+        }
+        if (usage.length > 1 && usage[1]) {
+            // non-repudiation
+            return "sign";
+        }
+        if (usage.length > 2 && usage[2]) {
+            // key encipherment
+            return "encr";
+        }
+        return usage[0] ? "auth" : "";
+    }
+
+    /**
+     * Get the certificates which expire before a time, soonest first;
+     * expired certificates are included.
+     * @param time  milliseconds since the epoch
+     * @return
+     */
+    public synchronized List<Entry> expiringBefore(final long time) {
+        Entry[] sorted = sorted();
+        // the first certificate which is valid at time
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].notAfter < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(sorted).subList(0, low));
+    }
+
+    /**
+     * Get all certificates, soonest expiry first.
+     * @return
+     */
+    public synchronized List<Entry> list() {
+        return Collections.unmodifiableList(Arrays.asList(sorted()));
+    }
+
+    private Entry[] sorted() {
+        if (byExpiry == null) {
+            List<Entry> certs = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                if (entry.isCertificate()) {
+                    certs.add(entry);
+                }
+            }
+            certs.sort(Comparator.comparingLong(e -> e.notAfter));
+            byExpiry = certs.toArray(new Entry[0]);
+        }
+        return byExpiry;
+    }
+
+    /**
+     * Get the number of certificates in the index.
+     * @return
+     */
+    public synchronized int size() {
+        return sorted().length;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * A resident process which executes the commands of other invocations of the
+ * tool. The daemon keeps one AsyncVVService, so the trust store is loaded
+ * once and connections to the server stay open between commands. Clients
+ * connect through a Unix domain socket which only the owner can access; it
+ * is created in a private directory and moved into place, and the daemon
+ * only serves clients which run as the same user.
+ * <p>
+ * Protocol: the client sends its working directory and its command line as
+ * UTF strings. The daemon answers with frames: a type byte (OUT or ERR
+ * followed by a length and data, or EXIT followed by the exit code). If the
+ * client closes the connection before, its command is cancelled.
+ */
+public final class Daemon {
+    private static final byte EXIT = 0;
+    private static final byte OUT = 1;
+    private static final byte ERR = 2;
+    private static final String STOP = "\0stop";
+
+    private Daemon() {}
+
+    /** executes a command line, see VVMinitool.execute */
+    interface Command {
+        int execute(String[] args, Path workDir, AsyncVVService service, PrintStream out, PrintStream err);
+    }
+
+    /**
+     * Get the default socket, ~/.vvminitool.sock.
+     * @return
+     */
+    public static Path defaultSocket() {
+        return Paths.get(System.getProperty("user.home"), ".vvminitool.sock");
+    }
+
+    /**
+     * Accept and execute commands until the daemon is stopped, and wait for
+     * the commands which are still running.
+     * @param socket  the path of the socket; a stale socket file is replaced
+     * @param service  used for all commands
+     * @throws IOException  if the socket cannot be opened, e.g. because
+     *                      another daemon is running
+     */
+    public static void serve(final Path socket, final AsyncVVService service) throws IOException {
+        serve(socket, service, null);
+    }
+
+    /**
+     * Accept and execute commands until the daemon is stopped, and wait for
+     * the commands which are still running.
+     * @param socket  the path of the socket; a stale socket file is replaced
+     * @param service  used for all commands
+     * @param metricsFile  receives the metrics of the JVM after every
+     *                     command, see RequestMetrics.save; may be null
+     * @throws IOException  if the socket cannot be opened, e.g. because
+     *                      another daemon is running
+     */
+    public static void serve(final Path socket, final AsyncVVService service, final Path metricsFile)
+            throws IOException {
+        serve(socket, service, metricsFile, VVMinitool::execute);
+    }
+
+    static void serve(final Path socket, final AsyncVVService service, final Path metricsFile,
+            final Command command) throws IOException {
+        if (Files.exists(socket)) {
+            if (isListening(socket)) {
+                throw new IOException("A daemon is already listening on " + socket);
+            }
+            Files.delete(socket);
+        }
+
+        ExecutorService workers = DaemonThreads.newCachedPool("vvminitool-daemon");
+        // wait for clients to go; not shut down before the commands have ended
+        ExecutorService watchers = DaemonThreads.newCachedPool("vvminitool-daemon-watch");
+        try (final ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bind(server, socket);
+            final UserPrincipal owner = Files.getOwner(socket);
+            while (true) {
+                final SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedChannelException ex) {
+                    break;
+                }
+                if (!isOwner(client, owner)) {
+                    client.close();
+                    continue;
+                }
+                workers.execute(() -> handle(server, client, service, command, watchers, metricsFile));
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+            workers.shutdown();
+            // the workers are daemon threads, which would not keep the JVM alive
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            watchers.shutdown();
+        }
+    }
+
+    /**
+     * Bind a server to a socket which only the owner can access. The socket
+     * is created in a new directory which only the owner can enter, and its
+     * permissions are restricted before it is moved into place, so there is
+     * no moment in which others can connect.
+     * @param server
+     * @param socket  the path of the socket
+     * @throws IOException
+     */
+    private static void bind(final ServerSocketChannel server, final Path socket) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            return;
+        }
+        Path dir = Files.createTempDirectory(socket.toAbsolutePath().getParent(), ".vvminitool-",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path created = dir.resolve("daemon.sock");
+        try {
+            server.bind(UnixDomainSocketAddress.of(created));
+            Files.setPosixFilePermissions(created, PosixFilePermissions.fromString("rw-------"));
+            Files.move(created, socket, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(created);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Check whether a client runs as the user who owns the socket. The check
+     * is skipped if the platform does not report the credentials of a peer.
+     * @param client
+     * @param owner  the owner of the socket
+     * @return
+     */
+    private static boolean isOwner(final SocketChannel client, final UserPrincipal owner) {
+        if (!client.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED)) {
+            return true;
+        }
+        try {
+            UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            if (peer.user().equals(owner)) {
+                return true;
+            }
+            Logger.getLogger(Daemon.class.getName()).log(Level.WARNING,
+                    "Rejected a client of user {0}", peer.user().getName());
+        } catch (IOException ex) {
+            Logger.getLogger(Daemon.class.getName()).log(Level.WARNING, "Unable to identify a client", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Stop a running daemon. Commands which are still running are finished.
+     * @param socket
+     * @return  false if no daemon is listening on the socket
+     */
+    public static boolean stop(final Path socket) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeUTF(STOP);
+            out.writeInt(0);
+            out.flush();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Let a running daemon execute a command and copy its output.
+     * @param socket
+     * @param args  the command line
+     * @param workDir  relative paths in args are resolved against this directory
+     * @param out  receives the standard output of the command
+     * @param err  receives the error output of the command
+     * @return  the exit code of the command, or null if no daemon is running
+     */
+    public static Integer forward(final Path socket, final String[] args, final Path workDir,
+            final PrintStream out, final PrintStream err) {
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException ex) {
+            return null;
+        }
+
+        try (SocketChannel c = channel) {
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(c));
+            request.writeUTF(workDir.toString());
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream reply = new DataInputStream(Channels.newInputStream(c));
+            while (true) {
+                byte type = reply.readByte();
+                if (type == EXIT) {
+                    return reply.readInt();
+                }
+                byte[] data = new byte[reply.readInt()];
+                reply.readFully(data);
+                PrintStream target = (type == ERR) ? err : out;
+                target.write(data, 0, data.length);
+                target.flush();
+            }
+        } catch (EOFException ex) {
+            err.println("Daemon closed the connection.");
+            return 1;
+        } catch (IOException ex) {
+            err.println(ex);
+            return 1;
+        }
+    }
+
+    private static boolean isListening(final Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static void handle(final ServerSocketChannel server, final SocketChannel client,
+            final AsyncVVService service, final Command command, final ExecutorService watchers,
+            final Path metricsFile) {
+        final Deadline deadline = Deadline.unlimited();
+        try (SocketChannel c = client) {
+            DataInputStream request = new DataInputStream(Channels.newInputStream(c));
+            String workDir = request.readUTF();
+            String[] args = new String[request.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = request.readUTF();
+            }
+            if (workDir.equals(STOP)) {
+                server.close();
+                return;
+            }
+            // the client sends nothing more; the end of its stream means it has gone. The
+            // channel is read directly, as its streams lock it while they block.
+            watchers.execute(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(64);
+                try {
+                    while (c.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException ex) {
+                    // closed when the command has ended
+                }
+                deadline.cancel();
+            });
+
+            DataOutputStream reply = new DataOutputStream(Channels.newOutputStream(c));
+            PrintStream out = new PrintStream(new FrameStream(reply, OUT), true, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new FrameStream(reply, ERR), true, StandardCharsets.UTF_8);
+            int exitCode;
+            try {
+                exitCode = command.execute(args, Paths.get(workDir), service.withDeadline(deadline), out, err);
+            } catch (RuntimeException ex) {
+                err.println(ex);
+                exitCode = 1;
+            }
+            // before the connection is closed, which would cancel it
+            deadline.release();
+            out.flush();
+            err.flush();
+            synchronized (reply) {
+                reply.writeByte(EXIT);
+                reply.writeInt(exitCode);
+                reply.flush();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Daemon.class.getName()).log(Level.FINE, "Client disconnected", ex);
+        } finally {
+            deadline.release();
+            saveMetrics(metricsFile);
+        }
+    }
+
+    private static void saveMetrics(final Path metricsFile) {
+        RequestMetrics metrics = RequestMetrics.get();
+        if (metricsFile == null || metrics == null) {
+            return;
+        }
+        try {
+            metrics.save(metricsFile);
+        } catch (IOException ex) {
+            Logger.getLogger(Daemon.class.getName()).log(Level.WARNING, "Unable to save the metrics", ex);
+        }
+    }
+
+    /** writes everything as frames of one type */
+    private static final class FrameStream extends OutputStream {
+        private final DataOutputStream target;
+        private final byte type;
+
+        FrameStream(DataOutputStream target, byte type) {
+            this.target = target;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (target) {
+                target.writeByte(type);
+                target.writeInt(len);
+                target.write(b, off, len);
+                target.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The time budget of an operation or a whole workflow, which also serves to
+ * cancel it. Requests sent while a deadline is current (see with) derive
+ * their connect, read and total timeouts from it. When the deadline expires
+ * or is cancelled, the connections of its requests which are still in
+ * flight are aborted.
+ * <p>
+ * The current deadline belongs to a thread; transports which continue a
+ * request on another thread take it along. So a deadline also carries the
+ * request metrics of its work, if they are collected separately.
+ */
+public final class Deadline {
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    private final long start = System.nanoTime();
+    private final long expiry;
+    private final long budget;
+    /** false for a deadline which only serves to cancel the work */
+    private final boolean limited;
+    private volatile RequestMetrics metrics;
+    // guarded by this; null after the deadline has been aborted
+    private List<Runnable> aborts = new ArrayList<>();
+    private IOException reason;
+    private boolean released = false;
+    private ScheduledFuture<?> timer;
+    /** removes this deadline from the one it was derived from */
+    private Runnable detach = () -> {};
+
+    private Deadline(long budget, boolean limited) {
+        this.budget = budget;
+        this.limited = limited;
+        this.expiry = limited ? start + TimeUnit.MILLISECONDS.toNanos(budget) : start;
+    }
+
+    /**
+     * Create a deadline which expires after some time from now.
+     * @param millis  the budget in milliseconds
+     * @return
+     */
+    public static Deadline after(final long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        return new Deadline(millis, true);
+    }
+
+    /**
+     * Create a deadline which never expires, to cancel work which has no
+     * time budget.
+     * @return
+     */
+    public static Deadline unlimited() {
+        return new Deadline(Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Create a deadline for a part of the work: it expires after some time,
+     * but not later than this deadline, and it is aborted with this one.
+     * @param millis  the budget in milliseconds
+     * @return
+     */
+    public Deadline limit(final long millis) {
+        Deadline child = after(Math.max(1, Math.min(millis, getRemaining())));
+        child.metrics = metrics;
+        Runnable unregister = onAbort(() -> child.abort(exception()));
+        synchronized (child) {
+            child.detach = unregister;
+        }
+        return child;
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                DaemonThreads.factory("vvminitool-deadline"));
+        // released deadlines do not leave their timers behind
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Get the deadline of the current thread.
+     * @return  the deadline, or null if there is none
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Run an action with a deadline as the current one.
+     * @param <T>
+     * @param deadline  may be null for none
+     * @param action
+     * @return  the result of the action
+     */
+    public static <T> T with(final Deadline deadline, final Supplier<T> action) {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(deadline);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Get a timeout for a step of a request.
+     * @param deadline  may be null for none
+     * @param max  the timeout of the step without a deadline, in milliseconds
+     * @return  the smaller of max and the remaining time, at least 1
+     * @throws IOException  if the deadline has expired or has been cancelled
+     */
+    static long timeout(final Deadline deadline, final long max) throws IOException {
+        if (deadline == null) {
+            return max;
+        }
+        deadline.check();
+        return Math.max(1, Math.min(max, deadline.getRemaining()));
+    }
+
+    /**
+     * Register an action with a deadline which may be null.
+     * @param deadline
+     * @param abort
+     * @return  removes the action again
+     */
+    static Runnable onAbort(final Deadline deadline, final Runnable abort) {
+        return (deadline == null) ? () -> {} : deadline.onAbort(abort);
+    }
+
+    /**
+     * Keep the body of a reply abortable while it is read, see below; the
+     * transfer is aborted by closing the stream.
+     * @param deadline  may be null for none
+     * @param in  the body of the reply
+     * @return  the stream to hand out instead of in
+     */
+    static InputStream bind(final Deadline deadline, final InputStream in) {
+        return bind(deadline, in, () -> {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // the transfer is aborted anyway
+            }
+        });
+    }
+
+    /**
+     * Keep the body of a reply abortable while it is read: the action stays
+     * registered with the deadline until the stream is closed, and reads
+     * which fail after the deadline has ended fail with its exception.
+     * @param deadline  may be null for none
+     * @param in  the body of the reply
+     * @param abort  aborts the transfer, e.g. by closing the connection
+     * @return  the stream to hand out instead of in
+     */
+    static InputStream bind(final Deadline deadline, final InputStream in, final Runnable abort) {
+        if (deadline == null) {
+            return in;
+        }
+        return new BoundStream(in, deadline, deadline.onAbort(abort));
+    }
+
+    /**
+     * Register an action which aborts a request when the deadline expires or
+     * is cancelled. If that has already happened, the action is run at once;
+     * if the deadline has been released, it is never run.
+     * @param abort
+     * @return  removes the action again; call it when the request has completed
+     */
+    Runnable onAbort(final Runnable abort) {
+        synchronized (this) {
+            if (released) {
+                return () -> {};
+            }
+            if (aborts != null) {
+                aborts.add(abort);
+                if (timer == null && limited) {
+                    timer = TIMER.schedule(() -> abort(null), Math.max(0, expiry - System.nanoTime()),
+                            TimeUnit.NANOSECONDS);
+                }
+                return () -> {
+                    synchronized (this) {
+                        if (aborts != null) {
+                            aborts.remove(abort);
+                        }
+                    }
+                };
+            }
+        }
+        abort.run();
+        return () -> {};
+    }
+
+    /**
+     * Cancel the work: requests in flight are aborted, and further requests
+     * fail at once.
+     */
+    public void cancel() {
+        abort(new InterruptedIOException("Cancelled after " + getElapsed() + " ms."));
+    }
+
+    /**
+     * Stop a deadline whose work has completed, without aborting anything:
+     * its timer is cancelled, the actions registered with it are dropped and
+     * it is no longer aborted with the deadline it was derived from.
+     */
+    void release() {
+        synchronized (this) {
+            if (aborts == null) {
+                return;
+            }
+            released = true;
+            aborts = null;
+        }
+        stop();
+    }
+
+    private void abort(final IOException cause) {
+        List<Runnable> actions;
+        synchronized (this) {
+            if (aborts == null) {
+                return;
+            }
+            reason = (cause != null) ? cause :
+                    new HttpTimeoutException("Deadline of " + budget + " ms exceeded.");
+            actions = aborts;
+            aborts = null;
+        }
+        stop();
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /** cancel the timer and detach from the parent, after aborts has been cleared */
+    private void stop() {
+        ScheduledFuture<?> pending;
+        Runnable parent;
+        synchronized (this) {
+            pending = timer;
+            parent = detach;
+        }
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        parent.run();
+    }
+
+    /**
+     * Get the exception with which requests fail after the deadline has
+     * expired or has been cancelled.
+     * @return  null if the deadline is still running
+     */
+    public synchronized IOException exception() {
+        if (reason == null && limited && System.nanoTime() - expiry >= 0) {
+            reason = new HttpTimeoutException("Deadline of " + budget + " ms exceeded.");
+        }
+        return reason;
+    }
+
+    /**
+     * Throw the exception if the deadline has expired or has been cancelled.
+     * @throws IOException
+     */
+    public void check() throws IOException {
+        IOException ex = exception();
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    /**
+     * Collect the metrics of the requests sent under this deadline and the
+     * deadlines derived from it later in a set of their own, in addition to
+     * the metrics of the JVM.
+     * @param metrics  null to stop
+     */
+    void setMetrics(final RequestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the metrics of the requests sent under this deadline.
+     * @return  null if they are not collected separately
+     */
+    RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Check whether the deadline expires at all.
+     * @return  false if it can only be cancelled
+     */
+    public boolean isLimited() {
+        return limited;
+    }
+
+    /**
+     * Get the whole budget.
+     * @return  in milliseconds, Long.MAX_VALUE if the deadline is not limited
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the time since the deadline was created.
+     * @return  in milliseconds
+     */
+    public long getElapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Get the time until the deadline expires.
+     * @return  in milliseconds, 0 if it has expired
+     */
+    public long getRemaining() {
+        if (!limited) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiry - System.nanoTime()));
+    }
+
+    /**
+     * Get the share of the budget which has been used.
+     * @return  a value from 0, above 1 after the deadline has expired; 0 if
+     *          it is not limited
+     */
+    public double getUsed() {
+        if (!limited) {
+            return 0;
+        }
+        return (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(budget);
+    }
+
+    @Override
+    public String toString() {
+        if (!limited) {
+            return "deadline: unlimited, " + getElapsed() + " ms elapsed";
+        }
+        return String.format("deadline: %d of %d ms used (%.0f%%)", Math.min(getElapsed(), budget), budget,
+                Math.min(100, 100 * getUsed()));
+    }
+
+    /** a body of a reply which can be aborted until it is closed */
+    private static final class BoundStream extends FilterInputStream {
+        private final Deadline deadline;
+        private final Runnable unregister;
+
+        BoundStream(InputStream in, Deadline deadline, Runnable unregister) {
+            super(in);
+            this.deadline = deadline;
+            this.unregister = unregister;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException ex) {
+                throw aborted(ex);
+            }
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException ex) {
+                throw aborted(ex);
+            }
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            try {
+                return super.skip(n);
+            } catch (IOException ex) {
+                throw aborted(ex);
+            }
+        }
+
+        private IOException aborted(final IOException ex) {
+            IOException reason = deadline.exception();
+            return (reason != null) ? reason : ex;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                unregister.run();
+            }
+        }
+    }
+}
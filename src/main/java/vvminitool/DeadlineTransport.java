@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Sends all requests of another transport with a deadline as the current
+ * one. A request fails at once if the deadline has already expired, and
+ * when the deadline expires or is cancelled while a request is in flight,
+ * the request fails even if the transport below does not notice. The body of
+ * a reply which is opened as a stream stays bound to the deadline until it
+ * is closed.
+ */
+final class DeadlineTransport implements HttpsTransport {
+    private final HttpsTransport transport;
+    private final Deadline deadline;
+
+    DeadlineTransport(final HttpsTransport transport, final Deadline deadline) {
+        this.transport = transport;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public String request(final String method, final String url, final MultipartBody body)
+            throws IOException {
+        return AsyncVVService.await(requestAsync(method, url, body));
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        return AsyncVVService.await(openAsync(method, url));
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        return guard(() -> transport.requestAsync(method, url, body), reply -> {});
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        return guard(() -> transport.openAsync(method, url), in -> {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                // the reply is not used anyway
+            }
+        }).thenApply(in -> Deadline.bind(deadline, in));
+    }
+
+    @Override
+    public String requestRedirect(final String method, final String url) throws IOException {
+        deadline.check();
+        try {
+            return Deadline.with(deadline, () -> {
+                try {
+                    return transport.requestRedirect(method, url);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            IOException expired = deadline.exception();
+            throw (expired != null) ? expired : ex.getCause();
+        }
+    }
+
+    private <T> CompletableFuture<T> guard(final Supplier<CompletableFuture<T>> request,
+            final Consumer<T> discard) {
+        IOException expired = deadline.exception();
+        if (expired != null) {
+            return CompletableFuture.failedFuture(expired);
+        }
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Runnable unregister = deadline.onAbort(() -> result.completeExceptionally(deadline.exception()));
+        Deadline.with(deadline, request).whenComplete((reply, ex) -> {
+            unregister.run();
+            if (ex != null) {
+                result.completeExceptionally(AsyncVVService.unwrap(ex));
+            } else if (!result.complete(reply)) {
+                discard.accept(reply);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Minimal DER encoding, enough for certificate requests and key containers.
+ */
+final class Der {
+    static final int INTEGER = 0x02;
+    static final int BIT_STRING = 0x03;
+    static final int OCTET_STRING = 0x04;
+    static final int NULL = 0x05;
+    static final int OID = 0x06;
+    static final int UTF8_STRING = 0x0c;
+
+    private Der() {}
+
+    static byte[] sequence(final byte[]... content) {
+        return tlv(0x30, concat(content));
+    }
+
+    static byte[] set(final byte[]... content) {
+        return tlv(0x31, concat(content));
+    }
+
+    /**
+     * Encode an element with a definite length.
+     * @param tag
+     * @param value  the encoded content
+     * @return
+     */
+    static byte[] tlv(final int tag, final byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 6);
+        out.write(tag);
+        int length = value.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the eID authentications of many processes through the one local
+ * openecard application. Processes are served in the order they were
+ * submitted; only one authentication uses the card reader at a time. The
+ * EIdSessions of the next processes in the queue are initialized in advance,
+ * and each session is confirmed while the next citizen is already at the
+ * reader, so the reader does not wait for the service.
+ */
+public final class EidBroker {
+    public static final int DEFAULT_LOOKAHEAD = 2;
+
+    private final AsyncVVService service;
+    private final int lookahead;
+
+    // guarded by this
+    private final Deque<Ticket> queue = new ArrayDeque<>();
+    private boolean readerBusy = false;
+    private long startTime = 0;
+    private long readerNanos = 0;
+    private long completed = 0;
+    private long failed = 0;
+    private long waits = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    private static final class Ticket {
+        final String processId;
+        final Runnable atReader;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> session;
+
+        Ticket(String processId, Runnable atReader) {
+            this.processId = processId;
+            this.atReader = atReader;
+        }
+    }
+
+    /**
+     * Create a broker which prepares the sessions of the next two processes.
+     * @param service
+     */
+    public EidBroker(final AsyncVVService service) {
+        this(service, DEFAULT_LOOKAHEAD);
+    }
+
+    /**
+     * Create a broker.
+     * @param service
+     * @param lookahead  the number of queued processes whose sessions are
+     *                   initialized in advance; sessions expire at the
+     *                   server, so keep it small
+     */
+    public EidBroker(final AsyncVVService service, final int lookahead) {
+        if (lookahead < 1) {
+            throw new IllegalArgumentException("lookahead must be at least 1");
+        }
+        this.service = service;
+        this.lookahead = lookahead;
+    }
+
+    /**
+     * Queue the eID authentication of a process. Its status must be
+     * AUTH_EID_READY, i.e. eid must have been selected as the authentication
+     * method.
+     * @param processId
+     * @param atReader  called when the authentication of this process starts,
+     *                  so the citizen can be asked to the reader; may be null
+     * @return  a future which completes with the new process status after the
+     *          session has been confirmed; cancel it to leave the queue
+     */
+    public CompletableFuture<String> submit(final String processId, final Runnable atReader) {
+        Ticket ticket = new Ticket(processId, atReader);
+        synchronized (this) {
+            if (startTime == 0) {
+                startTime = ticket.submitted;
+            }
+            queue.add(ticket);
+            prepare();
+        }
+        ticket.result.whenComplete((status, ex) -> {
+            if (ticket.result.isCancelled()) {
+                leave(ticket);
+            }
+        });
+        next();
+        return ticket.result;
+    }
+
+    /**
+     * Remove a cancelled process from the queue and forget its session if
+     * it has been initialized in advance.
+     */
+    private void leave(final Ticket ticket) {
+        synchronized (this) {
+            if (!queue.remove(ticket)) {
+                // at the reader already, or dropped by prepare or next
+                return;
+            }
+            prepare();
+        }
+        discardSession(ticket);
+    }
+
+    private void discardSession(final Ticket ticket) {
+        if (ticket.session != null) {
+            ticket.session.thenAccept(service::discardEidSession);
+        }
+    }
+
+    /**
+     * Initialize the sessions of the processes which are next in line.
+     */
+    private synchronized void prepare() {
+        Iterator<Ticket> waiting = queue.iterator();
+        for (int i = 0; i < lookahead && waiting.hasNext(); ) {
+            Ticket ticket = waiting.next();
+            if (ticket.result.isDone()) {
+                waiting.remove();
+                discardSession(ticket);
+                continue;
+            }
+            if (ticket.session == null) {
+                ticket.session = service.initEidSession(ticket.processId);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Hand the reader to the next process if it is free.
+     */
+    private void next() {
+        final Ticket ticket;
+        synchronized (this) {
+            if (readerBusy) {
+                return;
+            }
+            Ticket head;
+            while ((head = queue.poll()) != null && head.result.isDone()) {
+                discardSession(head);
+            }
+            if (head == null) {
+                return;
+            }
+            ticket = head;
+            readerBusy = true;
+            if (ticket.session == null) {
+                ticket.session = service.initEidSession(ticket.processId);
+            }
+            prepare();
+            long wait = System.nanoTime() - ticket.submitted;
+            waits++;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+        }
+
+        final String[] session = new String[1];
+        final long[] readerStart = new long[1];
+        ticket.session.thenCompose(eidSession -> {
+            session[0] = eidSession;
+            readerStart[0] = System.nanoTime();
+            if (ticket.atReader != null) {
+                ticket.atReader.run();
+            }
+            return service.performEidAuthentication(eidSession);
+        }).whenCompleteAsync((authCode, ex) -> {
+            synchronized (this) {
+                if (readerStart[0] != 0) {
+                    readerNanos += System.nanoTime() - readerStart[0];
+                }
+                readerBusy = false;
+            }
+            next();
+            if (ex != null) {
+                finish(ticket, null, ex);
+                return;
+            }
+            service.confirmEidSession(session[0], authCode)
+                    .whenComplete((reply, confirmEx) -> finish(ticket,
+                            (reply == null) ? null : AsyncVVService.statusOf(reply), confirmEx));
+        });
+    }
+
+    private void finish(final Ticket ticket, final String status, final Throwable ex) {
+        synchronized (this) {
+            if (ex == null) {
+                completed++;
+            } else {
+                failed++;
+            }
+        }
+        if (ex == null) {
+            ticket.result.complete(status);
+        } else {
+            ticket.result.completeExceptionally(AsyncVVService.unwrap(ex));
+        }
+    }
+
+    /**
+     * Get the number of processes waiting for the reader.
+     * @return
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of confirmed authentications.
+     * @return
+     */
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Get the number of failed authentications.
+     * @return
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the average time processes waited for the reader.
+     * @return  the time in milliseconds
+     */
+    public synchronized long getAverageQueueWait() {
+        return (waits == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / waits);
+    }
+
+    /**
+     * Get the longest time a process waited for the reader.
+     * @return  the time in milliseconds
+     */
+    public synchronized long getMaxQueueWait() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    /**
+     * Get the number of confirmed authentications per hour since the first
+     * process was submitted.
+     * @return
+     */
+    public synchronized double getThroughput() {
+        long elapsed = (startTime == 0) ? 0 : System.nanoTime() - startTime;
+        return (elapsed == 0) ? 0 : completed * TimeUnit.HOURS.toNanos(1) / (double) elapsed;
+    }
+
+    /**
+     * Get the share of the time since the first process was submitted in
+     * which the reader was used by an authentication.
+     * @return  a value between 0 and 1
+     */
+    public synchronized double getReaderUtilization() {
+        long elapsed = (startTime == 0) ? 0 : System.nanoTime() - startTime;
+        return (elapsed == 0) ? 0 : Math.min(1.0, readerNanos / (double) elapsed);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("eID broker: %d confirmed, %d failed, %.1f per hour, " +
+                "queue wait avg %d ms, max %d ms, reader busy %.0f%%", completed, failed,
+                getThroughput(), getAverageQueueWait(), getMaxQueueWait(), 100 * getReaderUtilization());
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Takes a process from its start to the saved certificates in one run. The
+ * engine asks the service for the status of the process and performs the step
+ * which belongs to it, until the certificates have been downloaded and the
+ * process is finalized. As every reply carries the new status, the status
+ * requests between the steps are answered by the status cache.
+ * <p>
+ * The process id, the directory and the progress are stored as settings of the
+ * journal after every step, so an interrupted enrollment continues where it
+ * stopped when it is run again.
+ */
+public final class Enrollment {
+    private static final String PROCESS_ID = "enroll.processId";
+    private static final String DIR = "enroll.dir";
+    private static final String STATUS = "enroll.status";
+    private static final String FINALIZING = "enroll.finalizing";
+    /** followed by the certificate type; set once its CSR has been accepted */
+    private static final String UPLOADED = "enroll.uploaded.";
+
+    private final AsyncVVService service;
+    private final ProcessJournal journal;
+    private final KeyGen keyGen;
+    private final StatusWatcher watcher;
+
+    /**
+     * Supplies the input which the engine cannot get by itself and receives
+     * its progress. The e-mail steps stop the enrollment if the input is not
+     * available yet; it can be run again when it is.
+     */
+    public interface Interaction {
+        /**
+         * Get the e-mail address for the certificates.
+         * @return  the address, or null to stop the enrollment
+         */
+        String emailAddress();
+
+        /**
+         * Get the code which the service has sent to the e-mail address.
+         * @return  the code, or null to stop the enrollment
+         */
+        String validationCode();
+
+        /**
+         * Called when a new process has been started.
+         * @param processId
+         */
+        default void processStarted(String processId) {
+        }
+
+        /**
+         * Called before the step for a status is performed.
+         * @param status
+         */
+        default void statusReached(ProcessStatus status) {
+        }
+
+        /**
+         * Called with the personal data which will be used in the certificates.
+         * @param data  the reply of the service
+         */
+        default void personalData(String data) {
+        }
+    }
+
+    /**
+     * Create an engine.
+     * @param service
+     * @param journal  stores the progress
+     * @param keyGen  creates the key pairs and CSRs which do not exist yet
+     * @param watcher  waits while the certificates are being issued
+     */
+    public Enrollment(AsyncVVService service, ProcessJournal journal, KeyGen keyGen, StatusWatcher watcher) {
+        this.service = service;
+        this.journal = journal;
+        this.keyGen = keyGen;
+        this.watcher = watcher;
+    }
+
+    /**
+     * Get the process of the enrollment which is in progress.
+     * @return  the process id, or "" if no enrollment has been started
+     */
+    public String getProcessId() {
+        return journal.getSetting(PROCESS_ID, "");
+    }
+
+    /**
+     * Get the directory of the enrollment which is in progress.
+     * @return  the directory, or null if no enrollment has been started
+     */
+    public Path getDirectory() {
+        String dir = journal.getSetting(DIR, "");
+        return dir.isEmpty() ? null : Path.of(dir);
+    }
+
+    /**
+     * Get the last status which has been stored.
+     * @return
+     */
+    public ProcessStatus getLastStatus() {
+        return ProcessStatus.of(journal.getSetting(STATUS, ""));
+    }
+
+    /**
+     * Start a new enrollment for an existing process, or for a new one if
+     * processId is empty. Previous progress is forgotten.
+     * @param processId
+     * @param dir  keys, CSRs and certificates are kept here
+     * @throws IOException  if the progress cannot be stored
+     */
+    public void start(final String processId, final Path dir) throws IOException {
+        reset();
+        journal.putSetting(PROCESS_ID, processId);
+        save(DIR, dir.toAbsolutePath().toString());
+    }
+
+    /**
+     * Forget the enrollment in progress. The process is not finalized.
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        for (String key : new String[] {PROCESS_ID, DIR, STATUS, FINALIZING}) {
+            journal.removeSetting(key);
+        }
+        for (String certType : journal.getSettings(UPLOADED).keySet()) {
+            journal.removeSetting(UPLOADED + certType);
+        }
+        journal.flush();
+    }
+
+    /**
+     * Perform the steps of the enrollment started with start().
+     * @param interaction
+     * @return  true if the process has been finalized, false if the
+     *          enrollment stopped because input was missing
+     * @throws IOException  also if the progress cannot be stored
+     * @throws NoSuchAlgorithmException  if the process hash cannot be computed
+     */
+    public boolean run(final Interaction interaction) throws IOException, NoSuchAlgorithmException {
+        Path dir = getDirectory();
+        if (dir == null) {
+            throw new IllegalStateException("No enrollment has been started.");
+        }
+        String processId = getProcessId();
+        if (processId.isEmpty()) {
+            processId = AsyncVVService.await(service.initProcess());
+            save(PROCESS_ID, processId);
+            interaction.processStarted(processId);
+        }
+        if (journal.getSetting(FINALIZING, "").equals("true")) {
+            return finish(processId);
+        }
+
+        while (true) {
+            ProcessStatus status = ProcessStatus.of(AsyncVVService.await(service.processStatus(processId)));
+            save(STATUS, status.name());
+            interaction.statusReached(status);
+            CompletableFuture<?> step;
+            switch (status) {
+                case AUTH_PENDING:
+                    step = service.selectAuthMethod(processId, "eid");
+                    break;
+                case AUTH_EID_READY:
+                    step = service.initEidSession(processId).thenCompose(eidSession ->
+                            service.performEidAuthentication(eidSession).thenCompose(authCode ->
+                                    service.confirmEidSession(eidSession, authCode)));
+                    break;
+                case EMAIL_PENDING:
+                    String address = interaction.emailAddress();
+                    if (address == null) {
+                        return false;
+                    }
+                    AsyncVVService.await(service.submitEmailAddress(processId, address));
+                    MailIngester.expectCode(journal, processId, address);
+                    continue;
+                case EMAIL_NOT_VALIDATED:
+                    String code = interaction.validationCode();
+                    if (code == null) {
+                        return false;
+                    }
+                    AsyncVVService.await(service.validateEmailAddress(processId, code));
+                    MailIngester.codeReceived(journal, processId);
+                    continue;
+                case AUTH_COMPLETED:
+                    step = service.requestPersonalData(processId).thenAccept(interaction::personalData);
+                    break;
+                case CERT_AWAIT_REQUEST:
+                    step = uploadCSRs(processId, dir);
+                    break;
+                case CERT_IN_PROGRESS:
+                    step = watcher.watch(processId, null, ProcessStatus.CERT_AVAILABLE.name());
+                    break;
+                case CERT_AVAILABLE:
+                    AsyncVVService.await(downloadCerts(processId, dir));
+                    save(FINALIZING, "true");
+                    return finish(processId);
+                default:
+                    throw new IOException("Process has an unknown status: " + journal.getSetting(STATUS, ""));
+            }
+            AsyncVVService.await(step);
+        }
+    }
+
+    /**
+     * Upload all CSRs at the same time, then tell the service they are
+     * complete. CSRs which were accepted before the enrollment was
+     * interrupted are skipped.
+     */
+    private CompletableFuture<Void> uploadCSRs(final String processId, final Path dir)
+            throws IOException, NoSuchAlgorithmException {
+        String processHash = VVService.hexHash(processId);
+        Set<String> uploaded = journal.getSettings(UPLOADED).keySet();
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
+        for (final String certType : VVService.CERT_TYPES) {
+            if (uploaded.contains(certType)) {
+                continue;
+            }
+            Path csrFile = dir.resolve("csr_" + certType + ".der");
+            CompletableFuture<Void> upload;
+            if (Files.exists(csrFile)) {
+                upload = service.uploadCSR(processId, certType, csrFile);
+            } else {
+                upload = keyGen.generate(processHash, certType, dir)
+                        .thenCompose(csr -> service.uploadCSR(processId, certType, csr));
+            }
+            uploads.add(upload.thenRun(() -> {
+                try {
+                    save(UPLOADED + certType, "true");
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }));
+        }
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(v -> service.uploadFinished(processId));
+    }
+
+    /** download all certificates at the same time; those saved before are skipped */
+    private CompletableFuture<Void> downloadCerts(final String processId, final Path dir) {
+        Set<String> missing = new LinkedHashSet<>();
+        for (String certType : VVService.CERT_TYPES) {
+            if (!Files.exists(dir.resolve("cert_" + certType + ".der"))) {
+                missing.add(certType);
+            }
+        }
+        return service.downloadCerts(processId, missing, dir);
+    }
+
+    private boolean finish(final String processId) throws IOException {
+        AsyncVVService.await(service.finalizeProcess(processId));
+        reset();
+        return true;
+    }
+
+    private void save(final String key, final String value) throws IOException {
+        journal.putSetting(key, value);
+        journal.flush();
+    }
+}
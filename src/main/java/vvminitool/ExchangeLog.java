@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A file of recorded HTTP exchanges, see RecordingTransport and
+ * ReplayTransport. Like the ProcessJournal, the file is append-only and
+ * every exchange is one record: a length, a CRC32 and the payload. A record
+ * which was torn by a crash fails its CRC and ends the log. The file header
+ * holds a random salt for the pseudonyms, so the same secret gets the same
+ * pseudonym in all recordings appended to the file.
+ */
+public final class ExchangeLog implements AutoCloseable {
+    private static final int MAGIC = 0x5656584c;
+    private static final int VERSION = 2;
+    private static final int SALT_LENGTH = 16;
+    /** magic number, version and salt */
+    private static final int FILE_HEADER = 8 + SALT_LENGTH;
+    /** length and CRC of a record */
+    private static final int HEADER = 8;
+
+    /** the kinds of exchanges */
+    static final byte REQUEST = 1;
+    static final byte OPEN = 2;
+    static final byte REDIRECT = 3;
+
+    /** the outcomes */
+    static final byte OK = 0;
+    static final byte CONFLICT = 1;
+    static final byte STATUS = 2;
+    static final byte FAILED = 3;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final byte[] salt = new byte[SALT_LENGTH];
+    private int records;
+
+    /**
+     * One request and its reply. The URL, the reply and the error message
+     * have been redacted.
+     */
+    public static final class Exchange {
+        final byte kind;
+        final long time;
+        final long duration;
+        final String method;
+        final String url;
+        final long requestLength;
+        final byte outcome;
+        final int statusCode;
+        final String errorCode;
+        final String processStatus;
+        final byte[] body;
+
+        Exchange(byte kind, long time, long duration, String method, String url, long requestLength,
+                byte outcome, int statusCode, String errorCode, String processStatus, byte[] body) {
+            this.kind = kind;
+            this.time = time;
+            this.duration = duration;
+            this.method = method;
+            this.url = url;
+            this.requestLength = requestLength;
+            this.outcome = outcome;
+            this.statusCode = statusCode;
+            this.errorCode = errorCode;
+            this.processStatus = processStatus;
+            this.body = body;
+        }
+
+        /**
+         * Get the start of the request.
+         * @return  milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Get the time until the reply had been received completely.
+         * @return  nanoseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Get the size of the request body.
+         * @return  bytes, -1 if there was no body or its size was unknown
+         */
+        public long getRequestLength() {
+            return requestLength;
+        }
+
+        /**
+         * @return  true if the server answered with a reply instead of an error
+         */
+        public boolean isSuccessful() {
+            return outcome == OK;
+        }
+
+        /**
+         * Get the reply: the body, the redirect target or the error message.
+         * @return
+         */
+        public byte[] getBody() {
+            return body.clone();
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + url + " " + (outcome == OK ? "OK" : outcome == FAILED ? "failed" : statusCode) +
+                    " " + (duration / 1000000) + " ms";
+        }
+    }
+
+    private ExchangeLog(final Path file, final FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Open a log for appending.
+     * @param file  created if it does not exist, readable only by the owner
+     * @return
+     * @throws IOException
+     */
+    public static ExchangeLog create(final Path file) throws IOException {
+        FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            attributes = new FileAttribute<?>[] {
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+        }
+        FileChannel channel = FileChannel.open(file, EnumSet.of(StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE), attributes);
+        ExchangeLog log = new ExchangeLog(file, channel);
+        try {
+            long end = log.scan(null);
+            channel.truncate(end);
+            channel.position(end);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        return log;
+    }
+
+    /**
+     * Read all exchanges of a log.
+     * @param file
+     * @return  the exchanges in the order of their replies
+     * @throws IOException
+     */
+    public static List<Exchange> read(final Path file) throws IOException {
+        List<Exchange> exchanges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            new ExchangeLog(file, channel).scan(exchanges);
+        }
+        return Collections.unmodifiableList(exchanges);
+    }
+
+    /**
+     * Read the records and find the end of the valid ones. An empty file
+     * gets the file header with a new salt.
+     * @param exchanges  receives the exchanges; may be null
+     * @return  the offset after the last valid record
+     */
+    private long scan(final List<Exchange> exchanges) throws IOException {
+        long size = channel.size();
+        if (size == 0 && exchanges == null) {
+            new SecureRandom().nextBytes(salt);
+            ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER).putInt(MAGIC).putInt(VERSION).put(salt).flip();
+            while (fileHeader.hasRemaining()) {
+                channel.write(fileHeader, fileHeader.position());
+            }
+            return FILE_HEADER;
+        }
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER);
+        if (channel.read(fileHeader, 0) < 8 || fileHeader.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not an exchange log.");
+        }
+        if (fileHeader.getInt(4) != VERSION || fileHeader.position() < FILE_HEADER) {
+            throw new IOException(file + " has been written by another version.");
+        }
+        fileHeader.position(8);
+        fileHeader.get(salt);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long position = FILE_HEADER;
+        while (position + HEADER <= size) {
+            header.clear();
+            channel.read(header, position);
+            int length = header.getInt(0);
+            if (length <= 0 || position + HEADER + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + HEADER);
+            if (crc(payload.array()) != header.getInt(4)) {
+                break;
+            }
+            if (exchanges != null) {
+                exchanges.add(decode(payload.array()));
+            }
+            position += HEADER + length;
+            records++;
+        }
+        return position;
+    }
+
+    /**
+     * Append an exchange.
+     * @param exchange
+     * @throws IOException
+     */
+    public synchronized void append(final Exchange exchange) throws IOException {
+        byte[] payload = encode(exchange);
+        ByteBuffer framed = ByteBuffer.allocate(HEADER + payload.length);
+        framed.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+        while (framed.hasRemaining()) {
+            channel.write(framed);
+        }
+        records++;
+    }
+
+    /**
+     * Get the salt of the pseudonyms in this log.
+     * @return
+     */
+    byte[] getSalt() {
+        return salt.clone();
+    }
+
+    /**
+     * Get the number of exchanges in the log.
+     * @return
+     */
+    public synchronized int size() {
+        return records;
+    }
+
+    /**
+     * Write the records to the storage device.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static byte[] encode(final Exchange exchange) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(64 + exchange.body.length);
+        DataOutputStream out = new DataOutputStream(data);
+        out.writeByte(exchange.kind);
+        out.writeLong(exchange.time);
+        out.writeLong(exchange.duration);
+        out.writeUTF(exchange.method);
+        out.writeUTF(exchange.url);
+        out.writeLong(exchange.requestLength);
+        out.writeByte(exchange.outcome);
+        out.writeShort(exchange.statusCode);
+        writeNullable(out, exchange.errorCode);
+        writeNullable(out, exchange.processStatus);
+        out.writeInt(exchange.body.length);
+        out.write(exchange.body);
+        out.flush();
+        return data.toByteArray();
+    }
+
+    private static Exchange decode(final byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte kind = in.readByte();
+        long time = in.readLong();
+        long duration = in.readLong();
+        String method = in.readUTF();
+        String url = in.readUTF();
+        long requestLength = in.readLong();
+        byte outcome = in.readByte();
+        int statusCode = in.readShort();
+        String errorCode = readNullable(in);
+        String processStatus = readNullable(in);
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new Exchange(kind, time, duration, method, url, requestLength, outcome, statusCode,
+                errorCode, processStatus, body);
+    }
+
+    private static void writeNullable(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static int crc(final byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
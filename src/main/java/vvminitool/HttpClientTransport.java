@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import javax.net.ssl.SSLContext;
+
+/**
+ * HTTPS transport based on java.net.http.HttpClient. Connections are kept
+ * alive and reused for subsequent requests; if the server supports HTTP/2,
+ * concurrent requests are multiplexed over a single connection.
+ * Asynchronous requests do not occupy a thread while waiting for the server.
+ * Requests sent under a deadline time out with it and are cancelled when it
+ * is aborted.
+ */
+public class HttpClientTransport implements HttpsTransport {
+
+    private final HttpClient client;
+
+    /**
+     * Create a transport.
+     * @param sslContext  the SSL context for all connections (see
+     *                    HttpsHelper.loadTrustStore), or null for the default
+     */
+    public HttpClientTransport(final SSLContext sslContext) {
+        this(sslContext, null);
+    }
+
+    /**
+     * Create a transport.
+     * @param sslContext  the SSL context for all connections (see
+     *                    HttpsHelper.loadTrustStore), or null for the default
+     * @param executor  runs the completion stages of asynchronous requests,
+     *                  e.g. a virtual thread executor; null for the default
+     *                  executor of HttpClient
+     */
+    public HttpClientTransport(final SSLContext sslContext, final Executor executor) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofMillis(HttpsHelper.CONNECT_TIMEOUT));
+        if (sslContext != null) {
+            builder.sslContext(sslContext);
+        }
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        client = builder.build();
+    }
+
+    @Override
+    public String request(final String method, final String url,
+            final MultipartBody body) throws IOException {
+
+        RequestMetrics.Request timing = start(method, url, body);
+        HttpResponse<String> response;
+        try {
+            response = send(buildRequest(method, url, body), stringHandler(timing));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed(timing);
+            throw new InterruptedIOException("Request interrupted: " + url);
+        } catch (IOException | RuntimeException ex) {
+            failed(timing);
+            throw ex;
+        }
+        return checkResponse(response, url);
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        RequestMetrics.Request timing = start(method, url, body);
+        HttpRequest request;
+        try {
+            request = buildRequest(method, url, body);
+        } catch (IOException ex) {
+            failed(timing);
+            return CompletableFuture.failedFuture(ex);
+        }
+        return sendAsync(request, stringHandler(timing))
+                .whenComplete((response, ex) -> {
+                    if (ex != null) {
+                        failed(timing);
+                    }
+                })
+                .thenApply(response -> {
+                    try {
+                        return checkResponse(response, url);
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                });
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        RequestMetrics.Request timing = start(method, url, null);
+        HttpResponse<InputStream> response;
+        try {
+            response = send(buildRequest(method, url, null), streamHandler(timing));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed(timing);
+            throw new InterruptedIOException("Request interrupted: " + url);
+        } catch (IOException | RuntimeException ex) {
+            failed(timing);
+            throw ex;
+        }
+        // the deadline of the exchange only covers the time until the headers arrive
+        return Deadline.bind(Deadline.current(), checkResponse(response, url));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        RequestMetrics.Request timing = start(method, url, null);
+        HttpRequest request;
+        try {
+            request = buildRequest(method, url, null);
+        } catch (IOException ex) {
+            failed(timing);
+            return CompletableFuture.failedFuture(ex);
+        }
+        final Deadline deadline = Deadline.current();
+        return sendAsync(request, streamHandler(timing))
+                .whenComplete((response, ex) -> {
+                    if (ex != null) {
+                        failed(timing);
+                    }
+                })
+                .thenApply(response -> {
+                    try {
+                        return Deadline.bind(deadline, checkResponse(response, url));
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                });
+    }
+
+    private <T> HttpResponse<T> send(final HttpRequest request,
+            final HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        if (Deadline.current() == null) {
+            return client.send(request, handler);
+        }
+        try {
+            return sendAsync(request, handler).get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Send a request and cancel the exchange when the current deadline is
+     * aborted. A reply which arrives anyway is closed.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(final HttpRequest request,
+            final HttpResponse.BodyHandler<T> handler) {
+        final Deadline deadline = Deadline.current();
+        final CompletableFuture<HttpResponse<T>> exchange = client.sendAsync(request, handler);
+        if (deadline == null) {
+            return exchange;
+        }
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        final Runnable unregister = deadline.onAbort(() -> {
+            result.completeExceptionally(deadline.exception());
+            exchange.cancel(true);
+        });
+        exchange.whenComplete((response, ex) -> {
+            unregister.run();
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            } else if (!result.complete(response) && response.body() instanceof InputStream) {
+                try {
+                    ((InputStream) response.body()).close();
+                } catch (IOException ignored) {
+                    // the reply is discarded anyway
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Start measuring a request if metrics are enabled. HttpClient does not
+     * expose the connection, so only the time to the status line, the
+     * transfer of the reply and the total time are measured.
+     */
+    private static RequestMetrics.Request start(final String method, final String url,
+            final MultipartBody body) {
+        RequestMetrics.Request timing = RequestMetrics.startRequest(method, url);
+        if (timing != null && body != null) {
+            timing.sent(body.getContentLength());
+        }
+        return timing;
+    }
+
+    private static void failed(final RequestMetrics.Request timing) {
+        if (timing != null) {
+            timing.finish();
+        }
+    }
+
+    private static HttpResponse.BodyHandler<String> stringHandler(final RequestMetrics.Request timing) {
+        if (timing == null) {
+            return HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8);
+        }
+        return info -> {
+            timing.mark(RequestMetrics.Phase.FIRST_BYTE);
+            timing.status(info.statusCode());
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), data -> {
+                timing.mark(RequestMetrics.Phase.TRANSFER);
+                timing.received(data.length);
+                timing.finish();
+                return new String(data, StandardCharsets.UTF_8);
+            });
+        };
+    }
+
+    private static HttpResponse.BodyHandler<InputStream> streamHandler(final RequestMetrics.Request timing) {
+        if (timing == null) {
+            return HttpResponse.BodyHandlers.ofInputStream();
+        }
+        return info -> {
+            timing.mark(RequestMetrics.Phase.FIRST_BYTE);
+            timing.status(info.statusCode());
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                    timing::meter);
+        };
+    }
+
+    private static HttpRequest buildRequest(final String method, final String url,
+            final MultipartBody body) throws IOException {
+        if (!url.startsWith("https:")) {
+            throw new IOException("URL did not lead to a https connection: " + url);
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url));
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            builder.timeout(Duration.ofMillis(Deadline.timeout(deadline, Long.MAX_VALUE)));
+        }
+        if (body != null) {
+            builder.header("Content-Type", body.getContentType());
+            builder.method(method, HttpRequest.BodyPublishers.fromPublisher(
+                    HttpRequest.BodyPublishers.ofInputStream(() -> {
+                        try {
+                            return body.openStream();
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }), body.getContentLength()));
+        } else {
+            builder.method(method, HttpRequest.BodyPublishers.noBody());
+        }
+        return builder.build();
+    }
+
+    private static <T> T checkResponse(final HttpResponse<T> response, final String url)
+            throws IOException {
+        int responseCode = response.statusCode();
+        if (responseCode >= 400) {
+            T body = response.body();
+            HttpStatusException.check(responseCode, url, (body instanceof InputStream) ?
+                    HttpStatusException.readErrorReply((InputStream) body) : (String) body,
+                    response.headers().firstValue("Retry-After").orElse(null));
+        }
+        return response.body();
+    }
+
+}
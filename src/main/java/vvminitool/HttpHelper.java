@@ -25,10 +25,17 @@ import java.net.URL;
 import java.net.URLConnection;
 
 public class HttpHelper {
+    /** the eID client runs on this machine, so it accepts connections at once */
+    static final long CONNECT_TIMEOUT = 5000;
+    /** the redirect arrives when the user has finished the authentication */
+    static final long READ_TIMEOUT = 600000;
+
     private HttpHelper() {}
     
     /**
      * Make an HTTP request which returns a redirect and get the target url.
+     * The timeouts are taken from the current deadline, if there is one, and
+     * the connection is closed when the deadline is cancelled.
      * @param method  HTTP method (GET, POST etc.)
      * @param url  the URL of the service
      * @return
@@ -43,9 +50,33 @@ public class HttpHelper {
         HttpURLConnection conn = (HttpURLConnection) urlConnection;
         conn.setRequestMethod(method);
         conn.setInstanceFollowRedirects(false);
-        conn.connect();
-        
-        int responseCode = conn.getResponseCode();
+        Deadline deadline = Deadline.current();
+        conn.setConnectTimeout((int) Deadline.timeout(deadline, CONNECT_TIMEOUT));
+        conn.setReadTimeout((int) Deadline.timeout(deadline, READ_TIMEOUT));
+
+        RequestMetrics.Request timing = RequestMetrics.startRequest(method, url);
+        Runnable unregister = Deadline.onAbort(deadline, conn::disconnect);
+        int responseCode;
+        try {
+            if (timing != null) {
+                timing.resolve(conn.getURL().getHost());
+            }
+            conn.connect();
+            if (timing != null) {
+                timing.mark(RequestMetrics.Phase.CONNECT);
+            }
+            responseCode = conn.getResponseCode();
+            if (timing != null) {
+                timing.mark(RequestMetrics.Phase.FIRST_BYTE);
+                timing.status(responseCode);
+            }
+        } finally {
+            unregister.run();
+            if (timing != null) {
+                timing.finish();
+            }
+        }
+
         if (responseCode != 303) {
             throw new IOException("Server did not respond with a redirect: " +
                     responseCode + " " + conn.getResponseMessage());
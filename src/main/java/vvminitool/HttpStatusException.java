@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Thrown when the server answers with an error code other than 409, which is
+ * reported as a ProcessStateException, or with a Result.ErrorCode other than
+ * GENERIC_SUCCESS, even if the HTTP status code is 200. If the reply contains
+ * a Result envelope, its ErrorCode and ProcessStatus are available, and so is
+ * the Retry-After header of an overload reply.
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** error replies are only read up to this size */
+    static final int MAX_ERROR_REPLY = 16384;
+
+    /** the ErrorCode with which the server rejects an operation in the current process status */
+    static final String PROCESS_STATUS_INVALID = "PROCESS_STATUS_INVALID";
+
+    private final int statusCode;
+    private final String errorCode;
+    private final String processStatus;
+    private long retryAfter = -1;
+
+    /**
+     * Create an exception.
+     * @param statusCode  the HTTP status code, at least 400
+     * @param url  the URL of the request
+     */
+    public HttpStatusException(int statusCode, String url) {
+        this(statusCode, url, null, null);
+    }
+
+    /**
+     * Create an exception.
+     * @param statusCode  the HTTP status code, at least 400 unless the errorCode reports the error
+     * @param url  the URL of the request
+     * @param errorCode  Result.ErrorCode of the reply, or null
+     * @param processStatus  Result.ProcessStatus of the reply, or null
+     */
+    public HttpStatusException(int statusCode, String url, String errorCode, String processStatus) {
+        super("Server returned HTTP response code: " + statusCode +
+                ((errorCode == null) ? "" : " (" + errorCode + ")") + " for URL: " + url);
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+        this.processStatus = processStatus;
+    }
+
+    /**
+     * Throw the exception for a reply with an error code.
+     * @param statusCode  the HTTP status code
+     * @param url  the URL of the request
+     * @param reply  the body of the reply, or null if it is not available
+     * @throws ProcessStateException  if the code is 409
+     * @throws HttpStatusException  if the code is another one of at least 400
+     */
+    static void check(final int statusCode, final String url, final String reply)
+            throws HttpStatusException {
+        check(statusCode, url, reply, null);
+    }
+
+    /**
+     * Throw the exception for a reply with an error code.
+     * @param statusCode  the HTTP status code
+     * @param url  the URL of the request
+     * @param reply  the body of the reply, or null if it is not available
+     * @param retryAfter  the Retry-After header of the reply, or null
+     * @throws ProcessStateException  if the code is 409
+     * @throws HttpStatusException  if the code is another one of at least 400
+     */
+    static void check(final int statusCode, final String url, final String reply,
+            final String retryAfter) throws HttpStatusException {
+        if (statusCode < 400) {
+            return;
+        }
+        Reply result = null;
+        if (reply != null) {
+            try {
+                result = Reply.parse(reply);
+            } catch (IOException ex) {
+                // not an envelope, e.g. an error page of a proxy
+            }
+        }
+        String errorCode = (result == null) ? null : result.getErrorCode();
+        String processStatus = (result == null) ? null : result.getProcessStatus();
+        if (statusCode == 409) {
+            throw new ProcessStateException(errorCode, processStatus);
+        }
+        HttpStatusException ex = new HttpStatusException(statusCode, url, errorCode, processStatus);
+        ex.retryAfter = parseRetryAfter(retryAfter);
+        throw ex;
+    }
+
+    /**
+     * Throw the exception for a reply whose Result envelope reports an error,
+     * which the server may do with a successful HTTP status code too.
+     * @param url  the URL of the request
+     * @param result  the parsed reply; a reply without envelope passes, the
+     *                caller reports what it misses
+     * @throws ProcessStateException  if the error concerns the process status
+     * @throws HttpStatusException  if the ErrorCode is another one than GENERIC_SUCCESS
+     */
+    static void checkResult(final String url, final Reply result) throws HttpStatusException {
+        String errorCode = result.getErrorCode();
+        if (errorCode == null || errorCode.equals(Reply.SUCCESS)) {
+            return;
+        }
+        if (errorCode.equals(PROCESS_STATUS_INVALID)) {
+            throw new ProcessStateException(200, errorCode, result.getProcessStatus());
+        }
+        throw new HttpStatusException(200, url, errorCode, result.getProcessStatus());
+    }
+
+    /**
+     * Parse a Retry-After header, which contains either seconds or a date.
+     * @param header  may be null
+     * @return  the delay in milliseconds, or -1 if the header is missing or invalid
+     */
+    static long parseRetryAfter(final String header) {
+        if (header == null || header.isBlank()) {
+            return -1;
+        }
+        String value = header.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException ex) {
+            // not a number of seconds
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read the body of an error reply, up to MAX_ERROR_REPLY bytes, and close it.
+     * @param in  the body; may be null
+     * @return  the body, or null if it cannot be read
+     */
+    static String readErrorReply(final InputStream in) {
+        if (in == null) {
+            return null;
+        }
+        try (InputStream error = in) {
+            return new String(error.readNBytes(MAX_ERROR_REPLY), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Get Result.ErrorCode of the reply.
+     * @return  the code, or null if the reply did not contain it
+     */
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Get the status the process has according to the reply.
+     * @return  the status, or null if the reply did not contain it
+     */
+    public String getProcessStatus() {
+        return processStatus;
+    }
+
+    /**
+     * Get how long the server asked not to send requests, from the
+     * Retry-After header of the reply.
+     * @return  the delay in milliseconds, or -1 if the reply did not contain it
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Check whether the server has refused the request because it is
+     * overloaded (429 or 503).
+     * @return
+     */
+    public boolean isOverload() {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    /**
+     * Check whether the request may succeed if it is sent again: the server
+     * has failed (5xx), is overloaded (429) or has timed out (408).
+     * @return
+     */
+    public boolean isTransient() {
+        return statusCode >= 500 || statusCode == 429 || statusCode == 408;
+    }
+}
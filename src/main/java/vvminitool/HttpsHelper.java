@@ -19,30 +19,73 @@
 
 package vvminitool;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 /**
- * Helper class for HTTPS requests.
+ * Helper class for HTTPS requests. Every request opens a new HttpsURLConnection;
+ * this is the fallback transport if HttpClientTransport cannot be used.
+ * Asynchronous requests block a thread of the executor while they are running.
  */
-public class HttpsHelper {
+public class HttpsHelper implements HttpsTransport {
     
-    private SSLSocketFactory sslSocketFactory;
+    /** number of TLS sessions kept for resumption */
+    private static final int SESSION_CACHE_SIZE = 64;
+    /** lifetime of cached TLS sessions in seconds */
+    private static final int SESSION_TIMEOUT = 3600;
+    /** connect timeout in milliseconds, shortened by the current deadline */
+    static final long CONNECT_TIMEOUT = 15000;
+    /** read timeout in milliseconds, shortened by the current deadline */
+    static final long READ_TIMEOUT = 60000;
+
+    private static Executor defaultExecutor;
+
+    private volatile SSLContext sslContext;
+    private volatile SSLSocketFactory sslSocketFactory;
+    private volatile TimingSocketFactory timingSocketFactory;
+    private final Executor executor;
+
+    /**
+     * Create a helper which runs asynchronous requests on a shared pool of
+     * daemon threads.
+     */
+    public HttpsHelper() {
+        this(null);
+    }
+
+    /**
+     * Create a helper.
+     * @param executor  runs asynchronous requests; null for a shared pool of
+     *                  daemon threads
+     */
+    public HttpsHelper(final Executor executor) {
+        this.executor = (executor == null) ? defaultExecutor() : executor;
+    }
+
+    private static synchronized Executor defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = DaemonThreads.newCachedPool("vvminitool-https");
+        }
+        return defaultExecutor;
+    }
 
     /**
      * Load a key store with trusted SSL certificates that will be used for all subsequent HTTPS connections.
@@ -64,86 +107,194 @@ public class HttpsHelper {
             trustManagerFactory.init(trustStore);
             SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
             sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+            sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            this.sslContext = sslContext;
             sslSocketFactory = sslContext.getSocketFactory();
+            timingSocketFactory = null;
         } catch (NoSuchAlgorithmException | CertificateException | KeyManagementException ex) {
             throw new KeyStoreException("Error loading trust store", ex);
         }
     }
 
     /**
-     * Make a request to an HTTPS service and return the answer as a String.
-     * @param method
-     * @param url
-     * @return  a String which contains the answer of the server
-     * @throws IOException 
+     * Get the SSL context created by loadTrustStore. It can be shared with
+     * other transports, e.g. HttpClientTransport.
+     * @return  the SSL context, or null if no trust store has been loaded
      */
-    public String request(final String method, final String url) throws IOException {
-        return request(method, url, null, null);
+    public SSLContext getSSLContext() {
+        return sslContext;
     }
 
     /** 
      * Make a request to an HTTPS service and return the answer as a String.
      * @param method  HTTP method (GET, POST etc.)
      * @param url  the URL of the service
-     * @param formDataName  name of the formData; may be null if formData is null
-     * @param formData  send this data to the server
+     * @param body  send this body to the server; may be null
      * @return  a String which contains the answer of the server
-     * @throws IllegalStateException  if the server returns code 409
+     * @throws ProcessStateException  if the server returns code 409
      * @throws IOException 
      */
+    @Override
     public String request(final String method, final String url, 
-            final String formDataName, final byte[] formData) throws IOException {
+            final MultipartBody body) throws IOException {
         
+        RequestMetrics.Request timing = RequestMetrics.startRequest(method, url);
+        HttpsURLConnection conn = connect(method, url, body, timing);
+        
+        // receive result
+        StringBuilder result = new StringBuilder();
+        Runnable unregister = Deadline.onAbort(Deadline.current(), conn::disconnect);
+        try (Reader rd = new InputStreamReader(getInputStream(conn, timing), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = rd.read(buffer)) >= 0) {
+                result.append(buffer, 0, n);
+            }
+        } finally {
+            unregister.run();
+        }
+        
+        return result.toString();
+    }
+
+    /**
+     * Make a request to an HTTPS service and return the body of the answer
+     * as a stream, without reading it into memory.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @return  the body of the answer; the caller must close it
+     * @throws ProcessStateException  if the server returns code 409
+     * @throws IOException
+     */
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        RequestMetrics.Request timing = RequestMetrics.startRequest(method, url);
+        HttpsURLConnection conn = connect(method, url, null, timing);
+        // the body is read after this returns, so the connection stays abortable until it is closed
+        return Deadline.bind(Deadline.current(), getInputStream(conn, timing), conn::disconnect);
+    }
+
+    private static InputStream getInputStream(final HttpsURLConnection conn,
+            final RequestMetrics.Request timing) throws IOException {
+        if (timing == null) {
+            return conn.getInputStream();
+        }
+        try {
+            return timing.meter(conn.getInputStream());
+        } catch (IOException | RuntimeException ex) {
+            timing.finish();
+            throw ex;
+        }
+    }
+
+    /**
+     * Get the socket factory which measures connections, see TimingSocketFactory.
+     */
+    private SSLSocketFactory getTimingSocketFactory() {
+        TimingSocketFactory factory = timingSocketFactory;
+        if (factory == null) {
+            factory = new TimingSocketFactory((sslSocketFactory != null) ?
+                    sslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory());
+            timingSocketFactory = factory;
+        }
+        return factory;
+    }
+
+    private HttpsURLConnection connect(final String method, final String url, 
+            final MultipartBody body, final RequestMetrics.Request timing) throws IOException {
+
         URLConnection urlConnection = new URL(url).openConnection();
         if (!(urlConnection instanceof HttpsURLConnection)) {
            throw new IOException("URL did not lead to a https connection: " + url);
         }
         
         HttpsURLConnection conn = (HttpsURLConnection) urlConnection;
-        if (sslSocketFactory != null) {
+        if (timing != null) {
+            conn.setSSLSocketFactory(getTimingSocketFactory());
+        } else if (sslSocketFactory != null) {
             conn.setSSLSocketFactory(sslSocketFactory);
         }
         conn.setRequestMethod(method);
-
-        // prepare data to send
-        byte[] outputData = null;
-        if (formData != null) {
-            final String BOUNDARY = "---boundary6dfb03cc-5d1a-4700-a0f1-203dbdb9f2ea---";
-            
-            ByteArrayOutputStream byteArr = new ByteArrayOutputStream();
-            OutputStreamWriter writer = new OutputStreamWriter(byteArr, "UTF-8");
-            writer.write("--" + BOUNDARY + "\r\n");
-            writer.write("Content-Disposition: form-data; name=\"" + formDataName + "\"; filename=\"" + formDataName + "\"\r\n");
-            writer.write("Content-Type: application/octet-stream\r\n\r\n");
-            writer.flush();
-            byteArr.write(formData);
-            writer.write("\r\n--" + BOUNDARY + "--\r\n");
-            writer.close();
-            outputData = byteArr.toByteArray();
-
-            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
-            conn.setRequestProperty("Content-Length", String.valueOf(outputData.length));
+        if (body != null) {
+            conn.setRequestProperty("Content-Type", body.getContentType());
+            conn.setFixedLengthStreamingMode(body.getContentLength());
             conn.setDoOutput(true);
-            conn.getOutputStream().write(outputData);
-        }
-        
-        conn.connect();
-        int responseCode = conn.getResponseCode();
-        if (responseCode == 409) {
-            throw new IllegalStateException("This operation is not possible " +
-                    "in the current context (HTTP response 409).");
         }
-        
-        // receive result
-        StringBuilder result = new StringBuilder();
-        try (BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-            String line;
-            while ((line = rd.readLine()) != null) {
-                result.append(line);
+        Deadline deadline = Deadline.current();
+        conn.setConnectTimeout((int) Deadline.timeout(deadline, CONNECT_TIMEOUT));
+        conn.setReadTimeout((int) Deadline.timeout(deadline, READ_TIMEOUT));
+
+        Runnable unregister = Deadline.onAbort(deadline, conn::disconnect);
+        try {
+            if (timing != null) {
+                timing.resolve(conn.getURL().getHost());
+                TimingSocketFactory.beginConnect(timing);
+                try {
+                    conn.connect();
+                } finally {
+                    // nothing to measure if a kept-alive connection is reused
+                    timing.mark(TimingSocketFactory.endConnect() ? RequestMetrics.Phase.TLS : null);
+                }
+            } else {
+                conn.connect();
+            }
+
+            // send data
+            if (body != null) {
+                try (OutputStream out = conn.getOutputStream()) {
+                    body.writeTo(out);
+                }
+                if (timing != null) {
+                    timing.mark(RequestMetrics.Phase.SEND);
+                    timing.sent(body.getContentLength());
+                }
+            }
+
+            int responseCode = conn.getResponseCode();
+            if (timing != null) {
+                timing.mark(RequestMetrics.Phase.FIRST_BYTE);
+                timing.status(responseCode);
+            }
+            if (responseCode >= 400) {
+                HttpStatusException.check(responseCode, url,
+                        HttpStatusException.readErrorReply(conn.getErrorStream()),
+                        conn.getHeaderField("Retry-After"));
             }
+        } catch (IOException | RuntimeException ex) {
+            if (timing != null) {
+                timing.finish();
+            }
+            throw ex;
+        } finally {
+            unregister.run();
         }
-        
-        return result.toString();
+        return conn;
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        final Deadline deadline = Deadline.current();
+        return CompletableFuture.supplyAsync(() -> Deadline.with(deadline, () -> {
+            try {
+                return request(method, url, body);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }), executor);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        final Deadline deadline = Deadline.current();
+        return CompletableFuture.supplyAsync(() -> Deadline.with(deadline, () -> {
+            try {
+                return open(method, url);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }), executor);
     }
     
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A way to send HTTPS requests to the Volksverschluesselung service.
+ * Implementations must be thread-safe.
+ */
+public interface HttpsTransport {
+
+    /**
+     * Make a request to an HTTPS service and return the answer as a String.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @return  a String which contains the answer of the server
+     * @throws ProcessStateException  if the server returns code 409
+     * @throws IOException
+     */
+    default String request(String method, String url) throws IOException {
+        return request(method, url, null);
+    }
+
+    /**
+     * Make a request to an HTTPS service and return the answer as a String.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @param formDataName  name of the formData; may be null if formData is null
+     * @param formData  send this data to the server
+     * @return  a String which contains the answer of the server
+     * @throws ProcessStateException  if the server returns code 409
+     * @throws IOException
+     */
+    default String request(String method, String url, String formDataName, byte[] formData) throws IOException {
+        return request(method, url, (formData == null) ? null : MultipartBody.of(formDataName, formData));
+    }
+
+    /**
+     * Make a request to an HTTPS service and return the answer as a String.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @param body  send this body to the server; may be null
+     * @return  a String which contains the answer of the server
+     * @throws ProcessStateException  if the server returns code 409
+     * @throws IOException
+     */
+    String request(String method, String url, MultipartBody body) throws IOException;
+
+    /**
+     * Make a request to an HTTPS service and return the body of the answer
+     * as a stream, without reading it into memory.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @return  the body of the answer; the caller must close it
+     * @throws ProcessStateException  if the server returns code 409
+     * @throws IOException
+     */
+    InputStream open(String method, String url) throws IOException;
+
+    /**
+     * Make a request to an HTTPS service without blocking the caller.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @param formDataName  name of the formData; may be null if formData is null
+     * @param formData  send this data to the server
+     * @return  a future which completes with the answer of the server, or
+     *          with a ProcessStateException if the server returns code 409
+     */
+    default CompletableFuture<String> requestAsync(String method, String url, String formDataName, byte[] formData) {
+        return requestAsync(method, url, (formData == null) ? null : MultipartBody.of(formDataName, formData));
+    }
+
+    /**
+     * Make a request to an HTTPS service without blocking the caller.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @param body  send this body to the server; may be null
+     * @return  a future which completes with the answer of the server, or
+     *          with a ProcessStateException if the server returns code 409
+     */
+    CompletableFuture<String> requestAsync(String method, String url, MultipartBody body);
+
+    /**
+     * Make a request to an HTTPS service without blocking the caller and
+     * return the body of the answer as a stream. Reading the stream may block.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the service
+     * @return  a future which completes with the body of the answer as soon as
+     *          the headers have been received; the caller must close the stream
+     */
+    CompletableFuture<InputStream> openAsync(String method, String url);
+
+    /**
+     * Make an HTTP request to the local eID client, which answers with a
+     * redirect when the user has finished the authentication. Transports
+     * which record or replay the requests override this.
+     * @param method  HTTP method (GET, POST etc.)
+     * @param url  the URL of the eID client
+     * @return  the target of the redirect
+     * @throws IOException
+     */
+    default String requestRedirect(String method, String url) throws IOException {
+        return HttpHelper.requestRedirect(method, url);
+    }
+
+}
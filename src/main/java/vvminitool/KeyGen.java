@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Generates RSA key pairs and PKCS#10 certificate signing requests, replacing
+ * openssl genrsa and openssl req. The common name of each request is the
+ * process hash. The key pairs of the three certificate types are generated
+ * in parallel.
+ * <p>
+ * For each type, dir/key_[type].pem receives the private key (PKCS#8, not
+ * encrypted, readable only by the owner) and dir/csr_[type].der the request.
+ * Both are written to temporary files and then moved into place, the key
+ * first, so an interruption never leaves a partial file. If it leaves a key
+ * without its CSR, the next run creates the CSR for that key. Existing key
+ * files are never overwritten.
+ */
+public final class KeyGen {
+    public static final int DEFAULT_KEY_SIZE = 2048;
+
+    /** sha256WithRSAEncryption, 1.2.840.113549.1.1.11 */
+    private static final byte[] SHA256_WITH_RSA =
+            {0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x0b};
+    /** commonName, 2.5.4.3 */
+    private static final byte[] COMMON_NAME = {0x55, 0x04, 0x03};
+
+    private final int keySize;
+    private final Executor executor;
+
+    /**
+     * Create a generator for 2048 bit keys which uses the common fork-join pool.
+     */
+    public KeyGen() {
+        this(DEFAULT_KEY_SIZE, null);
+    }
+
+    /**
+     * Create a generator.
+     * @param keySize  the size of the RSA keys in bits
+     * @param executor  generates the keys; null for the common fork-join pool
+     */
+    public KeyGen(final int keySize, final Executor executor) {
+        this.keySize = keySize;
+        this.executor = (executor == null) ? ForkJoinPool.commonPool() : executor;
+    }
+
+    /**
+     * Generate the key pairs and CSRs of all certificate types in parallel.
+     * @param commonName  the process hash, see VVService.getProcessHash
+     * @param dir  receives the key and CSR files; it is created if necessary
+     * @return  the CSRs in DER format, by certificate type
+     */
+    public CompletableFuture<Map<String, byte[]>> generateAll(final String commonName, final Path dir) {
+        final Map<String, CompletableFuture<byte[]>> csrs = new LinkedHashMap<>();
+        for (String certType : VVService.CERT_TYPES) {
+            csrs.put(certType, generate(commonName, certType, dir));
+        }
+        return CompletableFuture.allOf(csrs.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> {
+                    Map<String, byte[]> result = new LinkedHashMap<>();
+                    for (Map.Entry<String, CompletableFuture<byte[]>> csr : csrs.entrySet()) {
+                        result.put(csr.getKey(), csr.getValue().join());
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Generate the key pair and CSR of one certificate type. If only the key
+     * exists, because an earlier call was interrupted, the CSR is created for
+     * that key.
+     * @param commonName  the process hash, see VVService.getProcessHash
+     * @param certType  either "sign", "auth", or "encr"
+     * @param dir  receives the key and CSR files; it is created if necessary
+     * @return  the CSR in DER format
+     */
+    public CompletableFuture<byte[]> generate(final String commonName, final String certType,
+            final Path dir) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Path keyFile = dir.resolve("key_" + certType + ".pem");
+                Path csrFile = dir.resolve("csr_" + certType + ".der");
+                Files.createDirectories(dir);
+                KeyPair keyPair;
+                if (Files.exists(keyFile) && !Files.exists(csrFile)) {
+                    keyPair = readKeyPair(keyFile);
+                } else {
+                    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                    generator.initialize(keySize);
+                    keyPair = generator.generateKeyPair();
+                    Path temp = dir.resolve(keyFile.getFileName() + ".tmp");
+                    Files.deleteIfExists(temp);
+                    writePrivate(temp, pem("PRIVATE KEY", keyPair.getPrivate().getEncoded())
+                            .getBytes(StandardCharsets.US_ASCII));
+                    publish(temp, keyFile);
+                }
+                byte[] csr = createCSR(keyPair, commonName);
+
+                Path temp = dir.resolve(csrFile.getFileName() + ".tmp");
+                Files.write(temp, csr);
+                Files.move(temp, csrFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return csr;
+            } catch (IOException | GeneralSecurityException ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * Read a key pair from the private key of an earlier run.
+     * @param keyFile
+     * @return
+     * @throws IOException
+     * @throws GeneralSecurityException  also if it is not an RSA key with CRT parameters
+     */
+    private static KeyPair readKeyPair(final Path keyFile) throws IOException, GeneralSecurityException {
+        PrivateKey key = Pkcs12Assembler.readPrivateKey(keyFile, "RSA");
+        if (!(key instanceof RSAPrivateCrtKey)) {
+            throw new GeneralSecurityException("No public key can be derived from " + keyFile);
+        }
+        RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) key;
+        PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(crtKey.getModulus(), crtKey.getPublicExponent()));
+        return new KeyPair(publicKey, key);
+    }
+
+    /**
+     * Move a complete file into place, unless the target exists.
+     * @param temp  is removed
+     * @param target
+     * @throws IOException  FileAlreadyExistsException if the target exists
+     */
+    private static void publish(final Path temp, final Path target) throws IOException {
+        try {
+            // a link fails atomically if the target exists, where a rename would replace it
+            Files.createLink(target, temp);
+        } catch (UnsupportedOperationException ex) {
+            Files.move(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Create a PKCS#10 certificate signing request with only a common name
+     * in the subject and no attributes.
+     * @param keyPair  the request contains the public key and is signed with
+     *                 the private key
+     * @param commonName
+     * @return  the request in DER format
+     * @throws GeneralSecurityException
+     */
+    static byte[] createCSR(final KeyPair keyPair, final String commonName) throws GeneralSecurityException {
+        byte[] subject = Der.sequence(Der.set(Der.sequence(
+                Der.tlv(Der.OID, COMMON_NAME),
+                Der.tlv(Der.UTF8_STRING, commonName.getBytes(StandardCharsets.UTF_8)))));
+        byte[] info = Der.sequence(
+                Der.tlv(Der.INTEGER, new byte[] {0}),      // version 0
+                subject,
+                keyPair.getPublic().getEncoded(),          // SubjectPublicKeyInfo
+                Der.tlv(0xa0, new byte[0]));               // no attributes
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(info);
+        byte[] signed = signature.sign();
+        byte[] bits = new byte[signed.length + 1];         // no unused bits
+        System.arraycopy(signed, 0, bits, 1, signed.length);
+
+        return Der.sequence(
+                info,
+                Der.sequence(Der.tlv(Der.OID, SHA256_WITH_RSA), Der.tlv(Der.NULL, new byte[0])),
+                Der.tlv(Der.BIT_STRING, bits));
+    }
+
+    /**
+     * Encode data in PEM format.
+     * @param type  e.g. "PRIVATE KEY"
+     * @param der
+     * @return
+     */
+    static String pem(final String type, final byte[] der) {
+        return "-----BEGIN " + type + "-----\n" +
+                Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der) +
+                "\n-----END " + type + "-----\n";
+    }
+
+    /**
+     * Create a new file which only the owner can read.
+     * @param file  must not exist yet
+     * @param content
+     * @throws IOException
+     */
+    static void writePrivate(final Path file, final byte[] content) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            attributes = new FileAttribute<?>[] {
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+        }
+        try (OutputStream out = Channels.newOutputStream(Files.newByteChannel(file, options, attributes))) {
+            out.write(content);
+        }
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Takes the validation codes of many processes from a local mailbox and
+ * submits them. When an e-mail address is submitted for a process, the
+ * address is recorded in the journal (see expectCode); a message to that
+ * address which contains a code and was delivered after the submission
+ * validates the address of the process. If several processes wait for a code
+ * at the same address, the code is tried on them in the order in which their
+ * addresses were submitted.
+ * <p>
+ * The mailbox is a maildir (a directory with new and cur) or an mbox file.
+ * It is watched with a WatchService, and only messages which have arrived
+ * since they were last read are parsed. Codes are submitted concurrently;
+ * messages to the same address are handled in the order of delivery.
+ */
+public final class MailIngester implements AutoCloseable {
+    /**
+     * Finds the code in the text of a message: the first token of at least
+     * four letters, digits or dashes after a colon or equals sign on a line
+     * which mentions "code", e.g. "Ihr Bestätigungscode lautet: 4F7K-QX2B".
+     */
+    public static final Pattern DEFAULT_CODE_PATTERN =
+            Pattern.compile("(?i)code\\b[^\\n:=]{0,40}[:=]\\s*([A-Za-z0-9-]{4,64})");
+    /** journal settings: "email.[process id]" = "[time of submission] [address]" */
+    private static final String EXPECTED = "email.";
+    /** journal settings: "mail.offset.[mbox file]" = the offset after the last message read */
+    private static final String OFFSET = "mail.offset.";
+    /** how long to wait for file events before looking at the state again, in milliseconds */
+    private static final long POLL_INTERVAL = 1000;
+    /** mbox separator lines give the delivery time in whole seconds */
+    private static final long CLOCK_SLACK = 1000;
+
+    private final AsyncVVService service;
+    private final ProcessJournal journal;
+    private final Pattern codePattern;
+    private final WatchService watchService;
+    private volatile boolean closed = false;
+    /** the unique names of the maildir messages which have been read */
+    private final Set<String> seen = new HashSet<>();
+    private long mboxOffset = -1;
+    private boolean mboxTail = false;
+
+    // guarded by this
+    /** the last submission for each address; submissions to one address are serialized */
+    private final Map<String, CompletableFuture<Void>> tails = new HashMap<>();
+    private int pending = 0;
+    private long read = 0;
+    private long validated = 0;
+    private long failed = 0;
+    private long ignored = 0;
+    private long latencies = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    /**
+     * Receives the outcome of each message with a code. The methods are
+     * called from the threads which complete the requests and must not block.
+     */
+    public interface Listener {
+        /**
+         * Called when a code has validated the e-mail address of a process.
+         * @param processId
+         * @param messageId  the file name of the message, with the offset for mbox files
+         * @param latency  the time from delivery to validation in milliseconds, -1 if unknown
+         */
+        void validated(String processId, String messageId, long latency);
+
+        /**
+         * Called when the code of a message has been rejected for all
+         * processes which wait for a code at its address.
+         * @param messageId
+         * @param ex  the error of the last attempt
+         */
+        default void failed(String messageId, Throwable ex) {
+        }
+    }
+
+    /**
+     * Create an ingester which finds codes with the DEFAULT_CODE_PATTERN.
+     * @param service
+     * @param journal  holds the addresses of the processes which wait for a code
+     * @throws IOException  if no WatchService is available
+     */
+    public MailIngester(final AsyncVVService service, final ProcessJournal journal) throws IOException {
+        this(service, journal, DEFAULT_CODE_PATTERN);
+    }
+
+    /**
+     * Create an ingester.
+     * @param service
+     * @param journal  holds the addresses of the processes which wait for a code
+     * @param codePattern  finds the code in the text of a message; the code is
+     *                     its first group, or the whole match if it has none
+     * @throws IOException  if no WatchService is available
+     */
+    public MailIngester(final AsyncVVService service, final ProcessJournal journal, final Pattern codePattern)
+            throws IOException {
+        this.service = service;
+        this.journal = journal;
+        this.codePattern = codePattern;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Record that a process waits for a validation code sent to an address.
+     * Call this after the address has been submitted.
+     * @param journal
+     * @param processId
+     * @param address
+     * @throws IOException
+     */
+    public static void expectCode(final ProcessJournal journal, final String processId, final String address)
+            throws IOException {
+        journal.putSetting(EXPECTED + processId, System.currentTimeMillis() + " " + MailMessage.normalize(address));
+        journal.flush();
+    }
+
+    /**
+     * Record that a process does not wait for a validation code any more,
+     * e.g. because it has been validated by hand.
+     * @param journal
+     * @param processId
+     * @throws IOException
+     */
+    public static void codeReceived(final ProcessJournal journal, final String processId) throws IOException {
+        journal.removeSetting(EXPECTED + processId);
+        journal.flush();
+    }
+
+    /** a process which waits for a code */
+    private static final class Expected {
+        final String processId;
+        final long since;
+        final String address;
+
+        Expected(String processId, String value) {
+            this.processId = processId;
+            int space = value.indexOf(' ');
+            this.since = Long.parseLong(value.substring(0, space));
+            this.address = value.substring(space + 1);
+        }
+    }
+
+    /**
+     * Read the messages in a mailbox and those which arrive later, and
+     * submit their codes, until no process waits for a code any more or the
+     * ingester is closed. Processes which have already left the status
+     * EMAIL_NOT_VALIDATED are forgotten first.
+     * @param mailbox  a maildir or an mbox file
+     * @param listener  receives the outcome of each message; may be null
+     * @throws IOException  if the mailbox cannot be read
+     * @throws InterruptedException
+     */
+    public void ingest(final Path mailbox, final Listener listener) throws IOException, InterruptedException {
+        forgetFinished();
+        final boolean maildir = Files.isDirectory(mailbox.resolve("new")) && Files.isDirectory(mailbox.resolve("cur"));
+        if (maildir) {
+            mailbox.resolve("new").register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            mailbox.resolve("cur").register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        } else if (Files.isRegularFile(mailbox)) {
+            mailbox.toAbsolutePath().getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } else {
+            throw new IOException("Not a maildir or mbox file: " + mailbox);
+        }
+
+        try {
+            boolean rescan = true;
+            while (!closed && (expected().size() > 0 || getPending() > 0)) {
+                if (rescan) {
+                    if (maildir) {
+                        scanMaildir(mailbox, listener);
+                    } else {
+                        scanMbox(mailbox, false, listener);
+                    }
+                    rescan = false;
+                }
+                WatchKey key = watchService.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    if (!maildir && mboxTail) {
+                        // the writer has paused, so the last message is complete
+                        scanMbox(mailbox, true, listener);
+                    }
+                    journal.refresh();
+                    continue;
+                }
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan = true;
+                    } else if (maildir) {
+                        readMaildirMessage(dir.resolve((Path) event.context()), listener);
+                    } else if (dir.resolve((Path) event.context()).equals(mailbox.toAbsolutePath())) {
+                        scanMbox(mailbox, false, listener);
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // closed
+        }
+
+        CompletableFuture<?>[] running;
+        synchronized (this) {
+            running = tails.values().toArray(new CompletableFuture<?>[0]);
+        }
+        CompletableFuture.allOf(running).handle((r, ex) -> null).join();
+        journal.flush();
+    }
+
+    /**
+     * Stop ingest. Codes which are being submitted are still submitted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            // nothing to release
+        }
+    }
+
+    /** get the processes which wait for a code, in the order of submission */
+    private List<Expected> expected() {
+        List<Expected> result = new ArrayList<>();
+        for (Map.Entry<String, String> setting : journal.getSettings(EXPECTED).entrySet()) {
+            result.add(new Expected(setting.getKey(), setting.getValue()));
+        }
+        result.sort(Comparator.comparingLong(e -> e.since));
+        return result;
+    }
+
+    /** forget the processes which do not wait for a code any more */
+    private void forgetFinished() throws IOException {
+        List<CompletableFuture<Void>> checks = new ArrayList<>();
+        for (final Expected expected : expected()) {
+            checks.add(service.processStatus(expected.processId).thenAccept(status -> {
+                if (!ProcessStatus.EMAIL_NOT_VALIDATED.name().equals(status)) {
+                    forget(expected.processId);
+                }
+            }).exceptionally(ex -> null));
+        }
+        AsyncVVService.await(CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])));
+    }
+
+    private void forget(final String processId) {
+        try {
+            codeReceived(journal, processId);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void scanMaildir(final Path maildir, final Listener listener) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String sub : new String[] {"new", "cur"}) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(maildir.resolve(sub))) {
+                for (Path file : dir) {
+                    files.add(file);
+                }
+            }
+        }
+        Map<Path, Long> modified = new HashMap<>();
+        for (Path file : files) {
+            try {
+                modified.put(file, Files.getLastModifiedTime(file).toMillis());
+            } catch (NoSuchFileException ex) {
+                modified.put(file, 0L);
+            }
+        }
+        // in the order of delivery, so a newer code for the same address is tried last
+        files.sort(Comparator.comparingLong(modified::get));
+        for (Path file : files) {
+            readMaildirMessage(file, listener);
+        }
+    }
+
+    private void readMaildirMessage(final Path file, final Listener listener) throws IOException {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".")) {
+            return;
+        }
+        int colon = name.indexOf(':');
+        String unique = (colon < 0) ? name : name.substring(0, colon);
+        if (!seen.add(unique)) {
+            return;
+        }
+        byte[] data;
+        long delivered;
+        try {
+            delivered = Files.getLastModifiedTime(file).toMillis();
+            if (!isAwaitedAfter(delivered)) {
+                // older than all submissions, no need to parse it
+                count(false);
+                return;
+            }
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException ex) {
+            // moved from new to cur meanwhile; read it there
+            seen.remove(unique);
+            return;
+        }
+        offer(MailMessage.parse(name, data, delivered), listener);
+    }
+
+    /**
+     * Read the messages which have been appended to an mbox file.
+     * @param complete  whether a last message which ends with a line break is complete
+     */
+    private void scanMbox(final Path mbox, final boolean complete, final Listener listener) throws IOException {
+        String key = OFFSET + mbox.toAbsolutePath();
+        if (mboxOffset < 0) {
+            mboxOffset = Long.parseLong(journal.getSetting(key, "0"));
+        }
+        String data;
+        try (FileChannel channel = FileChannel.open(mbox, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < mboxOffset) {
+                // the file has been replaced or truncated
+                mboxOffset = 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size - mboxOffset, Integer.MAX_VALUE - 8));
+            while (buffer.hasRemaining() && channel.read(buffer, mboxOffset + buffer.position()) >= 0) {
+                // read the new part
+            }
+            data = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+        }
+
+        // a message starts with a "From " line at the start of the data or after an empty line
+        List<Integer> starts = new ArrayList<>();
+        Matcher separator = Pattern.compile("(?m)^From ").matcher(data);
+        while (separator.find()) {
+            int i = separator.start();
+            if (i == 0 || (i >= 2 && data.charAt(i - 1) == '\n' && data.charAt(i - 2) == '\n')) {
+                starts.add(i);
+            }
+        }
+        int consumed = starts.isEmpty() ? 0 : starts.get(0);
+        for (int n = 0; n < starts.size(); n++) {
+            int start = starts.get(n);
+            int end;
+            if (n + 1 < starts.size()) {
+                end = starts.get(n + 1);
+            } else if (data.endsWith("\n\n") || (complete && data.endsWith("\n"))) {
+                end = data.length();
+            } else {
+                break;
+            }
+            String message = data.substring(start, end);
+            int firstLine = message.indexOf('\n');
+            long delivered = MailMessage.separatorTime(message.substring(0, Math.max(firstLine, 0)));
+            MailMessage parsed = MailMessage.parse(mbox.getFileName() + "@" + (mboxOffset + start),
+                    message.getBytes(StandardCharsets.ISO_8859_1), delivered);
+            if (isAwaitedAfter(parsed.getDelivered())) {
+                offer(parsed, listener);
+            } else {
+                count(false);
+            }
+            consumed = end;
+        }
+        mboxOffset += consumed;
+        mboxTail = consumed < data.length();
+        journal.putSetting(key, Long.toString(mboxOffset));
+    }
+
+    /** @return whether a process waits for a code which was sent at or after the time, if it is known */
+    private boolean isAwaitedAfter(final long delivered) {
+        for (Expected expected : expected()) {
+            if (delivered == 0 || delivered + CLOCK_SLACK > expected.since) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** find the code and the processes of a message and submit the code */
+    private void offer(final MailMessage message, final Listener listener) {
+        Matcher matcher = codePattern.matcher(message.getText());
+        final List<Expected> candidates = new ArrayList<>();
+        for (Expected expected : expected()) {
+            if (message.getRecipients().contains(expected.address) &&
+                    (message.getDelivered() == 0 || message.getDelivered() + CLOCK_SLACK > expected.since)) {
+                candidates.add(expected);
+            }
+        }
+        if (candidates.isEmpty() || !matcher.find()) {
+            count(false);
+            return;
+        }
+        count(true);
+        final String code = (matcher.groupCount() > 0) ? matcher.group(1) : matcher.group();
+        final String address = candidates.get(0).address;
+        synchronized (this) {
+            pending++;
+            CompletableFuture<Void> tail = tails.getOrDefault(address, CompletableFuture.completedFuture(null));
+            tails.put(address, tail.thenCompose(v -> submit(candidates, 0, code, null))
+                    .handle((processId, ex) -> {
+                        finished(message, processId, ex, listener);
+                        return null;
+                    }));
+        }
+    }
+
+    /** try the code on the candidates in turn */
+    private CompletableFuture<String> submit(final List<Expected> candidates, final int next, final String code,
+            final Throwable lastError) {
+        if (next == candidates.size()) {
+            return CompletableFuture.failedFuture((lastError != null) ? lastError :
+                    new IllegalStateException("No process waits for this code any more."));
+        }
+        final String processId = candidates.get(next).processId;
+        if (journal.getSetting(EXPECTED + processId, null) == null) {
+            // validated by an earlier message
+            return submit(candidates, next + 1, code, lastError);
+        }
+        return service.validateEmailAddress(processId, code)
+                .thenApply(v -> {
+                    forget(processId);
+                    return processId;
+                })
+                .exceptionallyCompose(ex -> {
+                    Throwable cause = AsyncVVService.unwrap(ex);
+                    if (cause instanceof ProcessStateException) {
+                        String status = ((ProcessStateException) cause).getProcessStatus();
+                        if (status != null && !status.equals(ProcessStatus.EMAIL_NOT_VALIDATED.name())) {
+                            forget(processId);
+                        }
+                    }
+                    return submit(candidates, next + 1, code, cause);
+                });
+    }
+
+    private void finished(final MailMessage message, final String processId, final Throwable ex,
+            final Listener listener) {
+        long latency = -1;
+        synchronized (this) {
+            pending--;
+            if (ex == null) {
+                validated++;
+                if (message.getDelivered() > 0) {
+                    latency = Math.max(0, System.currentTimeMillis() - message.getDelivered());
+                    latencies++;
+                    totalLatency += latency;
+                    maxLatency = Math.max(maxLatency, latency);
+                }
+            } else {
+                failed++;
+            }
+        }
+        if (ex == null) {
+            final String id = processId;
+            // keep the status of fleet processes up to date
+            service.processStatus(id).thenAccept(status -> {
+                ProcessFleet.Entry entry = journal.getByProcessId(id);
+                if (entry != null) {
+                    try {
+                        journal.put(entry.withStatus(status));
+                    } catch (IOException putEx) {
+                        throw new UncheckedIOException(putEx);
+                    }
+                }
+            });
+        }
+        if (listener != null) {
+            if (ex == null) {
+                listener.validated(processId, message.getId(), latency);
+            } else {
+                listener.failed(message.getId(), AsyncVVService.unwrap(ex));
+            }
+        }
+    }
+
+    private synchronized void count(final boolean withCode) {
+        read++;
+        if (!withCode) {
+            ignored++;
+        }
+    }
+
+    /**
+     * Get the number of processes which wait for a code.
+     * @return
+     */
+    public int getBacklog() {
+        return journal.getSettings(EXPECTED).size();
+    }
+
+    /**
+     * Get the number of codes which are being submitted.
+     * @return
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Get the number of messages which have been read.
+     * @return
+     */
+    public synchronized long getRead() {
+        return read;
+    }
+
+    /**
+     * Get the number of validated processes.
+     * @return
+     */
+    public synchronized long getValidated() {
+        return validated;
+    }
+
+    /**
+     * Get the number of messages whose code has been rejected.
+     * @return
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the number of messages without a code or without a process which
+     * waits for it.
+     * @return
+     */
+    public synchronized long getIgnored() {
+        return ignored;
+    }
+
+    /**
+     * Get the average time from the delivery of a message to the validation.
+     * @return  the time in milliseconds
+     */
+    public synchronized long getAverageLatency() {
+        return (latencies == 0) ? 0 : totalLatency / latencies;
+    }
+
+    /**
+     * Get the longest time from the delivery of a message to the validation.
+     * @return  the time in milliseconds
+     */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("mail ingester: %d messages read, %d validated, %d failed, %d ignored, " +
+                "%d awaiting a code, %d pending, delivery to validation avg %d ms, max %d ms", read, validated,
+                failed, ignored, getBacklog(), pending, getAverageLatency(), maxLatency);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of an e-mail which are needed to find a validation code: the
+ * recipients, the delivery time and the text of the body. Multipart bodies,
+ * quoted-printable and Base64 are decoded; HTML is reduced to its text. The
+ * message is read as ISO-8859-1, which keeps the ASCII of addresses and
+ * codes intact whatever the charset of the message.
+ */
+final class MailMessage {
+    private static final Pattern ADDRESS = Pattern.compile("[^\\s<>(),;:\"]+@[^\\s<>(),;:\"]+");
+    private static final Pattern BOUNDARY = Pattern.compile("(?i)boundary=\"?([^\";]+)\"?");
+    private static final Pattern TAG = Pattern.compile("<[^>]*>");
+    /** the date of an mbox separator line, e.g. "Sat Oct 17 10:00:00 2026" */
+    private static final DateTimeFormatter ASCTIME =
+            DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy", Locale.ENGLISH);
+    /** the recipient headers, the envelope recipient first */
+    private static final String[] RECIPIENT_HEADERS = {"delivered-to", "x-original-to", "to", "cc"};
+
+    private final String id;
+    private final long delivered;
+    private final Set<String> recipients;
+    private final String text;
+
+    private MailMessage(String id, long delivered, Set<String> recipients, String text) {
+        this.id = id;
+        this.delivered = delivered;
+        this.recipients = recipients;
+        this.text = text;
+    }
+
+    /**
+     * Parse a message.
+     * @param id  identifies the message in reports, e.g. its file name
+     * @param data  the raw message, headers and body
+     * @param delivered  the delivery time in milliseconds since the epoch,
+     *                   or 0 to take it from the Date header
+     * @return
+     */
+    static MailMessage parse(final String id, final byte[] data, final long delivered) {
+        String raw = new String(data, StandardCharsets.ISO_8859_1).replace("\r\n", "\n");
+        Map<String, String> headers = new HashMap<>();
+        String body = splitHeaders(raw, headers);
+
+        Set<String> recipients = new LinkedHashSet<>();
+        for (String name : RECIPIENT_HEADERS) {
+            String value = headers.get(name);
+            if (value != null) {
+                Matcher matcher = ADDRESS.matcher(value);
+                while (matcher.find()) {
+                    recipients.add(normalize(matcher.group()));
+                }
+            }
+        }
+
+        long time = delivered;
+        if (time == 0 && headers.containsKey("date")) {
+            try {
+                time = ZonedDateTime.parse(headers.get("date").replaceAll("\\s*\\(.*\\)$", "").trim(),
+                        DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException ex) {
+                // unknown delivery time
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        appendText(headers, body, text);
+        return new MailMessage(id, time, recipients, text.toString());
+    }
+
+    /**
+     * Get the time of an mbox separator line ("From sender date").
+     * @param line
+     * @return  milliseconds since the epoch, or 0 if the line has no valid date
+     */
+    static long separatorTime(final String line) {
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length < 7) {
+            return 0;
+        }
+        String date = String.join(" ", fields[2], fields[3], fields[4], fields[5], fields[6]);
+        try {
+            return LocalDateTime.parse(date, ASCTIME).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Bring an e-mail address into the form in which it is compared.
+     * @param address
+     * @return
+     */
+    static String normalize(final String address) {
+        return address.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** parse unfolded headers with lower-case names, return the body */
+    private static String splitHeaders(final String part, final Map<String, String> headers) {
+        int end = part.indexOf("\n\n");
+        String head = (end < 0) ? part : part.substring(0, end);
+        String name = null;
+        for (String line : head.split("\n")) {
+            if (!line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                if (name != null) {
+                    headers.merge(name, " " + line.trim(), String::concat);
+                }
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                // e.g. the mbox separator line
+                name = null;
+                continue;
+            }
+            name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            // repeated headers (e.g. several Delivered-To) are combined
+            headers.merge(name, line.substring(colon + 1).trim(), (a, b) -> a + ", " + b);
+        }
+        return (end < 0) ? "" : part.substring(end + 2);
+    }
+
+    private static void appendText(final Map<String, String> headers, final String body,
+            final StringBuilder text) {
+        String type = headers.getOrDefault("content-type", "text/plain").toLowerCase(Locale.ROOT);
+        if (type.startsWith("multipart/")) {
+            Matcher matcher = BOUNDARY.matcher(headers.get("content-type"));
+            if (!matcher.find()) {
+                return;
+            }
+            String delimiter = "--" + matcher.group(1);
+            String[] parts = body.split("(?m)^" + Pattern.quote(delimiter));
+            // parts[0] is the preamble; the part after the closing delimiter starts with "--"
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("--")) {
+                    break;
+                }
+                Map<String, String> partHeaders = new HashMap<>();
+                String partBody = splitHeaders(parts[i].startsWith("\n") ? parts[i].substring(1) : parts[i],
+                        partHeaders);
+                appendText(partHeaders, partBody, text);
+            }
+        } else if (type.startsWith("text/")) {
+            String decoded = decode(body, headers.getOrDefault("content-transfer-encoding", ""));
+            if (type.startsWith("text/html")) {
+                decoded = TAG.matcher(decoded).replaceAll(" ").replace("&nbsp;", " ");
+            }
+            text.append(decoded).append('\n');
+        }
+    }
+
+    private static String decode(final String body, final String encoding) {
+        switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+            case "base64":
+                try {
+                    return new String(Base64.getMimeDecoder().decode(body), StandardCharsets.ISO_8859_1);
+                } catch (IllegalArgumentException ex) {
+                    return body;
+                }
+            case "quoted-printable":
+                return decodeQuotedPrintable(body);
+            default:
+                return body;
+        }
+    }
+
+    private static String decodeQuotedPrintable(final String body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length());
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c != '=') {
+                out.write(c);
+            } else if (i + 1 < body.length() && body.charAt(i + 1) == '\n') {
+                // soft line break
+                i++;
+            } else if (i + 2 < body.length() && Character.digit(body.charAt(i + 1), 16) >= 0 &&
+                    Character.digit(body.charAt(i + 2), 16) >= 0) {
+                out.write(Integer.parseInt(body.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                out.write(c);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /** @return milliseconds since the epoch, 0 if unknown */
+    long getDelivered() {
+        return delivered;
+    }
+
+    /** @return the normalized addresses of the recipients */
+    Set<String> getRecipients() {
+        return recipients;
+    }
+
+    /** @return the decoded text of the body */
+    String getText() {
+        return text;
+    }
+}
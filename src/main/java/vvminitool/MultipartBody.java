@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A multipart/form-data body which contains a single file. The length of the
+ * body is known before it is sent, and the file is streamed through a fixed
+ * buffer instead of being copied onto the heap.
+ */
+public final class MultipartBody {
+    static final String BOUNDARY = "---boundary6dfb03cc-5d1a-4700-a0f1-203dbdb9f2ea---";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] head;
+    private final byte[] tail;
+    private final long size;
+    private final Source source;
+
+    /** opens the content of the file */
+    private interface Source {
+        ReadableByteChannel open() throws IOException;
+    }
+
+    private MultipartBody(final String formDataName, final long size, final Source source) {
+        this.head = ("--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + formDataName + "\"; filename=\"" + formDataName + "\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        this.tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        this.size = size;
+        this.source = source;
+    }
+
+    /**
+     * Create a body from data in memory.
+     * @param formDataName
+     * @param formData
+     * @return
+     */
+    public static MultipartBody of(final String formDataName, final byte[] formData) {
+        return new MultipartBody(formDataName, formData.length,
+                () -> Channels.newChannel(new ByteArrayInputStream(formData)));
+    }
+
+    /**
+     * Create a body from a file. The file is read each time the body is sent.
+     * @param formDataName
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MultipartBody of(final String formDataName, final Path file) throws IOException {
+        return new MultipartBody(formDataName, Files.size(file),
+                () -> FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    /**
+     * Create a body from a channel. The body can only be sent once.
+     * @param formDataName
+     * @param channel  provides exactly size bytes; it is closed after sending
+     * @param size
+     * @return
+     */
+    public static MultipartBody of(final String formDataName, final ReadableByteChannel channel,
+            final long size) {
+        final AtomicBoolean used = new AtomicBoolean();
+        return new MultipartBody(formDataName, size, () -> {
+            if (used.getAndSet(true)) {
+                throw new IOException("Channel has already been sent.");
+            }
+            return channel;
+        });
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + BOUNDARY;
+    }
+
+    /**
+     * Get the number of bytes of the encoded body.
+     * @return
+     */
+    public long getContentLength() {
+        return head.length + size + tail.length;
+    }
+
+    /**
+     * Write the encoded body to a stream.
+     * @param out  it is not closed
+     * @throws IOException
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(head);
+        try (ReadableByteChannel channel = source.open()) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long written = 0;
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                written += buffer.remaining();
+                if (written > size) {
+                    throw new IOException("File is larger than announced.");
+                }
+                out.write(buffer.array(), 0, buffer.remaining());
+                buffer.clear();
+            }
+            if (written != size) {
+                throw new IOException("File is smaller than announced.");
+            }
+        }
+        out.write(tail);
+    }
+
+    /**
+     * Open the encoded body as a stream.
+     * @return
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        InputStream content = Channels.newInputStream(source.open());
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(head), content, new ByteArrayInputStream(tail))));
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertPathBuilderException;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Combines downloaded certificates with the local private keys into PKCS#12
+ * keystores for e-mail clients. Everything happens in memory: the chain of
+ * each certificate is built and validated against the VV root CA, or other
+ * trusted roots, and the keystore is returned as bytes, so neither the
+ * certificate nor an unprotected copy of the key is written to disk.
+ * <p>
+ * The chain is validated at the time the certificate was issued, as the CA
+ * certificates may expire before it; the bundled root CA expired in 2023.
+ * The certificate itself must be valid now.
+ */
+public final class Pkcs12Assembler {
+    private static final Pattern PEM = Pattern.compile(
+            "-----BEGIN ([A-Z0-9 ]+)-----(.*?)-----END \\1-----", Pattern.DOTALL);
+    private static final byte[] RSA_ENCRYPTION = {
+        0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01};
+
+    private final KeyStore trustStore;
+    private final List<Certificate> intermediates;
+    private final Executor executor;
+
+    /**
+     * Create an assembler which validates against the bundled VV root CA.
+     * @throws KeyStoreException  if the trust store cannot be loaded
+     */
+    public Pkcs12Assembler() throws KeyStoreException {
+        this(loadDefaultTrustStore(), Collections.<Certificate>emptyList(), null);
+    }
+
+    /**
+     * Create an assembler.
+     * @param trustStore  contains the trusted root certificates
+     * @param intermediates  CA certificates which may be needed to build the
+     *                       chains, in addition to those sent by the server
+     * @param executor  runs the assembly of the keystores; null for the
+     *                  common pool
+     */
+    public Pkcs12Assembler(final KeyStore trustStore, final Collection<? extends Certificate> intermediates,
+            final Executor executor) {
+        this.trustStore = trustStore;
+        this.intermediates = new ArrayList<>(intermediates);
+        this.executor = (executor != null) ? executor : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Load the trust store with the VV root CA which is bundled with the tool.
+     * @return
+     * @throws KeyStoreException
+     */
+    public static KeyStore loadDefaultTrustStore() throws KeyStoreException {
+        try (InputStream in = VVService.class.getResourceAsStream("/vv-root-ca.cer")) {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(in, "changeit".toCharArray());
+            return keyStore;
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new KeyStoreException("Cannot load vv-root-ca.cer", ex);
+        }
+    }
+
+    /**
+     * Create a trust store with other root certificates than the bundled one.
+     * @param roots  the trusted root certificates
+     * @return
+     * @throws KeyStoreException
+     */
+    public static KeyStore createTrustStore(final Collection<? extends Certificate> roots)
+            throws KeyStoreException {
+        if (roots.isEmpty()) {
+            throw new KeyStoreException("No trusted certificate given.");
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            int i = 0;
+            for (Certificate root : roots) {
+                keyStore.setCertificateEntry("root-" + i++, root);
+            }
+            return keyStore;
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new KeyStoreException("Cannot create the trust store", ex);
+        }
+    }
+
+    /**
+     * Download the certificates of all types and assemble a keystore for
+     * each of them in parallel. The key of each type is read from
+     * keyDir/key_[type].pem.
+     * @param service
+     * @param processId
+     * @param keyDir
+     * @param password  protects the keystores
+     * @return  the encoded keystores by certificate type
+     */
+    public CompletableFuture<Map<String, byte[]>> assembleAll(final AsyncVVService service,
+            final String processId, final Path keyDir, final char[] password) {
+        final Map<String, byte[]> result = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> steps = new ArrayList<>();
+        for (final String certType : VVService.CERT_TYPES) {
+            steps.add(service.downloadCert(processId, certType).thenAcceptAsync(cert -> {
+                try {
+                    result.put(certType, assemble(certType, cert,
+                            keyDir.resolve("key_" + certType + ".pem"), password));
+                } catch (IOException | GeneralSecurityException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> result);
+    }
+
+    /**
+     * Assemble a keystore from a certificate and the matching private key.
+     * @param certType  used as the alias of the key entry
+     * @param certData  the certificate as sent by the server (DER, PEM or PKCS#7)
+     * @param keyFile  the private key in PEM format (PKCS#8 or PKCS#1)
+     * @param password  protects the keystore and the key entry
+     * @return  the encoded PKCS#12 keystore
+     * @throws IOException  if the key file cannot be read
+     * @throws GeneralSecurityException  if the certificate does not match the
+     *                                   key or cannot be validated
+     */
+    public byte[] assemble(final String certType, final byte[] certData, final Path keyFile,
+            final char[] password) throws IOException, GeneralSecurityException {
+        List<X509Certificate> received = parseCertificates(certData);
+        if (received.isEmpty()) {
+            throw new CertificateException("No certificate of type '" + certType + "' received.");
+        }
+        X509Certificate certificate = received.get(0);
+        PrivateKey key = readPrivateKey(keyFile, certificate.getPublicKey().getAlgorithm());
+        if (!matches(key, certificate)) {
+            throw new GeneralSecurityException("Key " + keyFile + " does not belong to the certificate of type '" +
+                    certType + "'.");
+        }
+
+        List<Certificate> chain = buildChain(certificate, received);
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(certType, key, password, chain.toArray(new Certificate[0]));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        keyStore.store(out, password);
+        return out.toByteArray();
+    }
+
+    /**
+     * Build and validate the chain from a certificate to a trusted root. The
+     * certificate must be valid now, the chain when the certificate was
+     * issued. Revocation is not checked.
+     * @param certificate
+     * @param candidates  other certificates which may be part of the chain
+     * @return  the chain, starting with the certificate and ending with the root
+     * @throws GeneralSecurityException  if no valid chain can be built
+     */
+    List<Certificate> buildChain(final X509Certificate certificate,
+            final Collection<? extends Certificate> candidates) throws GeneralSecurityException {
+        certificate.checkValidity();
+        X509CertSelector selector = new X509CertSelector();
+        selector.setCertificate(certificate);
+        PKIXBuilderParameters params = new PKIXBuilderParameters(trustStore, selector);
+        params.setRevocationEnabled(false);
+        params.setDate(certificate.getNotBefore());
+        List<Certificate> pool = new ArrayList<>(candidates);
+        pool.addAll(intermediates);
+        params.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(pool)));
+
+        PKIXCertPathBuilderResult result;
+        try {
+            result = (PKIXCertPathBuilderResult) CertPathBuilder.getInstance("PKIX").build(params);
+        } catch (CertPathBuilderException ex) {
+            throw new CertificateException("Cannot validate certificate '" +
+                    certificate.getSubjectX500Principal() + "': " + ex.getMessage(), ex);
+        }
+        List<Certificate> chain = new ArrayList<>(result.getCertPath().getCertificates());
+        chain.add(result.getTrustAnchor().getTrustedCert());
+        return chain;
+    }
+
+    /**
+     * Parse one or more certificates in DER or PEM format, or a PKCS#7 chain.
+     * @param data
+     * @return
+     * @throws CertificateException
+     */
+    public static List<X509Certificate> parseCertificates(final byte[] data) throws CertificateException {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (Certificate certificate : factory.generateCertificates(new ByteArrayInputStream(data))) {
+            certificates.add((X509Certificate) certificate);
+        }
+        return certificates;
+    }
+
+    /**
+     * Read an unencrypted private key in PEM format.
+     * @param file  contains a PRIVATE KEY (PKCS#8) or an RSA PRIVATE KEY (PKCS#1)
+     * @param algorithm  the key algorithm, e.g. "RSA"
+     * @return
+     * @throws IOException  if the file cannot be read or contains no usable key
+     * @throws GeneralSecurityException  if the key cannot be decoded
+     */
+    static PrivateKey readPrivateKey(final Path file, final String algorithm)
+            throws IOException, GeneralSecurityException {
+        String text = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+        Matcher matcher = PEM.matcher(text);
+        while (matcher.find()) {
+            String type = matcher.group(1);
+            if (!type.endsWith("PRIVATE KEY")) {
+                continue;
+            }
+            byte[] der;
+            try {
+                der = Base64.getMimeDecoder().decode(matcher.group(2));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Invalid PEM data in " + file, ex);
+            }
+            if (type.equals("RSA PRIVATE KEY")) {
+                der = wrapPkcs1(der);
+            } else if (!type.equals("PRIVATE KEY")) {
+                throw new IOException("Unsupported key type '" + type + "' in " + file +
+                        "; keys must not be encrypted.");
+            }
+            return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(der));
+        }
+        throw new IOException("No private key found in " + file);
+    }
+
+    /** wrap a PKCS#1 RSAPrivateKey into a PKCS#8 PrivateKeyInfo */
+    private static byte[] wrapPkcs1(final byte[] rsaPrivateKey) {
+        return Der.sequence(
+                Der.tlv(Der.INTEGER, new byte[] {0}),
+                Der.sequence(Der.tlv(Der.OID, RSA_ENCRYPTION), Der.tlv(Der.NULL, new byte[0])),
+                Der.tlv(Der.OCTET_STRING, rsaPrivateKey));
+    }
+
+    private static boolean matches(final PrivateKey key, final X509Certificate certificate) {
+        if (key instanceof RSAKey && certificate.getPublicKey() instanceof RSAKey) {
+            BigInteger modulus = ((RSAKey) key).getModulus();
+            return modulus.equals(((RSAKey) certificate.getPublicKey()).getModulus());
+        }
+        // other algorithms are checked when the keystore is used
+        return true;
+    }
+}
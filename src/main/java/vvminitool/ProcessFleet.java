@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * A set of named processes which are driven at the same time. The process
+ * ids and the last known status of each process are kept in a ProcessJournal.
+ * Bulk operations run concurrently, but never more than the configured
+ * number of requests at once.
+ */
+public class ProcessFleet {
+    public static final int DEFAULT_PARALLELISM = 8;
+    /** the longest name of a process */
+    public static final int MAX_NAME_LENGTH = 80;
+
+    private final AsyncVVService service;
+    private final ProcessJournal journal;
+    private final int parallelism;
+
+    /**
+     * A process of the fleet. Entries are immutable.
+     */
+    public static final class Entry {
+        private final String name;
+        private final String processId;
+        private final String processHash;
+        private final String status;
+        private final long updated;
+
+        Entry(String name, String processId, String status, long updated) {
+            this(name, processId, hash(processId), status, updated);
+        }
+
+        Entry(String name, String processId, String processHash, String status, long updated) {
+            this.name = name;
+            this.processId = processId;
+            this.processHash = processHash;
+            this.status = status;
+            this.updated = updated;
+        }
+
+        private static String hash(String processId) {
+            try {
+                return VVService.hexHash(processId);
+            } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getProcessId() {
+            return processId;
+        }
+
+        public String getProcessHash() {
+            return processHash;
+        }
+
+        /**
+         * Get the status of the process when it was last queried.
+         * @return
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the time of the last status update.
+         * @return milliseconds since the epoch
+         */
+        public long getUpdated() {
+            return updated;
+        }
+
+        public String getNextAction() {
+            return ProcessStatus.of(status).getNextAction();
+        }
+
+        Entry withStatus(String newStatus) {
+            return withStatus(newStatus, System.currentTimeMillis());
+        }
+
+        Entry withStatus(String newStatus, long time) {
+            return new Entry(name, processId, processHash, newStatus, time);
+        }
+    }
+
+    /**
+     * Load a fleet.
+     * @param service  used for all requests
+     * @param journal  stores the processes
+     * @param parallelism  the maximum number of concurrent requests
+     */
+    public ProcessFleet(AsyncVVService service, ProcessJournal journal, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.service = service;
+        this.journal = journal;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get a process by name.
+     * @param name
+     * @return the process, or null if there is no process with this name
+     */
+    public Entry get(String name) {
+        return journal.get(name);
+    }
+
+    /**
+     * List the processes, ordered by name.
+     * @param status  only list processes with this status; null for all
+     * @return
+     */
+    public List<Entry> list(String status) {
+        return journal.list(status);
+    }
+
+    /**
+     * Start a new process for each name.
+     * @param names  distinct names which are not yet used in the fleet
+     * @return  the errors, by process name
+     * @throws InterruptedException
+     */
+    public Map<String, Throwable> add(Collection<String> names) throws InterruptedException {
+        Set<String> unique = new HashSet<>();
+        for (String name : names) {
+            if (!unique.add(name)) {
+                throw new IllegalArgumentException("Process '" + name + "' is given more than once.");
+            }
+            if (journal.get(name) != null) {
+                throw new IllegalArgumentException("Process '" + name + "' already exists.");
+            }
+            if (name.isEmpty() || name.contains("/") || name.length() > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Invalid process name '" + name + "'.");
+            }
+        }
+        return forEach(names, name -> service.initProcess()
+                .thenCompose(processId -> {
+                    store(new Entry(name, processId, "", System.currentTimeMillis()));
+                    return service.processStatus(processId);
+                })
+                .thenAccept(status -> store(journal.get(name).withStatus(status))));
+    }
+
+    /**
+     * Query the current status of the processes.
+     * @param targets
+     * @return  the errors, by process name
+     * @throws InterruptedException
+     */
+    public Map<String, Throwable> refresh(Collection<Entry> targets) throws InterruptedException {
+        return forEachEntry(targets, entry -> refresh(entry));
+    }
+
+    /**
+     * Query the current status and perform the next step if it needs no input
+     * from the user: select eid authentication for new processes and confirm
+     * the personal data of authenticated processes.
+     * @param targets
+     * @return  the errors, by process name
+     * @throws InterruptedException
+     */
+    public Map<String, Throwable> advance(Collection<Entry> targets) throws InterruptedException {
+        return forEachEntry(targets, entry -> service.processStatus(entry.getProcessId())
+                .thenCompose(status -> {
+                    CompletableFuture<?> step;
+                    switch (ProcessStatus.of(status)) {
+                        case AUTH_PENDING:
+                            step = service.selectAuthMethod(entry.getProcessId(), "eid");
+                            break;
+                        case AUTH_COMPLETED:
+                            step = service.requestPersonalData(entry.getProcessId());
+                            break;
+                        default:
+                            store(entry.withStatus(status));
+                            return CompletableFuture.completedFuture(null);
+                    }
+                    return step.thenCompose(ignored -> refresh(entry));
+                }));
+    }
+
+    /**
+     * Submit the e-mail address of a process and record that it waits for a
+     * validation code, see MailIngester.
+     * @param entry
+     * @param address
+     * @return  a future which completes when the new status has been stored
+     */
+    public CompletableFuture<Void> submitEmailAddress(final Entry entry, final String address) {
+        return service.submitEmailAddress(entry.getProcessId(), address)
+                .thenRun(() -> {
+                    try {
+                        MailIngester.expectCode(journal, entry.getProcessId(), address);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                })
+                .thenCompose(v -> refresh(entry));
+    }
+
+    /**
+     * End the processes and remove them from the fleet.
+     * @param targets
+     * @return  the errors, by process name
+     * @throws InterruptedException
+     */
+    public Map<String, Throwable> finalizeAll(Collection<Entry> targets) throws InterruptedException {
+        return forEachEntry(targets, entry -> service.finalizeProcess(entry.getProcessId())
+                .thenRun(() -> {
+                    try {
+                        remove(entry.getName());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }));
+    }
+
+    /**
+     * Generate key pairs and CSRs for the processes, in dir/[name].
+     * @param targets
+     * @param keyGen
+     * @param dir
+     * @param upload  whether to upload each CSR as soon as it has been created
+     * @return  the errors, by process name
+     * @throws InterruptedException
+     */
+    public Map<String, Throwable> keygen(Collection<Entry> targets, final KeyGen keyGen, final Path dir,
+            final boolean upload) throws InterruptedException {
+        return forEachEntry(targets, entry -> {
+            List<CompletableFuture<?>> steps = new ArrayList<>();
+            for (String certType : VVService.CERT_TYPES) {
+                CompletableFuture<byte[]> csr = keyGen.generate(entry.getProcessHash(), certType,
+                        dir.resolve(entry.getName()));
+                steps.add(upload ? csr.thenCompose(data ->
+                        service.uploadCSR(entry.getProcessId(), certType, data)) : csr);
+            }
+            CompletableFuture<Void> all = CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0]));
+            return upload ? all.thenCompose(v -> refresh(entry)) : all;
+        });
+    }
+
+    /**
+     * Record a status which has been received for a process.
+     * @param name
+     * @param status
+     */
+    public void updateStatus(String name, String status) {
+        Entry entry = journal.get(name);
+        if (entry != null) {
+            store(entry.withStatus(status));
+        }
+    }
+
+    /**
+     * Remove a process from the fleet without ending it.
+     * @param name
+     * @return  true if the process existed
+     * @throws IOException
+     */
+    public boolean remove(String name) throws IOException {
+        return journal.remove(name);
+    }
+
+    /**
+     * Write all changes to the storage device.
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        journal.flush();
+    }
+
+    /**
+     * Run an action for each process, with at most parallelism actions
+     * running at the same time. Blocks until all actions have finished.
+     * @param targets
+     * @param action  started for each process; returns a future for its completion
+     * @return  the errors, by process name
+     * @throws InterruptedException
+     */
+    public Map<String, Throwable> forEachEntry(Collection<Entry> targets,
+            Function<Entry, CompletableFuture<?>> action) throws InterruptedException {
+        Map<String, Entry> byName = new TreeMap<>();
+        for (Entry entry : targets) {
+            byName.put(entry.getName(), entry);
+        }
+        return forEach(byName.keySet(), name -> action.apply(byName.get(name)));
+    }
+
+    private Map<String, Throwable> forEach(Collection<String> names,
+            Function<String, CompletableFuture<?>> action) throws InterruptedException {
+        final Map<String, Throwable> errors = new ConcurrentHashMap<>();
+        final Semaphore permits = new Semaphore(parallelism);
+        for (final String name : names) {
+            permits.acquire();
+            CompletableFuture<?> future;
+            try {
+                future = action.apply(name);
+            } catch (RuntimeException ex) {
+                future = CompletableFuture.failedFuture(ex);
+            }
+            future.whenComplete((result, ex) -> {
+                if (ex != null) {
+                    errors.put(name, AsyncVVService.unwrap(ex));
+                }
+                permits.release();
+            });
+        }
+        permits.acquire(parallelism);
+        permits.release(parallelism);
+        return new TreeMap<>(errors);
+    }
+
+    private CompletableFuture<Void> refresh(Entry entry) {
+        return service.processStatus(entry.getProcessId())
+                .thenAccept(status -> store(entry.withStatus(status)));
+    }
+
+    private void store(Entry entry) {
+        try {
+            journal.put(entry);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the processes and settings of the tool in an append-only file. Every
+ * change is one record: a length, a CRC32 and the payload (type, time and
+ * fields). The file is memory-mapped; on opening, all records are replayed
+ * into in-memory indexes by name, process hash, process id and status, so
+ * lookups do not touch the file. A record which was torn by a crash fails
+ * its CRC and ends the journal; it is overwritten by the next record.
+ * <p>
+ * Several processes (e.g. a daemon and a command run with --no-daemon) may
+ * use the same file. Appends hold an exclusive file lock and first replay the
+ * records others have written. Compaction writes the live state to a new file
+ * and marks the old one, so other processes reopen the file when they see the
+ * mark.
+ */
+public final class ProcessJournal implements AutoCloseable {
+    private static final byte PROCESS = 1;
+    private static final byte STATUS = 2;
+    private static final byte REMOVE = 3;
+    private static final byte SET = 4;
+    private static final byte UNSET = 5;
+    /** the file has been replaced by a compacted one */
+    private static final byte COMPACTED = 6;
+    /** length and CRC of a record */
+    private static final int HEADER = 8;
+    private static final int MIN_CAPACITY = 64 * 1024;
+    /** compact when opening a journal with more dead records than this and than live ones */
+    private static final int COMPACT_THRESHOLD = 1000;
+    /** give up opening a file which is still marked as compacted after this many attempts */
+    private static final int MAX_REOPEN = 100;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    /** the offset after the last valid record */
+    private int end;
+    private int records;
+    private boolean fresh;
+    /** the fields of the last mark of a compacted file */
+    private String[] compactedMark;
+
+    private final Map<String, ProcessFleet.Entry> byName = new HashMap<>();
+    private final Map<String, ProcessFleet.Entry> byHash = new HashMap<>();
+    private final Map<String, ProcessFleet.Entry> byProcessId = new HashMap<>();
+    private final Map<String, Set<String>> byStatus = new HashMap<>();
+    private final Map<String, String> settings = new HashMap<>();
+
+    private ProcessJournal(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the default journal, ~/.vvminitool.journal.
+     * @return
+     */
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("user.home"), ".vvminitool.journal");
+    }
+
+    /**
+     * Open a journal and replay its records. If it contains many records
+     * which have been superseded, it is compacted.
+     * @param file  created if it does not exist, readable only by the owner
+     * @return
+     * @throws IOException
+     */
+    public static ProcessJournal open(final Path file) throws IOException {
+        ProcessJournal journal = new ProcessJournal(file);
+        journal.openFile();
+        journal.fresh = (journal.records == 0);
+        int dead = journal.records - journal.byName.size() - journal.settings.size();
+        if (dead > COMPACT_THRESHOLD && dead > journal.records - dead) {
+            journal.compact();
+        }
+        return journal;
+    }
+
+    /**
+     * Check whether the journal was empty when it was opened.
+     * @return
+     */
+    public synchronized boolean isNew() {
+        return fresh;
+    }
+
+    /**
+     * Read the records which other processes have appended since the last call.
+     * @throws IOException
+     */
+    public synchronized void refresh() throws IOException {
+        boolean compacted;
+        FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+        try {
+            compacted = catchUp();
+        } finally {
+            lock.release();
+        }
+        if (compacted) {
+            reopenFile();
+        }
+    }
+
+    /**
+     * Get a process by name.
+     * @param name
+     * @return  the process, or null if there is no process with this name
+     */
+    public synchronized ProcessFleet.Entry get(final String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Get a process by its hash, which is the common name of its certificates.
+     * @param processHash
+     * @return  the process, or null if it is not known
+     */
+    public synchronized ProcessFleet.Entry getByHash(final String processHash) {
+        return byHash.get(processHash);
+    }
+
+    /**
+     * Get a process by its id.
+     * @param processId
+     * @return  the process, or null if it is not known
+     */
+    public synchronized ProcessFleet.Entry getByProcessId(final String processId) {
+        return byProcessId.get(processId);
+    }
+
+    /**
+     * List processes, ordered by name.
+     * @param status  only list processes with this status; null for all
+     * @return
+     */
+    public synchronized List<ProcessFleet.Entry> list(final String status) {
+        List<ProcessFleet.Entry> result = new ArrayList<>();
+        if (status == null) {
+            result.addAll(byName.values());
+        } else {
+            for (String name : byStatus.getOrDefault(status, Collections.<String>emptySet())) {
+                result.add(byName.get(name));
+            }
+        }
+        result.sort(Comparator.comparing(ProcessFleet.Entry::getName));
+        return result;
+    }
+
+    /**
+     * Get the number of processes.
+     * @return
+     */
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    /**
+     * Add a process or record its new status. If a process with the same name
+     * and process id exists, only the status and the time are appended.
+     * @param entry
+     * @throws IOException
+     */
+    public synchronized void put(final ProcessFleet.Entry entry) throws IOException {
+        ProcessFleet.Entry existing = byName.get(entry.getName());
+        if (existing != null && existing.getProcessId().equals(entry.getProcessId())) {
+            append(encode(STATUS, entry.getUpdated(), entry.getName(), entry.getStatus()));
+        } else {
+            append(encodeProcess(entry));
+        }
+    }
+
+    /**
+     * Remove a process.
+     * @param name
+     * @return  true if the process existed
+     * @throws IOException
+     */
+    public synchronized boolean remove(final String name) throws IOException {
+        if (!byName.containsKey(name)) {
+            return false;
+        }
+        append(encode(REMOVE, System.currentTimeMillis(), name));
+        return true;
+    }
+
+    /**
+     * Get a setting.
+     * @param key
+     * @param defaultValue
+     * @return  the value, or defaultValue if the setting does not exist
+     */
+    public synchronized String getSetting(final String key, final String defaultValue) {
+        return settings.getOrDefault(key, defaultValue);
+    }
+
+    /**
+     * Get all settings whose keys start with a prefix.
+     * @param prefix
+     * @return  the settings ordered by key, with the prefix removed from the keys
+     */
+    public synchronized SortedMap<String, String> getSettings(final String prefix) {
+        SortedMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            if (setting.getKey().startsWith(prefix)) {
+                result.put(setting.getKey().substring(prefix.length()), setting.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Change a setting. Nothing is written if the value does not change.
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    public synchronized void putSetting(final String key, final String value) throws IOException {
+        if (!value.equals(settings.get(key))) {
+            append(encode(SET, System.currentTimeMillis(), key, value));
+        }
+    }
+
+    /**
+     * Remove a setting.
+     * @param key
+     * @throws IOException
+     */
+    public synchronized void removeSetting(final String key) throws IOException {
+        if (settings.containsKey(key)) {
+            append(encode(UNSET, System.currentTimeMillis(), key));
+        }
+    }
+
+    /**
+     * Write the records to the storage device. Without this, records survive
+     * a crash of the process but not of the system.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Replace the file by one which contains only the current state.
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        boolean done = false;
+        while (!done) {
+            FileLock lock = channel.lock();
+            try {
+                if (!catchUp()) {
+                    Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    for (ProcessFleet.Entry entry : byName.values()) {
+                        data.write(frame(encodeProcess(entry)));
+                    }
+                    for (Map.Entry<String, String> setting : settings.entrySet()) {
+                        data.write(frame(encode(SET, System.currentTimeMillis(), setting.getKey(),
+                                setting.getValue())));
+                    }
+                    try (FileChannel out = createFile(compacted, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        ByteBuffer src = ByteBuffer.wrap(data.toByteArray());
+                        while (src.hasRemaining()) {
+                            out.write(src);
+                        }
+                        out.force(true);
+                    }
+                    byte[] content = data.toByteArray();
+                    write(encode(COMPACTED, System.currentTimeMillis(), Integer.toString(content.length),
+                            Integer.toString(crc(content))));
+                    buffer.force();
+                    Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    done = true;
+                }
+            } finally {
+                lock.release();
+            }
+            reopenFile();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        buffer = null;
+        channel.close();
+    }
+
+    /**
+     * Open the file and replay its records. A file which has been replaced by
+     * a compacted one meanwhile is opened anew; if the compaction was
+     * interrupted after the mark, the compacted file is moved into place.
+     */
+    private void openFile() throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            channel = createFile(file);
+            buffer = null;
+            end = 0;
+            records = 0;
+            byName.clear();
+            byHash.clear();
+            byProcessId.clear();
+            byStatus.clear();
+            settings.clear();
+            boolean compacted;
+            boolean finished = false;
+            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+            try {
+                compacted = catchUp();
+                if (compacted) {
+                    finished = finishCompaction();
+                }
+            } finally {
+                lock.release();
+            }
+            if (!compacted) {
+                return;
+            }
+            buffer = null;
+            channel.close();
+            if (!finished && attempt >= MAX_REOPEN) {
+                throw new IOException("Journal " + file + " is marked as compacted, " +
+                        "but the compacted file is missing.");
+            }
+        }
+    }
+
+    /**
+     * Move the compacted file into place if the compaction of this file was
+     * interrupted after the mark. The mark holds the length and CRC of the
+     * compacted file, so a compacted file which belongs to a later compaction
+     * (of the file which has replaced this one) is left alone.
+     * @return  true if the compacted file has been moved
+     */
+    private boolean finishCompaction() throws IOException {
+        if (compactedMark == null) {
+            return false;
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        byte[] content;
+        try {
+            content = Files.readAllBytes(compacted);
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        if (!Integer.toString(content.length).equals(compactedMark[0]) ||
+                !Integer.toString(crc(content)).equals(compactedMark[1])) {
+            return false;
+        }
+        try {
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException ex) {
+            // moved by another process
+        }
+        return true;
+    }
+
+    private void reopenFile() throws IOException {
+        channel.close();
+        openFile();
+    }
+
+    private static FileChannel createFile(final Path path, final StandardOpenOption... extra) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Collections.addAll(options, extra);
+        FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            attributes = new FileAttribute<?>[] {
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+        }
+        return FileChannel.open(path, options, attributes);
+    }
+
+    /**
+     * Replay the records after the end. The caller holds a lock.
+     * @return  true if the file has been compacted and must be reopened
+     */
+    private boolean catchUp() throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + file + " is too large.");
+        }
+        if (buffer == null || buffer.capacity() < size) {
+            if (size == 0) {
+                return false;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        while (end + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length <= 0 || length > buffer.capacity() - end - HEADER) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(end + HEADER, payload);
+            if (buffer.getInt(end + 4) != crc(payload)) {
+                break;
+            }
+            end += HEADER + length;
+            records++;
+            if (apply(payload)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** append a record under an exclusive lock, after the records of other processes */
+    private void append(final byte[] payload) throws IOException {
+        while (true) {
+            FileLock lock = channel.lock();
+            try {
+                if (!catchUp()) {
+                    write(payload);
+                    apply(payload);
+                    return;
+                }
+            } finally {
+                lock.release();
+            }
+            reopenFile();
+        }
+    }
+
+    /** write a record at the end; the caller holds an exclusive lock and has caught up */
+    private void write(final byte[] payload) throws IOException {
+        long needed = (long) end + 2 * HEADER + payload.length;
+        if (needed > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + file + " is full.");
+        }
+        if (buffer == null || buffer.capacity() < needed) {
+            long capacity = Math.max(MIN_CAPACITY, (buffer == null) ? 0 : buffer.capacity());
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+        }
+        // the length is written last, so a torn record is never valid
+        buffer.putInt(end + HEADER + payload.length, 0);
+        buffer.put(end + HEADER, payload);
+        buffer.putInt(end + 4, crc(payload));
+        buffer.putInt(end, payload.length);
+        end += HEADER + payload.length;
+        records++;
+    }
+
+    /**
+     * Apply a record to the indexes.
+     * @return  true if the record marks a compacted file
+     */
+    private boolean apply(final byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long time = in.readLong();
+        switch (type) {
+            case PROCESS:
+                String name = in.readUTF();
+                unindex(name);
+                index(new ProcessFleet.Entry(name, in.readUTF(), in.readUTF(), in.readUTF(), time));
+                break;
+            case STATUS:
+                ProcessFleet.Entry entry = byName.get(in.readUTF());
+                if (entry != null) {
+                    unindex(entry.getName());
+                    index(entry.withStatus(in.readUTF(), time));
+                }
+                break;
+            case REMOVE:
+                unindex(in.readUTF());
+                break;
+            case SET:
+                settings.put(in.readUTF(), in.readUTF());
+                break;
+            case UNSET:
+                settings.remove(in.readUTF());
+                break;
+            case COMPACTED:
+                // length and CRC of the compacted file; missing in the marks of older versions
+                compactedMark = (in.available() > 0) ? new String[] {in.readUTF(), in.readUTF()} : null;
+                return true;
+            default:
+                // written by a newer version
+                break;
+        }
+        return false;
+    }
+
+    private void index(final ProcessFleet.Entry entry) {
+        byName.put(entry.getName(), entry);
+        byHash.put(entry.getProcessHash(), entry);
+        byProcessId.put(entry.getProcessId(), entry);
+        byStatus.computeIfAbsent(entry.getStatus(), s -> new HashSet<>()).add(entry.getName());
+    }
+
+    private void unindex(final String name) {
+        ProcessFleet.Entry entry = byName.remove(name);
+        if (entry == null) {
+            return;
+        }
+        byHash.remove(entry.getProcessHash(), entry);
+        byProcessId.remove(entry.getProcessId(), entry);
+        Set<String> names = byStatus.get(entry.getStatus());
+        names.remove(name);
+        if (names.isEmpty()) {
+            byStatus.remove(entry.getStatus());
+        }
+    }
+
+    private static byte[] encodeProcess(final ProcessFleet.Entry entry) throws IOException {
+        return encode(PROCESS, entry.getUpdated(), entry.getName(), entry.getProcessId(),
+                entry.getProcessHash(), entry.getStatus());
+    }
+
+    private static byte[] encode(final byte type, final long time, final String... fields) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        out.writeByte(type);
+        out.writeLong(time);
+        for (String field : fields) {
+            out.writeUTF(field);
+        }
+        out.flush();
+        return data.toByteArray();
+    }
+
+    private static byte[] frame(final byte[] payload) {
+        ByteBuffer framed = ByteBuffer.allocate(HEADER + payload.length);
+        framed.putInt(payload.length).putInt(crc(payload)).put(payload);
+        return framed.array();
+    }
+
+    private static int crc(final byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+/**
+ * Thrown when the server answers with code 409, or with the ErrorCode
+ * PROCESS_STATUS_INVALID: the operation is not possible in the current
+ * status of the process. It is an
+ * IllegalStateException, as before the error codes were parsed.
+ */
+public class ProcessStateException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final String errorCode;
+    private final String processStatus;
+
+    /**
+     * Create an exception.
+     * @param errorCode  Result.ErrorCode of the reply, or null
+     * @param processStatus  Result.ProcessStatus of the reply, or null
+     */
+    public ProcessStateException(String errorCode, String processStatus) {
+        this(409, errorCode, processStatus);
+    }
+
+    /**
+     * Create an exception.
+     * @param statusCode  the HTTP status code of the reply
+     * @param errorCode  Result.ErrorCode of the reply, or null
+     * @param processStatus  Result.ProcessStatus of the reply, or null
+     */
+    public ProcessStateException(int statusCode, String errorCode, String processStatus) {
+        super("This operation is not possible in the current context (HTTP response " + statusCode +
+                ((errorCode == null) ? "" : ", " + errorCode) +
+                ((processStatus == null) ? "" : ", process status " + processStatus) + ").");
+        this.errorCode = errorCode;
+        this.processStatus = processStatus;
+    }
+
+    /**
+     * Get Result.ErrorCode of the reply.
+     * @return  the code, or null if the reply did not contain it
+     */
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Get the status the process has according to the reply.
+     * @return  the status, or null if the reply did not contain it
+     */
+    public String getProcessStatus() {
+        return processStatus;
+    }
+}
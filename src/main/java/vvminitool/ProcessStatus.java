@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+/**
+ * The states of a process as reported by the Volksverschluesselung service,
+ * in the order in which a process passes through them.
+ */
+public enum ProcessStatus {
+    AUTH_PENDING("auth eid"),
+    AUTH_EID_READY("eid"),
+    EMAIL_PENDING("email [address]"),
+    EMAIL_NOT_VALIDATED("validate [code]"),
+    AUTH_COMPLETED("showdata"),
+    CERT_AWAIT_REQUEST("csr [type] [file], then csrdone"),
+    CERT_IN_PROGRESS("wait"),
+    CERT_AVAILABLE("getcert [type] [file], then finalize"),
+    /** a status this tool does not know */
+    UNKNOWN("?");
+
+    private final String nextAction;
+
+    private ProcessStatus(String nextAction) {
+        this.nextAction = nextAction;
+    }
+
+    /**
+     * Get the command which moves a process in this state forward.
+     * @return
+     */
+    public String getNextAction() {
+        return nextAction;
+    }
+
+    /**
+     * Check whether the process waits for the user in this state, so the
+     * status does not change if nobody acts.
+     * @return
+     */
+    public boolean isWaitingForUser() {
+        return compareTo(CERT_IN_PROGRESS) < 0;
+    }
+
+    /**
+     * Look up a status reported by the service.
+     * @param status
+     * @return the matching status, or UNKNOWN
+     */
+    public static ProcessStatus of(String status) {
+        for (ProcessStatus s : values()) {
+            if (s.name().equals(status)) {
+                return s;
+            }
+        }
+        return UNKNOWN;
+    }
+}
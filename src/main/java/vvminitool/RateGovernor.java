@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes requests to another transport without overloading the server. For
+ * every endpoint (method and path):
+ * <ul>
+ * <li>a token bucket limits the request rate;</li>
+ * <li>a concurrency limit caps the requests in flight. It grows by one per
+ *     round-trip while replies are fast and is halved when the latency rises
+ *     well above the lowest latency seen or the server answers 429 or 503
+ *     (additive increase, multiplicative decrease). Near the limit at which
+ *     the server was last overloaded, it grows much more slowly;</li>
+ * <li>after a reply with Retry-After, no request is sent to the endpoint
+ *     until that time has passed;</li>
+ * <li>requests which cannot be sent yet wait in one queue per process; the
+ *     queues take turns, so one busy process cannot starve the others. A
+ *     request whose deadline expires while it waits fails at once.</li>
+ * </ul>
+ * Nothing is retried here; put a ResilientTransport in front of the governor
+ * for that, so retries are governed as well.
+ */
+public final class RateGovernor implements HttpsTransport {
+    public static final double DEFAULT_RATE = 20;
+    public static final int DEFAULT_BURST = 20;
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    /** a reply slower than this multiple of the lowest latency is a sign of congestion */
+    private static final double LATENCY_TOLERANCE = 3;
+    /** jitter below this is never taken as congestion, in nanoseconds */
+    private static final long LATENCY_SLACK = TimeUnit.MILLISECONDS.toNanos(50);
+    /** the lowest latency is measured anew after this many replies, as the path may have changed */
+    private static final int BASELINE_SAMPLES = 256;
+    /** near the limit of the last overload, the limit grows this many times slower */
+    private static final int PROBE_SLOWDOWN = 16;
+    /** pause after 429 or 503 without Retry-After, in milliseconds */
+    private static final long OVERLOAD_PAUSE = 1000;
+    /** Retry-After values above this are not honoured in full, in milliseconds */
+    private static final long MAX_PAUSE = 60000;
+
+    private final HttpsTransport transport;
+    private final ConcurrentMap<String, Gate> gates = new ConcurrentHashMap<>();
+    private volatile double rate = DEFAULT_RATE;
+    private volatile int burst = DEFAULT_BURST;
+    private volatile int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+
+    /**
+     * Create a governor with the default limits.
+     * @param transport  sends the requests
+     */
+    public RateGovernor(final HttpsTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Set the token bucket of every endpoint.
+     * @param rate  requests per second
+     * @param burst  the number of requests which may be sent at once after
+     *               a quiet period
+     */
+    public void setRate(final double rate, final int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid rate");
+        }
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * Set the bounds of the concurrency limit of new endpoints.
+     * @param initialLimit  requests in flight before anything is known
+     * @param maxLimit  the limit never grows beyond this
+     */
+    public void setConcurrencyLimits(final int initialLimit, final int maxLimit) {
+        if (initialLimit < 1 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("invalid concurrency limits");
+        }
+        this.initialLimit = initialLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Get the current concurrency limit of an endpoint.
+     * @param endpoint  method and path, e.g. "GET /process/"
+     * @return  the limit, or 0 if no request has been sent to the endpoint
+     */
+    public int getLimit(final String endpoint) {
+        Gate gate = gates.get(endpoint);
+        return (gate == null) ? 0 : gate.getLimit();
+    }
+
+    /**
+     * Get the number of requests waiting for an endpoint.
+     * @param endpoint  method and path, e.g. "GET /process/"
+     * @return
+     */
+    public int getQueueDepth(final String endpoint) {
+        Gate gate = gates.get(endpoint);
+        return (gate == null) ? 0 : gate.getQueueDepth();
+    }
+
+    /**
+     * Get the number of requests waiting for any endpoint.
+     * @return
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Gate gate : gates.values()) {
+            depth += gate.getQueueDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public String request(final String method, final String url, final MultipartBody body)
+            throws IOException {
+        return AsyncVVService.await(requestAsync(method, url, body));
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        return AsyncVVService.await(openAsync(method, url));
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        return submit(method, url, () -> transport.requestAsync(method, url, body));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        return submit(method, url, () -> transport.openAsync(method, url));
+    }
+
+    private <T> CompletableFuture<T> submit(final String method, final String url,
+            final Supplier<CompletableFuture<T>> request) {
+        URI uri = URI.create(url);
+        Gate gate = gates.computeIfAbsent(method + " " + uri.getPath(), Gate::new);
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            // a request which waits past its deadline is dropped from the queue
+            final Runnable unregister = deadline.onAbort(() -> result.completeExceptionally(deadline.exception()));
+            result.whenComplete((r, ex) -> unregister.run());
+        }
+        gate.enqueue(new Pending(queueOf(uri.getRawQuery()), result, start -> {
+            CompletableFuture<T> reply;
+            try {
+                reply = Deadline.with(deadline, request);
+            } catch (RuntimeException ex) {
+                reply = CompletableFuture.failedFuture(ex);
+            }
+            reply.whenComplete((r, ex) -> {
+                gate.completed(start, (ex == null) ? null : AsyncVVService.unwrap(ex));
+                if (ex == null) {
+                    result.complete(r);
+                } else {
+                    result.completeExceptionally(AsyncVVService.unwrap(ex));
+                }
+            });
+        }));
+        return result;
+    }
+
+    /** the fairness key of a request: its process or eID session, if any */
+    private static String queueOf(final String query) {
+        if (query == null) {
+            return "";
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("process_id=") || parameter.startsWith("eid_session=")) {
+                return parameter;
+            }
+        }
+        return "";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("rate governor:");
+        for (Map.Entry<String, Gate> gate : new TreeMap<>(gates).entrySet()) {
+            s.append("\n  ").append(gate.getKey()).append(": ").append(gate.getValue());
+        }
+        return s.toString();
+    }
+
+    /** a request waiting for its turn */
+    private static final class Pending {
+        final String queue;
+        final CompletableFuture<?> result;
+        final Consumer<Long> send;
+
+        Pending(String queue, CompletableFuture<?> result, Consumer<Long> send) {
+            this.queue = queue;
+            this.result = result;
+            this.send = send;
+        }
+    }
+
+    /** the limits and the queues of one endpoint */
+    private final class Gate {
+        final String name;
+        // all guarded by this
+        private final Map<String, Queue<Pending>> queues = new LinkedHashMap<>();
+        private int queued;
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private double limit = initialLimit;
+        /** the limit at which the server was last overloaded */
+        private double overloadLimit = Double.MAX_VALUE;
+        private int inFlight;
+        private long pausedUntil;
+        private long lastDecrease = System.nanoTime();
+        private long minLatency = Long.MAX_VALUE;
+        private int samples;
+        private boolean wakeUpScheduled;
+
+        Gate(String name) {
+            this.name = name;
+            this.tokens = burst;
+        }
+
+        void enqueue(final Pending pending) {
+            synchronized (this) {
+                queues.computeIfAbsent(pending.queue, k -> new ArrayDeque<>()).add(pending);
+                queued++;
+            }
+            dispatch();
+        }
+
+        /** send as many waiting requests as the limits allow */
+        void dispatch() {
+            List<Pending> ready = new ArrayList<>();
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+                refilled = now;
+                while (queued > 0 && inFlight < (int) limit) {
+                    long wait = pausedUntil - now;
+                    if (wait <= 0 && tokens < 1) {
+                        wait = (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+                    }
+                    if (wait > 0) {
+                        scheduleWakeUp(wait);
+                        break;
+                    }
+                    Pending next = poll();
+                    if (next.result.isDone()) {
+                        // cancelled while waiting
+                        continue;
+                    }
+                    tokens--;
+                    inFlight++;
+                    ready.add(next);
+                }
+            }
+            long start = System.nanoTime();
+            for (Pending pending : ready) {
+                pending.send.accept(start);
+            }
+        }
+
+        /** take the first request of the next queue in turn */
+        private Pending poll() {
+            Iterator<Map.Entry<String, Queue<Pending>>> first = queues.entrySet().iterator();
+            Map.Entry<String, Queue<Pending>> entry = first.next();
+            first.remove();
+            Pending pending = entry.getValue().poll();
+            if (!entry.getValue().isEmpty()) {
+                // back to the end of the line
+                queues.put(entry.getKey(), entry.getValue());
+            }
+            queued--;
+            return pending;
+        }
+
+        private void scheduleWakeUp(final long nanos) {
+            if (wakeUpScheduled) {
+                return;
+            }
+            wakeUpScheduled = true;
+            CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS).execute(() -> {
+                synchronized (this) {
+                    wakeUpScheduled = false;
+                }
+                dispatch();
+            });
+        }
+
+        void completed(final long start, final Throwable ex) {
+            synchronized (this) {
+                inFlight--;
+                long now = System.nanoTime();
+                if (ex instanceof HttpStatusException && ((HttpStatusException) ex).isOverload()) {
+                    long pause = ((HttpStatusException) ex).getRetryAfter();
+                    pause = Math.min((pause < 0) ? OVERLOAD_PAUSE : pause, MAX_PAUSE);
+                    pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(pause));
+                    if (start - lastDecrease >= 0) {
+                        overloadLimit = limit;
+                    }
+                    decrease(start, now);
+                } else if (ex == null) {
+                    long latency = now - start;
+                    if (++samples > BASELINE_SAMPLES) {
+                        samples = 1;
+                        minLatency = latency;
+                    }
+                    minLatency = Math.min(minLatency, latency);
+                    if (latency > LATENCY_TOLERANCE * minLatency && latency - minLatency > LATENCY_SLACK) {
+                        decrease(start, now);
+                    } else if (inFlight + 1 >= (int) limit) {
+                        // only grow while the limit is actually used, and
+                        // carefully where the server was overloaded before
+                        double step = (limit + 1 < overloadLimit) ? 1 / limit : 1 / (limit * PROBE_SLOWDOWN);
+                        limit = Math.min(maxLimit, limit + step);
+                    }
+                }
+            }
+            dispatch();
+        }
+
+        /** halve the limit, once for all requests which were in flight together */
+        private void decrease(final long start, final long now) {
+            if (start - lastDecrease < 0) {
+                return;
+            }
+            limit = Math.max(1, limit / 2);
+            lastDecrease = now;
+            Logger.getLogger(RateGovernor.class.getName()).log(Level.FINE,
+                    "Concurrency limit of {0} lowered to {1}", new Object[] {name, (int) limit});
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized int getQueueDepth() {
+            return queued;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long pause = TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime());
+            return "limit " + (int) limit + ", " + inFlight + " in flight, " + queued + " queued" +
+                    ((pause > 0) ? ", paused for " + pause + " ms" : "");
+        }
+    }
+}
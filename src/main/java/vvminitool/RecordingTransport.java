@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the requests with another transport and writes every request and
+ * its reply, with the time it took, to an ExchangeLog. Process ids, eID
+ * authentication keys and validation codes are replaced by pseudonyms
+ * before they are written (see Redactor); everything else is recorded as
+ * it was sent and received. ReplayTransport serves the log again.
+ * <p>
+ * Wrap the whole transport (e.g. the ResilientTransport), so the log holds
+ * the requests as the service made them and the time including retries.
+ * Streamed replies are recorded when the stream is closed; the rest of the
+ * body is read then. Errors while writing the log are logged, but do not
+ * fail the requests.
+ */
+public final class RecordingTransport implements HttpsTransport {
+    private final HttpsTransport transport;
+    private final ExchangeLog log;
+    private final Redactor redactor;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    /**
+     * @param transport  sends the requests
+     * @param log  receives the exchanges; it is not closed by this transport
+     */
+    public RecordingTransport(final HttpsTransport transport, final ExchangeLog log) {
+        this.transport = transport;
+        this.log = log;
+        this.redactor = new Redactor(log.getSalt());
+    }
+
+    /**
+     * Get the transport which sends the requests.
+     * @return
+     */
+    public HttpsTransport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public String request(final String method, final String url, final MultipartBody body)
+            throws IOException {
+        long time = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            String reply = transport.request(method, url, body);
+            record(ExchangeLog.REQUEST, time, start, method, url, body, reply, null);
+            return reply;
+        } catch (IOException | RuntimeException ex) {
+            record(ExchangeLog.REQUEST, time, start, method, url, body, null, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        long time = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            return new RecordingStream(transport.open(method, url), time, start, method, url);
+        } catch (IOException | RuntimeException ex) {
+            record(ExchangeLog.OPEN, time, start, method, url, null, null, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        final long time = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        return transport.requestAsync(method, url, body).whenComplete((reply, ex) ->
+                record(ExchangeLog.REQUEST, time, start, method, url, body, reply,
+                        (ex == null) ? null : AsyncVVService.unwrap(ex)));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        final long time = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        return transport.openAsync(method, url)
+                .whenComplete((in, ex) -> {
+                    if (ex != null) {
+                        record(ExchangeLog.OPEN, time, start, method, url, null, null, AsyncVVService.unwrap(ex));
+                    }
+                })
+                .thenApply(in -> new RecordingStream(in, time, start, method, url));
+    }
+
+    @Override
+    public String requestRedirect(final String method, final String url) throws IOException {
+        long time = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            String redirectTo = transport.requestRedirect(method, url);
+            record(ExchangeLog.REDIRECT, time, start, method, url, null, redirectTo, null);
+            return redirectTo;
+        } catch (IOException | RuntimeException ex) {
+            record(ExchangeLog.REDIRECT, time, start, method, url, null, null, ex);
+            throw ex;
+        }
+    }
+
+    private void record(final byte kind, final long time, final long start, final String method,
+            final String url, final MultipartBody body, final String reply, final Throwable error) {
+        long duration = System.nanoTime() - start;
+        byte outcome = ExchangeLog.OK;
+        int statusCode = 0;
+        String errorCode = null;
+        String processStatus = null;
+        String text = reply;
+        if (error instanceof ProcessStateException) {
+            outcome = ExchangeLog.CONFLICT;
+            statusCode = 409;
+            errorCode = ((ProcessStateException) error).getErrorCode();
+            processStatus = ((ProcessStateException) error).getProcessStatus();
+            text = error.getMessage();
+        } else if (error instanceof HttpStatusException) {
+            outcome = ExchangeLog.STATUS;
+            statusCode = ((HttpStatusException) error).getStatusCode();
+            errorCode = ((HttpStatusException) error).getErrorCode();
+            processStatus = ((HttpStatusException) error).getProcessStatus();
+            text = error.getMessage();
+        } else if (error != null) {
+            outcome = ExchangeLog.FAILED;
+            text = String.valueOf(error.getMessage());
+        }
+        byte[] data = redactor.redact((text == null) ? "" : text).getBytes(StandardCharsets.UTF_8);
+        try {
+            log.append(new ExchangeLog.Exchange(kind, time, duration, method, redactor.redact(url),
+                    (body == null) ? -1 : body.getContentLength(), outcome, statusCode, errorCode,
+                    processStatus, data));
+            recorded.incrementAndGet();
+        } catch (IOException ex) {
+            if (lost.getAndIncrement() == 0) {
+                Logger.getLogger(RecordingTransport.class.getName()).log(Level.WARNING,
+                        "Cannot record exchanges", ex);
+            }
+        }
+    }
+
+    /** copies the body while it is read and records it on close */
+    private final class RecordingStream extends FilterInputStream {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private final long time;
+        private final long start;
+        private final String method;
+        private final String url;
+        private boolean closed;
+
+        RecordingStream(final InputStream in, final long time, final long start, final String method,
+                final String url) {
+            super(in);
+            this.time = time;
+            this.start = start;
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                copy.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            return Math.max(0, read(new byte[(int) Math.min(n, 8192)]));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                in.transferTo(copy);
+                record(ExchangeLog.OPEN, time, start, method, url, null, copy.toString(StandardCharsets.UTF_8), null);
+            } catch (IOException ex) {
+                record(ExchangeLog.OPEN, time, start, method, url, null, null, ex);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "recording: " + recorded.get() + " exchanges, " + redactor.size() + " secrets redacted" +
+                ((lost.get() == 0) ? "" : ", " + lost.get() + " not recorded");
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Replaces the secrets in URLs and replies by pseudonyms: process ids,
+ * eID authentication keys and e-mail validation codes. A pseudonym is
+ * derived from the secret with an HMAC keyed by the salt of the log, so the
+ * same secret always gets the same pseudonym, also in later recordings
+ * appended to the log, and the requests of one process can still be matched
+ * to each other. Without the salt, a pseudonym does not reveal the secret.
+ */
+final class Redactor {
+    /** a query parameter, or the ProcessId field of a reply */
+    private static final Pattern SECRET = Pattern.compile(
+            "(?<![\\w])((?:process_id|eid_authkey|validation_code|auth_key)=)([^&#\\s\"]*)" +
+            "|(\"ProcessId\"\\s*:\\s*\")([^\"]*)");
+    private static final String PSEUDONYM = "redacted-";
+    /** bytes of the HMAC in a pseudonym */
+    private static final int PSEUDONYM_LENGTH = 8;
+
+    // guarded by this
+    private final Mac mac;
+    private final Map<String, String> pseudonyms = new HashMap<>();
+
+    /**
+     * @param salt  the key of the pseudonyms, see ExchangeLog.getSalt
+     */
+    Redactor(final byte[] salt) {
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        } catch (GeneralSecurityException ex) {
+            // every Java platform supports HmacSHA256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Replace the secrets in a text.
+     * @param text  a URL, a reply or an error message
+     * @return
+     */
+    synchronized String redact(final String text) {
+        Matcher matcher = SECRET.matcher(text);
+        if (!matcher.find()) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        do {
+            boolean parameter = matcher.group(1) != null;
+            String value = matcher.group(parameter ? 2 : 4);
+            if (parameter) {
+                value = decode(value);
+            }
+            String replacement = value.isEmpty() ? "" : pseudonyms.computeIfAbsent(value, this::pseudonym);
+            matcher.appendReplacement(result,
+                    Matcher.quoteReplacement(matcher.group(parameter ? 1 : 3) + replacement));
+        } while (matcher.find());
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private String pseudonym(final String secret) {
+        byte[] hash = mac.doFinal(secret.getBytes(StandardCharsets.UTF_8));
+        return PSEUDONYM + String.format("%016x", new BigInteger(1, Arrays.copyOf(hash, PSEUDONYM_LENGTH)));
+    }
+
+    /**
+     * Get the number of secrets which have been replaced.
+     * @return
+     */
+    synchronized int size() {
+        return pseudonyms.size();
+    }
+
+    /**
+     * Replace the secrets in a URL by a wildcard, so requests can be matched
+     * when they contain a secret which is not known from the log, e.g. a
+     * validation code entered by the user.
+     * @param url
+     * @return
+     */
+    static String template(final String url) {
+        Matcher matcher = SECRET.matcher(url);
+        StringBuilder result = new StringBuilder(url.length());
+        while (matcher.find()) {
+            boolean parameter = matcher.group(1) != null;
+            matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group(parameter ? 1 : 3) + "*"));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /**
+     * Check if a request matches a recorded one, whose URL has the same
+     * template: each secret of the request must be the pseudonym in the
+     * recorded URL, unless it is no pseudonym at all.
+     * @param recorded  a redacted URL
+     * @param url  the URL of a request
+     * @return
+     */
+    static boolean matches(final String recorded, final String url) {
+        Matcher expected = SECRET.matcher(recorded);
+        Matcher actual = SECRET.matcher(url);
+        while (expected.find() && actual.find()) {
+            String value = actual.group((actual.group(1) != null) ? 2 : 4);
+            if (value.startsWith(PSEUDONYM) && !value.equals(expected.group((expected.group(1) != null) ? 2 : 4))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Starts new processes for identities whose certificates expire soon. An
+ * identity is the subject of the certificates, so the certificates of all
+ * types of one process are renewed by one new process. The journal records
+ * which identities have been renewed by which fleet process, so running the
+ * queue again does not start a second process.
+ */
+public final class RenewalQueue {
+    static final String PREFIX = "renewal.";
+    static final String NAME_PREFIX = "renew-";
+
+    private final ProcessFleet fleet;
+    private final ProcessJournal journal;
+
+    /**
+     * @param fleet  the new processes are added to this fleet
+     * @param journal  the journal of the fleet, which records the renewals
+     */
+    public RenewalQueue(final ProcessFleet fleet, final ProcessJournal journal) {
+        this.fleet = fleet;
+        this.journal = journal;
+    }
+
+    /**
+     * Get the identities which need a new process: one certificate of each
+     * identity which has not been renewed yet, soonest expiry first.
+     * @param expiring  e.g. from CertificateInventory.expiringBefore
+     * @return  the certificates by the name of the new process
+     */
+    public Map<String, CertificateInventory.Entry> pending(
+            final Collection<CertificateInventory.Entry> expiring) {
+        Map<String, CertificateInventory.Entry> bySubject = new LinkedHashMap<>();
+        for (CertificateInventory.Entry entry : expiring) {
+            if (entry.isCertificate() && journal.getSetting(PREFIX + entry.getSubjectHash(), null) == null) {
+                bySubject.putIfAbsent(entry.getSubjectHash(), entry);
+            }
+        }
+        Map<String, CertificateInventory.Entry> result = new LinkedHashMap<>();
+        for (CertificateInventory.Entry entry : bySubject.values()) {
+            result.put(uniqueName(entry, result.keySet()), entry);
+        }
+        return result;
+    }
+
+    private String uniqueName(final CertificateInventory.Entry entry, final Collection<String> taken) {
+        String base = NAME_PREFIX + entry.getName();
+        if (base.equals(NAME_PREFIX)) {
+            base += entry.getSubjectHash().substring(0, 12);
+        }
+        base = base.substring(0, Math.min(base.length(), ProcessFleet.MAX_NAME_LENGTH - 4));
+        String name = base;
+        for (int i = 2; taken.contains(name) || fleet.get(name) != null; i++) {
+            name = base + "-" + i;
+        }
+        return name;
+    }
+
+    /**
+     * Start a new process for each identity which needs one and record it.
+     * @param expiring  e.g. from CertificateInventory.expiringBefore
+     * @return  the errors, by process name; identities whose process could
+     *          not be started are tried again next time
+     * @throws InterruptedException
+     * @throws IOException  if the journal cannot be written
+     */
+    public Map<String, Throwable> renew(final Collection<CertificateInventory.Entry> expiring)
+            throws InterruptedException, IOException {
+        Map<String, CertificateInventory.Entry> pending = pending(expiring);
+        Map<String, Throwable> errors = fleet.add(new ArrayList<>(pending.keySet()));
+        for (Map.Entry<String, CertificateInventory.Entry> renewal : pending.entrySet()) {
+            if (fleet.get(renewal.getKey()) != null) {
+                journal.putSetting(PREFIX + renewal.getValue().getSubjectHash(), renewal.getKey());
+            }
+        }
+        journal.flush();
+        return errors;
+    }
+
+    /**
+     * Get the process which renews an identity.
+     * @param subjectHash
+     * @return  the name of the fleet process, or null if it has not been renewed
+     */
+    public String getRenewal(final String subjectHash) {
+        return journal.getSetting(PREFIX + subjectHash, null);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the requests from an ExchangeLog instead of the network, e.g. to
+ * reproduce an enrollment or to measure the costs of the client without
+ * the server. A request gets the reply to the next recorded request with
+ * the same method and URL, so requests which were repeated (status polls)
+ * get their replies in the recorded order. Since the process ids in the log
+ * are pseudonyms, the service sends the pseudonyms it got in the replies.
+ * A request with a secret which is not in the log, e.g. a validation code
+ * entered anew, matches a recorded request with any secret in its place,
+ * as long as its pseudonyms match.
+ * <p>
+ * Recorded errors are thrown again: ProcessStateException, HttpStatusException
+ * or IOException. A request which was not recorded fails with an IOException.
+ */
+public final class ReplayTransport implements HttpsTransport {
+    private final boolean paced;
+    // all guarded by this
+    private final Map<String, Deque<ExchangeLog.Exchange>> byUrl = new HashMap<>();
+    private final Map<String, Deque<ExchangeLog.Exchange>> byTemplate = new HashMap<>();
+    private final Set<ExchangeLog.Exchange> served = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final int recorded;
+    private long missing;
+
+    /**
+     * @param exchanges  e.g. from ExchangeLog.read
+     * @param paced  true to answer each request after the recorded time,
+     *               false to answer as fast as possible
+     */
+    public ReplayTransport(final Collection<ExchangeLog.Exchange> exchanges, final boolean paced) {
+        this.paced = paced;
+        for (ExchangeLog.Exchange exchange : exchanges) {
+            byUrl.computeIfAbsent(key(exchange.kind, exchange.method, exchange.url),
+                    k -> new ArrayDeque<>()).add(exchange);
+            byTemplate.computeIfAbsent(key(exchange.kind, exchange.method, Redactor.template(exchange.url)),
+                    k -> new ArrayDeque<>()).add(exchange);
+        }
+        this.recorded = exchanges.size();
+    }
+
+    private static String key(final byte kind, final String method, final String url) {
+        return kind + " " + method + " " + url;
+    }
+
+    /** take the next recorded exchange for a request */
+    private synchronized ExchangeLog.Exchange take(final byte kind, final String method, final String url) {
+        ExchangeLog.Exchange exchange = poll(byUrl.get(key(kind, method, url)), null);
+        if (exchange == null) {
+            exchange = poll(byTemplate.get(key(kind, method, Redactor.template(url))), url);
+        }
+        if (exchange == null) {
+            missing++;
+        } else {
+            served.add(exchange);
+        }
+        return exchange;
+    }
+
+    /**
+     * Remove the first exchange from a queue which has not been served yet.
+     * @param url  if not null, the exchange must match this URL (see Redactor.matches)
+     */
+    private ExchangeLog.Exchange poll(final Deque<ExchangeLog.Exchange> queue, final String url) {
+        if (queue == null) {
+            return null;
+        }
+        for (Iterator<ExchangeLog.Exchange> it = queue.iterator(); it.hasNext(); ) {
+            ExchangeLog.Exchange exchange = it.next();
+            if (served.contains(exchange)) {
+                it.remove();
+            } else if (url == null || Redactor.matches(exchange.url, url)) {
+                it.remove();
+                return exchange;
+            }
+        }
+        return null;
+    }
+
+    /** the reply of an exchange, or its error */
+    private static String reply(final ExchangeLog.Exchange exchange, final String method, final String url)
+            throws IOException {
+        if (exchange == null) {
+            throw new IOException("No recorded reply for " + method + " " + url);
+        }
+        String body = new String(exchange.body, StandardCharsets.UTF_8);
+        switch (exchange.outcome) {
+            case ExchangeLog.OK:
+                return body;
+            case ExchangeLog.CONFLICT:
+                throw new ProcessStateException(exchange.errorCode, exchange.processStatus);
+            case ExchangeLog.STATUS:
+                throw new HttpStatusException(exchange.statusCode, url, exchange.errorCode, exchange.processStatus);
+            default:
+                throw new IOException(body);
+        }
+    }
+
+    private String replay(final byte kind, final String method, final String url) throws IOException {
+        ExchangeLog.Exchange exchange = take(kind, method, url);
+        if (paced && exchange != null) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(exchange.duration);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", ex);
+            }
+        }
+        return reply(exchange, method, url);
+    }
+
+    private CompletableFuture<String> replayAsync(final byte kind, final String method, final String url) {
+        final ExchangeLog.Exchange exchange = take(kind, method, url);
+        if (!paced || exchange == null) {
+            return complete(exchange, method, url);
+        }
+        return CompletableFuture.supplyAsync(() -> null,
+                CompletableFuture.delayedExecutor(exchange.duration, TimeUnit.NANOSECONDS))
+                .thenCompose(ignored -> complete(exchange, method, url));
+    }
+
+    private static CompletableFuture<String> complete(final ExchangeLog.Exchange exchange, final String method,
+            final String url) {
+        try {
+            return CompletableFuture.completedFuture(reply(exchange, method, url));
+        } catch (IOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    @Override
+    public String request(final String method, final String url, final MultipartBody body)
+            throws IOException {
+        return replay(ExchangeLog.REQUEST, method, url);
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        return stream(replay(ExchangeLog.OPEN, method, url));
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        return replayAsync(ExchangeLog.REQUEST, method, url);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        return replayAsync(ExchangeLog.OPEN, method, url).thenApply(ReplayTransport::stream);
+    }
+
+    @Override
+    public String requestRedirect(final String method, final String url) throws IOException {
+        return replay(ExchangeLog.REDIRECT, method, url);
+    }
+
+    private static InputStream stream(final String reply) {
+        return new ByteArrayInputStream(reply.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get the number of recorded exchanges which have not been served.
+     * @return
+     */
+    public synchronized int getRemaining() {
+        return recorded - served.size();
+    }
+
+    /**
+     * Get the number of requests which were not in the log.
+     * @return
+     */
+    public synchronized long getMissing() {
+        return missing;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "replay: " + served.size() + " of " + recorded + " exchanges served, " +
+                missing + " requests not recorded";
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+
+/**
+ * The parts of a reply of the service which the client uses: the Result
+ * envelope with ErrorCode and ProcessStatus, and the requested string fields
+ * of the Data object. All other fields are skipped while parsing. A reply is
+ * parsed once, and the Reply is passed on to everything which needs a field.
+ */
+public final class Reply {
+    public static final String SUCCESS = "GENERIC_SUCCESS";
+
+    private static final String[] NO_FIELDS = {};
+
+    private final String json;
+    private final String errorCode;
+    private final String processStatus;
+    private final String[] dataFields;
+    private final String[] data;
+    /** why the reply could not be parsed, or null */
+    private final IOException invalid;
+
+    private Reply(String json, String errorCode, String processStatus, String[] dataFields, String[] data,
+            IOException invalid) {
+        this.json = json;
+        this.errorCode = errorCode;
+        this.processStatus = processStatus;
+        this.dataFields = dataFields;
+        this.data = data;
+        this.invalid = invalid;
+    }
+
+    /**
+     * Create a reply of which only the Result envelope is known, e.g. when
+     * the reply has been read as a stream.
+     * @param errorCode  may be null
+     * @param processStatus  may be null
+     * @return
+     */
+    static Reply envelope(final String errorCode, final String processStatus) {
+        return new Reply(null, errorCode, processStatus, NO_FIELDS, NO_FIELDS, null);
+    }
+
+    /**
+     * Parse a reply which need not be a JSON object, e.g. the error page of a
+     * proxy. If it cannot be parsed, all its fields are missing, and
+     * requireData reports why.
+     * @param json  the reply of the server
+     * @param dataFields  the fields of the Data object to read
+     * @return
+     */
+    static Reply parseLenient(final String json, final String... dataFields) {
+        try {
+            return parse(json, dataFields);
+        } catch (IOException ex) {
+            return new Reply(json, null, null, dataFields, new String[dataFields.length], ex);
+        }
+    }
+
+    /**
+     * Parse a reply.
+     * @param json  the reply of the server
+     * @param dataFields  the fields of the Data object to read
+     * @return
+     * @throws IOException  if the reply is not a valid JSON object or a
+     *                      field has an unexpected type
+     */
+    public static Reply parse(final String json, final String... dataFields) throws IOException {
+        ReplyParser parser = new ReplyParser(json);
+        String errorCode = null;
+        String processStatus = null;
+        String[] data = new String[dataFields.length];
+        if (!parser.beginObject()) {
+            throw new IOException("Reply is empty.");
+        }
+        while (parser.nextField()) {
+            if (parser.fieldIs("Result")) {
+                if (parser.beginObject()) {
+                    while (parser.nextField()) {
+                        if (parser.fieldIs("ErrorCode")) {
+                            errorCode = parser.readString();
+                        } else if (parser.fieldIs("ProcessStatus")) {
+                            processStatus = parser.readString();
+                        } else {
+                            parser.skipValue();
+                        }
+                    }
+                }
+            } else if (parser.fieldIs("Data") && dataFields.length > 0) {
+                if (parser.beginObject()) {
+                    while (parser.nextField()) {
+                        int i = indexOf(parser, dataFields);
+                        if (i >= 0) {
+                            data[i] = parser.readString();
+                        } else {
+                            parser.skipValue();
+                        }
+                    }
+                }
+            } else {
+                parser.skipValue();
+            }
+        }
+        return new Reply(json, errorCode, processStatus, dataFields, data, null);
+    }
+
+    /**
+     * Get the process status from the Result envelope of a reply, if the reply
+     * can be parsed.
+     * @param json
+     * @return  the status, or null if the reply does not contain it
+     */
+    static String statusOf(final String json) {
+        try {
+            return parse(json).getProcessStatus();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static int indexOf(final ReplyParser parser, final String[] names) throws IOException {
+        for (int i = 0; i < names.length; i++) {
+            if (parser.fieldIs(names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the whole reply.
+     * @return  the JSON text, or null if only the envelope is known
+     */
+    public String getJson() {
+        return json;
+    }
+
+    /**
+     * Get Result.ErrorCode, e.g. GENERIC_SUCCESS.
+     * @return  the code, or null if the reply does not contain it
+     */
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Get Result.ProcessStatus.
+     * @return  the status, or null if the reply does not contain it
+     */
+    public String getProcessStatus() {
+        return processStatus;
+    }
+
+    /**
+     * Get a field of the Data object.
+     * @param field  one of the fields given to parse
+     * @return  the value, or null if the reply does not contain it
+     */
+    public String getData(final String field) {
+        for (int i = 0; i < dataFields.length; i++) {
+            if (dataFields[i].equals(field)) {
+                return data[i];
+            }
+        }
+        throw new IllegalArgumentException("Field was not parsed: " + field);
+    }
+
+    /**
+     * Get a field of the Data object which the reply must contain.
+     * @param field  one of the fields given to parse
+     * @return
+     * @throws IOException  if the reply does not contain the field
+     */
+    public String requireData(final String field) throws IOException {
+        String value = getData(field);
+        if (value == null && invalid != null) {
+            throw new IOException(invalid.getMessage(), invalid);
+        }
+        if (value == null) {
+            throw new IOException("Reply does not contain Data." + field +
+                    ((errorCode == null) ? "." : " (" + errorCode + ")."));
+        }
+        return value;
+    }
+}
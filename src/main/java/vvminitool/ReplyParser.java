@@ -0,0 +1,243 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+
+/**
+ * A pull parser for the JSON replies of the service. The caller walks
+ * through the objects it is interested in and skips all other values; the
+ * skipped values are only scanned, not converted into objects, and a string
+ * is only created for the values which are read.
+ */
+final class ReplyParser {
+    private final String json;
+    private int pos = 0;
+    private int keyStart;
+    private int keyEnd;
+    private boolean keyEscaped;
+    private boolean first;
+
+    ReplyParser(final String json) {
+        this.json = json;
+    }
+
+    /**
+     * Enter an object.
+     * @return  false if the value is null, which is skipped
+     * @throws IOException  if the value is neither an object nor null
+     */
+    boolean beginObject() throws IOException {
+        char c = peek();
+        if (c == 'n') {
+            skipLiteral("null");
+            return false;
+        }
+        expect('{');
+        first = true;
+        return true;
+    }
+
+    /**
+     * Move to the next field of the current object. Its name can be checked
+     * with fieldIs, then its value must be read or skipped.
+     * @return  false at the end of the object, which is left then
+     * @throws IOException
+     */
+    boolean nextField() throws IOException {
+        char c = peek();
+        if (c == '}') {
+            pos++;
+            // the object was a value of the enclosing container
+            first = false;
+            return false;
+        }
+        if (!first) {
+            expect(',');
+            c = peek();
+        }
+        first = false;
+        if (c != '"') {
+            throw error("Expected a field name");
+        }
+        pos++;
+        keyStart = pos;
+        keyEscaped = skipString();
+        keyEnd = pos - 1;
+        expect(':');
+        return true;
+    }
+
+    /**
+     * Check the name of the current field.
+     * @param name
+     * @return
+     */
+    boolean fieldIs(final String name) throws IOException {
+        if (keyEscaped) {
+            return unescape(keyStart, keyEnd).equals(name);
+        }
+        return keyEnd - keyStart == name.length() && json.regionMatches(keyStart, name, 0, name.length());
+    }
+
+    /**
+     * Read a string value.
+     * @return  the string, or null if the value is null
+     * @throws IOException  if the value is neither a string nor null
+     */
+    String readString() throws IOException {
+        char c = peek();
+        if (c == 'n') {
+            skipLiteral("null");
+            return null;
+        }
+        if (c != '"') {
+            throw error("Expected a string");
+        }
+        pos++;
+        int start = pos;
+        boolean escaped = skipString();
+        return escaped ? unescape(start, pos - 1) : json.substring(start, pos - 1);
+    }
+
+    /**
+     * Skip a value of any type, including nested objects and arrays.
+     * @throws IOException
+     */
+    void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            char c = peek();
+            pos++;
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    skipString();
+                    break;
+                case ',':
+                case ':':
+                    if (depth == 0) {
+                        throw error("Expected a value");
+                    }
+                    break;
+                default:
+                    while (pos < json.length() && "{}[],: \t\r\n\"".indexOf(json.charAt(pos)) < 0) {
+                        pos++;
+                    }
+            }
+            if (depth < 0) {
+                throw error("Unexpected end of container");
+            }
+        } while (depth > 0);
+    }
+
+    /** skip to the character after the closing quote; returns whether the string contains escapes */
+    private boolean skipString() throws IOException {
+        boolean escaped = false;
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return escaped;
+            }
+            if (c == '\\') {
+                escaped = true;
+                pos++;
+            }
+        }
+        throw error("Reply ends within a string");
+    }
+
+    private String unescape(final int start, final int end) throws IOException {
+        StringBuilder s = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                s.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'b': s.append('\b'); break;
+                case 'f': s.append('\f'); break;
+                case 'n': s.append('\n'); break;
+                case 'r': s.append('\r'); break;
+                case 't': s.append('\t'); break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw error("Invalid escape sequence");
+                    }
+                    try {
+                        s.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Invalid escape sequence");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+    private void skipLiteral(final String literal) throws IOException {
+        if (!json.startsWith(literal, pos)) {
+            throw error("Unexpected value");
+        }
+        pos += literal.length();
+    }
+
+    private void expect(final char expected) throws IOException {
+        if (peek() != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+        pos++;
+    }
+
+    /** skip whitespace and return the next character without consuming it */
+    private char peek() throws IOException {
+        skipWhitespace();
+        if (pos >= json.length()) {
+            throw error("Unexpected end of reply");
+        }
+        return json.charAt(pos);
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            pos++;
+        }
+    }
+
+    private IOException error(final String message) {
+        return new IOException(message + " at position " + pos + " of the reply.");
+    }
+}
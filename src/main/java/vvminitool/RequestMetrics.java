@@ -0,0 +1,487 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Latency histograms per endpoint and phase of a request, with the bytes
+ * sent and received and the number of replies per status code. The metrics
+ * of the JVM are collected only after enable() has been called. The
+ * metrics of one command, e.g. in a daemon which runs several commands at
+ * once, are collected by a set of their own which is carried by the
+ * deadline of the command (see Deadline.setMetrics). If neither is there,
+ * the transports skip all measurements. For requests sent under a limited
+ * deadline, the share of its budget which had been used when the request
+ * ended is recorded as well.
+ * <p>
+ * The histograms use fixed buckets, so recording a value needs no lock and
+ * no allocation.
+ */
+public final class RequestMetrics {
+
+    /** the phases of a request; a phase is missing if it did not happen, e.g. on a reused connection */
+    public enum Phase {
+        /** resolving the host name */
+        DNS,
+        /** the TCP connection */
+        CONNECT,
+        /** the TLS handshake */
+        TLS,
+        /** sending the request body */
+        SEND,
+        /** waiting for the status line of the reply */
+        FIRST_BYTE,
+        /** receiving the body of the reply */
+        TRANSFER,
+        /** the whole request */
+        TOTAL;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** upper bounds of the latency buckets in seconds */
+    private static final double[] BUCKETS =
+            {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    /** upper bounds of the buckets for the used share of a deadline */
+    private static final double[] RATIO_BUCKETS = {0.1, 0.25, 0.5, 0.75, 0.9, 1};
+    /** ratios are recorded in millionths */
+    private static final long RATIO_SCALE = 1000000;
+
+    private static volatile RequestMetrics instance;
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentSkipListMap<>();
+
+    /**
+     * Create a set of metrics which is not the one of the JVM.
+     */
+    RequestMetrics() {}
+
+    /**
+     * Start collecting metrics in this JVM.
+     * @return  the metrics; the same instance on every call
+     */
+    public static synchronized RequestMetrics enable() {
+        if (instance == null) {
+            instance = new RequestMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the metrics of this JVM.
+     * @return  null if metrics have not been enabled
+     */
+    public static RequestMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Start measuring a request if metrics are enabled.
+     * @param method
+     * @param url
+     * @return  the measurement, or null if metrics are disabled
+     */
+    static Request startRequest(final String method, final String url) {
+        RequestMetrics metrics = instance;
+        Deadline deadline = Deadline.current();
+        RequestMetrics scoped = (deadline == null) ? null : deadline.getMetrics();
+        if (metrics == null && scoped == null) {
+            return null;
+        }
+        String path = URI.create(url).getPath();
+        if (metrics == null || scoped == null) {
+            return new Request(deadline, ((metrics == null) ? scoped : metrics).endpoint(method, path));
+        }
+        return new Request(deadline, metrics.endpoint(method, path), scoped.endpoint(method, path));
+    }
+
+    private Endpoint endpoint(final String method, final String path) {
+        String key = method + " " + path;
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            endpoint = endpoints.computeIfAbsent(key, k -> new Endpoint(method, path));
+        }
+        return endpoint;
+    }
+
+    /**
+     * The measurement of one request, which is recorded in the metrics of the
+     * JVM and of the command. Phases are measured from the end of the
+     * previous phase; a request is used by one thread at a time.
+     */
+    static final class Request {
+        private final Endpoint[] endpoints;
+        private final Deadline deadline;
+        private final long start = System.nanoTime();
+        private long last = start;
+        private boolean replied = false;
+        private boolean finished = false;
+
+        private Request(final Deadline deadline, final Endpoint... endpoints) {
+            this.deadline = deadline;
+            this.endpoints = endpoints;
+        }
+
+        /**
+         * Resolve a host name and record the time as the DNS phase. The
+         * connection which follows finds the address in the cache of the JVM.
+         * Failures are ignored; the connection reports them.
+         * @param host
+         */
+        void resolve(final String host) {
+            try {
+                InetAddress.getAllByName(host);
+            } catch (IOException ex) {
+                // reported by the connection
+            }
+            mark(Phase.DNS);
+        }
+
+        /**
+         * End a phase.
+         * @param phase  the phase which has just ended; null to skip the time
+         *               since the last phase
+         */
+        void mark(final Phase phase) {
+            long now = System.nanoTime();
+            if (phase != null) {
+                for (Endpoint endpoint : endpoints) {
+                    endpoint.phases[phase.ordinal()].record(now - last);
+                }
+            }
+            last = now;
+        }
+
+        void sent(final long bytes) {
+            for (Endpoint endpoint : endpoints) {
+                endpoint.sent.add(bytes);
+            }
+        }
+
+        void received(final long bytes) {
+            for (Endpoint endpoint : endpoints) {
+                endpoint.received.add(bytes);
+            }
+        }
+
+        /**
+         * Record the status code of the reply.
+         * @param code  the HTTP status code
+         */
+        void status(final int code) {
+            replied = true;
+            for (Endpoint endpoint : endpoints) {
+                endpoint.response(Integer.toString(code)).increment();
+            }
+        }
+
+        /**
+         * Record the total time of the request and the used share of its
+         * deadline; if no status code has been recorded, the request is
+         * counted as failed. Further calls are ignored.
+         */
+        void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            long total = System.nanoTime() - start;
+            for (Endpoint endpoint : endpoints) {
+                if (!replied) {
+                    endpoint.response("error").increment();
+                }
+                endpoint.phases[Phase.TOTAL.ordinal()].record(total);
+                if (deadline != null && deadline.isLimited()) {
+                    endpoint.deadlineUsed.record((long) (deadline.getUsed() * RATIO_SCALE));
+                }
+            }
+        }
+
+        /**
+         * Count the bytes read from the body of the reply. Closing the
+         * stream ends the TRANSFER phase and the request.
+         * @param in
+         * @return
+         */
+        InputStream meter(final InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        received(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        received(n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!finished) {
+                            Request.this.mark(Phase.TRANSFER);
+                            finish();
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+    private static final class Histogram {
+        final double[] buckets;
+        final long scale;
+        private final long[] bounds;
+        final AtomicLongArray counts;
+        final LongAdder sum = new LongAdder();
+
+        /**
+         * @param buckets  the upper bounds of the buckets
+         * @param scale  the recorded values per unit of the bounds, e.g.
+         *               nanoseconds per second
+         */
+        Histogram(final double[] buckets, final long scale) {
+            this.buckets = buckets;
+            this.scale = scale;
+            this.bounds = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                bounds[i] = (long) (buckets[i] * scale);
+            }
+            this.counts = new AtomicLongArray(buckets.length + 1);
+        }
+
+        void record(final long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts.incrementAndGet(i);
+            sum.add(value);
+        }
+
+        /** the upper bound of a bucket as a label */
+        String le(final int i) {
+            return (i < buckets.length) ? Double.toString(buckets[i]) : "+Inf";
+        }
+
+        /** the sum of the values in the unit of the bounds */
+        double total() {
+            return sum.sum() / (double) scale;
+        }
+
+        /** the cumulative counts, as used by Prometheus; the last one is the total */
+        long[] cumulative() {
+            long[] result = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < result.length; i++) {
+                total += counts.get(i);
+                result[i] = total;
+            }
+            return result;
+        }
+    }
+
+    private static final class Endpoint {
+        final String method;
+        final String path;
+        final Histogram[] phases = new Histogram[Phase.values().length];
+        final Histogram deadlineUsed = new Histogram(RATIO_BUCKETS, RATIO_SCALE);
+        final LongAdder sent = new LongAdder();
+        final LongAdder received = new LongAdder();
+        final ConcurrentMap<String, LongAdder> responses = new ConcurrentSkipListMap<>();
+
+        Endpoint(final String method, final String path) {
+            this.method = method;
+            this.path = path;
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram(BUCKETS, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        LongAdder response(final String code) {
+            return responses.computeIfAbsent(code, c -> new LongAdder());
+        }
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format.
+     * @param out
+     * @throws IOException
+     */
+    public void writePrometheus(final Writer out) throws IOException {
+        out.write("# HELP vvminitool_request_phase_seconds Duration of the phases of requests.\n");
+        out.write("# TYPE vvminitool_request_phase_seconds histogram\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            for (Phase phase : Phase.values()) {
+                writeHistogram(out, "vvminitool_request_phase_seconds",
+                        labels(endpoint) + ",phase=\"" + phase.label() + "\"", endpoint.phases[phase.ordinal()]);
+            }
+        }
+        out.write("# HELP vvminitool_request_deadline_used_ratio Share of the deadline used when a request ended.\n");
+        out.write("# TYPE vvminitool_request_deadline_used_ratio histogram\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            writeHistogram(out, "vvminitool_request_deadline_used_ratio", labels(endpoint), endpoint.deadlineUsed);
+        }
+
+        out.write("# HELP vvminitool_request_sent_bytes_total Bytes of request bodies sent.\n");
+        out.write("# TYPE vvminitool_request_sent_bytes_total counter\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            out.write("vvminitool_request_sent_bytes_total{" + labels(endpoint) + "} " + endpoint.sent.sum() + "\n");
+        }
+        out.write("# HELP vvminitool_request_received_bytes_total Bytes of reply bodies received.\n");
+        out.write("# TYPE vvminitool_request_received_bytes_total counter\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            out.write("vvminitool_request_received_bytes_total{" + labels(endpoint) + "} " +
+                    endpoint.received.sum() + "\n");
+        }
+        out.write("# HELP vvminitool_responses_total Replies by status code; code \"error\" counts requests without reply.\n");
+        out.write("# TYPE vvminitool_responses_total counter\n");
+        for (Endpoint endpoint : endpoints.values()) {
+            for (Map.Entry<String, LongAdder> response : endpoint.responses.entrySet()) {
+                out.write("vvminitool_responses_total{" + labels(endpoint) + ",code=\"" +
+                        response.getKey() + "\"} " + response.getValue().sum() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Get a snapshot of the metrics as JSON.
+     * @return
+     */
+    public JSONObject toJSON() {
+        JSONArray list = new JSONArray();
+        for (Endpoint endpoint : endpoints.values()) {
+            JSONObject phases = new JSONObject();
+            for (Phase phase : Phase.values()) {
+                JSONObject histogram = toJSON(endpoint.phases[phase.ordinal()], "sumSeconds");
+                if (histogram != null) {
+                    phases.put(phase.label(), histogram);
+                }
+            }
+            JSONObject responses = new JSONObject();
+            for (Map.Entry<String, LongAdder> response : endpoint.responses.entrySet()) {
+                responses.put(response.getKey(), response.getValue().sum());
+            }
+            list.put(new JSONObject()
+                    .put("method", endpoint.method)
+                    .put("path", endpoint.path)
+                    .put("sentBytes", endpoint.sent.sum())
+                    .put("receivedBytes", endpoint.received.sum())
+                    .put("responses", responses)
+                    .put("phases", phases)
+                    .putOpt("deadlineUsed", toJSON(endpoint.deadlineUsed, "sum")));
+        }
+        return new JSONObject().put("endpoints", list);
+    }
+
+    /**
+     * Save the metrics to a file, as JSON if its name ends with .json and in
+     * the Prometheus text format otherwise. The file is replaced atomically,
+     * so a collector never reads a partial file.
+     * @param file
+     * @throws IOException
+     */
+    public void save(final Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, ".metrics", ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                if (file.getFileName().toString().endsWith(".json")) {
+                    out.write(toJSON().toString(2));
+                    out.write('\n');
+                } else {
+                    writePrometheus(out);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String labels(final Endpoint endpoint) {
+        return "method=\"" + escape(endpoint.method) + "\",path=\"" + escape(endpoint.path) + "\"";
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** write a histogram unless it is empty */
+    private static void writeHistogram(final Writer out, final String name, final String labels,
+            final Histogram histogram) throws IOException {
+        long[] cumulative = histogram.cumulative();
+        if (cumulative[cumulative.length - 1] == 0) {
+            return;
+        }
+        for (int i = 0; i < cumulative.length; i++) {
+            out.write(name + "_bucket{" + labels + ",le=\"" + histogram.le(i) + "\"} " + cumulative[i] + "\n");
+        }
+        out.write(name + "_sum{" + labels + "} " + histogram.total() + "\n");
+        out.write(name + "_count{" + labels + "} " + cumulative[cumulative.length - 1] + "\n");
+    }
+
+    /** @return null if the histogram is empty */
+    private static JSONObject toJSON(final Histogram histogram, final String sumKey) {
+        long[] cumulative = histogram.cumulative();
+        if (cumulative[cumulative.length - 1] == 0) {
+            return null;
+        }
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < cumulative.length; i++) {
+            buckets.put(histogram.le(i), cumulative[i]);
+        }
+        return new JSONObject()
+                .put("count", cumulative[cumulative.length - 1])
+                .put(sumKey, histogram.total())
+                .put("buckets", buckets);
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes all requests to another transport and protects the caller from slow
+ * or failing endpoints:
+ * <ul>
+ * <li>every attempt of a GET request fails after a timeout, so a stalled
+ *     reply cannot block a command forever; under a deadline, the timeout is
+ *     cut to the time which is left. Other requests, e.g. large uploads,
+ *     are not retried and are only bounded by the deadline of the caller;</li>
+ * <li>GET requests, which are idempotent, are sent again with exponential
+ *     backoff after timeouts, I/O errors and transient HTTP errors (5xx, 429),
+ *     but not before the Retry-After time of the reply (if it is at most a
+ *     minute); 409 and other client errors are never retried, and no retry
+ *     is scheduled which would start after the deadline;</li>
+ * <li>if a GET request has not been answered after the 95th percentile of
+ *     the recent latencies of its endpoint, a second request is sent and the
+ *     first reply is used;</li>
+ * <li>an endpoint (method and path) which has failed repeatedly is not asked
+ *     for a while: requests fail at once until the circuit breaker lets a
+ *     single trial request through.</li>
+ * </ul>
+ */
+public final class ResilientTransport implements HttpsTransport {
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BACKOFF = 200;
+    public static final long DEFAULT_HEDGE_DELAY = 1000;
+    public static final long DEFAULT_ATTEMPT_TIMEOUT = 30000;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_TIME = 30000;
+    private static final long MAX_BACKOFF = 10000;
+    /** a request is not retried if the server asks to wait longer */
+    private static final long MAX_RETRY_AFTER = 60000;
+    /** number of latencies kept per endpoint */
+    private static final int LATENCY_SAMPLES = 64;
+    /** the hedge delay is taken from the latencies when this many are known */
+    private static final int MIN_SAMPLES = 16;
+
+    private final HttpsTransport transport;
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long backoff = DEFAULT_BACKOFF;
+    private volatile long hedgeDelay = DEFAULT_HEDGE_DELAY;
+    private volatile long attemptTimeout = DEFAULT_ATTEMPT_TIMEOUT;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openTime = DEFAULT_OPEN_TIME;
+
+    /** thrown while the circuit breaker of an endpoint is open */
+    private static final class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CircuitOpenException(String endpoint) {
+            super("Endpoint " + endpoint + " is failing; not sending requests for a while.");
+        }
+    }
+
+    /**
+     * Create a transport with the default policy.
+     * @param transport  sends the requests
+     */
+    public ResilientTransport(final HttpsTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Get the transport which sends the requests.
+     * @return
+     */
+    public HttpsTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Set how often GET requests are sent before they fail.
+     * @param maxAttempts  1 disables retries
+     * @param backoff  delay before the first retry in milliseconds; it doubles
+     *                 with every further retry
+     */
+    public void setRetries(final int maxAttempts, final long backoff) {
+        if (maxAttempts < 1 || backoff < 0) {
+            throw new IllegalArgumentException("invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoff = backoff;
+    }
+
+    /**
+     * Set the hedge delay which is used until enough latencies of an endpoint
+     * are known to compute their 95th percentile.
+     * @param hedgeDelay  in milliseconds; 0 disables hedged requests
+     */
+    public void setHedgeDelay(final long hedgeDelay) {
+        if (hedgeDelay < 0) {
+            throw new IllegalArgumentException("invalid hedge delay");
+        }
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Set how long to wait for a single attempt of a GET request.
+     * @param attemptTimeout  in milliseconds
+     */
+    public void setAttemptTimeout(final long attemptTimeout) {
+        if (attemptTimeout <= 0) {
+            throw new IllegalArgumentException("invalid timeout");
+        }
+        this.attemptTimeout = attemptTimeout;
+    }
+
+    /**
+     * Set when the circuit breaker of an endpoint opens.
+     * @param failureThreshold  number of consecutive failures
+     * @param openTime  how long no requests are sent, in milliseconds
+     */
+    public void setCircuitBreaker(final int failureThreshold, final long openTime) {
+        if (failureThreshold < 1 || openTime < 0) {
+            throw new IllegalArgumentException("invalid circuit breaker");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    @Override
+    public String request(final String method, final String url, final MultipartBody body)
+            throws IOException {
+        return AsyncVVService.await(requestAsync(method, url, body));
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        return AsyncVVService.await(openAsync(method, url));
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        return execute(method, url, () -> transport.requestAsync(method, url, body), reply -> {});
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        return execute(method, url, () -> transport.openAsync(method, url), ResilientTransport::closeQuietly);
+    }
+
+    /**
+     * Send a request according to the policy.
+     * @param method
+     * @param url
+     * @param request  sends the request once
+     * @param discard  releases a reply which is not used
+     * @return
+     */
+    private <T> CompletableFuture<T> execute(final String method, final String url,
+            final Supplier<CompletableFuture<T>> request, final Consumer<T> discard) {
+        Endpoint endpoint = endpoints.computeIfAbsent(method + " " + URI.create(url).getPath(), Endpoint::new);
+        // retries and hedged requests are sent from timer threads; each attempt
+        // runs with a deadline of its own, derived from this one
+        final Deadline deadline = Deadline.current();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (method.equals("GET")) {
+            retry(endpoint, request, discard, deadline, result, 1);
+        } else {
+            final CompletableFuture<T> attempt = attempt(endpoint, request, discard, deadline, false);
+            attempt.whenComplete((reply, ex) -> complete(result, reply, ex));
+            cancelWith(result, attempt);
+        }
+        return result;
+    }
+
+    /** cancel a request in flight when the future for its result is cancelled */
+    private static void cancelWith(final CompletableFuture<?> result, final CompletableFuture<?> request) {
+        result.whenComplete((reply, ex) -> {
+            if (result.isCancelled()) {
+                request.cancel(false);
+            }
+        });
+    }
+
+    private <T> void retry(final Endpoint endpoint, final Supplier<CompletableFuture<T>> request,
+            final Consumer<T> discard, final Deadline deadline, final CompletableFuture<T> result,
+            final int attempt) {
+        final CompletableFuture<T> hedged = hedged(endpoint, request, discard, deadline);
+        cancelWith(result, hedged);
+        hedged.whenComplete((reply, ex) -> {
+            if (ex == null) {
+                if (!result.complete(reply)) {
+                    discard.accept(reply);
+                }
+                return;
+            }
+            Throwable cause = AsyncVVService.unwrap(ex);
+            long retryAfter = (cause instanceof HttpStatusException) ?
+                    ((HttpStatusException) cause).getRetryAfter() : -1;
+            if (attempt < maxAttempts && isRetryable(cause) && !result.isDone() &&
+                    retryAfter <= MAX_RETRY_AFTER) {
+                long delay = Math.min(backoff << (attempt - 1), MAX_BACKOFF);
+                delay += (long) (delay * 0.2 * ThreadLocalRandom.current().nextDouble());
+                // the server knows best when it can take the request again
+                delay = Math.max(delay, retryAfter);
+                if (deadline != null && delay >= deadline.getRemaining()) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                Logger.getLogger(ResilientTransport.class.getName()).log(Level.FINE,
+                        "Retrying " + endpoint.name + " in " + delay + " ms", cause);
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                        .execute(() -> retry(endpoint, request, discard, deadline, result, attempt + 1));
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * Send a request and, if it is not answered within the hedge delay, a
+     * second one. The first successful reply is used and the other request
+     * is aborted; the request fails if all requests which have been sent
+     * fail. Cancelling the result aborts all requests.
+     */
+    private <T> CompletableFuture<T> hedged(final Endpoint endpoint, final Supplier<CompletableFuture<T>> request,
+            final Consumer<T> discard, final Deadline deadline) {
+        final CompletableFuture<T> winner = new CompletableFuture<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final Runnable send = () -> {
+            CompletableFuture<T> attempt = attempt(endpoint, request, discard, deadline, true);
+            attempt.whenComplete((reply, ex) -> {
+                if (ex == null) {
+                    if (!winner.complete(reply)) {
+                        discard.accept(reply);
+                    }
+                } else if (pending.decrementAndGet() == 0) {
+                    winner.completeExceptionally(ex);
+                }
+            });
+            // the attempt which has lost, or all of them if the request is cancelled
+            winner.whenComplete((reply, ex) -> attempt.cancel(false));
+        };
+        send.run();
+
+        long delay = endpoint.hedgeDelay();
+        if (delay > 0 && !winner.isDone()) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+                if (!winner.isDone() && endpoint.isClosed()) {
+                    pending.incrementAndGet();
+                    send.run();
+                }
+            });
+        }
+        return winner;
+    }
+
+    /**
+     * Send a request once, guarded by the circuit breaker and, if it is timed,
+     * the attempt timeout. The request runs with a deadline of its own, so
+     * the transport aborts it when the time is up or the returned future is
+     * cancelled; the deadline is released when the attempt has completed,
+     * i.e. the body of a streamed reply is read under the deadline of the
+     * caller only (see DeadlineTransport).
+     * An attempt which is not timed and has no deadline of the caller runs
+     * without one and cannot be aborted.
+     */
+    private <T> CompletableFuture<T> attempt(final Endpoint endpoint, final Supplier<CompletableFuture<T>> request,
+            final Consumer<T> discard, final Deadline deadline, final boolean timed) {
+        final long timeout;
+        try {
+            timeout = Deadline.timeout(deadline, timed ? attemptTimeout : Long.MAX_VALUE);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        if (!endpoint.allowRequest()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException(endpoint.name));
+        }
+        final Deadline limit;
+        if (timed) {
+            limit = (deadline == null) ? Deadline.after(timeout) : deadline.limit(timeout);
+        } else {
+            limit = (deadline == null) ? null : deadline.limit(timeout);
+        }
+        final long start = System.nanoTime();
+        final CompletableFuture<T> attempt = new CompletableFuture<>();
+        Deadline.onAbort(limit, () -> {
+            // the time of the caller is up, not the fault of the endpoint
+            boolean caller = !timed || (deadline != null &&
+                    (timeout < attemptTimeout || deadline.exception() != null));
+            if (attempt.completeExceptionally(timedOut(endpoint, deadline, timeout, caller))) {
+                if (caller) {
+                    endpoint.cancelled();
+                } else {
+                    endpoint.failed();
+                }
+            }
+        });
+        attempt.whenComplete((reply, ex) -> {
+            if (attempt.isCancelled()) {
+                endpoint.cancelled();
+            }
+            if (limit == null) {
+                return;
+            }
+            if (attempt.isCancelled()) {
+                // aborts the request in the transport
+                limit.cancel();
+            } else {
+                // stops the timer, which would otherwise run for the whole timeout
+                limit.release();
+            }
+        });
+        Deadline.with(limit, request).whenComplete((reply, ex) -> {
+            if (ex == null) {
+                if (attempt.complete(reply)) {
+                    endpoint.succeeded(System.nanoTime() - start);
+                } else {
+                    // the attempt has timed out or has been cancelled
+                    discard.accept(reply);
+                }
+            } else {
+                Throwable cause = AsyncVVService.unwrap(ex);
+                if (!attempt.completeExceptionally(cause)) {
+                    return;
+                }
+                if (deadline != null && deadline.exception() != null) {
+                    // aborted by the caller, not the fault of the endpoint
+                    endpoint.cancelled();
+                } else if (isRetryable(cause)) {
+                    endpoint.failed();
+                } else {
+                    endpoint.responded();
+                }
+            }
+        });
+        return attempt;
+    }
+
+    /** get the exception for an attempt which has run out of time */
+    private static IOException timedOut(final Endpoint endpoint, final Deadline deadline, final long timeout,
+            final boolean caller) {
+        if (caller) {
+            IOException cause = deadline.exception();
+            return (cause != null) ? cause :
+                    new HttpTimeoutException("Deadline of " + deadline.getBudget() + " ms exceeded.");
+        }
+        return new HttpTimeoutException("No reply from " + endpoint.name + " within " + timeout + " ms");
+    }
+
+    private static boolean isRetryable(final Throwable ex) {
+        if (ex instanceof HttpStatusException) {
+            return ((HttpStatusException) ex).isTransient();
+        }
+        return ex instanceof IOException && !(ex instanceof CircuitOpenException);
+    }
+
+    private static <T> void complete(final CompletableFuture<T> result, final T reply, final Throwable ex) {
+        if (ex == null) {
+            result.complete(reply);
+        } else {
+            result.completeExceptionally(AsyncVVService.unwrap(ex));
+        }
+    }
+
+    private static void closeQuietly(final InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ex) {
+            // the reply is not used anyway
+        }
+    }
+
+    /** the latencies and the circuit breaker of one endpoint */
+    private final class Endpoint {
+        final String name;
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private int samples;
+        private int next;
+        private int failures;
+        private long openUntil;
+        private boolean trial;
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        /** check the circuit breaker; when it is open, one trial request is let through after the open time */
+        synchronized boolean allowRequest() {
+            if (failures < failureThreshold) {
+                return true;
+            }
+            if (trial || System.nanoTime() - openUntil < 0) {
+                return false;
+            }
+            trial = true;
+            return true;
+        }
+
+        synchronized boolean isClosed() {
+            return failures < failureThreshold;
+        }
+
+        synchronized void succeeded(long nanos) {
+            responded();
+            latencies[next] = nanos;
+            next = (next + 1) % LATENCY_SAMPLES;
+            samples = Math.min(samples + 1, LATENCY_SAMPLES);
+        }
+
+        /** the endpoint has answered, though not necessarily with success */
+        synchronized void responded() {
+            failures = 0;
+            trial = false;
+        }
+
+        /** the request has been given up; a trial request may be sent again */
+        synchronized void cancelled() {
+            trial = false;
+        }
+
+        synchronized void failed() {
+            failures++;
+            trial = false;
+            if (failures >= failureThreshold) {
+                openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openTime);
+            }
+        }
+
+        /** @return the delay before a hedged request in nanoseconds, 0 if hedging is disabled */
+        synchronized long hedgeDelay() {
+            long configured = TimeUnit.MILLISECONDS.toNanos(hedgeDelay);
+            if (configured == 0 || samples < MIN_SAMPLES) {
+                return configured;
+            }
+            long[] sorted = Arrays.copyOf(latencies, samples);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(0.95 * samples) - 1];
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps replies which never change, e.g. issued certificates, in a directory.
+ * The data is stored content-addressed in objects/[sha256 of data]; a small
+ * file in refs/[sha256 of key] names the object of each key, so identical
+ * replies are stored once. Files are written to a temporary name and moved
+ * into place, so other processes never see a partial entry. When the objects
+ * exceed the maximum size, the least recently used keys are evicted; the
+ * order survives restarts through the modification time of the refs.
+ */
+public final class ResponseCache {
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    private final Path objects;
+    private final Path refs;
+    private final long maxSize;
+    /** key hash to object hash, in access order */
+    private final LinkedHashMap<String, String> index = new LinkedHashMap<>(16, 0.75f, true);
+    /** object hash to size */
+    private final Map<String, Long> objectSizes = new HashMap<>();
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * Open a cache in the default directory, ~/.vvminitool-cache.
+     * @throws IOException
+     */
+    public ResponseCache() throws IOException {
+        this(Paths.get(System.getProperty("user.home"), ".vvminitool-cache"), DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Open a cache.
+     * @param dir  created if it does not exist, readable only by the owner
+     * @param maxSize  the maximum number of bytes of all objects
+     * @throws IOException
+     */
+    public ResponseCache(final Path dir, final long maxSize) throws IOException {
+        if (!Files.exists(dir) && FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------")));
+        }
+        this.objects = Files.createDirectories(dir.resolve("objects"));
+        this.refs = Files.createDirectories(dir.resolve("refs"));
+        this.maxSize = maxSize;
+
+        List<Path> refFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(refs, "[0-9a-f]*")) {
+            for (Path ref : stream) {
+                refFiles.add(ref);
+            }
+        }
+        Map<Path, FileTime> times = new HashMap<>();
+        for (Path ref : refFiles) {
+            times.put(ref, Files.getLastModifiedTime(ref));
+        }
+        refFiles.sort(Comparator.comparing(times::get));
+        for (Path ref : refFiles) {
+            String object = new String(Files.readAllBytes(ref), StandardCharsets.US_ASCII).trim();
+            Path objectFile = objects.resolve(object);
+            if (!Files.exists(objectFile)) {
+                Files.deleteIfExists(ref);
+                continue;
+            }
+            index.put(ref.getFileName().toString(), object);
+            if (!objectSizes.containsKey(object)) {
+                long objectSize = Files.size(objectFile);
+                objectSizes.put(object, objectSize);
+                size += objectSize;
+            }
+        }
+    }
+
+    /**
+     * Get the data stored for a key.
+     * @param key
+     * @return  the data, or null if the key is not in the cache
+     */
+    public synchronized byte[] get(final String key) {
+        String keyHash = sha256(key.getBytes(StandardCharsets.UTF_8));
+        String object = index.get(keyHash);
+        if (object != null) {
+            try {
+                byte[] data = Files.readAllBytes(objects.resolve(object));
+                if (sha256(data).equals(object)) {
+                    Files.setLastModifiedTime(refs.resolve(keyHash), FileTime.fromMillis(System.currentTimeMillis()));
+                    hits++;
+                    return data;
+                }
+                Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING,
+                        "Dropping corrupt cache object {0}", object);
+                evict(keyHash);
+            } catch (NoSuchFileException ex) {
+                // removed by another process
+                evict(keyHash);
+            } catch (IOException ex) {
+                Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING, "Cannot read cache", ex);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Store data for a key and evict old entries if the cache has become too
+     * large. Errors are logged, as the cache is only an optimization.
+     * @param key
+     * @param data  must never change for this key
+     */
+    public synchronized void put(final String key, final byte[] data) {
+        String keyHash = sha256(key.getBytes(StandardCharsets.UTF_8));
+        String object = sha256(data);
+        try {
+            if (!objectSizes.containsKey(object)) {
+                writeAtomically(objects.resolve(object), data);
+                objectSizes.put(object, (long) data.length);
+                size += data.length;
+            }
+            writeAtomically(refs.resolve(keyHash), object.getBytes(StandardCharsets.US_ASCII));
+            String previous = index.put(keyHash, object);
+            if (previous != null && !previous.equals(object)) {
+                deleteIfUnused(previous);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING, "Cannot write cache", ex);
+            return;
+        }
+
+        // index.get() would reorder the map, so the values are read from the entries
+        Iterator<Map.Entry<String, String>> eldest = index.entrySet().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            Map.Entry<String, String> victim = eldest.next();
+            if (victim.getKey().equals(keyHash)) {
+                break;
+            }
+            eldest.remove();
+            try {
+                Files.deleteIfExists(refs.resolve(victim.getKey()));
+                deleteIfUnused(victim.getValue());
+            } catch (IOException ex) {
+                Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING, "Cannot evict cache entry", ex);
+            }
+        }
+    }
+
+    /**
+     * Get the number of requests answered from the cache.
+     * @return
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of requests which were not in the cache.
+     * @return
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of bytes of all objects.
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = hits + misses;
+        return "response cache: " + hits + " hits, " + misses + " misses" +
+                ((requests == 0) ? "" : String.format(" (%.0f%% hit ratio)", 100.0 * hits / requests)) +
+                ", " + index.size() + " entries, " + size + " bytes";
+    }
+
+    private void evict(final String keyHash) {
+        String object = index.remove(keyHash);
+        try {
+            Files.deleteIfExists(refs.resolve(keyHash));
+            if (object != null) {
+                deleteIfUnused(object);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ResponseCache.class.getName()).log(Level.WARNING, "Cannot evict cache entry", ex);
+        }
+    }
+
+    private void deleteIfUnused(final String object) throws IOException {
+        if (!index.containsValue(object)) {
+            Long objectSize = objectSizes.remove(object);
+            if (objectSize != null) {
+                size -= objectSize;
+            }
+            Files.deleteIfExists(objects.resolve(object));
+        }
+    }
+
+    private static void writeAtomically(final Path file, final byte[] data) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), ".tmp-", null);
+        try {
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String sha256(final byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+            return String.format("%064x", new java.math.BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Remembers the last status reported for each process for a limited time.
+ * The cache is filled from the Result envelope of every reply, so a status
+ * request right after another operation needs no extra round-trip. Concurrent
+ * status requests for the same process and with the same deadline share one
+ * request to the server.
+ * <p>
+ * Every request gets a ticket from a sequence when it is sent, and a status
+ * is only recorded if no request sent later has recorded one already: a
+ * status request which is overtaken by a change of the process cannot bring
+ * back the old status. A change also keeps later status requests from
+ * sharing a request which was sent before it.
+ */
+public final class StatusCache {
+    public static final long DEFAULT_TTL = 2000;
+
+    private final long ttlNanos;
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /** the last status of a process, null while it is unknown */
+    private static final class Entry {
+        final String status;
+        final long time;
+        final long ticket;
+
+        Entry(String status, long time, long ticket) {
+            this.status = status;
+            this.time = time;
+            this.ticket = ticket;
+        }
+    }
+
+    /** a status request which callers with the same deadline can share */
+    private static final class Key {
+        final String processId;
+        final Deadline deadline;
+
+        Key(String processId, Deadline deadline) {
+            this.processId = processId;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return processId.equals(other.processId) && deadline == other.deadline;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * processId.hashCode() + System.identityHashCode(deadline);
+        }
+    }
+
+    private static final class InFlight {
+        final long ticket;
+        final CompletableFuture<String> status = new CompletableFuture<>();
+
+        InFlight(long ticket) {
+            this.ticket = ticket;
+        }
+    }
+
+    /**
+     * Create a cache.
+     * @param ttl  how long a status is used, in milliseconds; 0 disables the cache
+     */
+    StatusCache(long ttl) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Get the status of a process from the cache or, if it is not known or too
+     * old, from the server. If a request for the process with the same
+     * deadline is already running and was sent after the last change of the
+     * process, its result is used; so a cancelled or expired deadline only
+     * fails the callers which share it.
+     * @param processId
+     * @param deadline  the deadline of the request, may be null
+     * @param request  sends a status request to the server with a ticket,
+     *                 see put
+     * @return
+     */
+    CompletableFuture<String> get(final String processId, final Deadline deadline,
+            final LongFunction<CompletableFuture<String>> request) {
+        Entry entry = entries.get(processId);
+        if (entry != null && entry.status != null && System.nanoTime() - entry.time < ttlNanos) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(entry.status);
+        }
+
+        final long changed = (entry == null) ? 0 : entry.ticket;
+        final Key key = new Key(processId, deadline);
+        final InFlight created = new InFlight(sequence.incrementAndGet());
+        InFlight running = inFlight.merge(key, created, (old, fresh) -> (old.ticket > changed) ? old : fresh);
+        if (running != created) {
+            coalesced.incrementAndGet();
+            return running.status.copy();
+        }
+        misses.incrementAndGet();
+        CompletableFuture<String> reply;
+        try {
+            reply = request.apply(created.ticket);
+        } catch (RuntimeException ex) {
+            reply = CompletableFuture.failedFuture(ex);
+        }
+        reply.whenComplete((status, ex) -> {
+            inFlight.remove(key, created);
+            if (ex != null) {
+                created.status.completeExceptionally(AsyncVVService.unwrap(ex));
+            } else {
+                created.status.complete(status);
+            }
+        });
+        return created.status.copy();
+    }
+
+    /**
+     * Get a ticket for a request which does not change the process.
+     * @return
+     */
+    long ticket() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Get a ticket for a request which may change the process, e.g. a POST.
+     * The cached status is dropped, and status requests which are running
+     * are no longer shared.
+     * @param processId
+     * @return
+     */
+    long change(final String processId) {
+        long ticket = sequence.incrementAndGet();
+        put(processId, null, ticket);
+        return ticket;
+    }
+
+    /**
+     * Record a status received from the server, unless the reply to a
+     * request sent later has been recorded already.
+     * @param processId
+     * @param status  the status, or null if a reply did not contain it; as the
+     *                status may have changed, the cached status is dropped then
+     * @param ticket  the ticket of the request, see ticket and change
+     */
+    void put(final String processId, final String status, final long ticket) {
+        final long now = System.nanoTime();
+        entries.compute(processId, (id, entry) -> (entry != null && entry.ticket > ticket) ? entry :
+                new Entry((ttlNanos == 0) ? null : status, now, ticket));
+    }
+
+    /**
+     * Get the number of status requests answered from the cache.
+     * @return
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of status requests which were sent to the server.
+     * @return
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of status requests which shared a request already in flight.
+     * @return
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public String toString() {
+        return "status cache: " + getHits() + " hits, " + getMisses() + " misses, " +
+                getCoalesced() + " coalesced";
+    }
+}
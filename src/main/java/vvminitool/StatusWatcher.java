@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the status of many processes on one shared scheduler thread. The
+ * polling interval of each process starts at a minimum delay and grows while
+ * the status does not change, up to a maximum delay; it is reset when the
+ * status changes. A random jitter keeps the requests for many processes from
+ * being sent at the same moment.
+ * <p>
+ * A watch fails instead of polling on when waiting cannot help: when a
+ * request fails permanently, e.g. because the process does not exist, when
+ * the process waits for the user, or when the deadline of the service has
+ * expired or has been cancelled.
+ */
+public class StatusWatcher implements AutoCloseable {
+    public static final long DEFAULT_MIN_DELAY = 5000;
+    public static final long DEFAULT_MAX_DELAY = 300000;
+    private static final double BACKOFF = 1.5;
+    private static final double JITTER = 0.2;
+
+    private final AsyncVVService service;
+    private final long minDelay;
+    private final long maxDelay;
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(DaemonThreads.factory("vvminitool-watch"));
+
+    /**
+     * Receives the status changes of a watched process. The methods are called
+     * from the threads which complete the requests and must not block.
+     */
+    public interface Listener {
+        /**
+         * Called when the status of a process has changed. The first status
+         * received is reported with oldStatus null.
+         * @param processId
+         * @param oldStatus
+         * @param newStatus
+         */
+        void statusChanged(String processId, String oldStatus, String newStatus);
+
+        /**
+         * Called when a status request has failed temporarily; the process is
+         * still watched.
+         * @param processId
+         * @param ex
+         */
+        default void requestFailed(String processId, Throwable ex) {
+        }
+    }
+
+    /**
+     * Create a watcher with the default delays.
+     * @param service
+     */
+    public StatusWatcher(AsyncVVService service) {
+        this(service, DEFAULT_MIN_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Create a watcher.
+     * @param service
+     * @param minDelay  delay after a status change, in milliseconds
+     * @param maxDelay  longest delay between two requests, in milliseconds
+     */
+    public StatusWatcher(AsyncVVService service, long minDelay, long maxDelay) {
+        if (minDelay <= 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException("invalid polling delays");
+        }
+        this.service = service;
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Watch a process until it reaches one of the given states. The first
+     * request is sent immediately.
+     * @param processId
+     * @param listener  receives all status changes; may be null
+     * @param untilStatus  stop watching when one of these is reached
+     * @return  a future which completes with the final status, or fails if a
+     *          request fails permanently, the process waits for the user
+     *          in a status before CERT_IN_PROGRESS or the deadline of the
+     *          service ends; cancel it to stop watching
+     */
+    public CompletableFuture<String> watch(final String processId, final Listener listener,
+            final String... untilStatus) {
+        Watch watch = new Watch(processId, listener, new HashSet<>(Arrays.asList(untilStatus)));
+        final Deadline deadline = service.getDeadline();
+        if (deadline != null) {
+            Runnable unregister = deadline.onAbort(() -> watch.result.completeExceptionally(deadline.exception()));
+            watch.result.whenComplete((status, ex) -> unregister.run());
+        }
+        scheduler.execute(watch::poll);
+        return watch.result;
+    }
+
+    /**
+     * Watch a process until its certificates are available, then download
+     * the certificates of all types into a directory as cert_[type].der.
+     * @param processId
+     * @param listener  receives all status changes; may be null
+     * @param certDir  the directory for the certificates
+     * @return  a future which completes when all certificates have been saved
+     */
+    public CompletableFuture<Void> watchAndDownload(final String processId, final Listener listener,
+            final Path certDir) {
+        return watch(processId, listener, ProcessStatus.CERT_AVAILABLE.name())
+                .thenCompose(status -> service.downloadCerts(processId,
+                        new LinkedHashSet<>(VVService.CERT_TYPES), certDir));
+    }
+
+    /**
+     * Stop all watches. Their futures do not complete.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /** a request which fails like this fails again when it is repeated */
+    private static boolean isPermanent(final Throwable ex) {
+        if (ex instanceof HttpStatusException) {
+            return !((HttpStatusException) ex).isTransient();
+        }
+        return ex instanceof ProcessStateException;
+    }
+
+    private final class Watch {
+        final String processId;
+        final Listener listener;
+        final Set<String> untilStatus;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        String status;
+        long delay = minDelay;
+
+        Watch(String processId, Listener listener, Set<String> untilStatus) {
+            this.processId = processId;
+            this.listener = listener;
+            this.untilStatus = untilStatus;
+        }
+
+        void poll() {
+            if (result.isDone()) {
+                return;
+            }
+            service.processStatus(processId).whenComplete((newStatus, ex) -> {
+                if (ex != null) {
+                    Throwable cause = AsyncVVService.unwrap(ex);
+                    Deadline deadline = service.getDeadline();
+                    if (deadline != null && deadline.exception() != null) {
+                        result.completeExceptionally(deadline.exception());
+                        return;
+                    }
+                    if (isPermanent(cause)) {
+                        result.completeExceptionally(cause);
+                        return;
+                    }
+                    if (listener != null) {
+                        listener.requestFailed(processId, cause);
+                    }
+                    delay = Math.min((long) (delay * BACKOFF), maxDelay);
+                } else if (!newStatus.equals(status)) {
+                    String oldStatus = status;
+                    status = newStatus;
+                    delay = minDelay;
+                    if (listener != null) {
+                        listener.statusChanged(processId, oldStatus, newStatus);
+                    }
+                } else {
+                    delay = Math.min((long) (delay * BACKOFF), maxDelay);
+                }
+
+                if (status != null && untilStatus.contains(status)) {
+                    result.complete(status);
+                } else if (status != null && ProcessStatus.of(status).isWaitingForUser()) {
+                    result.completeExceptionally(new IllegalStateException("Process is in status " + status +
+                            " and waits for: " + ProcessStatus.of(status).getNextAction()));
+                } else if (!scheduler.isShutdown()) {
+                    double jitter = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+                    scheduler.schedule(this::poll, (long) (delay * jitter), TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Separates the TCP connection from the TLS handshake for RequestMetrics.
+ * The factory does not create unconnected sockets, so HttpsURLConnection
+ * connects a plain socket first and then layers TLS on it through this
+ * factory; that call marks the end of the CONNECT phase. The request being
+ * measured is passed through a thread-local, because the factory has to be
+ * shared: HttpsURLConnection only reuses connections with the same factory.
+ */
+final class TimingSocketFactory extends SSLSocketFactory {
+    private static final ThreadLocal<RequestMetrics.Request> CURRENT = new ThreadLocal<>();
+
+    private final SSLSocketFactory factory;
+
+    TimingSocketFactory(final SSLSocketFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Start measuring the connection opened by the current thread.
+     * @param request
+     */
+    static void beginConnect(final RequestMetrics.Request request) {
+        CURRENT.set(request);
+    }
+
+    /**
+     * Stop measuring the connection of the current thread.
+     * @return  true if a new connection has been opened since beginConnect
+     */
+    static boolean endConnect() {
+        boolean opened = CURRENT.get() == null;
+        CURRENT.remove();
+        return opened;
+    }
+
+    @Override
+    public Socket createSocket(final Socket s, final String host, final int port, final boolean autoClose)
+            throws IOException {
+        RequestMetrics.Request request = CURRENT.get();
+        if (request != null) {
+            request.mark(RequestMetrics.Phase.CONNECT);
+            CURRENT.remove();
+        }
+        return factory.createSocket(s, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+        return factory.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost,
+            final int localPort) throws IOException {
+        return factory.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException {
+        return factory.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress,
+            final int localPort) throws IOException {
+        return factory.createSocket(address, port, localAddress, localPort);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return factory.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return factory.getSupportedCipherSuites();
+    }
+}
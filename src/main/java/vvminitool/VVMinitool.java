@@ -18,55 +18,984 @@
  */
 package vvminitool;
 
+import java.io.Console;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.prefs.Preferences;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Simple command-line interface to the VVService class.
  */
 public class VVMinitool {
+
+    /** the options which take a number, with the smallest and the largest valid value */
+    private static final Map<String, long[]> NUMBER_OPTIONS = Map.of(
+            "parallel", new long[] {1, 1000},
+            "poll", new long[] {1, 24 * 60 * 60},
+            "bits", new long[] {2048, 16384},
+            "lookahead", new long[] {1, 100},
+            "timeout", new long[] {1, 7 * 24 * 60 * 60});
+
+    /** the largest number of days for certs list and certs renew */
+    private static final long MAX_DAYS = 100 * 366;
+
+    private static ProcessJournal sharedJournal;
     
-    private static void printUsage() {
-        System.out.println("Usage: java -jar vvminitool.jar [command], " +
+    private static void printUsage(PrintStream out) {
+        out.println("Usage: java -jar vvminitool.jar [command], " +
                 "where  [command] is one of these:");
-        System.out.println("  init               initialize a new process and show hash value");
-        System.out.println("  status             show process status and hash value");
-        System.out.println("  auth eid           select eid authentication method");
-        System.out.println("  eid                perform eid authentication process");
-        System.out.println("  email [address]    set e-mail address");
-        System.out.println("  validate [code]    submit e-mail validation code");
-        System.out.println("  showdata           show personal data");
-        System.out.println("  csr [type] [file]  upload a certificate signing request");
-        System.out.println("                     type is either 'sign', 'auth', or 'encr'");
-        System.out.println("  csrdone            tell server all CSRs have been uploaded");
-        System.out.println("  getcert [type] [file]  download the signed certificate and save it to file");
-        System.out.println("                     type is either 'sign', 'auth', or 'encr'");
-        System.out.println("  finalize           end the current process");        
+        out.println("  init               initialize a new process and show hash value");
+        out.println("  status             show process status and hash value");
+        out.println("  auth eid           select eid authentication method");
+        out.println("  eid                perform eid authentication process");
+        out.println("  email [address]    set e-mail address");
+        out.println("  validate [code]    submit e-mail validation code");
+        out.println("  showdata           show personal data");
+        out.println("  csr [type] [file]  upload a certificate signing request");
+        out.println("                     type is either 'sign', 'auth', or 'encr'");
+        out.println("  csr all [dir]      upload dir/csr_[type].der of all types at the same time");
+        out.println("  keygen [dir]       generate key pairs and CSRs for all types with the process hash");
+        out.println("                     as CN: dir/key_[type].pem and dir/csr_[type].der");
+        out.println("  csrdone            tell server all CSRs have been uploaded");
+        out.println("  getcert [type] [file]  download the signed certificate and save it to file");
+        out.println("                     type is either 'sign', 'auth', or 'encr'");
+        out.println("  getcert all [dir]  download the certificates of all types at the same time");
+        out.println("                     and save them to dir/cert_[type].der");
+        out.println("  assemble [dir]     download the certificates and combine them with dir/key_[type].pem");
+        out.println("                     into password-protected dir/key_cert_[type].p12 keystores");
+        out.println("  finalize           end the current process");        
+        out.println("  enroll [dir]       perform all steps up to the certificates in dir/cert_[type].der,");
+        out.println("                     creating missing keys and CSRs; run again to continue after an");
+        out.println("                     interruption or when asked for --email or --code");
+        out.println("  daemon             keep running and execute the commands of other invocations;");
+        out.println("                     this saves JVM startup and TLS handshakes");
+        out.println("  daemon stop        stop a running daemon");
+        out.println("  watch [dir]        wait until the certificates are available;");
+        out.println("                     if dir is given, download them to dir/cert_[type].der");
+        out.println();
+        out.println("Fleet commands drive many named processes at once:");
+        out.println("  fleet add [name]...      initialize a new process for each name");
+        out.println("  fleet list [status]      list processes, optionally only those with this status");
+        out.println("  fleet refresh [status]   update the status of all (matching) processes");
+        out.println("  fleet advance [status]   perform the next step where no input is needed");
+        out.println("  fleet finalize [status]  end all (matching) processes");
+        out.println("  fleet remove [name]      forget a process without ending it");
+        out.println("  fleet keygen [dir]       generate key pairs and CSRs in dir/[name] for all processes");
+        out.println("  fleet use [name]         make a process the current one for the commands above");
+        out.println("  fleet email [name] [address]");
+        out.println("                           submit the e-mail address of a process");
+        out.println("  fleet mail [mailbox]     watch a maildir or mbox file and submit the validation codes");
+        out.println("                           of all processes waiting for one, matched by address");
+        out.println("  fleet eid                authenticate all processes in status AUTH_EID_READY one after");
+        out.println("                           another with the eID card, preparing the next sessions meanwhile");
+        out.println("  fleet watch [dir]        wait until the certificates of all processes in CERT_IN_PROGRESS");
+        out.println("                           or later are available;");
+        out.println("                           if dir is given, download them to dir/[name]/cert_[type].der");
+        out.println();
+        out.println("Certificate commands keep an index of the downloaded certificates (~/.vvminitool.certs):");
+        out.println("  certs scan [dir]...      index the certificates below each dir, now and from now on");
+        out.println("  certs list [days]        list the certificates, or those which expire within days");
+        out.println("  certs renew [days]       start a fleet process for each identity whose certificates");
+        out.println("                           expire within days; each identity is renewed only once");
+        out.println();
+        out.println("Options:");
+        out.println("  --parallel=N       maximum number of concurrent requests in fleet commands");
+        out.println("  --poll=SECONDS     shortest interval between two status requests in watch commands");
+        out.println("  --upload           with keygen: upload each CSR as soon as it has been created");
+        out.println("  --bits=N           with keygen: size of the RSA keys (default 2048)");
+        out.println("  --email=ADDRESS    with enroll: the e-mail address for the certificates");
+        out.println("  --code=CODE        with enroll: the validation code sent to the e-mail address");
+        out.println("  --restart          with enroll: forget an interrupted enrollment and start anew");
+        out.println("  --lookahead=N      with fleet eid: number of eID sessions prepared in advance (default 2)");
+        out.println("  --ca=FILE          with assemble: intermediate CA certificates for the chains");
+        out.println("  --trust=FILE       with assemble: root CA certificates to trust instead of the bundled one");
+        out.println("  --code-pattern=RE  with fleet mail: finds the code in a message (first group)");
+        out.println("  --cache[=DIR]      keep issued certificates and confirmed personal data in DIR");
+        out.println("                     (default ~/.vvminitool-cache) and download them only once");
+        out.println("  --timeout=SECONDS  give up the command and abort its requests after this time");
+        out.println("  --record=FILE      append all requests and replies, with their timing, to FILE; process");
+        out.println("                     ids, eID keys and validation codes are replaced by pseudonyms");
+        out.println("  --replay=FILE      answer the requests from a recorded FILE instead of the server,");
+        out.println("                     taking as long as the recorded replies took; the command runs with");
+        out.println("                     an empty journal in a temporary directory, which is deleted afterwards");
+        out.println("  --no-pacing        with replay: answer at once");
+        out.println("  --stats            show how many requests were answered from the caches, the");
+        out.println("                     current request limits of each endpoint and the used time");
+        out.println("  --timing           show how long the command took");
+        out.println("  --metrics[=FILE]   record the phases of all requests and print them, or save them");
+        out.println("                     to FILE (JSON if it ends with .json, else Prometheus text format)");
+        out.println("  --socket=PATH      socket of the daemon (default ~/.vvminitool.sock)");
+        out.println("  --no-daemon        run the command in this process even if a daemon is running");
     }
 
     /**
-     * @param args the command line arguments
+     * Get the journal of this JVM. It is opened once, as appends from
+     * several instances in one JVM would conflict on the file lock.
+     * @return
+     * @throws IOException
      */
-    public static void main(String[] args) {
+    private static synchronized ProcessJournal journal() throws IOException {
+        if (sharedJournal == null) {
+            ProcessJournal opened = ProcessJournal.open(ProcessJournal.defaultPath());
+            if (opened.isNew()) {
+                importPreferences(opened);
+            }
+            sharedJournal = opened;
+        }
+        return sharedJournal;
+    }
+
+    /**
+     * Copy the current process, the fleet and an interrupted enrollment from
+     * the preferences, where earlier versions kept them.
+     * @param journal  a new journal
+     * @throws IOException
+     */
+    private static void importPreferences(ProcessJournal journal) throws IOException {
+        Preferences prefs = Preferences.userNodeForPackage(VVMinitool.class);
+        try {
+            String processId = prefs.get("processId", "");
+            if (!processId.isEmpty()) {
+                journal.putSetting("processId", processId);
+            }
+            if (prefs.nodeExists("fleet")) {
+                Preferences fleet = prefs.node("fleet");
+                for (String name : fleet.childrenNames()) {
+                    Preferences child = fleet.node(name);
+                    journal.put(new ProcessFleet.Entry(name, child.get("processId", ""),
+                            child.get("status", ""), child.getLong("updated", 0)));
+                }
+            }
+            if (prefs.nodeExists("enroll")) {
+                Preferences enroll = prefs.node("enroll");
+                for (String key : enroll.keys()) {
+                    journal.putSetting("enroll." + key, enroll.get(key, ""));
+                }
+            }
+        } catch (BackingStoreException ex) {
+            Logger.getLogger(VVMinitool.class.getName()).log(Level.WARNING,
+                    "Unable to read the preferences of an earlier version", ex);
+        }
+        journal.flush();
+    }
+
+    /**
+     * Split the command line into options (--name=value) and other arguments.
+     * @param args  the command line
+     * @param options  receives the options; the value of --name is ""
+     * @return  the other arguments
+     */
+    static String[] parseOptions(String[] args, Map<String, String> options) {
+        List<String> rest = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.put(arg.substring(2), "");
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                rest.add(arg);
+            }
+        }
+        return rest.toArray(new String[rest.size()]);
+    }
+
+    /**
+     * Thrown when the command line contains an invalid value. The usage is
+     * printed with the message.
+     */
+    private static final class UsageException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Check the values of the options which take a number.
+     * @param options  the options given on the command line
+     * @throws UsageException  if a value is not a number in the valid range
+     */
+    private static void checkOptions(Map<String, String> options) {
+        for (Map.Entry<String, long[]> option : NUMBER_OPTIONS.entrySet()) {
+            if (options.containsKey(option.getKey())) {
+                parseNumber("--" + option.getKey(), options.get(option.getKey()),
+                        option.getValue()[0], option.getValue()[1]);
+            }
+        }
+    }
+
+    /**
+     * Parse a number given on the command line.
+     * @param name  the option or parameter, for the message
+     * @param value
+     * @param min  the smallest valid value
+     * @param max  the largest valid value
+     * @return
+     * @throws UsageException  if the value is not a number from min to max
+     */
+    private static long parseNumber(String name, String value, long min, long max) {
+        try {
+            long number = Long.parseLong(value);
+            if (number >= min && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw new UsageException("Invalid value '" + value + "' of " + name +
+                ": expected a number from " + min + " to " + max + ".");
+    }
+
+    /**
+     * Get the value of an option which takes a number; the options have been
+     * checked with checkOptions.
+     * @param options  the options given on the command line
+     * @param name  one of NUMBER_OPTIONS
+     * @param defaultValue  the value if the option is not given
+     * @return
+     */
+    private static long numberOption(Map<String, String> options, String name, long defaultValue) {
+        long[] range = NUMBER_OPTIONS.get(name);
+        return options.containsKey(name) ?
+                parseNumber("--" + name, options.get(name), range[0], range[1]) : defaultValue;
+    }
+
+    /**
+     * Give the service a response cache unless it already has one, e.g. in a
+     * daemon started with --cache.
+     * @param service
+     * @param dir  the directory of the cache; "" for the default
+     * @param workDir  dir is resolved against this directory
+     * @param err  receives a warning if the cache cannot be opened
+     */
+    private static synchronized void enableResponseCache(AsyncVVService service, String dir, Path workDir,
+            PrintStream err) {
+        if (service.getResponseCache() != null) {
+            return;
+        }
+        try {
+            service.setResponseCache(dir.isEmpty() ? new ResponseCache() :
+                    new ResponseCache(workDir.resolve(dir), ResponseCache.DEFAULT_MAX_SIZE));
+        } catch (IOException ex) {
+            err.println("Response cache disabled: " + ex);
+        }
+    }
+
+    private static KeyGen createKeyGen(Map<String, String> options) {
+        if (options.containsKey("bits")) {
+            return new KeyGen((int) numberOption(options, "bits", 0), null);
+        }
+        return new KeyGen();
+    }
+
+    private static Pkcs12Assembler createAssembler(Map<String, String> options, Path workDir)
+            throws IOException, KeyStoreException, CertificateException {
+        KeyStore trustStore = options.containsKey("trust") ?
+                Pkcs12Assembler.createTrustStore(Pkcs12Assembler.parseCertificates(
+                        Files.readAllBytes(workDir.resolve(options.get("trust"))))) :
+                Pkcs12Assembler.loadDefaultTrustStore();
+        List<X509Certificate> intermediates = options.containsKey("ca") ?
+                Pkcs12Assembler.parseCertificates(Files.readAllBytes(workDir.resolve(options.get("ca")))) :
+                Collections.<X509Certificate>emptyList();
+        return new Pkcs12Assembler(trustStore, intermediates, null);
+    }
+
+    /**
+     * Ask for the password of new keystores, or take it from the environment
+     * variable VVMINITOOL_P12_PASSWORD if there is no console.
+     * @return
+     * @throws IOException  if no password is available or the two entries differ
+     */
+    private static char[] readNewPassword() throws IOException {
+        Console console = System.console();
+        if (console == null) {
+            String password = System.getenv("VVMINITOOL_P12_PASSWORD");
+            if (password == null || password.isEmpty()) {
+                throw new IOException("No console; set VVMINITOOL_P12_PASSWORD.");
+            }
+            return password.toCharArray();
+        }
+        char[] password = console.readPassword("Keystore password: ");
+        char[] repeated = console.readPassword("Repeat password: ");
+        try {
+            if (password == null || password.length == 0 || !Arrays.equals(password, repeated)) {
+                throw new IOException("Passwords are empty or do not match.");
+            }
+        } finally {
+            if (repeated != null) {
+                Arrays.fill(repeated, '\0');
+            }
+        }
+        return password;
+    }
+
+    private static StatusWatcher createWatcher(AsyncVVService service, Map<String, String> options) {
+        if (options.containsKey("poll")) {
+            long minDelay = numberOption(options, "poll", 0) * 1000;
+            return new StatusWatcher(service, minDelay,
+                    Math.max(minDelay, StatusWatcher.DEFAULT_MAX_DELAY));
+        }
+        return new StatusWatcher(service);
+    }
+
+    /**
+     * Execute the enroll command.
+     * @param args  the command line without options; args[0] is "enroll"
+     * @param options  the options given on the command line
+     * @param workDir  relative paths are resolved against this directory
+     * @param service  used for all requests
+     * @param journal  stores the current process and the progress
+     * @param out  standard output of the command
+     * @return  false if the command has the wrong number of parameters
+     */
+    private static boolean enrollCommand(String[] args, final Map<String, String> options, Path workDir,
+            AsyncVVService service, final ProcessJournal journal, final PrintStream out)
+            throws IOException, NoSuchAlgorithmException {
+        if (args.length > 2) {
+            return false;
+        }
+        try (StatusWatcher watcher = createWatcher(service, options)) {
+            Enrollment enrollment = new Enrollment(service, journal, createKeyGen(options), watcher);
+            if (enrollment.getDirectory() == null || options.containsKey("restart")) {
+                Path dir = workDir.resolve((args.length == 2) ? args[1] : ".");
+                enrollment.start(options.containsKey("restart") ? "" : journal.getSetting("processId", ""), dir);
+            } else {
+                out.println("Continuing enrollment in " + enrollment.getDirectory() + "...");
+            }
+
+            boolean finished = enrollment.run(new Enrollment.Interaction() {
+                @Override
+                public String emailAddress() {
+                    String address = options.get("email");
+                    if (address == null || address.isEmpty()) {
+                        out.println("Enter your e-mail address with: enroll --email=ADDRESS");
+                        return null;
+                    }
+                    out.println("Submitting e-mail address '" + address + "'...");
+                    return address;
+                }
+
+                @Override
+                public String validationCode() {
+                    String code = options.get("code");
+                    if (code == null || code.isEmpty()) {
+                        out.println("Enter the validation code from the e-mail with: enroll --code=CODE");
+                        return null;
+                    }
+                    out.println("Submitting validation code '" + code + "'...");
+                    return code;
+                }
+
+                @Override
+                public void processStarted(String processId) {
+                    try {
+                        journal.putSetting("processId", processId);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    out.println("Process id has been saved.");
+                }
+
+                @Override
+                public void statusReached(ProcessStatus status) {
+                    out.println("process status: " + status);
+                }
+
+                @Override
+                public void personalData(String data) {
+                    out.println(data);
+                }
+            });
+
+            if (finished) {
+                journal.putSetting("processId", "");
+                journal.flush();
+                out.println("Certificates saved, process finalized.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Print the statistics of the caches, the recording or replay, the limits
+     * of the rate governor and the used share of the deadline.
+     * @param service
+     * @param err
+     */
+    private static void printStats(AsyncVVService service, PrintStream err) {
+        if (service.getDeadline() != null && service.getDeadline().isLimited()) {
+            err.println(service.getDeadline());
+        }
+        err.println(service.getStatusCache());
+        if (service.getResponseCache() != null) {
+            err.println(service.getResponseCache());
+        }
+        HttpsTransport transport = service.getTransport();
+        if (transport instanceof ReplayTransport) {
+            err.println(transport);
+        }
+        if (transport instanceof RecordingTransport) {
+            err.println(transport);
+            transport = ((RecordingTransport) transport).getTransport();
+        }
+        if (transport instanceof ResilientTransport) {
+            transport = ((ResilientTransport) transport).getTransport();
+        }
+        if (transport instanceof RateGovernor) {
+            err.println(transport);
+        }
+    }
+
+    /**
+     * Execute a fleet command.
+     * @param args  the command line without options; args[0] is "fleet"
+     * @param options  the options given on the command line
+     * @param workDir  relative paths are resolved against this directory
+     * @param service  used for all requests
+     * @param journal  stores the processes
+     * @param out  standard output of the command
+     * @param err  error output of the command
+     * @return  false if the command is unknown
+     */
+    private static boolean fleetCommand(String[] args, Map<String, String> options, Path workDir,
+            AsyncVVService service, ProcessJournal journal, final PrintStream out, PrintStream err)
+            throws InterruptedException, IOException {
+        if (args.length < 2) {
+            return false;
+        }
+        int parallelism = (int) numberOption(options, "parallel", ProcessFleet.DEFAULT_PARALLELISM);
+        String command = args[1];
+        String filter = (args.length == 3) ? args[2] : null;
+        ProcessFleet fleet = new ProcessFleet(service, journal, parallelism);
+        Map<String, Throwable> errors = new HashMap<>();
+
+        if (command.equals("add") && args.length >= 3) {
+            List<String> names = Arrays.asList(args).subList(2, args.length);
+            out.println("Initializing " + names.size() + " new processes...");
+            errors = fleet.add(names);
+            filter = null;
+        } else if (command.equals("list") && args.length <= 3) {
+            // list will be printed at the end
+        } else if (command.equals("refresh") && args.length <= 3) {
+            out.println("Requesting process status...");
+            errors = fleet.refresh(fleet.list(filter));
+            filter = null;
+        } else if (command.equals("advance") && args.length <= 3) {
+            out.println("Advancing processes...");
+            errors = fleet.advance(fleet.list(filter));
+            filter = null;
+        } else if (command.equals("finalize") && args.length <= 3) {
+            List<ProcessFleet.Entry> targets = fleet.list(filter);
+            out.println("Finalizing " + targets.size() + " processes...");
+            errors = fleet.finalizeAll(targets);
+            filter = null;
+        } else if (command.equals("remove") && args.length == 3) {
+            if (!fleet.remove(args[2])) {
+                throw new IllegalArgumentException("Unknown process '" + args[2] + "'.");
+            }
+            filter = null;
+        } else if (command.equals("keygen") && args.length <= 3) {
+            Path dir = workDir.resolve((args.length == 3) ? args[2] : ".");
+            List<ProcessFleet.Entry> targets = fleet.list(null);
+            out.println("Generating key pairs for " + targets.size() + " processes...");
+            errors = fleet.keygen(targets, createKeyGen(options), dir, options.containsKey("upload"));
+        } else if (command.equals("email") && args.length == 4) {
+            ProcessFleet.Entry entry = fleet.get(args[2]);
+            if (entry == null) {
+                throw new IllegalArgumentException("Unknown process '" + args[2] + "'.");
+            }
+            out.println("Submitting e-mail address '" + args[3] + "'...");
+            AsyncVVService.await(fleet.submitEmailAddress(entry, args[3]));
+            filter = null;
+        } else if (command.equals("mail") && args.length == 3) {
+            Path mailbox = workDir.resolve(args[2]);
+            Pattern codePattern = options.containsKey("code-pattern") ?
+                    Pattern.compile(options.get("code-pattern")) : MailIngester.DEFAULT_CODE_PATTERN;
+            final Map<String, Throwable> failed = new ConcurrentHashMap<>();
+            try (final MailIngester ingester = new MailIngester(service, journal, codePattern)) {
+                Runnable unregister = Deadline.onAbort(service.getDeadline(), ingester::close);
+                try {
+                    out.println("Waiting for validation codes in " + mailbox + "...");
+                    ingester.ingest(mailbox, new MailIngester.Listener() {
+                        @Override
+                        public void validated(String processId, String messageId, long latency) {
+                            ProcessFleet.Entry entry = journal.getByProcessId(processId);
+                            out.println(((entry == null) ? "current process" : entry.getName()) +
+                                    ": e-mail address validated" +
+                                    ((latency < 0) ? "" : " " + latency + " ms after delivery") +
+                                    " (" + ingester.getBacklog() + " still waiting)");
+                        }
+
+                        @Override
+                        public void failed(String messageId, Throwable ex) {
+                            failed.put(messageId, ex);
+                        }
+                    });
+                } finally {
+                    unregister.run();
+                }
+                out.println(ingester);
+            }
+            errors = failed;
+            filter = null;
+        } else if (command.equals("use") && args.length == 3) {
+            ProcessFleet.Entry entry = fleet.get(args[2]);
+            if (entry == null) {
+                throw new IllegalArgumentException("Unknown process '" + args[2] + "'.");
+            }
+            journal.putSetting("processId", entry.getProcessId());
+            journal.flush();
+            out.println("Process '" + args[2] + "' is now the current process.");
+            return true;
+        } else if (command.equals("eid") && args.length == 2) {
+            int lookahead = (int) numberOption(options, "lookahead", EidBroker.DEFAULT_LOOKAHEAD);
+            EidBroker broker = new EidBroker(service, lookahead);
+            final Map<String, Throwable> failed = new ConcurrentHashMap<>();
+            List<CompletableFuture<?>> authentications = new ArrayList<>();
+            for (ProcessFleet.Entry entry : fleet.list(ProcessStatus.AUTH_EID_READY.name())) {
+                final String name = entry.getName();
+                authentications.add(broker.submit(entry.getProcessId(),
+                        () -> out.println(name + ": please use the ID card now"))
+                        .whenComplete((status, ex) -> {
+                            if (ex != null) {
+                                failed.put(name, AsyncVVService.unwrap(ex));
+                            } else {
+                                fleet.updateStatus(name, status);
+                                out.println(name + ": " + status);
+                            }
+                        }));
+            }
+            out.println("Authenticating " + authentications.size() + " processes...");
+            try {
+                AsyncVVService.await(CompletableFuture.allOf(authentications.toArray(new CompletableFuture<?>[0])));
+            } catch (IOException | RuntimeException ex) {
+                // reported per process below
+            }
+            out.println(broker);
+            errors = failed;
+            filter = null;
+        } else if (command.equals("watch") && args.length <= 3) {
+            final Path certDir = (args.length == 3) ? workDir.resolve(args[2]) : null;
+            final Map<String, Throwable> failed = new ConcurrentHashMap<>();
+            List<CompletableFuture<?>> watches = new ArrayList<>();
+            try (StatusWatcher watcher = createWatcher(service, options)) {
+                for (ProcessFleet.Entry entry : fleet.list(null)) {
+                    final String name = entry.getName();
+                    if (ProcessStatus.of(entry.getStatus()).isWaitingForUser()) {
+                        // its certificates will not be issued while we wait
+                        out.println(name + ": " + entry.getStatus() + ", not watched; next: " +
+                                entry.getNextAction());
+                        continue;
+                    }
+                    StatusWatcher.Listener listener = (processId, oldStatus, newStatus) -> {
+                        fleet.updateStatus(name, newStatus);
+                        out.println(name + ": " + newStatus);
+                    };
+                    CompletableFuture<?> watch;
+                    if (certDir != null) {
+                        Path dir = Files.createDirectories(certDir.resolve(entry.getName()));
+                        watch = watcher.watchAndDownload(entry.getProcessId(), listener, dir);
+                    } else {
+                        watch = watcher.watch(entry.getProcessId(), listener,
+                                ProcessStatus.CERT_AVAILABLE.name());
+                    }
+                    watches.add(watch.whenComplete((result, ex) -> {
+                        if (ex != null) {
+                            failed.put(name, AsyncVVService.unwrap(ex));
+                        }
+                    }));
+                }
+                out.println("Watching " + watches.size() + " processes...");
+                try {
+                    AsyncVVService.await(CompletableFuture.allOf(watches.toArray(new CompletableFuture<?>[0])));
+                } catch (IOException | RuntimeException ex) {
+                    // reported per process below
+                }
+            }
+            errors = failed;
+            filter = null;
+        } else {
+            return false;
+        }
+        fleet.save();
+        if (options.containsKey("stats")) {
+            printStats(service, err);
+        }
+
+        for (ProcessFleet.Entry entry : fleet.list(filter)) {
+            out.println(String.format("%-20s %-20s %s  next: %s", entry.getName(),
+                    entry.getStatus(), entry.getProcessHash(), entry.getNextAction()));
+        }
+        for (Map.Entry<String, Throwable> error : errors.entrySet()) {
+            err.println(error.getKey() + ": " + error.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Execute a certificate inventory command. The index is brought up to
+     * date first.
+     * @param args  the command line without options; args[0] is "certs"
+     * @param options  the options given on the command line
+     * @param workDir  relative paths are resolved against this directory
+     * @param service  used for all requests
+     * @param journal  stores the processes and the renewals
+     * @param inventoryFile  the index of the certificates
+     * @param out  standard output of the command
+     * @param err  error output of the command
+     * @return  false if the command is unknown
+     */
+    private static boolean certsCommand(String[] args, Map<String, String> options, Path workDir,
+            AsyncVVService service, ProcessJournal journal, Path inventoryFile, PrintStream out, PrintStream err)
+            throws InterruptedException, IOException {
+        if (args.length < 2) {
+            return false;
+        }
+        String command = args[1];
+        long days;
+        if (command.equals("scan") && args.length >= 3) {
+            days = -1;
+        } else if (command.equals("list") && args.length <= 3) {
+            days = (args.length == 3) ? parseNumber("days", args[2], 0, MAX_DAYS) : -1;
+        } else if (command.equals("renew") && args.length == 3) {
+            days = parseNumber("days", args[2], 0, MAX_DAYS);
+        } else {
+            return false;
+        }
+
+        CertificateInventory inventory = CertificateInventory.open(inventoryFile);
+        if (command.equals("scan")) {
+            for (int i = 2; i < args.length; i++) {
+                inventory.addRoot(workDir.resolve(args[i]));
+            }
+        }
+        long start = System.nanoTime();
+        int parsed = inventory.update();
+        inventory.save();
+        if (command.equals("scan") || options.containsKey("timing")) {
+            out.println(inventory.size() + " certificates indexed, " + parsed + " files read in " +
+                    (System.nanoTime() - start) / 1000000 + " ms.");
+        }
+        if (command.equals("scan")) {
+            return true;
+        }
+
+        List<CertificateInventory.Entry> certs = (days < 0) ? inventory.list() :
+                inventory.expiringBefore(System.currentTimeMillis() + days * 24 * 60 * 60 * 1000);
+        if (command.equals("list")) {
+            DateTimeFormatter format = DateTimeFormatter.ISO_LOCAL_DATE.withZone(ZoneId.systemDefault());
+            for (CertificateInventory.Entry entry : certs) {
+                out.println(String.format("%s  %-4s %-20s %s  %s",
+                        format.format(Instant.ofEpochMilli(entry.getNotAfter())), entry.getCertType(),
+                        entry.getName(), entry.getSerial(), entry.getPath()));
+            }
+            return true;
+        }
+
+        int parallelism = (int) numberOption(options, "parallel", ProcessFleet.DEFAULT_PARALLELISM);
+        ProcessFleet fleet = new ProcessFleet(service, journal, parallelism);
+        RenewalQueue queue = new RenewalQueue(fleet, journal);
+        Map<String, CertificateInventory.Entry> pending = queue.pending(certs);
+        out.println(certs.size() + " certificates expire within " + days + " days; initializing " +
+                pending.size() + " new processes...");
+        Map<String, Throwable> errors = queue.renew(certs);
+        fleet.save();
+        if (options.containsKey("stats")) {
+            printStats(service, err);
+        }
+        for (Map.Entry<String, CertificateInventory.Entry> renewal : pending.entrySet()) {
+            ProcessFleet.Entry entry = fleet.get(renewal.getKey());
+            if (entry != null) {
+                out.println(String.format("%-20s %-20s %s  renews %s", entry.getName(),
+                        entry.getStatus(), entry.getProcessHash(), renewal.getValue().getSubject()));
+            }
+        }
+        for (Map.Entry<String, Throwable> error : errors.entrySet()) {
+            err.println(error.getKey() + ": " + error.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Execute a command line. This is called for commands given on the command
+     * line as well as for commands forwarded to a daemon.
+     * @param args  the command line, including options
+     * @param workDir  relative paths are resolved against this directory
+     * @param service  used for all requests
+     * @param out  standard output of the command
+     * @param err  error output of the command
+     * @return  the exit code
+     */
+    static int execute(String[] args, Path workDir, AsyncVVService service,
+            PrintStream out, PrintStream err) {
+
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+        try {
+            checkOptions(options);
+        } catch (UsageException ex) {
+            out.println(ex.getMessage());
+            printUsage(out);
+            return 1;
+        }
+        // e.g. the deadline with which a daemon cancels the command of a client which has gone
+        final Deadline commandDeadline = service.getDeadline();
+        ExchangeLog exchangeLog = null;
+        Path scratch = null;
+        try {
+            if (options.containsKey("replay")) {
+                for (String arg : args) {
+                    if (isAbsolutePath(arg)) {
+                        out.println("Only relative paths can be used with --replay: " + arg);
+                        printUsage(out);
+                        return 1;
+                    }
+                }
+                List<ExchangeLog.Exchange> exchanges = ExchangeLog.read(workDir.resolve(options.get("replay")));
+                service = new AsyncVVService(new ReplayTransport(exchanges, !options.containsKey("no-pacing")));
+                // a replayed command must not change the journal or leave keys and
+                // certificates behind, so it runs in a directory of its own
+                scratch = Files.createTempDirectory("vvminitool-replay-");
+            } else if (options.containsKey("record")) {
+                exchangeLog = ExchangeLog.create(workDir.resolve(options.get("record")));
+                service = new AsyncVVService(new RecordingTransport(service.getTransport(), exchangeLog));
+            }
+        } catch (IOException ex) {
+            err.println(ex);
+            return 1;
+        }
+        if (commandDeadline != null && service.getDeadline() == null) {
+            service = service.withDeadline(commandDeadline);
+        }
+
+        // the metrics of this command only, also if a daemon runs others at the same time
+        RequestMetrics metrics = null;
+        if (options.containsKey("metrics")) {
+            metrics = new RequestMetrics();
+            if (service.getDeadline() == null) {
+                service = service.withDeadline(Deadline.unlimited());
+            }
+            service.getDeadline().setMetrics(metrics);
+        }
+
+        if (options.containsKey("cache") && scratch == null) {
+            enableResponseCache(service, options.get("cache"), workDir, err);
+        }
+
+        if (options.containsKey("timeout")) {
+            service = service.withTimeout(numberOption(options, "timeout", 0) * 1000);
+        }
+        final AsyncVVService commandService = service;
+        final String[] commandArgs = args;
+        final Path commandDir = (scratch != null) ? scratch : workDir;
+        int exitCode;
+        try {
+            exitCode = Deadline.with(service.getDeadline(),
+                    () -> executeCommand(commandArgs, options, commandDir, commandService, out, err));
+        } finally {
+            if (scratch != null) {
+                deleteScratch(scratch, err);
+            }
+        }
+        if (exchangeLog != null) {
+            try {
+                exchangeLog.close();
+            } catch (IOException ex) {
+                err.println("Unable to close the exchange log: " + ex);
+            }
+        }
+
+        if (options.containsKey("metrics")) {
+            try {
+                String file = options.get("metrics");
+                if (file.isEmpty()) {
+                    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                    metrics.writePrometheus(writer);
+                    writer.flush();
+                } else {
+                    metrics.save(workDir.resolve(file));
+                }
+            } catch (IOException ex) {
+                err.println("Unable to write metrics: " + ex);
+            }
+        }
+        return exitCode;
+    }
+
+    /** check whether a command line argument is an absolute path */
+    private static boolean isAbsolutePath(String arg) {
+        try {
+            return Paths.get(arg).isAbsolute();
+        } catch (InvalidPathException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete the directory of a replayed command with everything in it.
+     * @param scratch
+     * @param err  receives a warning if it cannot be deleted
+     */
+    private static void deleteScratch(Path scratch, PrintStream err) {
+        try (Stream<Path> files = Files.walk(scratch)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        } catch (IOException | UncheckedIOException ex) {
+            err.println("Unable to delete " + scratch + ": " + ex);
+        }
+    }
+
+    /**
+     * Execute a command line without options.
+     * @param args  the command line without options
+     * @param options  the options given on the command line
+     * @param workDir  relative paths are resolved against this directory; for
+     *                 a replayed command, the journal and the index of the
+     *                 certificates are kept there too
+     * @param service  used for all requests
+     * @param out  standard output of the command
+     * @param err  error output of the command
+     * @return  the exit code
+     */
+    private static int executeCommand(String[] args, Map<String, String> options, Path workDir,
+            AsyncVVService service, PrintStream out, PrintStream err) {
+        if (options.containsKey("replay")) {
+            try (ProcessJournal journal = ProcessJournal.open(workDir.resolve(".vvminitool.journal"))) {
+                return executeCommand(args, options, workDir, service, journal,
+                        workDir.resolve(".vvminitool.certs"), out, err);
+            } catch (IOException ex) {
+                err.println(ex);
+                return 1;
+            }
+        }
+        ProcessJournal journal;
+        try {
+            journal = journal();
+        } catch (IOException ex) {
+            err.println(ex);
+            return 1;
+        }
+        return executeCommand(args, options, workDir, service, journal, CertificateInventory.defaultPath(),
+                out, err);
+    }
+
+    private static int executeCommand(String[] args, Map<String, String> options, Path workDir,
+            AsyncVVService service, ProcessJournal journal, Path inventoryFile, PrintStream out, PrintStream err) {
 
         if (args.length == 0) {
-            System.out.println("Volksverschlüsselung minitool");
-            System.out.println();
-            printUsage();
-            System.exit(0);
+            out.println("Volksverschlüsselung minitool");
+            out.println();
+            printUsage(out);
+            return 0;
         }
         
         String command = args[0];
 
-        VVService vvService = new VVService();
-        Preferences prefs = Preferences.userNodeForPackage(VVMinitool.class);
+        try {
+            journal.refresh();
+        } catch (IOException ex) {
+            err.println(ex);
+            return 1;
+        }
+
+        if (command.equals("fleet")) {
+            try {
+                if (!fleetCommand(args, options, workDir, service, journal, out, err)) {
+                    out.println("Unknown command or wrong number of parameters.");
+                    printUsage(out);
+                    return 1;
+                }
+            } catch (IOException | UncheckedIOException | IllegalArgumentException ex) {
+                err.println(ex);
+                return 1;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                err.println(ex);
+                return 1;
+            }
+            return 0;
+        }
+
+        if (command.equals("certs")) {
+            try {
+                if (!certsCommand(args, options, workDir, service, journal, inventoryFile, out, err)) {
+                    out.println("Unknown command or wrong number of parameters.");
+                    printUsage(out);
+                    return 1;
+                }
+            } catch (UsageException ex) {
+                out.println(ex.getMessage());
+                printUsage(out);
+                return 1;
+            } catch (IOException | UncheckedIOException | IllegalArgumentException ex) {
+                err.println(ex);
+                return 1;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                err.println(ex);
+                return 1;
+            }
+            return 0;
+        }
+
+        if (command.equals("enroll")) {
+            try {
+                if (!enrollCommand(args, options, workDir, service, journal, out)) {
+                    out.println("Unknown command or wrong number of parameters.");
+                    printUsage(out);
+                    return 1;
+                }
+            } catch (IOException | UncheckedIOException | GeneralSecurityException | IllegalStateException ex) {
+                err.println(ex);
+                return 1;
+            }
+            return 0;
+        }
+
+        VVService vvService = new VVService(service);
 
         try {
-            String processId = prefs.get("processId", "");
+            String processId = journal.getSetting("processId", "");
             if (processId.equals("") && !(command.equals("init") && args.length == 1)) {
                throw new IOException("Could not load process id. Call init command.");
             }
@@ -74,85 +1003,242 @@ public class VVMinitool {
 
             // init
             if (command.equals("init") && args.length == 1) {
-                System.out.println("Initializing a new process...");
+                out.println("Initializing a new process...");
                 vvService.initProcess();
-                prefs.put("processId", vvService.getProcessId());
-                System.out.println("Process id has been saved. Hash: ");
-                System.out.println(vvService.getProcessHash());
+                journal.putSetting("processId", vvService.getProcessId());
+                journal.flush();
+                out.println("Process id has been saved. Hash: ");
+                out.println(vvService.getProcessHash());
             } 
             // auth [method]
             else if (command.equals("auth") && args.length == 2) {
-                System.out.println("Setting authentication method " + args[1] + "... ");
+                out.println("Setting authentication method " + args[1] + "... ");
                 vvService.selectAuthMethod(args[1]);
             }
             // eid
             else if (command.equals("eid") && args.length == 1) {
                 String eidSession = vvService.initEidSession();
-                System.out.println("Starting authentication...");
+                out.println("Starting authentication...");
                 String authCode = vvService.performEidAuthentication(eidSession);
                 vvService.confirmEidSession(eidSession, authCode);
-                System.out.println("Authentication successful.");
+                out.println("Authentication successful.");
             }
             // email [address]
             else if (command.equals("email") && args.length == 2) {
-                System.out.println("Submitting e-mail address '" + args[1] + "'...");
+                out.println("Submitting e-mail address '" + args[1] + "'...");
                 vvService.submitEmailAddress(args[1]);
+                MailIngester.expectCode(journal, processId, args[1]);
             }
             // validate [code]
             else if (command.equals("validate") && args.length == 2) {
-                System.out.println("Submitting validation code '" + args[1] + "'...");
+                out.println("Submitting validation code '" + args[1] + "'...");
                 vvService.validateEmailAddress(args[1]);
+                MailIngester.codeReceived(journal, processId);
             }
             // showdata
             else if (command.equals("showdata") && args.length == 1) {
-                System.out.println("Requesting personal data...");
+                out.println("Requesting personal data...");
                 String persData = vvService.requestPersonalData();
-                System.out.println(persData);
+                out.println(persData);
+            }
+            // csr all [dir]
+            else if (command.equals("csr") && args.length == 3 && args[1].equals("all")) {
+                Path dir = workDir.resolve(args[2]);
+                Map<String, Path> csrFiles = new LinkedHashMap<>();
+                for (String certType : VVService.CERT_TYPES) {
+                    csrFiles.put(certType, dir.resolve("csr_" + certType + ".der"));
+                }
+                out.println("Sending CSRs of all types...");
+                vvService.uploadCSRs(csrFiles);
             }
             // csr [type] [file]
             else if (command.equals("csr") && args.length == 3) {
-                byte[] csrData = Files.readAllBytes(Paths.get(args[2]));
-                System.out.println("Sending CSR of type '" + args[1] + "'...");
-                vvService.uploadCSR(args[1], csrData);
+                Path csrFile = workDir.resolve(args[2]);
+                out.println("Sending CSR of type '" + args[1] + "'...");
+                vvService.uploadCSR(args[1], csrFile);
+            }
+            // keygen [dir]
+            else if (command.equals("keygen") && args.length <= 2) {
+                Path dir = workDir.resolve((args.length == 2) ? args[1] : ".");
+                KeyGen keyGen = createKeyGen(options);
+                String processHash = vvService.getProcessHash();
+                boolean upload = options.containsKey("upload");
+                out.println("Generating key pairs and CSRs...");
+                List<CompletableFuture<Void>> steps = new ArrayList<>();
+                for (final String certType : VVService.CERT_TYPES) {
+                    steps.add(keyGen.generate(processHash, certType, dir).thenCompose(csr -> {
+                        if (!upload) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        out.println("Sending CSR of type '" + certType + "'...");
+                        return service.uploadCSR(processId, certType, csr);
+                    }));
+                }
+                AsyncVVService.await(CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0])));
+                out.println("Keys have been saved to " + dir.resolve("key_[type].pem") + ".");
             }
             // csrdone
             else if (command.equals("csrdone") && args.length == 1) {
                 vvService.uploadFinished();
             }
+            // getcert all [dir]
+            else if (command.equals("getcert") && args.length == 3 && args[1].equals("all")) {
+                Path dir = workDir.resolve(args[2]);
+                for (String certType : VVService.CERT_TYPES) {
+                    if (Files.exists(dir.resolve("cert_" + certType + ".der"))) {
+                        throw new IOException("File 'cert_" + certType + ".der' already exists.");
+                    }
+                }
+                out.println("Requesting signed certificates of all types...");
+                vvService.downloadCerts(new LinkedHashSet<>(VVService.CERT_TYPES), dir);
+                out.println("Certificates have been saved to " + dir.resolve("cert_[type].der") + ".");
+            }
             // getcert [type] [file]
             else if (command.equals("getcert") && args.length == 3) {
-                Path certFile = Paths.get(args[2]);
+                Path certFile = workDir.resolve(args[2]);
                 if (Files.exists(certFile)) {
                     throw new IOException("File '" + args[2] + "' already exists.");
                 }
-                System.out.println("Requesting signed certificate of type '" + args[1] + "'...");
-                byte[] cert = vvService.downloadCert(args[1]);
-                Files.write(certFile, cert);
+                out.println("Requesting signed certificate of type '" + args[1] + "'...");
+                vvService.downloadCert(args[1], certFile);
+            }
+            // assemble [dir]
+            else if (command.equals("assemble") && args.length <= 2) {
+                Path dir = workDir.resolve((args.length == 2) ? args[1] : ".");
+                Pkcs12Assembler assembler = createAssembler(options, workDir);
+                for (String certType : VVService.CERT_TYPES) {
+                    if (Files.exists(dir.resolve("key_cert_" + certType + ".p12"))) {
+                        throw new IOException("File 'key_cert_" + certType + ".p12' already exists.");
+                    }
+                }
+                char[] password = readNewPassword();
+                try {
+                    out.println("Downloading certificates and assembling keystores...");
+                    Map<String, byte[]> keyStores = AsyncVVService.await(
+                            assembler.assembleAll(service, processId, dir, password));
+                    for (Map.Entry<String, byte[]> entry : keyStores.entrySet()) {
+                        KeyGen.writePrivate(dir.resolve("key_cert_" + entry.getKey() + ".p12"), entry.getValue());
+                    }
+                } finally {
+                    Arrays.fill(password, '\0');
+                }
+                out.println("Keystores have been saved to " + dir.resolve("key_cert_[type].p12") + ".");
             }
             // finalize
             else if (command.equals("finalize") && args.length == 1) {
-                prefs.put("processId", "");
+                journal.putSetting("processId", "");
+                journal.flush();
                 vvService.finalizeProcess();
-                System.out.println("Process finalized.");
+                out.println("Process finalized.");
+            }
+            // watch [dir]
+            else if (command.equals("watch") && args.length <= 2) {
+                StatusWatcher.Listener listener = (id, oldStatus, newStatus) ->
+                        out.println("process status: " + newStatus);
+                try (StatusWatcher watcher = createWatcher(vvService.getAsyncService(), options)) {
+                    if (args.length == 2) {
+                        out.println("Waiting for certificates...");
+                        AsyncVVService.await(watcher.watchAndDownload(vvService.getProcessId(),
+                                listener, workDir.resolve(args[1])));
+                        out.println("Certificates saved.");
+                    } else {
+                        out.println("Waiting for certificates...");
+                        AsyncVVService.await(watcher.watch(vvService.getProcessId(),
+                                listener, ProcessStatus.CERT_AVAILABLE.name()));
+                    }
+                }
             }
             // status
             else if (command.equals("status") && args.length == 1) {
-                System.out.println("Process id hash: ");
-                System.out.println(vvService.getProcessHash());
+                out.println("Process id hash: ");
+                out.println(vvService.getProcessHash());
                 // status will be printed at the end
             }
             else {
-                System.out.println("Unknown command or wrong number of parameters.");
-                printUsage();
-                System.exit(1);
+                out.println("Unknown command or wrong number of parameters.");
+                printUsage(out);
+                return 1;
             }
 
             if (! "".equals(vvService.getProcessId())) {
-                System.out.println("process status: " + vvService.processStatus());
+                out.println("process status: " + vvService.processStatus());
             }
-        } catch (IOException | NoSuchAlgorithmException | IllegalStateException ex) {
-            System.err.println(ex);
+            if (options.containsKey("stats")) {
+                printStats(service, err);
+            }
+        } catch (IOException | GeneralSecurityException | IllegalStateException ex) {
+            err.println(ex);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        String[] commandLine = parseOptions(args, options);
+        Path socket = options.containsKey("socket") ?
+                Paths.get(options.get("socket")) : Daemon.defaultSocket();
+
+        if (commandLine.length >= 1 && commandLine[0].equals("daemon")) {
+            if (options.containsKey("metrics")) {
+                RequestMetrics.enable();
+            }
+            try {
+                if (commandLine.length == 1) {
+                    AsyncVVService service = new AsyncVVService();
+                    if (options.containsKey("cache")) {
+                        enableResponseCache(service, options.get("cache"), Paths.get("").toAbsolutePath(),
+                                System.err);
+                    }
+                    // the metrics of all commands; a command run with --metrics gets its own
+                    String metricsFile = options.get("metrics");
+                    System.out.println("Listening on " + socket + "...");
+                    Daemon.serve(socket, service, (metricsFile == null || metricsFile.isEmpty()) ?
+                            null : Paths.get(metricsFile).toAbsolutePath());
+                    if (metricsFile != null && metricsFile.isEmpty()) {
+                        Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+                        RequestMetrics.get().writePrometheus(writer);
+                        writer.flush();
+                    }
+                } else if (commandLine.length == 2 && commandLine[1].equals("stop")) {
+                    if (!Daemon.stop(socket)) {
+                        System.err.println("No daemon is running.");
+                        System.exit(1);
+                    }
+                } else {
+                    printUsage(System.out);
+                    System.exit(1);
+                }
+            } catch (IOException ex) {
+                System.err.println(ex);
+                System.exit(1);
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        Path workDir = Paths.get("").toAbsolutePath();
+        Integer exitCode = null;
+        String mode = "daemon";
+        // assemble asks for a password, which needs the console of this process
+        boolean local = commandLine.length >= 1 && commandLine[0].equals("assemble");
+        if (!options.containsKey("no-daemon") && !local) {
+            exitCode = Daemon.forward(socket, args, workDir, System.out, System.err);
+        }
+        if (exitCode == null) {
+            mode = "in-process";
+            exitCode = execute(args, workDir, new AsyncVVService(), System.out, System.err);
+        }
+        if (options.containsKey("timing")) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long sinceJvmStart = ManagementFactory.getRuntimeMXBean().getUptime();
+            System.err.println("command latency (" + mode + "): " + millis +
+                    " ms, " + sinceJvmStart + " ms including JVM startup");
         }
+        System.exit(exitCode);
     }
     
 }
\ No newline at end of file
@@ -20,41 +20,136 @@
 package vvminitool;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.json.JSONObject;
 
 /**
  * Interface to the Volksverschluesselung web service. The state of this class
- * stores the current process id.
+ * stores the current process id. All methods block until the server has
+ * answered; they are thin wrappers around AsyncVVService.
  */
 public class VVService {
     public final static String VVSERVER = "https://ra.volksverschluesselung.de";
 
-    private HttpsHelper https = new HttpsHelper();
+    /** the types of certificates which are issued for each process */
+    public final static List<String> CERT_TYPES =
+            Collections.unmodifiableList(Arrays.asList("sign", "encr", "auth"));
+
+    /**
+     * Set this system property to "urlconnection" to use the HttpsURLConnection
+     * based transport instead of HttpClientTransport.
+     */
+    public final static String TRANSPORT_PROPERTY = "vvminitool.transport";
+
+    private final AsyncVVService async;
     private String processId = "";
+    private volatile Deadline deadline;
+    private volatile long timeout;
 
     public VVService() {
+        this(createDefaultTransport());
+    }
+
+    /**
+     * Create a service which sends all requests via the given transport.
+     * @param transport
+     */
+    public VVService(HttpsTransport transport) {
+        this(new AsyncVVService(transport));
+    }
+
+    /**
+     * Create a service which sends all requests via the given asynchronous service.
+     * @param async
+     */
+    public VVService(AsyncVVService async) {
+        this.async = async;
+    }
+
+    /**
+     * Get the asynchronous service used by this instance.
+     * @return
+     */
+    public AsyncVVService getAsyncService() {
+        return async;
+    }
+
+    /**
+     * Set a deadline for all following operations, e.g. the one of a
+     * workflow. Without one, an operation inherits the deadline which is
+     * current on the calling thread (see Deadline.with) or the one of the
+     * asynchronous service.
+     * @param deadline  null to inherit it
+     */
+    public void setDeadline(final Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Give each following operation its own time budget, which ends with the
+     * inherited deadline at the latest.
+     * @param timeout  in milliseconds; 0 for none
+     */
+    public void setTimeout(final long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.timeout = timeout;
+    }
+
+    /** the service with the deadline of the next operation */
+    private AsyncVVService async() {
+        Deadline outer = deadline;
+        if (outer == null) {
+            outer = Deadline.current();
+        }
+        if (outer == null) {
+            outer = async.getDeadline();
+        }
+        long budget = timeout;
+        if (budget > 0) {
+            return async.withDeadline((outer == null) ? Deadline.after(budget) : outer.limit(budget));
+        }
+        return (outer == async.getDeadline()) ? async : async.withDeadline(outer);
+    }
+
+    /**
+     * Create the transport used by the default constructor. It trusts the
+     * bundled VV root certificate only; GET requests are retried and hedged
+     * by a ResilientTransport, and a RateGovernor keeps the load on the
+     * server within its limits.
+     * @return
+     */
+    public static HttpsTransport createDefaultTransport() {
+        HttpsHelper helper = new HttpsHelper();
         try {
             /* Load the SSL certificate for connections with the VV server. The key store containing
             * the certificate has been created as follows:
             * user@swtest:~$ wget https://volksverschluesselung.de/cert/VV-Root-CA.pem
             * user@swtest:~$ keytool -keystore vv-root-ca.cer -import -alias VV-Root-CA -file VV-Root-CA.pem
             */
-            https.loadTrustStore(System.class.getResource("/vv-root-ca.cer"), "changeit".toCharArray());
+            helper.loadTrustStore(VVService.class.getResource("/vv-root-ca.cer"), "changeit".toCharArray());
         } catch (IOException | KeyStoreException ex) {
             Logger.getLogger(VVService.class.getName()).log(Level.WARNING, 
                     "Unable to load SSL certificates", ex);
         }
+
+        if ("urlconnection".equals(System.getProperty(TRANSPORT_PROPERTY))) {
+            return new ResilientTransport(new RateGovernor(helper));
+        }
+        return new ResilientTransport(new RateGovernor(new HttpClientTransport(helper.getSSLContext())));
     }
 
     /**
@@ -63,7 +158,7 @@ public class VVService {
      * @throws IOException 
      */
     public String serviceStatus() throws IOException {
-        return https.request("GET", VVSERVER + "/status/");
+        return AsyncVVService.await(async().serviceStatus());
     }
     
     /**
@@ -73,8 +168,7 @@ public class VVService {
      * @throws IOException 
      */
     public void initProcess() throws IOException {
-        String reply = https.request("POST", VVSERVER + "/process/");
-        processId = new JSONObject(reply).getJSONObject("Data").getString("ProcessId");
+        processId = AsyncVVService.await(async().initProcess());
     }
     
     /**
@@ -84,9 +178,7 @@ public class VVService {
      * @throws IOException
      */
     public String processStatus() throws IOException {
-        String reply = https.request("GET", VVSERVER + "/process/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8"));
-        return new JSONObject(reply).getJSONObject("Result").getString("ProcessStatus");
+        return AsyncVVService.await(async().processStatus(processId));
     }
 
     /**
@@ -96,9 +188,7 @@ public class VVService {
      * @throws IOException 
      */
     public void selectAuthMethod(String method) throws IOException {
-        https.request("POST", VVSERVER + "/auth/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8") +
-            "&auth_type=" + URLEncoder.encode(method, "UTF-8"));
+        AsyncVVService.await(async().selectAuthMethod(processId, method));
     }
     
     /**
@@ -107,9 +197,7 @@ public class VVService {
      * @throws java.io.IOException 
      */
     public String initEidSession() throws IOException {
-        String reply = https.request("POST", VVSERVER + "/auth/eid/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8"));
-        return new JSONObject(reply).getJSONObject("Data").getString("EIdSession");
+        return AsyncVVService.await(async().initEidSession(processId));
     }
 
     /**
@@ -120,21 +208,7 @@ public class VVService {
      * @throws IOException 
      */
     public String performEidAuthentication(String eidSession) throws IOException {
-        String tokenURL = "https://ra.volksverschluesselung.de/auth/eid/?eid_session=" + URLEncoder.encode(eidSession, "UTF-8");
-        String url = "http://127.0.0.1:24727/eID-Client?tcTokenURL=" + URLEncoder.encode(tokenURL, "UTF-8");
-
-        String redirectTo;
-        try {
-            redirectTo = HttpHelper.requestRedirect("GET", url);
-        } catch (IOException ex) {
-            throw new IOException("Could not connect to local openecard application.", ex);
-        }
-        Matcher matcher = Pattern.compile("auth_key=([^&]+)").matcher(redirectTo);
-        if (!matcher.find()) {
-            throw new IllegalStateException("auth_key not found in redirection target");
-        }
-        String authKey = URLDecoder.decode(matcher.group(1), "UTF-8");
-        return authKey;
+        return AsyncVVService.await(async().performEidAuthentication(eidSession));
     }
 
     /**
@@ -145,10 +219,7 @@ public class VVService {
      * @throws IOException 
      */
     public String confirmEidSession(String eidSession, String authCode) throws IOException {
-        return https.request("PUT", VVSERVER + "/auth/eid/" +
-            "?eid_session=" + URLEncoder.encode(eidSession, "UTF-8") +
-            "&eid_authkey=" + URLEncoder.encode(authCode, "UTF-8") +
-            "&success=true");
+        return AsyncVVService.await(async().confirmEidSession(eidSession, authCode));
     }
 
     /**
@@ -157,10 +228,7 @@ public class VVService {
      * @throws IOException 
      */
     public void submitEmailAddress(String email) throws IOException {
-        https.request("POST", VVSERVER + "/email/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8") +
-            "&email_addr=" + URLEncoder.encode(email, "UTF-8") +
-            "&force_flag=false");
+        AsyncVVService.await(async().submitEmailAddress(processId, email));
     }
 
     /**
@@ -169,9 +237,7 @@ public class VVService {
      * @throws IOException 
      */
     public void validateEmailAddress(String validationCode) throws IOException {
-        https.request("PUT", VVSERVER + "/email/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8") +
-            "&validation_code=" + URLEncoder.encode(validationCode, "UTF-8"));
+        AsyncVVService.await(async().validateEmailAddress(processId, validationCode));
     }
 
     /**
@@ -180,8 +246,7 @@ public class VVService {
      * @throws IOException 
      */
     public String requestPersonalData() throws IOException {
-        return https.request("GET", VVSERVER + "/users/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8"));
+        return AsyncVVService.await(async().requestPersonalData(processId));
     }
     /**
      * Upload a certificate signing request.
@@ -190,10 +255,40 @@ public class VVService {
      * @throws IOException 
      */
     public void uploadCSR(String certType, byte[] csrData) throws IOException {
-        https.request("POST", VVSERVER + "/certificates/" +
-                "?process_id=" + URLEncoder.encode(processId, "UTF-8") +
-                "&cert_type=" + URLEncoder.encode(certType, "UTF-8"),
-            "certification_request", csrData);
+        AsyncVVService.await(async().uploadCSR(processId, certType, csrData));
+    }
+
+    /**
+     * Upload a certificate signing request from a file without reading it
+     * into memory.
+     * @param certType either "sign", "auth", or "encr"
+     * @param csrFile
+     * @throws IOException 
+     */
+    public void uploadCSR(String certType, Path csrFile) throws IOException {
+        AsyncVVService.await(async().uploadCSR(processId, certType, csrFile));
+    }
+
+    /**
+     * Upload a certificate signing request from a channel without reading it
+     * into memory.
+     * @param certType either "sign", "auth", or "encr"
+     * @param csrChannel  provides exactly size bytes; it is closed after sending
+     * @param size
+     * @throws IOException 
+     */
+    public void uploadCSR(String certType, ReadableByteChannel csrChannel, long size) throws IOException {
+        AsyncVVService.await(async().uploadCSR(processId, certType, csrChannel, size));
+    }
+    
+    /**
+     * Upload several certificate signing requests at the same time.
+     * @param csrFiles  the CSR files, by certificate type
+     * @throws BatchException  if some uploads failed; the others have completed
+     * @throws IOException 
+     */
+    public void uploadCSRs(Map<String, Path> csrFiles) throws IOException {
+        AsyncVVService.await(async().uploadCSRs(processId, csrFiles));
     }
     
     /**
@@ -201,9 +296,7 @@ public class VVService {
      * @throws IOException 
      */
     public void uploadFinished() throws IOException {
-        https.request("PUT", VVSERVER + "/certificates/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8") +
-            "&publish=false");
+        AsyncVVService.await(async().uploadFinished(processId));
     }
     
     /**
@@ -213,14 +306,54 @@ public class VVService {
      * @throws IOException 
      */
     public byte[] downloadCert(String certType) throws IOException {
-        String reply = https.request("GET", VVSERVER + "/certificates/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8") +
-            "&cert_type=" + URLEncoder.encode(certType, "UTF-8"));
+        return AsyncVVService.await(async().downloadCert(processId, certType));
+    }
 
-        JSONObject json = new JSONObject(reply);
-        String cert64 = json.getJSONObject("Data").getString("CertificateData");
-        byte[] cert = Base64.getDecoder().decode(cert64);
-        return cert;
+    /**
+     * Download a signed certificate and write it to a stream without
+     * holding the whole certificate in memory.
+     * @param certType
+     * @param out  receives the certificate in DER format; it is not closed
+     * @return  the number of bytes written
+     * @throws IOException 
+     */
+    public long downloadCert(String certType, OutputStream out) throws IOException {
+        return AsyncVVService.await(async().downloadCert(processId, certType, out));
+    }
+
+    /**
+     * Download a signed certificate and save it to a new file. If the
+     * download fails, the file is removed.
+     * @param certType
+     * @param file  must not exist yet
+     * @return  the number of bytes written
+     * @throws IOException 
+     */
+    public long downloadCert(String certType, Path file) throws IOException {
+        return AsyncVVService.await(async().downloadCert(processId, certType, file));
+    }
+
+    /**
+     * Download several signed certificates at the same time.
+     * @param certTypes
+     * @return  the certificates, by certificate type
+     * @throws BatchException  if some downloads failed
+     * @throws IOException 
+     */
+    public Map<String, byte[]> downloadCerts(Set<String> certTypes) throws IOException {
+        return AsyncVVService.await(async().downloadCerts(processId, certTypes));
+    }
+
+    /**
+     * Download several signed certificates at the same time and save them
+     * into a directory as cert_[type].der.
+     * @param certTypes
+     * @param dir  must not contain the certificate files yet
+     * @throws BatchException  if some downloads failed; the other files are kept
+     * @throws IOException 
+     */
+    public void downloadCerts(Set<String> certTypes, Path dir) throws IOException {
+        AsyncVVService.await(async().downloadCerts(processId, certTypes, dir));
     }
 
     /**
@@ -228,9 +361,7 @@ public class VVService {
      * @throws IOException 
      */
     public void finalizeProcess() throws IOException {
-        https.request("DELETE", VVSERVER + "/process/" +
-            "?process_id=" + URLEncoder.encode(processId, "UTF-8") +
-            "&success=true");
+        AsyncVVService.await(async().finalizeProcess(processId));
         processId = "";
     }
     
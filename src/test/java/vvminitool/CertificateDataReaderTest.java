@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class CertificateDataReaderTest {
+
+    private static byte[] transfer(final String reply) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long size = CertificateDataReader.transfer(
+                new ByteArrayInputStream(reply.getBytes(StandardCharsets.UTF_8)), out);
+        assertEquals(out.size(), size);
+        return out.toByteArray();
+    }
+
+    private static String reply(final String certificateData) {
+        return "{\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\",\"ProcessStatus\":\"CERTS_SIGNED\"}," +
+                "\"Data\":{\"CertificateData\":\"" + certificateData + "\"}}";
+    }
+
+    @Test
+    void decodesACertificateLargerThanTheBuffer() throws Exception {
+        byte[] cert = new byte[100000];
+        new Random(4711).nextBytes(cert);
+        assertArrayEquals(cert, transfer(reply(Base64.getEncoder().encodeToString(cert))));
+    }
+
+    @Test
+    void resolvesEscapedSlashesAndLineBreaks() throws Exception {
+        byte[] cert = new byte[300];
+        new Random(4712).nextBytes(cert);
+        String encoded = Base64.getMimeEncoder().encodeToString(cert)
+                .replace("/", "\\/").replace("\r\n", "\\r\\n");
+        assertArrayEquals(cert, transfer(reply(encoded)));
+    }
+
+    @Test
+    void findsTheKeyNotAnEqualValue() throws Exception {
+        byte[] cert = {48, 3, 2, 1, 0};
+        String reply = "{\"Note\":\"CertificateData\",\"Data\":{\"Esc\\\"aped\":\"x\"," +
+                "\"CertificateData\" : \"" + Base64.getEncoder().encodeToString(cert) + "\"}}";
+        assertArrayEquals(cert, transfer(reply));
+    }
+
+    @Test
+    void failsWithoutCertificate() {
+        assertThrows(IOException.class, () -> transfer("{\"Result\":{\"ErrorCode\":\"NO_CERT\"}}"));
+        assertThrows(IOException.class, () -> transfer("{\"Data\":{\"CertificateData\":null}}"));
+        assertThrows(IOException.class, () -> transfer(""));
+    }
+
+    @Test
+    void failsOnInvalidData() {
+        assertThrows(IOException.class, () -> transfer(reply("not*base64")));
+        assertThrows(IOException.class, () -> transfer(reply("AQID\\u0041")));
+        assertThrows(IOException.class, () -> transfer("{\"Data\":{\"CertificateData\":\"AQID"));
+    }
+}
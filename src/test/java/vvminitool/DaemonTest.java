@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DaemonTest {
+    @TempDir
+    Path dir;
+
+    private Path socket;
+    private CompletableFuture<Void> daemon;
+
+    /** start a daemon and wait until it listens */
+    private void start(final Daemon.Command command) throws Exception {
+        socket = dir.resolve("d.sock");
+        AsyncVVService service = new AsyncVVService(StubTransport.of("{}"));
+        daemon = CompletableFuture.runAsync(() -> {
+            try {
+                Daemon.serve(socket, service, null, command);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }, r -> new Thread(r).start());
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!Files.exists(socket)) {
+            assertTrue(System.nanoTime() < end, "daemon does not listen");
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        if (daemon != null && !daemon.isDone()) {
+            Daemon.stop(socket);
+            daemon.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private CompletableFuture<Integer> forward(final PrintStream out, final String... args) {
+        return CompletableFuture.supplyAsync(() -> Daemon.forward(socket, args, dir, out, out),
+                r -> new Thread(r).start());
+    }
+
+    @Test
+    void runsACommand() throws Exception {
+        start((args, workDir, service, out, err) -> {
+            out.print(args[0] + " in " + workDir.getFileName());
+            return 3;
+        });
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(3, forward(new PrintStream(output, true, StandardCharsets.UTF_8), "status")
+                .get(5, TimeUnit.SECONDS));
+        assertEquals("status in " + dir.getFileName(), output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void stopWaitsForRunningCommands() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        start((args, workDir, service, out, err) -> {
+            running.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                return 2;
+            }
+            out.print("done");
+            return 0;
+        });
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CompletableFuture<Integer> exitCode = forward(new PrintStream(output, true, StandardCharsets.UTF_8), "watch");
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        assertTrue(Daemon.stop(socket));
+        Thread.sleep(200);
+        assertFalse(daemon.isDone());
+        release.countDown();
+        daemon.get(5, TimeUnit.SECONDS);
+        assertEquals(0, exitCode.get(5, TimeUnit.SECONDS));
+        assertEquals("done", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void disconnectCancelsTheCommand() throws Exception {
+        CompletableFuture<IOException> cancelled = new CompletableFuture<>();
+        start((args, workDir, service, out, err) -> {
+            Deadline deadline = service.getDeadline();
+            deadline.onAbort(() -> cancelled.complete(deadline.exception()));
+            try {
+                cancelled.get(5, TimeUnit.SECONDS);
+            } catch (Exception ex) {
+                return 2;
+            }
+            return 1;
+        });
+        try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(client));
+            request.writeUTF(dir.toString());
+            request.writeInt(1);
+            request.writeUTF("watch");
+            request.flush();
+        }
+        assertInstanceOf(InterruptedIOException.class, cancelled.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void finishedCommandIsNotCancelled() throws Exception {
+        CompletableFuture<Deadline> deadline = new CompletableFuture<>();
+        start((args, workDir, service, out, err) -> {
+            deadline.complete(service.getDeadline());
+            return 0;
+        });
+        assertEquals(0, forward(new PrintStream(new ByteArrayOutputStream()), "status").get(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(null, deadline.get().exception());
+    }
+}
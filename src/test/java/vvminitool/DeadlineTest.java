@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class DeadlineTest {
+    @Test
+    void expires() throws Exception {
+        Deadline deadline = Deadline.after(100);
+        assertNull(deadline.exception());
+        CountDownLatch aborted = new CountDownLatch(1);
+        deadline.onAbort(aborted::countDown);
+        assertTrue(aborted.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(HttpTimeoutException.class, deadline.exception());
+        assertThrows(HttpTimeoutException.class, deadline::check);
+    }
+
+    @Test
+    void cancelRunsTheRegisteredActionsOnce() {
+        Deadline deadline = Deadline.after(60000);
+        AtomicInteger aborts = new AtomicInteger();
+        deadline.onAbort(aborts::incrementAndGet);
+        deadline.onAbort(aborts::incrementAndGet).run();
+        deadline.cancel();
+        deadline.cancel();
+        assertEquals(1, aborts.get());
+        assertInstanceOf(InterruptedIOException.class, deadline.exception());
+        // too late: the action runs at once
+        deadline.onAbort(aborts::incrementAndGet);
+        assertEquals(2, aborts.get());
+    }
+
+    @Test
+    void limitEndsWithItsParent() {
+        Deadline parent = Deadline.after(60000);
+        Deadline child = parent.limit(30000);
+        assertTrue(child.getBudget() <= 30000);
+        AtomicInteger aborts = new AtomicInteger();
+        child.onAbort(aborts::incrementAndGet);
+        parent.cancel();
+        assertEquals(1, aborts.get());
+        assertSame(parent.exception(), child.exception());
+        assertTrue(parent.limit(60000).getBudget() <= parent.getBudget());
+    }
+
+    @Test
+    void releasedDeadlineAbortsNothing() {
+        Deadline parent = Deadline.after(60000);
+        Deadline child = parent.limit(100);
+        AtomicInteger aborts = new AtomicInteger();
+        child.onAbort(aborts::incrementAndGet);
+        child.release();
+        parent.cancel();
+        child.onAbort(aborts::incrementAndGet);
+        assertEquals(0, aborts.get());
+        assertNull(child.exception());
+    }
+
+    @Test
+    void transportFailsRequestsInFlight() {
+        Deadline deadline = Deadline.after(60000);
+        HttpsTransport transport = new DeadlineTransport(
+                new StubTransport((method, url) -> new CompletableFuture<>()), deadline);
+        CompletableFuture<String> reply = transport.requestAsync("GET", "https://ra.example/status/", null);
+        deadline.cancel();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(InterruptedIOException.class, ex.getCause());
+        // and further requests fail at once
+        assertThrows(InterruptedIOException.class, () -> transport.request("GET", "https://ra.example/", null));
+    }
+
+    @Test
+    void transportSendsRedirectsWithTheDeadline() throws IOException {
+        Deadline deadline = Deadline.after(60000);
+        HttpsTransport transport = new DeadlineTransport(new StubTransport((method, url) -> null) {
+            @Override
+            public String requestRedirect(final String method, final String url) {
+                return (Deadline.current() == deadline) ? "bounded" : "unbounded";
+            }
+        }, deadline);
+        assertEquals("bounded", transport.requestRedirect("GET", "http://127.0.0.1/eID-Client"));
+        deadline.cancel();
+        assertThrows(InterruptedIOException.class, () -> transport.requestRedirect("GET", "http://127.0.0.1/"));
+    }
+
+    @Test
+    void abortsStreamsUntilTheyAreClosed() throws Exception {
+        Deadline deadline = Deadline.after(200);
+        BlockingStream body = new BlockingStream();
+        InputStream in = Deadline.bind(deadline, body);
+        long start = System.nanoTime();
+        assertThrows(HttpTimeoutException.class, in::read);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+
+        // a stream which has been closed is no longer aborted
+        Deadline other = Deadline.after(60000);
+        BlockingStream closed = new BlockingStream();
+        Deadline.bind(other, closed).close();
+        closed.closed = false;
+        other.cancel();
+        assertFalse(closed.closed);
+    }
+
+    /** a body whose reads block until it is closed */
+    private static final class BlockingStream extends InputStream {
+        private final CountDownLatch closing = new CountDownLatch(1);
+        volatile boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            try {
+                closing.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Stream closed");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            closing.countDown();
+        }
+    }
+}
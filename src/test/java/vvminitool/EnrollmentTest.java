@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EnrollmentTest {
+    private static final String SERVER = "https://ra.example";
+
+    @TempDir
+    Path dir;
+
+    /** the input is never needed once the certificates can be requested */
+    private static final Enrollment.Interaction NO_INPUT = new Enrollment.Interaction() {
+        @Override
+        public String emailAddress() {
+            return null;
+        }
+
+        @Override
+        public String validationCode() {
+            return null;
+        }
+    };
+
+    private static long count(final List<String> requests, final String prefix) {
+        return requests.stream().filter(request -> request.startsWith(prefix)).count();
+    }
+
+    @Test
+    void resumedEnrollmentUploadsOnlyTheMissingCsrs() throws Exception {
+        final AtomicReference<String> status = new AtomicReference<>("CERT_AWAIT_REQUEST");
+        final AtomicBoolean failEncr = new AtomicBoolean(true);
+        StubTransport transport = new StubTransport((method, url) -> {
+            if (method.equals("POST") && url.endsWith("cert_type=encr") && failEncr.getAndSet(false)) {
+                return StubTransport.error(400, null);
+            }
+            if (method.equals("PUT") && url.startsWith(SERVER + "/certificates/")) {
+                status.set("CERT_AVAILABLE");
+            }
+            if (method.equals("GET") && url.startsWith(SERVER + "/certificates/")) {
+                return CompletableFuture.completedFuture("{\"Data\":{\"CertificateData\":\"MAA=\"}}");
+            }
+            return CompletableFuture.completedFuture(StubTransport.status(status.get()));
+        });
+        AsyncVVService service = new AsyncVVService(transport, null, 0, SERVER, AsyncVVService.DEFAULT_EID_CLIENT);
+        for (String certType : VVService.CERT_TYPES) {
+            Files.write(dir.resolve("csr_" + certType + ".der"), new byte[] {0x30, 0x00});
+        }
+
+        try (ProcessJournal journal = ProcessJournal.open(dir.resolve("journal"));
+                StatusWatcher watcher = new StatusWatcher(service, 10, 20)) {
+            Enrollment enrollment = new Enrollment(service, journal, new KeyGen(), watcher);
+            enrollment.start("4711", dir);
+            Exception ex = assertThrows(Exception.class, () -> enrollment.run(NO_INPUT));
+            assertInstanceOf(HttpStatusException.class, ex);
+            assertEquals(Set.of("sign", "auth"), journal.getSettings("enroll.uploaded.").keySet());
+
+            assertTrue(enrollment.run(NO_INPUT));
+            assertTrue(journal.getSettings("enroll.uploaded.").isEmpty());
+        }
+
+        List<String> requests = transport.getRequests();
+        assertEquals(1, count(requests, "POST " + SERVER + "/certificates/?process_id=4711&cert_type=sign"));
+        assertEquals(1, count(requests, "POST " + SERVER + "/certificates/?process_id=4711&cert_type=auth"));
+        assertEquals(2, count(requests, "POST " + SERVER + "/certificates/?process_id=4711&cert_type=encr"));
+        assertEquals(1, count(requests, "PUT " + SERVER + "/certificates/"));
+        assertEquals(List.of("cert_auth.der", "cert_encr.der", "cert_sign.der"), Files.list(dir)
+                .map(file -> file.getFileName().toString()).filter(name -> name.startsWith("cert_"))
+                .sorted().collect(Collectors.toList()));
+    }
+}
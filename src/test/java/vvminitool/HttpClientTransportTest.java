@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Counts the TLS handshakes per 100 requests: the transports keep their
+ * connections alive, so they must not shake hands for every request.
+ */
+class HttpClientTransportTest {
+    private static final String REPLY = "{\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\"}}";
+    private static final int REQUESTS = 100;
+
+    @Test
+    void reusesTheConnectionForSequentialRequests() throws Exception {
+        try (TlsStubServer server = new TlsStubServer(REPLY)) {
+            HttpClientTransport transport = new HttpClientTransport(TlsStubServer.createHelper().getSSLContext());
+            for (int i = 0; i < REQUESTS; i++) {
+                assertEquals(REPLY, transport.request("GET", server.getUrl() + "/status/", null));
+            }
+            assertEquals(1, server.getHandshakes());
+        }
+    }
+
+    @Test
+    void sharesFewConnectionsBetweenConcurrentRequests() throws Exception {
+        try (TlsStubServer server = new TlsStubServer(REPLY)) {
+            HttpClientTransport transport = new HttpClientTransport(TlsStubServer.createHelper().getSSLContext());
+            for (int round = 0; round < REQUESTS / 10; round++) {
+                List<CompletableFuture<String>> replies = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    replies.add(transport.requestAsync("GET", server.getUrl() + "/status/", null));
+                }
+                for (CompletableFuture<String> reply : replies) {
+                    assertEquals(REPLY, reply.get());
+                }
+            }
+            // at most one connection per concurrent request, opened in the first round
+            assertTrue(server.getHandshakes() <= 10, server.getHandshakes() + " handshakes");
+        }
+    }
+
+    @Test
+    void urlConnectionFallbackKeepsConnectionsAlive() throws Exception {
+        try (TlsStubServer server = new TlsStubServer(REPLY)) {
+            HttpsHelper helper = TlsStubServer.createHelper();
+            for (int i = 0; i < REQUESTS; i++) {
+                assertEquals(REPLY, helper.request("GET", server.getUrl() + "/status/", null));
+            }
+            assertTrue(server.getHandshakes() <= 2, server.getHandshakes() + " handshakes");
+        }
+    }
+}
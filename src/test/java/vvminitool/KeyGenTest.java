@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class KeyGenTest {
+    private static final String HASH = "0123456789abcdef";
+
+    @TempDir
+    Path dir;
+
+    private final KeyGen keyGen = new KeyGen(1024, null);
+
+    private byte[] generate() throws Exception {
+        return keyGen.generate(HASH, "sign", dir).get(30, TimeUnit.SECONDS);
+    }
+
+    private List<String> files() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void writesKeyAndCsr() throws Exception {
+        byte[] csr = generate();
+        assertEquals(List.of("csr_sign.der", "key_sign.pem"), files());
+        assertArrayEquals(csr, Files.readAllBytes(dir.resolve("csr_sign.der")));
+        Pkcs12Assembler.readPrivateKey(dir.resolve("key_sign.pem"), "RSA");
+    }
+
+    @Test
+    void createsTheCsrOfAnInterruptedRunForItsKey() throws Exception {
+        byte[] csr = generate();
+        byte[] key = Files.readAllBytes(dir.resolve("key_sign.pem"));
+        // as if the run had stopped after the key had been moved into place
+        Files.delete(dir.resolve("csr_sign.der"));
+        Files.write(dir.resolve("csr_sign.der.tmp"), new byte[] {1, 2});
+
+        // signatures with PKCS#1 v1.5 padding are deterministic
+        assertArrayEquals(csr, generate());
+        assertArrayEquals(key, Files.readAllBytes(dir.resolve("key_sign.pem")));
+        assertEquals(List.of("csr_sign.der", "key_sign.pem"), files());
+    }
+
+    @Test
+    void neverOverwritesAKey() throws Exception {
+        byte[] csr = generate();
+        byte[] key = Files.readAllBytes(dir.resolve("key_sign.pem"));
+        ExecutionException ex = assertThrows(ExecutionException.class, this::generate);
+        assertInstanceOf(FileAlreadyExistsException.class, ex.getCause());
+        assertArrayEquals(key, Files.readAllBytes(dir.resolve("key_sign.pem")));
+        assertArrayEquals(csr, Files.readAllBytes(dir.resolve("csr_sign.der")));
+        assertEquals(List.of("csr_sign.der", "key_sign.pem"), files());
+    }
+}
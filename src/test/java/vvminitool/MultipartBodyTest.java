@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MultipartBodyTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] written(final MultipartBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void encodesASingleFile() throws Exception {
+        MultipartBody body = MultipartBody.of("CSR", "content".getBytes(StandardCharsets.UTF_8));
+        String encoded = new String(written(body), StandardCharsets.UTF_8);
+        assertEquals("--" + MultipartBody.BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"CSR\"; filename=\"CSR\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n" +
+                "content\r\n--" + MultipartBody.BOUNDARY + "--\r\n", encoded);
+        assertEquals(encoded.length(), body.getContentLength());
+        assertTrue(body.getContentType().endsWith("boundary=" + MultipartBody.BOUNDARY));
+    }
+
+    @Test
+    void streamsAFileEachTimeItIsSent() throws Exception {
+        byte[] content = new byte[50000];
+        new Random(4711).nextBytes(content);
+        Path file = dir.resolve("csr.der");
+        Files.write(file, content);
+        MultipartBody body = MultipartBody.of("CSR", file);
+
+        byte[] first = written(body);
+        assertEquals(body.getContentLength(), first.length);
+        try (InputStream in = body.openStream()) {
+            assertArrayEquals(first, in.readAllBytes());
+        }
+        assertArrayEquals(first, written(body));
+        assertArrayEquals(written(MultipartBody.of("CSR", content)), first);
+    }
+
+    @Test
+    void sendsAChannelOnce() throws Exception {
+        byte[] content = {1, 2, 3};
+        MultipartBody body = MultipartBody.of("CSR",
+                Channels.newChannel(new ByteArrayInputStream(content)), content.length);
+        assertEquals(body.getContentLength(), written(body).length);
+        assertThrows(IOException.class, () -> written(body));
+    }
+
+    @Test
+    void failsIfTheSizeIsWrong() {
+        byte[] content = {1, 2, 3};
+        assertThrows(IOException.class, () -> written(MultipartBody.of("CSR",
+                Channels.newChannel(new ByteArrayInputStream(content)), 4)));
+        assertThrows(IOException.class, () -> written(MultipartBody.of("CSR",
+                Channels.newChannel(new ByteArrayInputStream(content)), 2)));
+    }
+}
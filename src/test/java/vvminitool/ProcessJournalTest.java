@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProcessJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysTheRecordsWhenOpened() throws IOException {
+        Path file = dir.resolve("journal");
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            assertTrue(journal.isNew());
+            ProcessFleet.Entry entry = new ProcessFleet.Entry("alice", "id-alice", "AUTH_PENDING", 1);
+            journal.put(entry);
+            journal.putSetting("processId", "id-alice");
+            journal.put(entry.withStatus("CERT_IN_PROGRESS"));
+        }
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            assertFalse(journal.isNew());
+            assertEquals("CERT_IN_PROGRESS", journal.get("alice").getStatus());
+            assertEquals("alice", journal.getByProcessId("id-alice").getName());
+            assertEquals("id-alice", journal.getSetting("processId", ""));
+        }
+    }
+
+    @Test
+    void tornRecordEndsTheJournal() throws IOException {
+        Path file = dir.resolve("journal");
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            journal.putSetting("a", "1");
+            journal.putSetting("b", "2");
+        }
+        // a crash while the second record was written: its payload is incomplete
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 0);
+            long second = 8 + length.getInt(0);
+            ByteBuffer payload = ByteBuffer.allocate(1);
+            channel.read(payload, second + 8 + 2);
+            payload.put(0, (byte) ~payload.get(0));
+            channel.write(payload.rewind(), second + 8 + 2);
+        }
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            assertEquals("1", journal.getSetting("a", null));
+            assertNull(journal.getSetting("b", null));
+            journal.putSetting("c", "3");
+        }
+        // the next record has overwritten the torn one
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            assertEquals("1", journal.getSetting("a", null));
+            assertNull(journal.getSetting("b", null));
+            assertEquals("3", journal.getSetting("c", null));
+        }
+    }
+
+    @Test
+    void compactionKeepsTheState() throws IOException {
+        Path file = dir.resolve("journal");
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            for (int i = 0; i < 50; i++) {
+                journal.putSetting("k", "v" + i);
+            }
+            journal.put(new ProcessFleet.Entry("bob", "id-bob", "EMAIL_PENDING", 1));
+            journal.putSetting("gone", "x");
+            journal.removeSetting("gone");
+            journal.compact();
+            assertEquals("v49", journal.getSetting("k", null));
+            journal.putSetting("after", "y");
+        }
+        assertFalse(Files.exists(dir.resolve("journal.compact")));
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            assertEquals("v49", journal.getSetting("k", null));
+            assertEquals("EMAIL_PENDING", journal.get("bob").getStatus());
+            assertNull(journal.getSetting("gone", null));
+            assertEquals("y", journal.getSetting("after", null));
+        }
+    }
+
+    @Test
+    void interruptedCompactionIsFinishedWhenOpened() throws IOException {
+        Path file = dir.resolve("journal");
+        Path old = dir.resolve("old");
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            for (int i = 0; i < 50; i++) {
+                journal.putSetting("k", "v" + i);
+            }
+            // keep the old file, which gets the mark
+            Files.createLink(old, file);
+            journal.compact();
+        }
+        // the crash came after the mark, before the compacted file was moved
+        byte[] compacted = Files.readAllBytes(file);
+        Files.move(old, file, StandardCopyOption.REPLACE_EXISTING);
+        Files.write(dir.resolve("journal.compact"), Arrays.copyOf(compacted, recordsEnd(compacted)));
+
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            assertEquals("v49", journal.getSetting("k", null));
+            journal.putSetting("x", "1");
+        }
+        assertFalse(Files.exists(dir.resolve("journal.compact")));
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            assertEquals("1", journal.getSetting("x", null));
+        }
+    }
+
+    @Test
+    void markWithoutCompactedFileIsReported() throws IOException {
+        Path file = dir.resolve("journal");
+        Path old = dir.resolve("old");
+        try (ProcessJournal journal = ProcessJournal.open(file)) {
+            journal.putSetting("k", "v");
+            Files.createLink(old, file);
+            journal.compact();
+        }
+        Files.move(old, file, StandardCopyOption.REPLACE_EXISTING);
+        IOException e = assertThrows(IOException.class, () -> ProcessJournal.open(file));
+        assertTrue(e.getMessage().contains("compacted file is missing"), e.getMessage());
+    }
+
+    /** the end of the framed records in a file which may be longer */
+    private static int recordsEnd(final byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int end = 0;
+        while (end + 8 <= data.length && buffer.getInt(end) > 0) {
+            end += 8 + buffer.getInt(end);
+        }
+        return end;
+    }
+}
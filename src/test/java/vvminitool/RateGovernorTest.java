@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RateGovernorTest {
+    private static final String URL = "https://ra.example/process/?process_id=4711";
+    private static final String ENDPOINT = "GET /process/";
+
+    /** replies which are completed by the test */
+    private final List<CompletableFuture<String>> pending = new CopyOnWriteArrayList<>();
+    private final StubTransport transport = new StubTransport((method, url) -> {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        pending.add(reply);
+        return reply;
+    });
+
+    private RateGovernor governor(final int initialLimit, final int maxLimit) {
+        RateGovernor governor = new RateGovernor(transport);
+        governor.setRate(1000, 1000);
+        governor.setConcurrencyLimits(initialLimit, maxLimit);
+        return governor;
+    }
+
+    /** send requests which are in flight together and answer them */
+    private void round(final RateGovernor governor, final int requests) throws Exception {
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            replies.add(governor.requestAsync("GET", URL, null));
+        }
+        for (CompletableFuture<String> reply : new ArrayList<>(pending)) {
+            pending.remove(reply);
+            reply.complete("{}");
+        }
+        for (CompletableFuture<String> reply : replies) {
+            reply.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void capsTheRequestsInFlight() throws Exception {
+        RateGovernor governor = governor(2, 2);
+        CompletableFuture<String> first = governor.requestAsync("GET", URL, null);
+        governor.requestAsync("GET", URL, null);
+        CompletableFuture<String> third = governor.requestAsync("GET", URL, null);
+        assertEquals(2, transport.getRequests().size());
+        assertEquals(1, governor.getQueueDepth(ENDPOINT));
+
+        pending.get(0).complete("{}");
+        assertEquals("{}", first.get(5, TimeUnit.SECONDS));
+        assertEquals(3, transport.getRequests().size());
+        assertEquals(0, governor.getQueueDepth());
+        assertFalse(third.isDone());
+    }
+
+    @Test
+    void limitGrowsWhileItIsUsed() throws Exception {
+        RateGovernor governor = governor(2, 3);
+        for (int i = 0; i < 3; i++) {
+            round(governor, 1);
+        }
+        // a limit which is not reached does not grow
+        assertEquals(2, governor.getLimit(ENDPOINT));
+        for (int i = 0; i < 10; i++) {
+            round(governor, governor.getLimit(ENDPOINT));
+        }
+        assertEquals(3, governor.getLimit(ENDPOINT));
+    }
+
+    @Test
+    void overloadHalvesTheLimitOnce() throws Exception {
+        RateGovernor governor = governor(8, 8);
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            replies.add(governor.requestAsync("GET", URL, null));
+        }
+        for (CompletableFuture<String> reply : pending) {
+            StubTransport.error(429, "0").whenComplete((r, ex) -> reply.completeExceptionally(ex));
+        }
+        for (CompletableFuture<String> reply : replies) {
+            ExecutionException ex = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(HttpStatusException.class, ex.getCause());
+        }
+        // the requests were in flight together, so they count as one overload
+        assertEquals(4, governor.getLimit(ENDPOINT));
+    }
+
+    @Test
+    void waitsForRetryAfter() throws Exception {
+        RateGovernor governor = governor(4, 4);
+        CompletableFuture<String> first = governor.requestAsync("GET", URL, null);
+        StubTransport.error(503, "1").whenComplete((r, ex) -> pending.get(0).completeExceptionally(ex));
+        assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        CompletableFuture<String> second = governor.requestAsync("GET", URL, null);
+        assertEquals(1, transport.getRequests().size());
+        assertEquals(1, governor.getQueueDepth(ENDPOINT));
+        // other endpoints are not paused
+        governor.requestAsync("POST", "https://ra.example/process/", null);
+        assertEquals(2, transport.getRequests().size());
+
+        while (pending.size() < 3) {
+            Thread.sleep(10);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        pending.get(2).complete("{}");
+        assertEquals("{}", second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void queuedRequestFailsAtItsDeadline() throws Exception {
+        RateGovernor governor = governor(1, 1);
+        governor.requestAsync("GET", URL, null);
+        CompletableFuture<String> waiting = Deadline.with(Deadline.after(100),
+                () -> governor.requestAsync("GET", URL, null));
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(HttpTimeoutException.class, ex.getCause());
+
+        pending.get(0).complete("{}");
+        // the expired request is not sent
+        Thread.sleep(50);
+        assertEquals(1, transport.getRequests().size());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RedactorTest {
+    private static final byte[] SALT = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final Pattern PROCESS_ID = Pattern.compile("\"ProcessId\":\"([^\"]*)\"");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void redactedUrlMatchesTheRequest() {
+        Redactor redactor = new Redactor(SALT);
+        String url = "https://ra.example/status?process_id=4711&x=1";
+        String redacted = redactor.redact(url);
+
+        assertFalse(redacted.contains("4711"), redacted);
+        assertEquals(1, redactor.size());
+        assertEquals(Redactor.template(url), Redactor.template(redacted));
+        assertEquals("https://ra.example/status?process_id=*&x=1", Redactor.template(url));
+        // the secret of a request is unknown to the log, the pseudonym is not
+        assertTrue(Redactor.matches(redacted, url));
+        assertTrue(Redactor.matches(redacted, redacted));
+        assertFalse(Redactor.matches(redacted, redactor.redact("https://ra.example/status?process_id=4712&x=1")));
+    }
+
+    @Test
+    void pseudonymsDependOnTheSalt() {
+        String reply = "{\"ProcessId\":\"4711\",\"Status\":\"AUTH_PENDING\"}";
+        String redacted = new Redactor(SALT).redact(reply);
+
+        assertFalse(redacted.contains("4711"), redacted);
+        assertEquals(redacted, new Redactor(SALT).redact(reply));
+        assertNotEquals(redacted, new Redactor("fedcba9876543210".getBytes(StandardCharsets.US_ASCII)).redact(reply));
+        // the same secret gets the same pseudonym in a URL and in a reply
+        String url = new Redactor(SALT).redact("https://ra.example/status?process_id=4711");
+        assertTrue(url.endsWith("=" + processId(redacted)), url);
+    }
+
+    @Test
+    void recordedExchangesCanBeReplayed() throws IOException {
+        Path file = dir.resolve("exchanges.log");
+        try (ExchangeLog log = ExchangeLog.create(file)) {
+            HttpsTransport recording = new RecordingTransport(new StubTransport(), log);
+            String id = processId(recording.request("GET", "https://ra.example/init"));
+            assertEquals("4711", id);
+            recording.request("GET", "https://ra.example/status?process_id=" + id);
+        }
+        String contents = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertFalse(contents.contains("4711"));
+
+        List<ExchangeLog.Exchange> exchanges = ExchangeLog.read(file);
+        assertEquals(2, exchanges.size());
+        ReplayTransport replay = new ReplayTransport(exchanges, false);
+        String id = processId(replay.request("GET", "https://ra.example/init"));
+        assertTrue(id.startsWith("redacted-"), id);
+        String status = replay.request("GET", "https://ra.example/status?process_id=" + id);
+        assertEquals(id, processId(status));
+        assertEquals(0, replay.getRemaining());
+        assertThrows(IOException.class, () -> replay.request("GET", "https://ra.example/init"));
+    }
+
+    private static String processId(final String reply) {
+        Matcher matcher = PROCESS_ID.matcher(reply);
+        assertTrue(matcher.find(), reply);
+        return matcher.group(1);
+    }
+
+    /** a registration authority with a single process */
+    private static final class StubTransport implements HttpsTransport {
+        @Override
+        public String request(final String method, final String url, final MultipartBody body) {
+            return url.endsWith("/init") ? "{\"ProcessId\":\"4711\"}"
+                    : "{\"ProcessId\":\"4711\",\"Status\":\"AUTH_PENDING\"}";
+        }
+
+        @Override
+        public InputStream open(final String method, final String url) {
+            return new ByteArrayInputStream(request(method, url, null).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public CompletableFuture<String> requestAsync(final String method, final String url,
+                final MultipartBody body) {
+            return CompletableFuture.completedFuture(request(method, url, body));
+        }
+
+        @Override
+        public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+            return CompletableFuture.completedFuture(open(method, url));
+        }
+    }
+}
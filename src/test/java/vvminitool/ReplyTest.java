@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ReplyTest {
+    private static final String URL = "https://ra.example/process/";
+
+    @Test
+    void readsTheEnvelopeAndTheRequestedData() throws Exception {
+        Reply reply = Reply.parse("{\"Data\":{\"Skipped\":[1,{\"a\":\"}\"}],\"ProcessId\":\"4711\"}," +
+                "\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\",\"ProcessStatus\":\"STARTED\"}}", "ProcessId");
+        assertEquals("GENERIC_SUCCESS", reply.getErrorCode());
+        assertEquals("STARTED", reply.getProcessStatus());
+        assertEquals("4711", reply.getData("ProcessId"));
+        assertThrows(IllegalArgumentException.class, () -> reply.getData("EIdSession"));
+    }
+
+    @Test
+    void resolvesEscapes() throws Exception {
+        Reply reply = Reply.parse(" {\n\"Data\" : {\"Value\":\"a\\\"b\\\\c\\/d\\u00e4\"} }", "Value");
+        assertEquals("a\"b\\c/dä", reply.getData("Value"));
+    }
+
+    @Test
+    void treatsNullObjectsAsMissing() throws Exception {
+        Reply reply = Reply.parse("{\"Result\":null,\"Data\":{\"ProcessId\":null}}", "ProcessId");
+        assertNull(reply.getErrorCode());
+        assertNull(reply.getProcessStatus());
+        IOException ex = assertThrows(IOException.class, () -> reply.requireData("ProcessId"));
+        assertEquals("Reply does not contain Data.ProcessId.", ex.getMessage());
+    }
+
+    @Test
+    void rejectsInvalidReplies() {
+        assertThrows(IOException.class, () -> Reply.parse(""));
+        assertThrows(IOException.class, () -> Reply.parse("<html>Bad Gateway</html>"));
+        assertThrows(IOException.class, () -> Reply.parse("{\"Data\":{\"ProcessId\":4711}}", "ProcessId"));
+        assertThrows(IOException.class, () -> Reply.parse("{\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\""));
+    }
+
+    @Test
+    void lenientParseReportsWhyAFieldIsMissing() {
+        String json = "<html>Bad Gateway</html>";
+        Reply reply = Reply.parseLenient(json, "ProcessId");
+        assertEquals(json, reply.getJson());
+        assertNull(reply.getProcessStatus());
+        IOException ex = assertThrows(IOException.class, () -> reply.requireData("ProcessId"));
+        assertInstanceOf(IOException.class, ex.getCause());
+    }
+
+    @Test
+    void checkResultFailsOnAnErrorCode() throws Exception {
+        HttpStatusException.checkResult(URL, Reply.envelope(Reply.SUCCESS, "STARTED"));
+        HttpStatusException.checkResult(URL, Reply.parseLenient("not json"));
+        HttpStatusException ex = assertThrows(HttpStatusException.class,
+                () -> HttpStatusException.checkResult(URL, Reply.envelope("INTERNAL_ERROR", "STARTED")));
+        assertEquals(200, ex.getStatusCode());
+        assertEquals("INTERNAL_ERROR", ex.getErrorCode());
+        ProcessStateException state = assertThrows(ProcessStateException.class,
+                () -> HttpStatusException.checkResult(URL,
+                        Reply.envelope(HttpStatusException.PROCESS_STATUS_INVALID, "EMAIL_PENDING")));
+        assertEquals("EMAIL_PENDING", state.getProcessStatus());
+    }
+
+    @Test
+    void streamReadsTheEnvelopeAroundTheCertificate() throws Exception {
+        byte[] cert = {1, 2, 3, 4, 5};
+        String json = "{\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\"},\"Data\":{\"CertificateData\":\"" +
+                Base64.getEncoder().encodeToString(cert) + "\"},\"Extra\":{\"ProcessStatus\":\"CERTS_SIGNED\"}}";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CertificateDataReader.Envelope envelope = new CertificateDataReader.Envelope();
+        assertEquals(cert.length, CertificateDataReader.transfer(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), out, envelope));
+        assertArrayEquals(cert, out.toByteArray());
+        Reply reply = envelope.toReply();
+        assertEquals(Reply.SUCCESS, reply.getErrorCode());
+        assertEquals("CERTS_SIGNED", reply.getProcessStatus());
+    }
+
+    @Test
+    void streamedDownloadChecksTheErrorCode() throws Exception {
+        StubTransport transport = StubTransport.of("{\"Result\":{\"ErrorCode\":\"PROCESS_STATUS_INVALID\"," +
+                "\"ProcessStatus\":\"CSR_PENDING\"}}");
+        AsyncVVService service = new AsyncVVService(transport, Runnable::run, 60000, "https://ra.example",
+                AsyncVVService.DEFAULT_EID_CLIENT);
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> service.downloadCert("4711",
+                "ENC", new ByteArrayOutputStream()).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(ProcessStateException.class, ex.getCause());
+        // the status of the reply is cached
+        assertEquals("CSR_PENDING", service.processStatus("4711").get(5, TimeUnit.SECONDS));
+        assertEquals(1, transport.getRequests().size());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class RequestMetricsTest {
+
+    private static void request(final Deadline deadline, final String url) {
+        Deadline.with(deadline, () -> {
+            RequestMetrics.Request timing = RequestMetrics.startRequest("GET", url);
+            timing.status(200);
+            timing.finish();
+            return null;
+        });
+    }
+
+    private static JSONObject responses(final RequestMetrics metrics, final int endpoint) {
+        return metrics.toJSON().getJSONArray("endpoints").getJSONObject(endpoint).getJSONObject("responses");
+    }
+
+    @Test
+    void commandsCollectTheirOwnMetrics() {
+        RequestMetrics first = new RequestMetrics();
+        RequestMetrics second = new RequestMetrics();
+        Deadline command = Deadline.unlimited();
+        command.setMetrics(first);
+        Deadline other = Deadline.after(60000);
+        other.setMetrics(second);
+
+        request(command, "https://ra.example/status/");
+        // a deadline derived from the one of the command, e.g. by --timeout
+        request(command.limit(1000), "https://ra.example/status/");
+        request(other, "https://ra.example/process/");
+
+        assertEquals(2, responses(first, 0).getLong("200"));
+        JSONArray endpoints = second.toJSON().getJSONArray("endpoints");
+        assertEquals(1, endpoints.length());
+        assertEquals("/process/", endpoints.getJSONObject(0).getString("path"));
+    }
+
+    @Test
+    void unlimitedDeadlineRecordsNoUsedShare() {
+        RequestMetrics metrics = new RequestMetrics();
+        Deadline command = Deadline.unlimited();
+        command.setMetrics(metrics);
+        request(command, "https://ra.example/status/");
+        assertNull(metrics.toJSON().getJSONArray("endpoints").getJSONObject(0).optJSONObject("deadlineUsed"));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class ResilientTransportTest {
+    private static final String URL = "https://ra.example/process/";
+
+    private static ResilientTransport resilient(final StubTransport stub) {
+        ResilientTransport transport = new ResilientTransport(stub);
+        transport.setRetries(3, 10);
+        transport.setHedgeDelay(0);
+        return transport;
+    }
+
+    private static Throwable failure(final CompletableFuture<?> future) {
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return ex.getCause();
+    }
+
+    @Test
+    void retriesTransientFailuresOfGetRequests() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        StubTransport stub = new StubTransport((method, url) -> {
+            switch (calls.incrementAndGet()) {
+                case 1:
+                    return CompletableFuture.failedFuture(new IOException("Connection reset"));
+                case 2:
+                    return StubTransport.error(502, null);
+                default:
+                    return CompletableFuture.completedFuture("ok");
+            }
+        });
+        assertEquals("ok", resilient(stub).requestAsync("GET", URL, null).get(5, TimeUnit.SECONDS));
+        assertEquals(3, stub.getRequests().size());
+    }
+
+    @Test
+    void doesNotRetryClientErrorsOrOtherMethods() {
+        StubTransport notFound = new StubTransport((method, url) -> StubTransport.error(404, null));
+        assertInstanceOf(HttpStatusException.class, failure(resilient(notFound).requestAsync("GET", URL, null)));
+        assertEquals(1, notFound.getRequests().size());
+
+        StubTransport reset = new StubTransport(
+                (method, url) -> CompletableFuture.failedFuture(new IOException("Connection reset")));
+        assertInstanceOf(IOException.class, failure(resilient(reset).requestAsync("POST", URL, null)));
+        assertEquals(1, reset.getRequests().size());
+    }
+
+    @Test
+    void waitsForRetryAfter() throws Exception {
+        List<Long> times = new CopyOnWriteArrayList<>();
+        StubTransport stub = new StubTransport((method, url) -> {
+            times.add(System.nanoTime());
+            return (times.size() == 1) ? StubTransport.error(503, "1") : CompletableFuture.completedFuture("ok");
+        });
+        assertEquals("ok", resilient(stub).requestAsync("GET", URL, null).get(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(times.get(1) - times.get(0)) >= 1000);
+    }
+
+    @Test
+    void hedgesSlowRequestsAndAbortsTheLoser() throws Exception {
+        CountDownLatch aborted = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        StubTransport stub = new StubTransport((method, url) -> {
+            if (calls.incrementAndGet() == 1) {
+                Deadline.current().onAbort(aborted::countDown);
+                return new CompletableFuture<>();
+            }
+            return CompletableFuture.completedFuture("hedged");
+        });
+        ResilientTransport transport = resilient(stub);
+        transport.setHedgeDelay(50);
+        assertEquals("hedged", transport.requestAsync("GET", URL, null).get(5, TimeUnit.SECONDS));
+        assertEquals(2, stub.getRequests().size());
+        assertTrue(aborted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void abortsAttemptsAfterTheTimeout() throws Exception {
+        CountDownLatch aborted = new CountDownLatch(1);
+        StubTransport stub = new StubTransport((method, url) -> {
+            Deadline.current().onAbort(aborted::countDown);
+            return new CompletableFuture<>();
+        });
+        ResilientTransport transport = resilient(stub);
+        transport.setRetries(1, 10);
+        transport.setAttemptTimeout(100);
+        assertInstanceOf(HttpTimeoutException.class, failure(transport.requestAsync("GET", URL, null)));
+        assertTrue(aborted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void doesNotTimeOutUploads() throws Exception {
+        StubTransport stub = new StubTransport((method, url) -> CompletableFuture.supplyAsync(() -> "uploaded",
+                CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS)));
+        ResilientTransport transport = resilient(stub);
+        transport.setAttemptTimeout(100);
+        assertEquals("uploaded", transport.requestAsync("POST", URL, null).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void releasesTheDeadlineOfAnAttempt() throws Exception {
+        AtomicReference<Deadline> limit = new AtomicReference<>();
+        StubTransport stub = new StubTransport((method, url) -> {
+            limit.set(Deadline.current());
+            return CompletableFuture.completedFuture("ok");
+        });
+        ResilientTransport transport = resilient(stub);
+        transport.setAttemptTimeout(100);
+        assertEquals("ok", transport.requestAsync("GET", URL, null).get(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // an expired deadline would run the action at once
+        AtomicBoolean aborted = new AtomicBoolean();
+        limit.get().onAbort(() -> aborted.set(true));
+        assertFalse(aborted.get());
+    }
+}
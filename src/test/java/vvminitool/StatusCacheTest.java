@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import org.junit.jupiter.api.Test;
+
+class StatusCacheTest {
+    private static final String ID = "4711";
+
+    /** status requests which are answered by the test */
+    private static final class Requests implements LongFunction<CompletableFuture<String>> {
+        final StatusCache cache;
+        final List<CompletableFuture<String>> pending = new CopyOnWriteArrayList<>();
+
+        Requests(StatusCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public CompletableFuture<String> apply(final long ticket) {
+            CompletableFuture<String> reply = new CompletableFuture<>();
+            pending.add(reply);
+            // like AsyncVVService.request, which records the status of every reply
+            return reply.whenComplete((status, ex) -> cache.put(ID, status, ticket));
+        }
+    }
+
+    @Test
+    void answersFromTheCacheWithinTheTtl() throws Exception {
+        StatusCache cache = new StatusCache(60000);
+        cache.put(ID, "AUTH_PENDING", cache.ticket());
+        Requests requests = new Requests(cache);
+        assertEquals("AUTH_PENDING", cache.get(ID, null, requests).get());
+        assertEquals(0, requests.pending.size());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    void sharesARequestInFlight() throws Exception {
+        StatusCache cache = new StatusCache(60000);
+        Requests requests = new Requests(cache);
+        CompletableFuture<String> first = cache.get(ID, null, requests);
+        CompletableFuture<String> second = cache.get(ID, null, requests);
+        assertEquals(1, requests.pending.size());
+        requests.pending.get(0).complete("EMAIL_PENDING");
+        assertEquals("EMAIL_PENDING", first.get());
+        assertEquals("EMAIL_PENDING", second.get());
+        assertEquals(1, cache.getCoalesced());
+    }
+
+    @Test
+    void staleReplyDoesNotOverwriteANewerStatus() throws Exception {
+        StatusCache cache = new StatusCache(60000);
+        Requests requests = new Requests(cache);
+        CompletableFuture<String> old = cache.get(ID, null, requests);
+        // a change is sent after the status request and answered before it
+        long change = cache.change(ID);
+        cache.put(ID, "CERT_IN_PROGRESS", change);
+        requests.pending.get(0).complete("CSR_PENDING");
+        assertEquals("CSR_PENDING", old.get());
+        assertEquals("CERT_IN_PROGRESS", cache.get(ID, null, requests).get());
+        assertEquals(1, requests.pending.size());
+    }
+
+    @Test
+    void doesNotShareARequestSentBeforeAChange() throws Exception {
+        StatusCache cache = new StatusCache(60000);
+        Requests requests = new Requests(cache);
+        cache.get(ID, null, requests);
+        cache.change(ID);
+        CompletableFuture<String> fresh = cache.get(ID, null, requests);
+        assertEquals(2, requests.pending.size());
+        requests.pending.get(1).complete("CERT_IN_PROGRESS");
+        requests.pending.get(0).complete("CSR_PENDING");
+        assertEquals("CERT_IN_PROGRESS", fresh.get());
+        assertEquals("CERT_IN_PROGRESS", cache.get(ID, null, requests).get());
+    }
+
+    @Test
+    void sharesRequestsOnlyWithinADeadline() throws Exception {
+        StatusCache cache = new StatusCache(60000);
+        Requests requests = new Requests(cache);
+        Deadline cancelled = Deadline.after(60000);
+        CompletableFuture<String> first = cache.get(ID, cancelled, requests);
+        CompletableFuture<String> second = cache.get(ID, Deadline.after(60000), requests);
+        assertEquals(2, requests.pending.size());
+        cancelled.cancel();
+        requests.pending.get(0).completeExceptionally(cancelled.exception());
+        requests.pending.get(1).complete("AUTH_PENDING");
+        assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+        assertEquals("AUTH_PENDING", second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void forgetsARequestWhichCouldNotBeSent() throws Exception {
+        StatusCache cache = new StatusCache(60000);
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> cache.get(ID, null, ticket -> {
+            throw new IllegalStateException("transport closed");
+        }).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, ex.getCause());
+        Requests requests = new Requests(cache);
+        cache.get(ID, null, requests);
+        assertEquals(1, requests.pending.size());
+    }
+
+    @Test
+    void serviceKeepsTheStatusOfAChange() throws Exception {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        StubTransport transport = new StubTransport((method, url) -> method.equals("GET") ? slow :
+                CompletableFuture.completedFuture(StubTransport.status("EMAIL_PENDING")));
+        AsyncVVService service = new AsyncVVService(transport, null, 60000, "https://ra.example",
+                AsyncVVService.DEFAULT_EID_CLIENT);
+        CompletableFuture<String> old = service.processStatus(ID);
+        service.submitEmailAddress(ID, "user@example.org").get(5, TimeUnit.SECONDS);
+        slow.complete(StubTransport.status("AUTH_COMPLETED"));
+        assertEquals("AUTH_COMPLETED", old.get(5, TimeUnit.SECONDS));
+        assertEquals("EMAIL_PENDING", service.processStatus(ID).get(5, TimeUnit.SECONDS));
+        assertEquals(2, transport.getRequests().size());
+    }
+}
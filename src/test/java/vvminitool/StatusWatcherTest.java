@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class StatusWatcherTest {
+    private static final String SERVER = "https://ra.example";
+
+    private static AsyncVVService service(final StubTransport transport) {
+        return new AsyncVVService(transport, null, 0, SERVER, AsyncVVService.DEFAULT_EID_CLIENT);
+    }
+
+    @Test
+    void completesWhenTheStatusIsReached() throws Exception {
+        StubTransport transport = StubTransport.of(StubTransport.status("CERT_IN_PROGRESS"),
+                StubTransport.status("CERT_IN_PROGRESS"), StubTransport.status("CERT_AVAILABLE"));
+        try (StatusWatcher watcher = new StatusWatcher(service(transport), 10, 20)) {
+            assertEquals("CERT_AVAILABLE", watcher.watch("id", null, "CERT_AVAILABLE").get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(3, transport.getRequests().size());
+    }
+
+    @Test
+    void failsWhenTheProcessWaitsForTheUser() {
+        StubTransport transport = StubTransport.of(StubTransport.status("AUTH_PENDING"));
+        try (StatusWatcher watcher = new StatusWatcher(service(transport), 10, 20)) {
+            ExecutionException ex = assertThrows(ExecutionException.class,
+                    () -> watcher.watch("id", null, "CERT_AVAILABLE").get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, ex.getCause());
+        }
+    }
+
+    @Test
+    void failsWhenTheDeadlineExpires() {
+        StubTransport transport = StubTransport.of(StubTransport.status("CERT_IN_PROGRESS"));
+        AsyncVVService service = service(transport).withTimeout(500);
+        try (StatusWatcher watcher = new StatusWatcher(service, 100, 200)) {
+            long start = System.nanoTime();
+            ExecutionException ex = assertThrows(ExecutionException.class,
+                    () -> watcher.watch("id", null, "CERT_AVAILABLE").get(5, TimeUnit.SECONDS));
+            assertInstanceOf(HttpTimeoutException.class, ex.getCause());
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed < 1500, elapsed + " ms");
+        }
+    }
+
+    @Test
+    void failsWhenTheDeadlineIsCancelled() {
+        StubTransport transport = StubTransport.of(StubTransport.status("CERT_IN_PROGRESS"));
+        Deadline deadline = Deadline.after(60000);
+        try (StatusWatcher watcher = new StatusWatcher(service(transport).withDeadline(deadline), 100, 200)) {
+            CompletableFuture<String> watch = watcher.watch("id", null, "CERT_AVAILABLE");
+            deadline.cancel();
+            ExecutionException ex = assertThrows(ExecutionException.class, () -> watch.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(InterruptedIOException.class, ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * A transport for the tests which answers requests without the network and
+ * records them as "METHOD url".
+ */
+class StubTransport implements HttpsTransport {
+    private final BiFunction<String, String, CompletableFuture<String>> replies;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a transport.
+     * @param replies  the reply to a method and a URL
+     */
+    StubTransport(final BiFunction<String, String, CompletableFuture<String>> replies) {
+        this.replies = replies;
+    }
+
+    /**
+     * Create a transport which answers the requests in turn; the last reply
+     * is repeated.
+     * @param replies
+     * @return
+     */
+    static StubTransport of(final String... replies) {
+        final AtomicInteger next = new AtomicInteger();
+        return new StubTransport((method, url) -> CompletableFuture.completedFuture(
+                replies[Math.min(next.getAndIncrement(), replies.length - 1)]));
+    }
+
+    /**
+     * Get a successful reply with a process status.
+     * @param status
+     * @return
+     */
+    static String status(final String status) {
+        return "{\"Result\":{\"ErrorCode\":\"GENERIC_SUCCESS\",\"ProcessStatus\":\"" + status + "\"}}";
+    }
+
+    /**
+     * Get a reply which fails with an HTTP status code.
+     * @param statusCode  at least 400
+     * @param retryAfter  the Retry-After header, or null
+     * @return
+     */
+    static CompletableFuture<String> error(final int statusCode, final String retryAfter) {
+        try {
+            HttpStatusException.check(statusCode, "https://ra.example/", null, retryAfter);
+        } catch (HttpStatusException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        throw new IllegalArgumentException("not an error: " + statusCode);
+    }
+
+    /**
+     * Get the requests received so far.
+     * @return
+     */
+    List<String> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    @Override
+    public String request(final String method, final String url, final MultipartBody body) throws IOException {
+        return AsyncVVService.await(requestAsync(method, url, body));
+    }
+
+    @Override
+    public InputStream open(final String method, final String url) throws IOException {
+        return AsyncVVService.await(openAsync(method, url));
+    }
+
+    @Override
+    public CompletableFuture<String> requestAsync(final String method, final String url,
+            final MultipartBody body) {
+        requests.add(method + " " + url);
+        try {
+            return replies.apply(method, url);
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openAsync(final String method, final String url) {
+        return requestAsync(method, url, null)
+                .thenApply(reply -> new ByteArrayInputStream(reply.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 t-pa
+ *
+ * This file is part of vvminitool.
+ *
+ * vvminitool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package vvminitool;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A local HTTPS server for the tests which answers every request with the
+ * same reply and counts the TLS handshakes. It uses the self-signed
+ * certificate in stub-server.p12 (CN=localhost); clients trust it through
+ * stub-trust.p12.
+ */
+final class TlsStubServer implements AutoCloseable {
+    static final char[] PASSWORD = "changeit".toCharArray();
+
+    static {
+        // otherwise small replies wait for delayed ACKs
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpsServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger handshakes = new AtomicInteger();
+
+    /**
+     * Start a server on a free port of the loopback interface.
+     * @param reply  sent as application/json for every request
+     * @throws IOException
+     */
+    TlsStubServer(final String reply) throws IOException {
+        final byte[] data = reply.getBytes(StandardCharsets.UTF_8);
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(createServerContext()) {
+            @Override
+            public void configure(final HttpsParameters params) {
+                // called for the handshake of every new connection
+                handshakes.incrementAndGet();
+                super.configure(params);
+            }
+        });
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+        });
+        executor = DaemonThreads.newCachedPool("stub-server");
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static SSLContext createServerContext() throws IOException {
+        try (InputStream in = TlsStubServer.class.getResourceAsStream("/stub-server.p12")) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, PASSWORD);
+            KeyManagerFactory keyManagerFactory =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagerFactory.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Cannot load stub-server.p12", ex);
+        }
+    }
+
+    /**
+     * Create an HttpsHelper which trusts the stub certificate.
+     * @return
+     * @throws Exception
+     */
+    static HttpsHelper createHelper() throws Exception {
+        HttpsHelper helper = new HttpsHelper();
+        helper.loadTrustStore(TlsStubServer.class.getResource("/stub-trust.p12"), PASSWORD);
+        return helper;
+    }
+
+    /**
+     * Get the base URL of the server, e.g. https://localhost:12345.
+     * @return
+     */
+    String getUrl() {
+        return "https://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Get the number of TLS handshakes, one per connection.
+     * @return
+     */
+    int getHandshakes() {
+        return handshakes.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}